@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.business;
+
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.List;
+
+import fr.paris.lutece.portal.service.plugin.Plugin;
+
+/**
+ *
+ * IOcrJobDAO Interface
+ *
+ */
+public interface IOcrJobDAO
+{
+    /**
+     * Insert a new pending job.
+     *
+     * @param job
+     *            the job, its id is set
+     * @param content
+     *            the file content, streamed to the database
+     * @param nLength
+     *            the length of the file content
+     * @param plugin
+     *            the plugin
+     */
+    void insert( OcrJob job, InputStream content, int nLength, Plugin plugin );
+
+    /**
+     * Count the jobs not finished yet.
+     *
+     * @param plugin
+     *            the plugin
+     * @return the number of pending or running jobs
+     */
+    int countUnfinished( Plugin plugin );
+
+    /**
+     * Load a job, without its file content.
+     *
+     * @param nId
+     *            the job id
+     * @param plugin
+     *            the plugin
+     * @return the job or null
+     */
+    OcrJob load( int nId, Plugin plugin );
+
+    /**
+     * Load a job from its reference, without its file content.
+     *
+     * @param strReference
+     *            the job reference
+     * @param plugin
+     *            the plugin
+     * @return the job or null
+     */
+    OcrJob loadByReference( String strReference, Plugin plugin );
+
+    /**
+     * Find the jobs that can be claimed : pending, or running with an expired lease.
+     *
+     * @param now
+     *            current date
+     * @param nMax
+     *            maximum number of ids
+     * @param plugin
+     *            the plugin
+     * @return the ids, by priority then creation order
+     */
+    List<Integer> selectClaimableIds( Timestamp now, int nMax, Plugin plugin );
+
+    /**
+     * Lease a job if it is still claimable. The job is updated only if no other node claimed it in between.
+     *
+     * @param nId
+     *            the job id
+     * @param strLeaseOwner
+     *            the lease token, unique for this claim
+     * @param leaseExpiration
+     *            end of the lease
+     * @param now
+     *            current date
+     * @param plugin
+     *            the plugin
+     */
+    void claim( int nId, String strLeaseOwner, Timestamp leaseExpiration, Timestamp now, Plugin plugin );
+
+    /**
+     * Load a job with its file content if it is leased with the given token.
+     *
+     * @param nId
+     *            the job id
+     * @param strLeaseOwner
+     *            the lease token
+     * @param plugin
+     *            the plugin
+     * @return the job or null if the lease belongs to another claim
+     */
+    OcrJob loadLeased( int nId, String strLeaseOwner, Plugin plugin );
+
+    /**
+     * Extend the lease of a running job.
+     *
+     * @param nId
+     *            the job id
+     * @param strLeaseOwner
+     *            the lease token
+     * @param leaseExpiration
+     *            new end of the lease
+     * @param plugin
+     *            the plugin
+     */
+    void renewLease( int nId, String strLeaseOwner, Timestamp leaseExpiration, Plugin plugin );
+
+    /**
+     * Finish a running job and remove its file content. Ignored if the lease was lost.
+     *
+     * @param nId
+     *            the job id
+     * @param strLeaseOwner
+     *            the lease token
+     * @param strStatus
+     *            done or failed
+     * @param strResult
+     *            the result (json) or null
+     * @param strErrorMessage
+     *            the error message or null
+     * @param plugin
+     *            the plugin
+     */
+    void complete( int nId, String strLeaseOwner, String strStatus, String strResult, String strErrorMessage, Plugin plugin );
+
+    /**
+     * Give a running job back to the queue. Ignored if the lease was lost.
+     *
+     * @param nId
+     *            the job id
+     * @param strLeaseOwner
+     *            the lease token
+     * @param strErrorMessage
+     *            the error of the attempt
+     * @param bCountAttempt
+     *            false if the attempt must not count against the maximum number of attempts
+     * @param plugin
+     *            the plugin
+     */
+    void release( int nId, String strLeaseOwner, String strErrorMessage, boolean bCountAttempt, Plugin plugin );
+
+    /**
+     * Delete the finished jobs last updated before a date.
+     *
+     * @param dateLimit
+     *            the date
+     * @param plugin
+     *            the plugin
+     */
+    void deleteFinished( Timestamp dateLimit, Plugin plugin );
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.business;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.paris.lutece.plugins.ocra2ia.service.buffer.OcrBufferPool;
+
+/**
+ *
+ * Image to send to the A2IA engine.
+ *
+ */
+public class ImageBean
+{
+    /**
+     * Image extension (A2ia input format).
+     */
+    private String _strExtension;
+
+    /**
+     * Image content.
+     */
+    private byte [ ] _byteContent;
+
+    /**
+     * Number of bytes of the content, the array may be longer when it comes from the buffer pool.
+     */
+    private int _nContentLength;
+
+    /**
+     * True if the content array belongs to the buffer pool.
+     */
+    private boolean _bPooled;
+
+    /**
+     * Number of holders of the image : the pooled content goes back to the pool when the last one releases it.
+     */
+    private final AtomicInteger _nReferences = new AtomicInteger( 1 );
+
+    /**
+     * Path of the image file in ocr mode file.
+     */
+    private String _strImagePath;
+
+    /**
+     * True if the image was transformed by the preprocessing stage.
+     */
+    private boolean _bPreprocessed;
+
+    /**
+     * Resolution of the image rendered from a pdf, 0 when unknown.
+     */
+    private int _nDpi;
+
+    /**
+     * Number of pages of the document the image comes from.
+     */
+    private int _nPageCount = 1;
+
+    /**
+     * Duration in milliseconds of the render of the image from a pdf.
+     */
+    private long _lRenderTime;
+
+    /**
+     * @return the extension
+     */
+    public String getExtension( )
+    {
+        return _strExtension;
+    }
+
+    /**
+     * @param strExtension
+     *            the extension to set
+     */
+    public void setExtension( String strExtension )
+    {
+        _strExtension = strExtension;
+    }
+
+    /**
+     * @return the content, holding getContentLength() bytes
+     */
+    public byte [ ] getContent( )
+    {
+        return _byteContent;
+    }
+
+    /**
+     * @return the number of bytes of the content
+     */
+    public int getContentLength( )
+    {
+        return _nContentLength;
+    }
+
+    /**
+     * @param byteContent
+     *            the content to set
+     */
+    public void setContent( byte [ ] byteContent )
+    {
+        releaseContent( );
+        _byteContent = byteContent;
+        _nContentLength = ( byteContent != null ) ? byteContent.length : 0;
+    }
+
+    /**
+     * Set a content taken from the buffer pool. The image becomes responsible for giving it back.
+     *
+     * @param byteContent
+     *            the pooled array
+     * @param nLength
+     *            the number of bytes of the content
+     */
+    public void setPooledContent( byte [ ] byteContent, int nLength )
+    {
+        releaseContent( );
+        _byteContent = byteContent;
+        _nContentLength = nLength;
+        _bPooled = true;
+    }
+
+    /**
+     * Add a holder of the image, which must call release once done with the content.
+     *
+     * @return this image
+     */
+    public ImageBean retain( )
+    {
+        _nReferences.incrementAndGet( );
+
+        return this;
+    }
+
+    /**
+     * Remove a holder of the image. The last one gives the pooled content back to the pool; releases beyond the number of holders are ignored.
+     */
+    public void release( )
+    {
+        if ( _nReferences.getAndUpdate( nReferences -> Math.max( 0, nReferences - 1 ) ) == 1 )
+        {
+            releaseContent( );
+            _byteContent = null;
+            _nContentLength = 0;
+        }
+    }
+
+    /**
+     * @return the image path
+     */
+    public String getImagePath( )
+    {
+        return _strImagePath;
+    }
+
+    /**
+     * @param strImagePath
+     *            the image path to set
+     */
+    public void setImagePath( String strImagePath )
+    {
+        _strImagePath = strImagePath;
+    }
+
+    /**
+     * @return true if the image was transformed by the preprocessing stage
+     */
+    public boolean isPreprocessed( )
+    {
+        return _bPreprocessed;
+    }
+
+    /**
+     * @param bPreprocessed
+     *            true if the image was transformed by the preprocessing stage
+     */
+    public void setPreprocessed( boolean bPreprocessed )
+    {
+        _bPreprocessed = bPreprocessed;
+    }
+
+    /**
+     * @return the resolution of the image rendered from a pdf, 0 when unknown
+     */
+    public int getDpi( )
+    {
+        return _nDpi;
+    }
+
+    /**
+     * @param nDpi
+     *            the resolution of the image rendered from a pdf
+     */
+    public void setDpi( int nDpi )
+    {
+        _nDpi = nDpi;
+    }
+
+    /**
+     * @return the number of pages of the document the image comes from
+     */
+    public int getPageCount( )
+    {
+        return _nPageCount;
+    }
+
+    /**
+     * @param nPageCount
+     *            the number of pages of the document the image comes from
+     */
+    public void setPageCount( int nPageCount )
+    {
+        _nPageCount = nPageCount;
+    }
+
+    /**
+     * @return the duration in milliseconds of the render of the image from a pdf
+     */
+    public long getRenderTime( )
+    {
+        return _lRenderTime;
+    }
+
+    /**
+     * @param lRenderTime
+     *            the duration in milliseconds of the render of the image from a pdf
+     */
+    public void setRenderTime( long lRenderTime )
+    {
+        _lRenderTime = lRenderTime;
+    }
+
+    /**
+     * Give the current content back to the pool if it belongs to it.
+     */
+    private void releaseContent( )
+    {
+        if ( _bPooled )
+        {
+            OcrBufferPool.getInstance( ).release( _byteContent );
+            _bPooled = false;
+        }
+    }
+
+}
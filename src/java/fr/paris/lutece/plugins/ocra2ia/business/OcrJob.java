@@ -0,0 +1,402 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.business;
+
+import java.sql.Timestamp;
+
+/**
+ *
+ * OCR job stored in the database, waiting to be processed by any node running the engine.
+ *
+ */
+public class OcrJob
+{
+    /**
+     * Job waiting for a node.
+     */
+    public static final String STATUS_PENDING = "pending";
+
+    /**
+     * Job leased by a node.
+     */
+    public static final String STATUS_RUNNING = "running";
+
+    /**
+     * Job processed, the result is available.
+     */
+    public static final String STATUS_DONE = "done";
+
+    /**
+     * Job failed for good, the error message is available.
+     */
+    public static final String STATUS_FAILED = "failed";
+
+    /**
+     * Job id.
+     */
+    private int _nId;
+
+    /**
+     * Job reference given to the callers : random, so that a job can not be guessed from another one.
+     */
+    private String _strReference;
+
+    /**
+     * Document type.
+     */
+    private String _strDocumentType;
+
+    /**
+     * File extension.
+     */
+    private String _strFileExtension;
+
+    /**
+     * File content, removed once the job is finished.
+     */
+    private byte [ ] _byteFileContent;
+
+    /**
+     * Priority class, ordinal of OcrPriority (lower first).
+     */
+    private int _nPriority;
+
+    /**
+     * Status.
+     */
+    private String _strStatus;
+
+    /**
+     * Number of times the job was claimed.
+     */
+    private int _nAttempts;
+
+    /**
+     * Lease token of the node processing the job.
+     */
+    private String _strLeaseOwner;
+
+    /**
+     * End of the lease of the node processing the job.
+     */
+    private Timestamp _leaseExpiration;
+
+    /**
+     * Result of the OCR (json).
+     */
+    private String _strResult;
+
+    /**
+     * Error message of a failed job.
+     */
+    private String _strErrorMessage;
+
+    /**
+     * Url notified when the job is finished, or null.
+     */
+    private String _strCallbackUrl;
+
+    /**
+     * Creation date.
+     */
+    private Timestamp _dateCreation;
+
+    /**
+     * Last update date.
+     */
+    private Timestamp _dateUpdate;
+
+    /**
+     * @return the id
+     */
+    public int getId( )
+    {
+        return _nId;
+    }
+
+    /**
+     * @param nId
+     *            the id to set
+     */
+    public void setId( int nId )
+    {
+        _nId = nId;
+    }
+
+    /**
+     * @return the reference
+     */
+    public String getReference( )
+    {
+        return _strReference;
+    }
+
+    /**
+     * @param strReference
+     *            the reference to set
+     */
+    public void setReference( String strReference )
+    {
+        _strReference = strReference;
+    }
+
+    /**
+     * @return the document type
+     */
+    public String getDocumentType( )
+    {
+        return _strDocumentType;
+    }
+
+    /**
+     * @param strDocumentType
+     *            the document type to set
+     */
+    public void setDocumentType( String strDocumentType )
+    {
+        _strDocumentType = strDocumentType;
+    }
+
+    /**
+     * @return the file extension
+     */
+    public String getFileExtension( )
+    {
+        return _strFileExtension;
+    }
+
+    /**
+     * @param strFileExtension
+     *            the file extension to set
+     */
+    public void setFileExtension( String strFileExtension )
+    {
+        _strFileExtension = strFileExtension;
+    }
+
+    /**
+     * @return the file content
+     */
+    public byte [ ] getFileContent( )
+    {
+        return _byteFileContent;
+    }
+
+    /**
+     * @param byteFileContent
+     *            the file content to set
+     */
+    public void setFileContent( byte [ ] byteFileContent )
+    {
+        _byteFileContent = byteFileContent;
+    }
+
+    /**
+     * @return the priority
+     */
+    public int getPriority( )
+    {
+        return _nPriority;
+    }
+
+    /**
+     * @param nPriority
+     *            the priority to set
+     */
+    public void setPriority( int nPriority )
+    {
+        _nPriority = nPriority;
+    }
+
+    /**
+     * @return the status
+     */
+    public String getStatus( )
+    {
+        return _strStatus;
+    }
+
+    /**
+     * @param strStatus
+     *            the status to set
+     */
+    public void setStatus( String strStatus )
+    {
+        _strStatus = strStatus;
+    }
+
+    /**
+     * @return the number of attempts
+     */
+    public int getAttempts( )
+    {
+        return _nAttempts;
+    }
+
+    /**
+     * @param nAttempts
+     *            the number of attempts to set
+     */
+    public void setAttempts( int nAttempts )
+    {
+        _nAttempts = nAttempts;
+    }
+
+    /**
+     * @return the lease owner
+     */
+    public String getLeaseOwner( )
+    {
+        return _strLeaseOwner;
+    }
+
+    /**
+     * @param strLeaseOwner
+     *            the lease owner to set
+     */
+    public void setLeaseOwner( String strLeaseOwner )
+    {
+        _strLeaseOwner = strLeaseOwner;
+    }
+
+    /**
+     * @return the lease expiration
+     */
+    public Timestamp getLeaseExpiration( )
+    {
+        return _leaseExpiration;
+    }
+
+    /**
+     * @param leaseExpiration
+     *            the lease expiration to set
+     */
+    public void setLeaseExpiration( Timestamp leaseExpiration )
+    {
+        _leaseExpiration = leaseExpiration;
+    }
+
+    /**
+     * @return the result
+     */
+    public String getResult( )
+    {
+        return _strResult;
+    }
+
+    /**
+     * @param strResult
+     *            the result to set
+     */
+    public void setResult( String strResult )
+    {
+        _strResult = strResult;
+    }
+
+    /**
+     * @return the error message
+     */
+    public String getErrorMessage( )
+    {
+        return _strErrorMessage;
+    }
+
+    /**
+     * @param strErrorMessage
+     *            the error message to set
+     */
+    public void setErrorMessage( String strErrorMessage )
+    {
+        _strErrorMessage = strErrorMessage;
+    }
+
+    /**
+     * @return the callback url
+     */
+    public String getCallbackUrl( )
+    {
+        return _strCallbackUrl;
+    }
+
+    /**
+     * @param strCallbackUrl
+     *            the callback url to set
+     */
+    public void setCallbackUrl( String strCallbackUrl )
+    {
+        _strCallbackUrl = strCallbackUrl;
+    }
+
+    /**
+     * @return the creation date
+     */
+    public Timestamp getDateCreation( )
+    {
+        return _dateCreation;
+    }
+
+    /**
+     * @param dateCreation
+     *            the creation date to set
+     */
+    public void setDateCreation( Timestamp dateCreation )
+    {
+        _dateCreation = dateCreation;
+    }
+
+    /**
+     * @return the last update date
+     */
+    public Timestamp getDateUpdate( )
+    {
+        return _dateUpdate;
+    }
+
+    /**
+     * @param dateUpdate
+     *            the last update date to set
+     */
+    public void setDateUpdate( Timestamp dateUpdate )
+    {
+        _dateUpdate = dateUpdate;
+    }
+
+    /**
+     * @return true if the job is done or failed
+     */
+    public boolean isFinished( )
+    {
+        return STATUS_DONE.equals( _strStatus ) || STATUS_FAILED.equals( _strStatus );
+    }
+}
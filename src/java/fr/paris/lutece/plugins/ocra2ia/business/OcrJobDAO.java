@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.business;
+
+import java.io.InputStream;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.paris.lutece.portal.service.plugin.Plugin;
+import fr.paris.lutece.util.sql.DAOUtil;
+
+/**
+ *
+ * Data access for the OCR jobs.
+ *
+ */
+public final class OcrJobDAO implements IOcrJobDAO
+{
+    // Constants
+    private static final String SQL_QUERY_INSERT = "INSERT INTO ocra2ia_job ( job_reference, document_type, file_extension, file_content, priority, status, attempts, callback_url, date_creation, date_update ) VALUES ( ?, ?, ?, ?, ?, ?, 0, ?, ?, ? ) ";
+    private static final String SQL_QUERY_SELECT = "SELECT id_job, job_reference, document_type, file_extension, priority, status, attempts, lease_owner, lease_expiration, result, error_message, callback_url, date_creation, date_update FROM ocra2ia_job WHERE id_job = ? ";
+    private static final String SQL_QUERY_SELECT_BY_REFERENCE = "SELECT id_job, job_reference, document_type, file_extension, priority, status, attempts, lease_owner, lease_expiration, result, error_message, callback_url, date_creation, date_update FROM ocra2ia_job WHERE job_reference = ? ";
+    private static final String SQL_QUERY_COUNT_UNFINISHED = "SELECT COUNT(*) FROM ocra2ia_job WHERE status IN ( ?, ? ) ";
+    private static final String SQL_QUERY_SELECT_CLAIMABLE = "SELECT id_job FROM ocra2ia_job WHERE status = ? OR ( status = ? AND lease_expiration < ? ) ORDER BY priority, id_job LIMIT ? ";
+    private static final String SQL_QUERY_CLAIM = "UPDATE ocra2ia_job SET status = ?, lease_owner = ?, lease_expiration = ?, attempts = attempts + 1, date_update = ? WHERE id_job = ? AND ( status = ? OR ( status = ? AND lease_expiration < ? ) ) ";
+    private static final String SQL_QUERY_SELECT_LEASED = "SELECT id_job, job_reference, document_type, file_extension, priority, status, attempts, lease_owner, lease_expiration, result, error_message, callback_url, date_creation, date_update, file_content FROM ocra2ia_job WHERE id_job = ? AND status = ? AND lease_owner = ? ";
+    private static final String SQL_QUERY_RENEW_LEASE = "UPDATE ocra2ia_job SET lease_expiration = ? WHERE id_job = ? AND status = ? AND lease_owner = ? ";
+    private static final String SQL_QUERY_COMPLETE = "UPDATE ocra2ia_job SET status = ?, result = ?, error_message = ?, file_content = NULL, lease_owner = NULL, lease_expiration = NULL, date_update = ? WHERE id_job = ? AND status = ? AND lease_owner = ? ";
+    private static final String SQL_QUERY_RELEASE = "UPDATE ocra2ia_job SET status = ?, error_message = ?, attempts = attempts - ?, lease_owner = NULL, lease_expiration = NULL, date_update = ? WHERE id_job = ? AND status = ? AND lease_owner = ? ";
+    private static final String SQL_QUERY_DELETE_FINISHED = "DELETE FROM ocra2ia_job WHERE status IN ( ?, ? ) AND date_update < ? ";
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void insert( OcrJob job, InputStream content, int nLength, Plugin plugin )
+    {
+        Timestamp now = new Timestamp( System.currentTimeMillis( ) );
+        DAOUtil daoUtil = new DAOUtil( SQL_QUERY_INSERT, Statement.RETURN_GENERATED_KEYS, plugin );
+        try
+        {
+            int nIndex = 1;
+            daoUtil.setString( nIndex++, job.getReference( ) );
+            daoUtil.setString( nIndex++, job.getDocumentType( ) );
+            daoUtil.setString( nIndex++, job.getFileExtension( ) );
+            daoUtil.setBinaryStream( nIndex++, content, nLength );
+            daoUtil.setInt( nIndex++, job.getPriority( ) );
+            daoUtil.setString( nIndex++, OcrJob.STATUS_PENDING );
+            daoUtil.setString( nIndex++, job.getCallbackUrl( ) );
+            daoUtil.setTimestamp( nIndex++, now );
+            daoUtil.setTimestamp( nIndex, now );
+            daoUtil.executeUpdate( );
+
+            if ( daoUtil.nextGeneratedKey( ) )
+            {
+                job.setId( daoUtil.getGeneratedKeyInt( 1 ) );
+            }
+        }
+        finally
+        {
+            daoUtil.free( );
+        }
+
+        job.setStatus( OcrJob.STATUS_PENDING );
+        job.setAttempts( 0 );
+        job.setDateCreation( now );
+        job.setDateUpdate( now );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OcrJob load( int nId, Plugin plugin )
+    {
+        OcrJob job = null;
+        DAOUtil daoUtil = new DAOUtil( SQL_QUERY_SELECT, plugin );
+        try
+        {
+            daoUtil.setInt( 1, nId );
+            daoUtil.executeQuery( );
+
+            if ( daoUtil.next( ) )
+            {
+                job = getJob( daoUtil );
+            }
+        }
+        finally
+        {
+            daoUtil.free( );
+        }
+
+        return job;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OcrJob loadByReference( String strReference, Plugin plugin )
+    {
+        OcrJob job = null;
+        DAOUtil daoUtil = new DAOUtil( SQL_QUERY_SELECT_BY_REFERENCE, plugin );
+        try
+        {
+            daoUtil.setString( 1, strReference );
+            daoUtil.executeQuery( );
+
+            if ( daoUtil.next( ) )
+            {
+                job = getJob( daoUtil );
+            }
+        }
+        finally
+        {
+            daoUtil.free( );
+        }
+
+        return job;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int countUnfinished( Plugin plugin )
+    {
+        int nCount = 0;
+        DAOUtil daoUtil = new DAOUtil( SQL_QUERY_COUNT_UNFINISHED, plugin );
+        try
+        {
+            daoUtil.setString( 1, OcrJob.STATUS_PENDING );
+            daoUtil.setString( 2, OcrJob.STATUS_RUNNING );
+            daoUtil.executeQuery( );
+
+            if ( daoUtil.next( ) )
+            {
+                nCount = daoUtil.getInt( 1 );
+            }
+        }
+        finally
+        {
+            daoUtil.free( );
+        }
+
+        return nCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Integer> selectClaimableIds( Timestamp now, int nMax, Plugin plugin )
+    {
+        List<Integer> listIds = new ArrayList<>( );
+        DAOUtil daoUtil = new DAOUtil( SQL_QUERY_SELECT_CLAIMABLE, plugin );
+        try
+        {
+            daoUtil.setString( 1, OcrJob.STATUS_PENDING );
+            daoUtil.setString( 2, OcrJob.STATUS_RUNNING );
+            daoUtil.setTimestamp( 3, now );
+            daoUtil.setInt( 4, nMax );
+            daoUtil.executeQuery( );
+
+            while ( daoUtil.next( ) )
+            {
+                listIds.add( daoUtil.getInt( 1 ) );
+            }
+        }
+        finally
+        {
+            daoUtil.free( );
+        }
+
+        return listIds;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void claim( int nId, String strLeaseOwner, Timestamp leaseExpiration, Timestamp now, Plugin plugin )
+    {
+        DAOUtil daoUtil = new DAOUtil( SQL_QUERY_CLAIM, plugin );
+        try
+        {
+            int nIndex = 1;
+            daoUtil.setString( nIndex++, OcrJob.STATUS_RUNNING );
+            daoUtil.setString( nIndex++, strLeaseOwner );
+            daoUtil.setTimestamp( nIndex++, leaseExpiration );
+            daoUtil.setTimestamp( nIndex++, now );
+            daoUtil.setInt( nIndex++, nId );
+            daoUtil.setString( nIndex++, OcrJob.STATUS_PENDING );
+            daoUtil.setString( nIndex++, OcrJob.STATUS_RUNNING );
+            daoUtil.setTimestamp( nIndex, now );
+            daoUtil.executeUpdate( );
+        }
+        finally
+        {
+            daoUtil.free( );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OcrJob loadLeased( int nId, String strLeaseOwner, Plugin plugin )
+    {
+        OcrJob job = null;
+        DAOUtil daoUtil = new DAOUtil( SQL_QUERY_SELECT_LEASED, plugin );
+        try
+        {
+            daoUtil.setInt( 1, nId );
+            daoUtil.setString( 2, OcrJob.STATUS_RUNNING );
+            daoUtil.setString( 3, strLeaseOwner );
+            daoUtil.executeQuery( );
+
+            if ( daoUtil.next( ) )
+            {
+                job = getJob( daoUtil );
+                job.setFileContent( daoUtil.getBytes( 15 ) );
+            }
+        }
+        finally
+        {
+            daoUtil.free( );
+        }
+
+        return job;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void renewLease( int nId, String strLeaseOwner, Timestamp leaseExpiration, Plugin plugin )
+    {
+        DAOUtil daoUtil = new DAOUtil( SQL_QUERY_RENEW_LEASE, plugin );
+        try
+        {
+            daoUtil.setTimestamp( 1, leaseExpiration );
+            daoUtil.setInt( 2, nId );
+            daoUtil.setString( 3, OcrJob.STATUS_RUNNING );
+            daoUtil.setString( 4, strLeaseOwner );
+            daoUtil.executeUpdate( );
+        }
+        finally
+        {
+            daoUtil.free( );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void complete( int nId, String strLeaseOwner, String strStatus, String strResult, String strErrorMessage, Plugin plugin )
+    {
+        DAOUtil daoUtil = new DAOUtil( SQL_QUERY_COMPLETE, plugin );
+        try
+        {
+            int nIndex = 1;
+            daoUtil.setString( nIndex++, strStatus );
+            daoUtil.setString( nIndex++, strResult );
+            daoUtil.setString( nIndex++, strErrorMessage );
+            daoUtil.setTimestamp( nIndex++, new Timestamp( System.currentTimeMillis( ) ) );
+            daoUtil.setInt( nIndex++, nId );
+            daoUtil.setString( nIndex++, OcrJob.STATUS_RUNNING );
+            daoUtil.setString( nIndex, strLeaseOwner );
+            daoUtil.executeUpdate( );
+        }
+        finally
+        {
+            daoUtil.free( );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void release( int nId, String strLeaseOwner, String strErrorMessage, boolean bCountAttempt, Plugin plugin )
+    {
+        DAOUtil daoUtil = new DAOUtil( SQL_QUERY_RELEASE, plugin );
+        try
+        {
+            int nIndex = 1;
+            daoUtil.setString( nIndex++, OcrJob.STATUS_PENDING );
+            daoUtil.setString( nIndex++, strErrorMessage );
+            daoUtil.setInt( nIndex++, bCountAttempt ? 0 : 1 );
+            daoUtil.setTimestamp( nIndex++, new Timestamp( System.currentTimeMillis( ) ) );
+            daoUtil.setInt( nIndex++, nId );
+            daoUtil.setString( nIndex++, OcrJob.STATUS_RUNNING );
+            daoUtil.setString( nIndex, strLeaseOwner );
+            daoUtil.executeUpdate( );
+        }
+        finally
+        {
+            daoUtil.free( );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void deleteFinished( Timestamp dateLimit, Plugin plugin )
+    {
+        DAOUtil daoUtil = new DAOUtil( SQL_QUERY_DELETE_FINISHED, plugin );
+        try
+        {
+            daoUtil.setString( 1, OcrJob.STATUS_DONE );
+            daoUtil.setString( 2, OcrJob.STATUS_FAILED );
+            daoUtil.setTimestamp( 3, dateLimit );
+            daoUtil.executeUpdate( );
+        }
+        finally
+        {
+            daoUtil.free( );
+        }
+    }
+
+    /**
+     * Build a job from the current row, without its file content.
+     *
+     * @param daoUtil
+     *            the query positioned on a row
+     * @return the job
+     */
+    private static OcrJob getJob( DAOUtil daoUtil )
+    {
+        int nIndex = 1;
+        OcrJob job = new OcrJob( );
+        job.setId( daoUtil.getInt( nIndex++ ) );
+        job.setReference( daoUtil.getString( nIndex++ ) );
+        job.setDocumentType( daoUtil.getString( nIndex++ ) );
+        job.setFileExtension( daoUtil.getString( nIndex++ ) );
+        job.setPriority( daoUtil.getInt( nIndex++ ) );
+        job.setStatus( daoUtil.getString( nIndex++ ) );
+        job.setAttempts( daoUtil.getInt( nIndex++ ) );
+        job.setLeaseOwner( daoUtil.getString( nIndex++ ) );
+        job.setLeaseExpiration( daoUtil.getTimestamp( nIndex++ ) );
+        job.setResult( daoUtil.getString( nIndex++ ) );
+        job.setErrorMessage( daoUtil.getString( nIndex++ ) );
+        job.setCallbackUrl( daoUtil.getString( nIndex++ ) );
+        job.setDateCreation( daoUtil.getTimestamp( nIndex++ ) );
+        job.setDateUpdate( daoUtil.getTimestamp( nIndex ) );
+
+        return job;
+    }
+}
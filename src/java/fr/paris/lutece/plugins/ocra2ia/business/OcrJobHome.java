@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.business;
+
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.List;
+
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.plugin.Plugin;
+import fr.paris.lutece.portal.service.plugin.PluginService;
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+
+/**
+ *
+ * Home of the OCR jobs.
+ *
+ */
+public final class OcrJobHome
+{
+    // Static variable pointed at the DAO instance
+    private static IOcrJobDAO _dao = SpringContextService.getBean( "ocra2ia.ocrJobDAO" );
+    private static Plugin _plugin = PluginService.getPlugin( OcrConstants.PLUGIN_NAME );
+
+    /**
+     * Private constructor - this class need not be instantiated
+     */
+    private OcrJobHome( )
+    {
+    }
+
+    /**
+     * Create a pending job.
+     *
+     * @param job
+     *            the job, its id is set
+     * @param content
+     *            the file content, streamed to the database
+     * @param nLength
+     *            the length of the file content
+     * @return the job
+     */
+    public static OcrJob create( OcrJob job, InputStream content, int nLength )
+    {
+        _dao.insert( job, content, nLength, _plugin );
+
+        return job;
+    }
+
+    /**
+     * Count the jobs not finished yet.
+     *
+     * @return the number of pending or running jobs
+     */
+    public static int countUnfinished( )
+    {
+        return _dao.countUnfinished( _plugin );
+    }
+
+    /**
+     * Find a job, without its file content.
+     *
+     * @param nId
+     *            the job id
+     * @return the job or null
+     */
+    public static OcrJob findByPrimaryKey( int nId )
+    {
+        return _dao.load( nId, _plugin );
+    }
+
+    /**
+     * Find a job from its reference, without its file content.
+     *
+     * @param strReference
+     *            the job reference
+     * @return the job or null
+     */
+    public static OcrJob findByReference( String strReference )
+    {
+        return _dao.loadByReference( strReference, _plugin );
+    }
+
+    /**
+     * Find the jobs that can be claimed.
+     *
+     * @param now
+     *            current date
+     * @param nMax
+     *            maximum number of ids
+     * @return the ids, by priority then creation order
+     */
+    public static List<Integer> findClaimableIds( Timestamp now, int nMax )
+    {
+        return _dao.selectClaimableIds( now, nMax, _plugin );
+    }
+
+    /**
+     * Lease a job. Several nodes may try to claim the same job : only the one whose token is stored gets it.
+     *
+     * @param nId
+     *            the job id
+     * @param strLeaseOwner
+     *            the lease token, unique for this claim
+     * @param leaseExpiration
+     *            end of the lease
+     * @return the job with its file content, or null if it was claimed by another node
+     */
+    public static OcrJob claim( int nId, String strLeaseOwner, Timestamp leaseExpiration )
+    {
+        _dao.claim( nId, strLeaseOwner, leaseExpiration, new Timestamp( System.currentTimeMillis( ) ), _plugin );
+
+        return _dao.loadLeased( nId, strLeaseOwner, _plugin );
+    }
+
+    /**
+     * Extend the lease of a running job.
+     *
+     * @param nId
+     *            the job id
+     * @param strLeaseOwner
+     *            the lease token
+     * @param leaseExpiration
+     *            new end of the lease
+     */
+    public static void renewLease( int nId, String strLeaseOwner, Timestamp leaseExpiration )
+    {
+        _dao.renewLease( nId, strLeaseOwner, leaseExpiration, _plugin );
+    }
+
+    /**
+     * Store the result of a job.
+     *
+     * @param nId
+     *            the job id
+     * @param strLeaseOwner
+     *            the lease token
+     * @param strResult
+     *            the result (json)
+     */
+    public static void complete( int nId, String strLeaseOwner, String strResult )
+    {
+        _dao.complete( nId, strLeaseOwner, OcrJob.STATUS_DONE, strResult, null, _plugin );
+    }
+
+    /**
+     * Mark a job as failed for good.
+     *
+     * @param nId
+     *            the job id
+     * @param strLeaseOwner
+     *            the lease token
+     * @param strErrorMessage
+     *            the error message
+     */
+    public static void fail( int nId, String strLeaseOwner, String strErrorMessage )
+    {
+        _dao.complete( nId, strLeaseOwner, OcrJob.STATUS_FAILED, null, strErrorMessage, _plugin );
+    }
+
+    /**
+     * Give a job back to the queue to be retried.
+     *
+     * @param nId
+     *            the job id
+     * @param strLeaseOwner
+     *            the lease token
+     * @param strErrorMessage
+     *            the error of the attempt
+     * @param bCountAttempt
+     *            false if the attempt must not count against the maximum number of attempts
+     */
+    public static void release( int nId, String strLeaseOwner, String strErrorMessage, boolean bCountAttempt )
+    {
+        _dao.release( nId, strLeaseOwner, strErrorMessage, bCountAttempt, _plugin );
+    }
+
+    /**
+     * Delete the finished jobs last updated before a date.
+     *
+     * @param dateLimit
+     *            the date
+     */
+    public static void removeFinished( Timestamp dateLimit )
+    {
+        _dao.deleteFinished( dateLimit, _plugin );
+    }
+}
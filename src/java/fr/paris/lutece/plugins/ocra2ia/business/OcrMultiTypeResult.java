@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.business;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ * Result of the OCR of a document for several document types : the result of each type and the type the document best matches.
+ *
+ */
+public class OcrMultiTypeResult
+{
+    /**
+     * Result of each document type, in the order of the request.
+     */
+    private final Map<String, Map<String, String>> _mapResults = new LinkedHashMap<>( );
+
+    /**
+     * Score of each document type : share of its required fields found.
+     */
+    private final Map<String, Double> _mapScores = new LinkedHashMap<>( );
+
+    /**
+     * Document type the document best matches, null if no type gave a result.
+     */
+    private String _strBestMatch;
+
+    /**
+     * Add the result of a document type. The best match is the type of highest score, then of most fields; a type without any field is never the best
+     * match.
+     *
+     * @param strDocumentType
+     *            document type
+     * @param mapResults
+     *            result of the document type, without the blank fields
+     * @param dScore
+     *            share of the required fields of the type found in the result
+     */
+    public void addResult( String strDocumentType, Map<String, String> mapResults, double dScore )
+    {
+        _mapResults.put( strDocumentType, mapResults );
+        _mapScores.put( strDocumentType, dScore );
+        if ( mapResults.isEmpty( ) )
+        {
+            return;
+        }
+        if ( ( _strBestMatch == null ) || ( dScore > _mapScores.get( _strBestMatch ) )
+                || ( ( dScore == _mapScores.get( _strBestMatch ) ) && ( mapResults.size( ) > _mapResults.get( _strBestMatch ).size( ) ) ) )
+        {
+            _strBestMatch = strDocumentType;
+        }
+    }
+
+    /**
+     * @return the result of each document type, in the order of the request
+     */
+    public Map<String, Map<String, String>> getResults( )
+    {
+        return _mapResults;
+    }
+
+    /**
+     * Get the result of a document type.
+     *
+     * @param strDocumentType
+     *            document type
+     * @return the result, null if the type was not requested
+     */
+    public Map<String, String> getResults( String strDocumentType )
+    {
+        return _mapResults.get( strDocumentType );
+    }
+
+    /**
+     * Get the score of a document type.
+     *
+     * @param strDocumentType
+     *            document type
+     * @return the share of the required fields of the type found, between 0 and 1
+     */
+    public double getScore( String strDocumentType )
+    {
+        Double dScore = _mapScores.get( strDocumentType );
+
+        return ( dScore != null ) ? dScore : 0;
+    }
+
+    /**
+     * @return the document type the document best matches, null if no type gave a result
+     */
+    public String getBestMatch( )
+    {
+        return _strBestMatch;
+    }
+
+    /**
+     * @return the result of the best match, empty if no type gave a result
+     */
+    public Map<String, String> getBestMatchResults( )
+    {
+        return ( _strBestMatch != null ) ? _mapResults.get( _strBestMatch ) : new LinkedHashMap<>( );
+    }
+
+}
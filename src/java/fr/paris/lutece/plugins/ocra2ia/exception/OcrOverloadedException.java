@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.exception;
+
+/**
+ *
+ * Exception thrown when a request is shed because the OCR service is overloaded. The caller should retry after the suggested delay.
+ *
+ */
+public class OcrOverloadedException extends OcrException
+{
+
+    /**
+     * Generated serialVersionUID
+     */
+    private static final long serialVersionUID = 4825093173265584810L;
+
+    /**
+     * Suggested delay before retrying, in milliseconds.
+     */
+    private final long _lRetryAfter;
+
+    /**
+     * Constructor
+     *
+     * @param lRetryAfter
+     *            the suggested delay before retrying, in milliseconds
+     * @param strMessage
+     *            The error message
+     */
+    public OcrOverloadedException( long lRetryAfter, String strMessage )
+    {
+        super( strMessage );
+        _lRetryAfter = lRetryAfter;
+    }
+
+    /**
+     * Get the suggested delay before retrying.
+     *
+     * @return the delay in milliseconds
+     */
+    public long getRetryAfter( )
+    {
+        return _lRetryAfter;
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Durations of the most recent executions of an operation, to compute latency percentiles.
+ *
+ */
+final class LatencyWindow
+{
+
+    private final long [ ] _tabDurations;
+    private int _nNextPosition;
+    private int _nSize;
+
+    /**
+     * Constructor.
+     *
+     * @param nCapacity
+     *            number of durations kept
+     */
+    LatencyWindow( int nCapacity )
+    {
+        _tabDurations = new long [ nCapacity];
+    }
+
+    /**
+     * Add a duration, replacing the oldest one when the window is full.
+     *
+     * @param lDurationMs
+     *            duration in milliseconds
+     */
+    synchronized void record( long lDurationMs )
+    {
+        _tabDurations [_nNextPosition] = lDurationMs;
+        _nNextPosition = ( _nNextPosition + 1 ) % _tabDurations.length;
+        _nSize = Math.min( _nSize + 1, _tabDurations.length );
+    }
+
+    /**
+     * @return the number of durations in the window
+     */
+    synchronized int size( )
+    {
+        return _nSize;
+    }
+
+    /**
+     * Get a percentile of the durations in the window.
+     *
+     * @param dPercentile
+     *            percentile between 0 and 100
+     * @return the percentile in milliseconds, 0 if the window is empty
+     */
+    long getPercentile( double dPercentile )
+    {
+        long [ ] tabSorted;
+        synchronized( this )
+        {
+            if ( _nSize == 0 )
+            {
+                return 0L;
+            }
+            tabSorted = Arrays.copyOf( _tabDurations, _nSize );
+        }
+        Arrays.sort( tabSorted );
+        int nRank = (int) Math.ceil( ( Math.min( 100, Math.max( 0, dPercentile ) ) / 100 ) * tabSorted.length ) - 1;
+
+        return tabSorted [Math.max( 0, nRank )];
+    }
+
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrOverloadedException;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.i18n.I18nService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Admission control of the OCR requests. The number of requests in progress of each priority class is bounded by a limit adapting to the latency of the
+ * requests of the class : the limit grows by one while the requests complete within the latency target and the limit is used, and is reduced by a
+ * ratio when a request is too slow or misses its deadline. The classes have their own limits, so that a backlog of bulk requests waiting for the
+ * engine does not reduce the limit of the interactive requests. Requests over the limit are shed immediately with a suggested retry delay; bulk
+ * requests are shed first, as soon as the requests in progress of all the classes reach a ratio of the interactive limit.
+ *
+ */
+public class OcrAdmissionController
+{
+
+    private static final String COUNTER_ACCEPTED = "admission.accepted";
+    private static final String COUNTER_QUEUED = "admission.queued";
+    private static final String COUNTER_SHED = "admission.shed.";
+    private static final String COUNTER_LATENCY = "admission.latency.";
+
+    private final boolean _bEnabled;
+    private final int _nEngineCapacity;
+    private final double _dMinLimit;
+    private final double _dMaxLimit;
+    private final double _dBackoffRatio;
+    private final long _lLatencyTarget;
+    private final int _nBulkRatio;
+    private final long _lRetryAfterMin;
+
+    /**
+     * Limit and requests in progress of each priority class.
+     */
+    private final Map<OcrPriority, ClassLimit> _mapLimits = new EnumMap<>( OcrPriority.class );
+
+    /**
+     * Number of requests in progress of all the classes.
+     */
+    private int _nInFlight;
+
+    /**
+     * Constructor.
+     *
+     * @param nEngineCapacity
+     *            number of engine calls at the same time, the requests admitted over it wait for the engine
+     */
+    public OcrAdmissionController( int nEngineCapacity )
+    {
+        _bEnabled = AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_ADMISSION_ENABLED, true );
+        _nEngineCapacity = nEngineCapacity;
+        _dMinLimit = Math.max( 1, AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_ADMISSION_LIMIT_MIN, 2 ) );
+        _dMaxLimit = Math.max( _dMinLimit, AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_ADMISSION_LIMIT_MAX, 200 ) );
+        _dBackoffRatio = AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_ADMISSION_BACKOFF_PERCENT, 90 ) / 100d;
+        _lLatencyTarget = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_ADMISSION_LATENCY_TARGET, 20000L );
+        _nBulkRatio = AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_ADMISSION_BULK_RATIO, 80 );
+        _lRetryAfterMin = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_ADMISSION_RETRY_AFTER_MIN, 1000L );
+        double dInitialLimit = Math.min( _dMaxLimit,
+                Math.max( _dMinLimit, AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_ADMISSION_LIMIT_INITIAL, 20 ) ) );
+        for ( OcrPriority priority : OcrPriority.values( ) )
+        {
+            _mapLimits.put( priority, new ClassLimit( dInitialLimit ) );
+        }
+    }
+
+    /**
+     * Admit a request or shed it.
+     *
+     * @param priority
+     *            priority class of the request
+     * @throws OcrOverloadedException
+     *             if the request is shed
+     */
+    public synchronized void acquire( OcrPriority priority ) throws OcrOverloadedException
+    {
+        if ( !_bEnabled )
+        {
+            return;
+        }
+
+        ClassLimit limit = _mapLimits.get( priority );
+        boolean bShed = limit._nInFlight >= limit._dLimit;
+        if ( priority == OcrPriority.BULK )
+        {
+            bShed = bShed || ( _nInFlight >= Math.max( 1, _mapLimits.get( OcrPriority.INTERACTIVE )._dLimit * _nBulkRatio / 100 ) );
+        }
+        if ( bShed )
+        {
+            OcrMetricsService.getInstance( ).increment( COUNTER_SHED + priority.getKey( ) );
+            long lRetryAfter = getRetryAfter( priority );
+            AppLogService.error( "OCR request shed, " + limit._nInFlight + " " + priority.getKey( ) + " requests in progress for a limit of "
+                    + (int) limit._dLimit + "." );
+            String [ ] messageArgs = {
+                String.valueOf( ( lRetryAfter + 999 ) / 1000 )
+            };
+
+            throw new OcrOverloadedException( lRetryAfter,
+                    I18nService.getLocalizedString( OcrConstants.MESSAGE_OVERLOADED, messageArgs, Locale.getDefault( ) ) );
+        }
+
+        limit._nInFlight++;
+        _nInFlight++;
+        OcrMetricsService.getInstance( ).increment( COUNTER_ACCEPTED );
+        if ( _nInFlight > _nEngineCapacity )
+        {
+            OcrMetricsService.getInstance( ).increment( COUNTER_QUEUED );
+        }
+    }
+
+    /**
+     * Give back the place of an admitted request and adapt the limit of its class to its latency.
+     *
+     * @param priority
+     *            priority class of the request
+     * @param lLatency
+     *            duration of the request in milliseconds
+     * @param bDropped
+     *            true if the request missed its deadline
+     */
+    public synchronized void release( OcrPriority priority, long lLatency, boolean bDropped )
+    {
+        if ( !_bEnabled )
+        {
+            return;
+        }
+
+        ClassLimit limit = _mapLimits.get( priority );
+        OcrMetricsService.getInstance( ).recordTime( COUNTER_LATENCY + priority.getKey( ), lLatency );
+        if ( bDropped || ( lLatency > _lLatencyTarget ) )
+        {
+            limit._dLimit = Math.max( _dMinLimit, limit._dLimit * _dBackoffRatio );
+        }
+        else
+            if ( limit._nInFlight >= limit._dLimit / 2 )
+            {
+                limit._dLimit = Math.min( _dMaxLimit, limit._dLimit + 1 );
+            }
+        limit._nInFlight--;
+        _nInFlight--;
+    }
+
+    /**
+     * @param priority
+     *            priority class
+     * @return the current limit of requests in progress of the class
+     */
+    public synchronized int getLimit( OcrPriority priority )
+    {
+        return (int) _mapLimits.get( priority )._dLimit;
+    }
+
+    /**
+     * @param priority
+     *            priority class
+     * @return the number of requests in progress of the class
+     */
+    public synchronized int getInFlight( OcrPriority priority )
+    {
+        return _mapLimits.get( priority )._nInFlight;
+    }
+
+    /**
+     * @return the number of requests in progress of all the classes
+     */
+    public synchronized int getInFlight( )
+    {
+        return _nInFlight;
+    }
+
+    /**
+     * Suggest a retry delay : the median latency of the recent requests of the class, at least the configured minimum.
+     *
+     * @param priority
+     *            priority class of the request
+     * @return the delay in milliseconds
+     */
+    private long getRetryAfter( OcrPriority priority )
+    {
+        long lMedian = OcrMetricsService.getInstance( ).getPercentile( COUNTER_LATENCY + priority.getKey( ), 50 );
+
+        return Math.max( _lRetryAfterMin, lMedian );
+    }
+
+    /**
+     * Adaptive limit of a priority class.
+     */
+    private static final class ClassLimit
+    {
+        private double _dLimit;
+        private int _nInFlight;
+
+        /**
+         * Constructor.
+         *
+         * @param dLimit
+         *            initial limit
+         */
+        ClassLimit( double dLimit )
+        {
+            _dLimit = dLimit;
+        }
+    }
+}
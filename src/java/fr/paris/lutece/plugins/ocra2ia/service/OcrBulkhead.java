@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrInterruptedException;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.i18n.I18nService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Bulkheads isolating the document types : each type has its own concurrency limit on the engine and its own bounded queue, so that a burst of a slow
+ * type cannot take the engine slots of the other types. By default the engine slots are shared out between the configured document types, so that
+ * their limits add up to the engine capacity and each type keeps its share whatever the load of the others.
+ *
+ */
+public class OcrBulkhead
+{
+
+    private static final String STAGE_BULKHEAD = "bulkhead";
+    private static final String COUNTER_PREFIX = "bulkhead.";
+
+    private final Map<String, Integer> _mapDefaultConcurrency = new HashMap<>( );
+    private final Map<String, Compartment> _mapCompartments = new ConcurrentHashMap<>( );
+
+    /**
+     * Constructor. The capacity is shared out between the document types in their order, the first ones getting the slots left by the division. When
+     * there are more types than slots, each type gets one slot and the types are only isolated by their queues.
+     *
+     * @param nCapacity
+     *            number of engine calls at the same time for all the document types
+     * @param listDocumentTypes
+     *            the configured document types
+     */
+    public OcrBulkhead( int nCapacity, List<String> listDocumentTypes )
+    {
+        int nTypes = Math.max( 1, listDocumentTypes.size( ) );
+        int nShare = Math.max( 1, nCapacity ) / nTypes;
+        int nRemainder = Math.max( 1, nCapacity ) % nTypes;
+        for ( int i = 0; i < listDocumentTypes.size( ); i++ )
+        {
+            _mapDefaultConcurrency.put( listDocumentTypes.get( i ).toLowerCase( ), Math.max( 1, nShare + ( ( i < nRemainder ) ? 1 : 0 ) ) );
+        }
+    }
+
+    /**
+     * Reserve a slot of the compartment of a document type, waiting in its queue if all the slots are used.
+     *
+     * @param strDocumentType
+     *            document type
+     * @param deadline
+     *            time budget of the request
+     * @throws OcrException
+     *             if the queue of the document type is full or the wait is too long, OcrDeadlineExceededException if the budget is spent
+     */
+    public void acquire( String strDocumentType, OcrDeadline deadline ) throws OcrException
+    {
+        Compartment compartment = getCompartment( strDocumentType );
+        String strCounterPrefix = COUNTER_PREFIX + compartment._strKey;
+
+        if ( compartment._semaphore.tryAcquire( ) )
+        {
+            return;
+        }
+
+        OcrMetricsService.getInstance( ).increment( strCounterPrefix + ".saturated" );
+        if ( compartment._nWaiting.incrementAndGet( ) > compartment._nMaxQueue )
+        {
+            compartment._nWaiting.decrementAndGet( );
+            throw full( compartment, ".rejected" );
+        }
+
+        long lStart = System.currentTimeMillis( );
+        try
+        {
+            if ( !compartment._semaphore.tryAcquire( deadline.clamp( compartment._lQueueTimeout ), TimeUnit.MILLISECONDS ) )
+            {
+                if ( deadline.isExpired( ) )
+                {
+                    throw OcrDeadline.exceeded( STAGE_BULKHEAD );
+                }
+                throw full( compartment, ".timeout" );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            throw new OcrInterruptedException( e.getMessage( ) );
+        }
+        finally
+        {
+            compartment._nWaiting.decrementAndGet( );
+            OcrMetricsService.getInstance( ).recordTime( strCounterPrefix + ".wait", System.currentTimeMillis( ) - lStart );
+        }
+    }
+
+    /**
+     * Give back a slot reserved with acquire.
+     *
+     * @param strDocumentType
+     *            document type
+     */
+    public void release( String strDocumentType )
+    {
+        getCompartment( strDocumentType )._semaphore.release( );
+    }
+
+    /**
+     * Get the number of free slots of a document type.
+     *
+     * @param strDocumentType
+     *            document type
+     * @return the number of free slots
+     */
+    public int getAvailable( String strDocumentType )
+    {
+        return getCompartment( strDocumentType )._semaphore.availablePermits( );
+    }
+
+    /**
+     * Get the number of requests of a document type waiting for a slot.
+     *
+     * @param strDocumentType
+     *            document type
+     * @return the number of waiting requests
+     */
+    public int getQueueLength( String strDocumentType )
+    {
+        return getCompartment( strDocumentType )._nWaiting.get( );
+    }
+
+    /**
+     * Get the compartment of a document type, created from the configuration on first use.
+     *
+     * @param strDocumentType
+     *            document type
+     * @return the compartment
+     */
+    private Compartment getCompartment( String strDocumentType )
+    {
+        return _mapCompartments.computeIfAbsent( strDocumentType.toLowerCase( ), this::createCompartment );
+    }
+
+    /**
+     * Create the compartment of a document type. By default a configured type gets its share of the engine capacity, any other type a single slot.
+     *
+     * @param strKey
+     *            document type in lower case
+     * @return the compartment
+     */
+    private Compartment createCompartment( String strKey )
+    {
+        int nDefaultMaxConcurrency = _mapDefaultConcurrency.getOrDefault( strKey, 1 );
+        int nMaxConcurrency = Math.max( 1, AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_BULKHEAD_MAX_CONCURRENCY + "." + strKey,
+                nDefaultMaxConcurrency ) );
+        int nMaxQueue = Math.max( 0, AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_BULKHEAD_MAX_QUEUE + "." + strKey, 20 ) );
+        long lQueueTimeout = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_BULKHEAD_QUEUE_TIMEOUT + "." + strKey, 60000L );
+        AppLogService.info( "OCR bulkhead " + strKey + " max concurrency " + nMaxConcurrency + " max queue " + nMaxQueue );
+
+        return new Compartment( strKey, nMaxConcurrency, nMaxQueue, lQueueTimeout );
+    }
+
+    /**
+     * Build the exception of a request refused by its compartment.
+     *
+     * @param compartment
+     *            the compartment
+     * @param strCounterSuffix
+     *            suffix of the counter incremented
+     * @return the exception
+     */
+    private static OcrException full( Compartment compartment, String strCounterSuffix )
+    {
+        OcrMetricsService.getInstance( ).increment( COUNTER_PREFIX + compartment._strKey + strCounterSuffix );
+        AppLogService.error( "OCR bulkhead " + compartment._strKey + " is saturated." );
+        String [ ] messageArgs = {
+            compartment._strKey
+        };
+
+        return new OcrException( I18nService.getLocalizedString( OcrConstants.MESSAGE_BULKHEAD_FULL, messageArgs, Locale.getDefault( ) ) );
+    }
+
+    /**
+     * Slots and queue of a document type.
+     */
+    private static final class Compartment
+    {
+        private final String _strKey;
+        private final Semaphore _semaphore;
+        private final AtomicInteger _nWaiting = new AtomicInteger( );
+        private final int _nMaxQueue;
+        private final long _lQueueTimeout;
+
+        /**
+         * Constructor.
+         *
+         * @param strKey
+         *            document type in lower case
+         * @param nMaxConcurrency
+         *            number of slots
+         * @param nMaxQueue
+         *            maximum number of waiting requests
+         * @param lQueueTimeout
+         *            maximum wait in milliseconds
+         */
+        Compartment( String strKey, int nMaxConcurrency, int nMaxQueue, long lQueueTimeout )
+        {
+            _strKey = strKey;
+            _semaphore = new Semaphore( nMaxConcurrency, true );
+            _nMaxQueue = nMaxQueue;
+            _lQueueTimeout = lQueueTimeout;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.util.Locale;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrDeadlineExceededException;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.i18n.I18nService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ *
+ * Time budget of an OCR request, passed through every stage : each stage checks the remaining time before starting and bounds its own timeout by it.
+ *
+ */
+public final class OcrDeadline
+{
+
+    private static final OcrDeadline NONE = new OcrDeadline( Long.MAX_VALUE );
+    private static final String COUNTER_EXCEEDED = "deadline.exceeded.";
+
+    /**
+     * Expiration time (epoch in milliseconds).
+     */
+    private final long _lExpiration;
+
+    /**
+     * Constructor.
+     *
+     * @param lExpiration
+     *            expiration time
+     */
+    private OcrDeadline( long lExpiration )
+    {
+        _lExpiration = lExpiration;
+    }
+
+    /**
+     * Create a deadline expiring after a budget.
+     *
+     * @param lBudgetMs
+     *            budget in milliseconds, 0 or less for no deadline
+     * @return the deadline
+     */
+    public static OcrDeadline after( long lBudgetMs )
+    {
+        return ( lBudgetMs > 0 ) ? new OcrDeadline( System.currentTimeMillis( ) + lBudgetMs ) : NONE;
+    }
+
+    /**
+     * @return a deadline that never expires
+     */
+    public static OcrDeadline none( )
+    {
+        return NONE;
+    }
+
+    /**
+     * @return the remaining time in milliseconds, 0 if expired
+     */
+    public long getRemaining( )
+    {
+        return ( _lExpiration == Long.MAX_VALUE ) ? Long.MAX_VALUE : Math.max( 0, _lExpiration - System.currentTimeMillis( ) );
+    }
+
+    /**
+     * @return true if the budget is exhausted
+     */
+    public boolean isExpired( )
+    {
+        return getRemaining( ) == 0;
+    }
+
+    /**
+     * Bound the timeout of a stage by the remaining time.
+     *
+     * @param lTimeoutMs
+     *            timeout of the stage in milliseconds
+     * @return the timeout to use
+     */
+    public long clamp( long lTimeoutMs )
+    {
+        return Math.min( lTimeoutMs, getRemaining( ) );
+    }
+
+    /**
+     * Check that the budget is not exhausted before starting a stage.
+     *
+     * @param strStage
+     *            the stage
+     * @throws OcrDeadlineExceededException
+     *             if the budget is exhausted
+     */
+    public void check( String strStage ) throws OcrDeadlineExceededException
+    {
+        if ( isExpired( ) )
+        {
+            throw exceeded( strStage );
+        }
+    }
+
+    /**
+     * Count and create the exception for a stage cancelled because the budget is exhausted.
+     *
+     * @param strStage
+     *            the stage
+     * @return the exception to throw
+     */
+    public static OcrDeadlineExceededException exceeded( String strStage )
+    {
+        OcrMetricsService.getInstance( ).increment( COUNTER_EXCEEDED + strStage );
+        AppLogService.error( "OCR time budget exhausted at stage " + strStage );
+        String [ ] messageArgs = {
+            strStage
+        };
+
+        return new OcrDeadlineExceededException( strStage, I18nService.getLocalizedString( OcrConstants.MESSAGE_DEADLINE_EXCEEDED, messageArgs,
+                Locale.getDefault( ) ) );
+    }
+
+}
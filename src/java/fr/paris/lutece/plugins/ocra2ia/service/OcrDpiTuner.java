@@ -0,0 +1,543 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrResultUtils;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Choice of the DPI of the pdf renders, by document type. Each candidate DPI keeps the outcomes of its last renders : success (the result holds the
+ * required fields of the document type) and latency (render and engine call). The chosen DPI is the lowest, hence cheapest, candidate reaching the
+ * target success rate, or the most successful one when none reaches it. A small share of the documents is rendered at the neighbour candidate, the
+ * next lower one when the target is reached, the next higher one otherwise, so that the choice follows the documents over time. A pinned DPI
+ * overrides the tuner, and without tuning the DPI is ocra2ia.pdf.image.quality.
+ *
+ */
+public class OcrDpiTuner
+{
+
+    /**
+     * Mode of a document type whose DPI is pinned by the configuration.
+     */
+    public static final String MODE_PINNED = "pinned";
+
+    /**
+     * Mode of a document type whose DPI is chosen by the tuner.
+     */
+    public static final String MODE_ADAPTIVE = "adaptive";
+
+    /**
+     * Mode of a document type rendered at ocra2ia.pdf.image.quality.
+     */
+    public static final String MODE_FIXED = "fixed";
+
+    private static final String COUNTER_CHANGED = "pdf.dpi.changed";
+
+    /**
+     * Margin under the target within which the chosen candidate is kept, so that the choice does not flap with the noise of the outcomes.
+     */
+    private static final double HYSTERESIS = 0.02;
+
+    private final boolean _bAdaptive;
+    private final int _nDefaultDpi;
+    private final int [ ] _tabCandidates;
+    private final double _dTargetSuccess;
+    private final int _nMinSamples;
+    private final int _nWindow;
+    private final double _dExploration;
+    private final Map<String, DocumentTypeState> _mapStates = new ConcurrentHashMap<>( );
+    private final Map<String, Integer> _mapPinnedDpi = new ConcurrentHashMap<>( );
+
+    /**
+     * Constructor, read the configuration.
+     */
+    public OcrDpiTuner( )
+    {
+        _bAdaptive = AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_PDF_DPI_ADAPTIVE, false );
+        _nDefaultDpi = AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_PDF_IMAGE_QUALITY, 150 );
+        TreeSet<Integer> setCandidates = new TreeSet<>( );
+        setCandidates.add( _nDefaultDpi );
+        for ( String strCandidate : AppPropertiesService.getProperty( OcrConstants.PROPERTY_PDF_DPI_CANDIDATES, "150,200,250,300" ).split( "," ) )
+        {
+            try
+            {
+                int nCandidate = Integer.parseInt( strCandidate.trim( ) );
+                if ( nCandidate > 0 )
+                {
+                    setCandidates.add( nCandidate );
+                }
+            }
+            catch( NumberFormatException e )
+            {
+                AppLogService.error( "Bad value for property " + OcrConstants.PROPERTY_PDF_DPI_CANDIDATES + " : " + strCandidate );
+            }
+        }
+        _tabCandidates = setCandidates.stream( ).mapToInt( Integer::intValue ).toArray( );
+        _dTargetSuccess = Double.parseDouble( AppPropertiesService.getProperty( OcrConstants.PROPERTY_PDF_DPI_TARGET_SUCCESS, "0.9" ) );
+        _nMinSamples = Math.max( 1, AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_PDF_DPI_MIN_SAMPLES, 30 ) );
+        _nWindow = Math.max( _nMinSamples, AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_PDF_DPI_WINDOW, 200 ) );
+        _dExploration = Double.parseDouble( AppPropertiesService.getProperty( OcrConstants.PROPERTY_PDF_DPI_EXPLORATION, "0.05" ) );
+    }
+
+    /**
+     * Constructor with explicit settings.
+     *
+     * @param bAdaptive
+     *            true if the DPI is chosen by the tuner
+     * @param nDefaultDpi
+     *            DPI used until the candidates are measured, added to the candidates
+     * @param tabCandidates
+     *            candidate DPIs, ascending
+     * @param dTargetSuccess
+     *            target success rate, between 0 and 1
+     * @param nMinSamples
+     *            number of outcomes before a candidate is judged
+     * @param nWindow
+     *            number of outcomes kept by candidate
+     * @param dExploration
+     *            share of the renders done at the neighbour candidate
+     * @param mapPinnedDpi
+     *            pinned DPI by document type in lower case
+     */
+    OcrDpiTuner( boolean bAdaptive, int nDefaultDpi, int [ ] tabCandidates, double dTargetSuccess, int nMinSamples, int nWindow, double dExploration,
+            Map<String, Integer> mapPinnedDpi )
+    {
+        _bAdaptive = bAdaptive;
+        _nDefaultDpi = nDefaultDpi;
+        TreeSet<Integer> setCandidates = new TreeSet<>( );
+        setCandidates.add( nDefaultDpi );
+        Arrays.stream( tabCandidates ).forEach( setCandidates::add );
+        _tabCandidates = setCandidates.stream( ).mapToInt( Integer::intValue ).toArray( );
+        _dTargetSuccess = dTargetSuccess;
+        _nMinSamples = Math.max( 1, nMinSamples );
+        _nWindow = Math.max( _nMinSamples, nWindow );
+        _dExploration = dExploration;
+        _mapPinnedDpi.putAll( mapPinnedDpi );
+    }
+
+    /**
+     * Choose the DPI of a render.
+     *
+     * @param strDocumentType
+     *            document type
+     * @return the DPI
+     */
+    public int choose( String strDocumentType )
+    {
+        int nPinnedDpi = getPinnedDpi( strDocumentType );
+        if ( nPinnedDpi > 0 )
+        {
+            return nPinnedDpi;
+        }
+        if ( !_bAdaptive )
+        {
+            return _nDefaultDpi;
+        }
+
+        DocumentTypeState state = getState( strDocumentType );
+        synchronized( state )
+        {
+            if ( ( state._nProbeIndex >= 0 ) && ( ThreadLocalRandom.current( ).nextDouble( ) < _dExploration ) )
+            {
+                return _tabCandidates [state._nProbeIndex];
+            }
+
+            return _tabCandidates [state._nDecisionIndex];
+        }
+    }
+
+    /**
+     * Record the outcome of a render.
+     *
+     * @param strDocumentType
+     *            document type
+     * @param nDpi
+     *            DPI of the render
+     * @param mapResults
+     *            result of the engine, without the blank fields
+     * @param lElapsed
+     *            duration of the render and of the engine call in milliseconds
+     */
+    public void record( String strDocumentType, int nDpi, Map<String, String> mapResults, long lElapsed )
+    {
+        int nIndex = indexOf( nDpi );
+        if ( nIndex < 0 )
+        {
+            // a pinned DPI out of the candidates
+            return;
+        }
+
+        boolean bSuccess = isSuccess( strDocumentType, mapResults );
+        DocumentTypeState state = getState( strDocumentType );
+        synchronized( state )
+        {
+            state._tabOutcomes [nIndex].add( bSuccess, lElapsed );
+            int nDecisionIndex = decide( state );
+            if ( nDecisionIndex != state._nDecisionIndex )
+            {
+                AppLogService.info( "OCR render DPI of " + strDocumentType + " documents : " + _tabCandidates [state._nDecisionIndex] + " -> "
+                        + _tabCandidates [nDecisionIndex] );
+                OcrMetricsService.getInstance( ).increment( COUNTER_CHANGED );
+                state._nDecisionIndex = nDecisionIndex;
+            }
+            state._nProbeIndex = probe( state );
+        }
+    }
+
+    /**
+     * Get the mode of a document type.
+     *
+     * @param strDocumentType
+     *            document type
+     * @return MODE_PINNED, MODE_ADAPTIVE or MODE_FIXED
+     */
+    public String getMode( String strDocumentType )
+    {
+        if ( getPinnedDpi( strDocumentType ) > 0 )
+        {
+            return MODE_PINNED;
+        }
+
+        return _bAdaptive ? MODE_ADAPTIVE : MODE_FIXED;
+    }
+
+    /**
+     * Get the DPI chosen for a document type, without exploration.
+     *
+     * @param strDocumentType
+     *            document type
+     * @return the DPI
+     */
+    public int getDecision( String strDocumentType )
+    {
+        int nPinnedDpi = getPinnedDpi( strDocumentType );
+        if ( nPinnedDpi > 0 )
+        {
+            return nPinnedDpi;
+        }
+        if ( !_bAdaptive )
+        {
+            return _nDefaultDpi;
+        }
+        DocumentTypeState state = getState( strDocumentType );
+        synchronized( state )
+        {
+            return _tabCandidates [state._nDecisionIndex];
+        }
+    }
+
+    /**
+     * Get the highest DPI a render of a document type may use, exploration included.
+     *
+     * @param strDocumentType
+     *            document type
+     * @return the DPI
+     */
+    public int getMaxDpi( String strDocumentType )
+    {
+        int nPinnedDpi = getPinnedDpi( strDocumentType );
+        if ( nPinnedDpi > 0 )
+        {
+            return nPinnedDpi;
+        }
+
+        return _bAdaptive ? _tabCandidates [_tabCandidates.length - 1] : _nDefaultDpi;
+    }
+
+    /**
+     * @return the candidate DPIs, ascending
+     */
+    public int [ ] getCandidates( )
+    {
+        return _tabCandidates.clone( );
+    }
+
+    /**
+     * @return the target success rate, between 0 and 1
+     */
+    public double getTargetSuccess( )
+    {
+        return _dTargetSuccess;
+    }
+
+    /**
+     * Get the outcomes of the candidates for a document type.
+     *
+     * @param strDocumentType
+     *            document type
+     * @return for each candidate, ascending : number of outcomes, success rate in percent, mean latency in milliseconds
+     */
+    public List<double [ ]> getCandidateStatistics( String strDocumentType )
+    {
+        List<double [ ]> listStatistics = new ArrayList<>( );
+        DocumentTypeState state = getState( strDocumentType );
+        synchronized( state )
+        {
+            for ( CandidateOutcomes outcomes : state._tabOutcomes )
+            {
+                listStatistics.add( new double [ ] {
+                        outcomes._nCount, 100 * outcomes.getSuccessRate( ), outcomes.getMeanLatency( )
+                } );
+            }
+        }
+
+        return listStatistics;
+    }
+
+    /**
+     * Choose the candidate of a document type : the lowest reaching the target, else the current one while it stays close to the target, else the
+     * most successful of the candidates judged, else the default.
+     *
+     * @param state
+     *            state of the document type
+     * @return index of the candidate
+     */
+    private int decide( DocumentTypeState state )
+    {
+        int nQualified = -1;
+        int nMostSuccessful = -1;
+        for ( int i = 0; i < _tabCandidates.length; i++ )
+        {
+            CandidateOutcomes outcomes = state._tabOutcomes [i];
+            if ( outcomes._nCount >= _nMinSamples )
+            {
+                if ( ( outcomes.getSuccessRate( ) >= _dTargetSuccess ) && ( nQualified < 0 ) )
+                {
+                    nQualified = i;
+                }
+                if ( ( nMostSuccessful < 0 ) || ( outcomes.getSuccessRate( ) >= state._tabOutcomes [nMostSuccessful].getSuccessRate( ) ) )
+                {
+                    nMostSuccessful = i;
+                }
+            }
+        }
+        int nCurrent = state._nDecisionIndex;
+        if ( ( nQualified >= 0 ) && ( nQualified <= nCurrent ) )
+        {
+            return nQualified;
+        }
+        CandidateOutcomes current = state._tabOutcomes [nCurrent];
+        if ( ( current._nCount >= _nMinSamples ) && ( current.getSuccessRate( ) >= ( _dTargetSuccess - HYSTERESIS ) ) )
+        {
+            return nCurrent;
+        }
+        if ( nQualified >= 0 )
+        {
+            return nQualified;
+        }
+
+        return ( nMostSuccessful >= 0 ) ? nMostSuccessful : indexOf( _nDefaultDpi );
+    }
+
+    /**
+     * Choose the candidate to explore : the next lower one when the chosen candidate reaches the target, the next higher one otherwise.
+     *
+     * @param state
+     *            state of the document type
+     * @return index of the candidate, -1 if none
+     */
+    private int probe( DocumentTypeState state )
+    {
+        int nDecisionIndex = state._nDecisionIndex;
+        CandidateOutcomes decision = state._tabOutcomes [nDecisionIndex];
+        boolean bReached = ( decision._nCount >= _nMinSamples ) && ( decision.getSuccessRate( ) >= _dTargetSuccess );
+        int nProbeIndex = bReached ? ( nDecisionIndex - 1 ) : ( nDecisionIndex + 1 );
+        if ( nProbeIndex >= _tabCandidates.length )
+        {
+            nProbeIndex = nDecisionIndex - 1;
+        }
+
+        return nProbeIndex;
+    }
+
+    /**
+     * Control that a result holds the required fields of its document type, any field when none is configured.
+     *
+     * @param strDocumentType
+     *            document type
+     * @param mapResults
+     *            result without the blank fields
+     * @return true if the result is successful
+     */
+    private static boolean isSuccess( String strDocumentType, Map<String, String> mapResults )
+    {
+        return OcrResultUtils.getRequiredFieldsScore( strDocumentType, mapResults ) >= 1;
+    }
+
+    /**
+     * Get the pinned DPI of a document type, read from the configuration on first use.
+     *
+     * @param strDocumentType
+     *            document type
+     * @return the DPI, 0 if not pinned
+     */
+    private int getPinnedDpi( String strDocumentType )
+    {
+        return _mapPinnedDpi.computeIfAbsent( strDocumentType.toLowerCase( ),
+                strKey -> AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_PDF_DPI_PINNED_PREFIX + strKey, 0 ) );
+    }
+
+    /**
+     * Get the position of a DPI in the candidates.
+     *
+     * @param nDpi
+     *            the DPI
+     * @return the index, -1 if not a candidate
+     */
+    private int indexOf( int nDpi )
+    {
+        for ( int i = 0; i < _tabCandidates.length; i++ )
+        {
+            if ( _tabCandidates [i] == nDpi )
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Get the state of a document type, created on first use.
+     *
+     * @param strDocumentType
+     *            document type
+     * @return the state
+     */
+    private DocumentTypeState getState( String strDocumentType )
+    {
+        return _mapStates.computeIfAbsent( strDocumentType.toLowerCase( ), strKey -> new DocumentTypeState( ) );
+    }
+
+    /**
+     * Tuning state of a document type.
+     */
+    private final class DocumentTypeState
+    {
+        private final CandidateOutcomes [ ] _tabOutcomes = new CandidateOutcomes [ _tabCandidates.length];
+        private int _nDecisionIndex = indexOf( _nDefaultDpi );
+        private int _nProbeIndex;
+
+        /**
+         * Constructor.
+         */
+        DocumentTypeState( )
+        {
+            for ( int i = 0; i < _tabOutcomes.length; i++ )
+            {
+                _tabOutcomes [i] = new CandidateOutcomes( _nWindow );
+            }
+            _nProbeIndex = probe( this );
+        }
+    }
+
+    /**
+     * Last outcomes of a candidate DPI, in a ring.
+     */
+    private static final class CandidateOutcomes
+    {
+        private final boolean [ ] _tabSuccess;
+        private final long [ ] _tabLatency;
+        private int _nNext;
+        private int _nCount;
+        private int _nSuccessCount;
+        private long _lLatencySum;
+
+        /**
+         * Constructor.
+         *
+         * @param nWindow
+         *            number of outcomes kept
+         */
+        CandidateOutcomes( int nWindow )
+        {
+            _tabSuccess = new boolean [ nWindow];
+            _tabLatency = new long [ nWindow];
+        }
+
+        /**
+         * Add an outcome, replacing the oldest one once the ring is full.
+         *
+         * @param bSuccess
+         *            true if the result is successful
+         * @param lLatency
+         *            latency in milliseconds
+         */
+        void add( boolean bSuccess, long lLatency )
+        {
+            if ( _nCount == _tabSuccess.length )
+            {
+                _nSuccessCount -= _tabSuccess [_nNext] ? 1 : 0;
+                _lLatencySum -= _tabLatency [_nNext];
+            }
+            else
+            {
+                _nCount++;
+            }
+            _tabSuccess [_nNext] = bSuccess;
+            _tabLatency [_nNext] = lLatency;
+            _nSuccessCount += bSuccess ? 1 : 0;
+            _lLatencySum += lLatency;
+            _nNext = ( _nNext + 1 ) % _tabSuccess.length;
+        }
+
+        /**
+         * @return the share of successful outcomes, between 0 and 1
+         */
+        double getSuccessRate( )
+        {
+            return ( _nCount == 0 ) ? 0 : ( (double) _nSuccessCount / _nCount );
+        }
+
+        /**
+         * @return the mean latency in milliseconds
+         */
+        double getMeanLatency( )
+        {
+            return ( _nCount == 0 ) ? 0 : ( (double) _lLatencySum / _nCount );
+        }
+    }
+
+}
@@ -0,0 +1,522 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.pdfbox.tools.imageio.ImageIOUtil;
+
+import fr.paris.lutece.plugins.ocra2ia.business.ImageBean;
+import fr.paris.lutece.plugins.ocra2ia.service.buffer.PooledOutputStream;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Optional preprocessing of the images before the OCR : crop to the document region, downscale to a target resolution and conversion to gray or black
+ * and white. The transformation of an image is split in horizontal strips processed in parallel on a worker pool.
+ *
+ */
+public class OcrImagePreprocessor
+{
+
+    private static final double MM_BY_INCH = 25.4;
+    private static final int CROP_SAMPLES_BY_SIDE = 400;
+    private static final double CROP_BORDER_RATIO = 0.02;
+    private static final double CROP_MARGIN_RATIO = 0.01;
+    private static final double CROP_MIN_AREA_RATIO = 0.1;
+    private static final double CROP_MAX_AREA_RATIO = 0.95;
+    private static final int STRIP_MIN_HEIGHT = 64;
+    private static final int GRAY_LEVELS = 256;
+
+    private static final String COUNTER_PREPROCESS = "preprocess";
+    private static final String COUNTER_BYTES_IN = "preprocess.bytes.in";
+    private static final String COUNTER_BYTES_OUT = "preprocess.bytes.out";
+    private static final String COUNTER_FAILED = "preprocess.failed";
+
+    private static final String THREAD_NAME_PREFIX = "ocra2ia-preprocess-";
+
+    /**
+     * Worker pool.
+     */
+    private final ExecutorService _executorService;
+
+    /**
+     * Number of workers.
+     */
+    private final int _nNumberOfThreads;
+
+    /**
+     * Constructor.
+     */
+    public OcrImagePreprocessor( )
+    {
+        _nNumberOfThreads = Math.max( 1,
+                AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_PREPROCESS_THREADS, Runtime.getRuntime( ).availableProcessors( ) ) );
+        AtomicInteger nThreadNumber = new AtomicInteger( );
+        _executorService = Executors.newFixedThreadPool( _nNumberOfThreads, r -> {
+            Thread thread = new Thread( r, THREAD_NAME_PREFIX + nThreadNumber.getAndIncrement( ) );
+            thread.setDaemon( true );
+            return thread;
+        } );
+    }
+
+    /**
+     * Test if the preprocessing is enabled for a document type.
+     *
+     * @param strDocumentType
+     *            document type
+     * @return true if the preprocessing is enabled
+     */
+    public boolean isEnabled( String strDocumentType )
+    {
+        String strDocumentTypes = AppPropertiesService.getProperty( OcrConstants.PROPERTY_PREPROCESS_DOCUMENTS, StringUtils.EMPTY );
+
+        return Arrays.stream( strDocumentTypes.split( "," ) ).map( String::trim ).anyMatch( strDocumentType::equalsIgnoreCase );
+    }
+
+    /**
+     * Preprocess an image. The content and the extension of the image bean are replaced when the image was transformed. Any error leaves the image
+     * unchanged.
+     *
+     * @param imageBean
+     *            image to process
+     * @param strDocumentType
+     *            document type
+     */
+    public void preprocess( ImageBean imageBean, String strDocumentType )
+    {
+        if ( !isEnabled( strDocumentType ) )
+        {
+            return;
+        }
+
+        long lStart = System.currentTimeMillis( );
+        int nSourceLength = imageBean.getContentLength( );
+
+        try
+        {
+            BufferedImage imageSource = ImageIO.read( new ByteArrayInputStream( imageBean.getContent( ), 0, nSourceLength ) );
+            if ( imageSource == null )
+            {
+                AppLogService.info( "No image reader available for " + imageBean.getExtension( ) + ", preprocessing skipped." );
+                return;
+            }
+
+            Rectangle rectangleDocument = AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_PREPROCESS_AUTOCROP, true )
+                    ? findDocumentRegion( imageSource )
+                    : new Rectangle( 0, 0, imageSource.getWidth( ), imageSource.getHeight( ) );
+            double dScale = getScale( rectangleDocument, strDocumentType );
+            String strImageType = AppPropertiesService.getProperty( OcrConstants.PROPERTY_PREPROCESS_IMAGE_TYPE, OcrConstants.IMAGE_TYPE_GRAY );
+
+            boolean bCropped = ( rectangleDocument.width != imageSource.getWidth( ) ) || ( rectangleDocument.height != imageSource.getHeight( ) );
+            if ( !bCropped && ( dScale >= 1 ) && OcrConstants.IMAGE_TYPE_RGB.equalsIgnoreCase( strImageType ) )
+            {
+                return;
+            }
+
+            BufferedImage imageTarget = transform( imageSource, rectangleDocument, dScale, strImageType );
+
+            String strFormat = OcrConstants.IMAGE_TYPE_BINARY.equalsIgnoreCase( strImageType ) ? OcrConstants.EXTENSION_FILE_PNG
+                    : OcrConstants.EXTENSION_FILE_JPEG;
+            // encoded in a pooled array, handed over to the image without copy; the pooled source, if any, goes back to the pool
+            try ( PooledOutputStream pooledOutputStream = new PooledOutputStream( nSourceLength ) )
+            {
+                ImageIOUtil.writeImage( imageTarget, strFormat, pooledOutputStream,
+                        AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_PREPROCESS_TARGET_DPI, 300 ), getCompressionLevel( ) );
+                int nTargetLength = pooledOutputStream.size( );
+                imageBean.setPooledContent( pooledOutputStream.detach( ), nTargetLength );
+            }
+            imageBean.setExtension( strFormat );
+            imageBean.setPreprocessed( true );
+
+            OcrMetricsService.getInstance( ).add( COUNTER_BYTES_IN, nSourceLength );
+            OcrMetricsService.getInstance( ).add( COUNTER_BYTES_OUT, imageBean.getContentLength( ) );
+            OcrMetricsService.getInstance( ).recordTime( COUNTER_PREPROCESS, System.currentTimeMillis( ) - lStart );
+            AppLogService.info( "Image preprocessed : " + imageSource.getWidth( ) + "x" + imageSource.getHeight( ) + " " + nSourceLength
+                    + " bytes -> " + imageTarget.getWidth( ) + "x" + imageTarget.getHeight( ) + " " + imageBean.getContentLength( ) + " bytes in "
+                    + ( System.currentTimeMillis( ) - lStart ) + " ms" );
+        }
+        catch( IOException | RuntimeException e )
+        {
+            OcrMetricsService.getInstance( ).increment( COUNTER_FAILED );
+            AppLogService.error( "Image preprocessing failed, the original image is used : " + e.getMessage( ), e );
+        }
+    }
+
+    /**
+     * Stop the worker pool.
+     */
+    public void shutdown( )
+    {
+        _executorService.shutdownNow( );
+    }
+
+    /**
+     * Crop, scale and convert the image. Each strip of the target image is processed by a worker : a strip is scaled into an image of its own, Java2D
+     * not supporting concurrent drawing into the same image, then its pixels are copied to the rows of the strip in the target raster.
+     *
+     * @param imageSource
+     *            source image
+     * @param rectangleDocument
+     *            region of the source to keep
+     * @param dScale
+     *            scale factor
+     * @param strImageType
+     *            target image type (rgb, gray or binary)
+     * @return the transformed image
+     * @throws IOException
+     *             if the transformation didn't complete in time
+     */
+    BufferedImage transform( BufferedImage imageSource, Rectangle rectangleDocument, double dScale, String strImageType ) throws IOException
+    {
+        int nWidth = Math.max( 1, (int) Math.round( rectangleDocument.width * dScale ) );
+        int nHeight = Math.max( 1, (int) Math.round( rectangleDocument.height * dScale ) );
+        int nType = OcrConstants.IMAGE_TYPE_RGB.equalsIgnoreCase( strImageType ) ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_BYTE_GRAY;
+        BufferedImage imageScaled = new BufferedImage( nWidth, nHeight, nType );
+
+        WritableRaster rasterScaled = imageScaled.getRaster( );
+        runStrips( nHeight, ( nFirstRow, nLastRow ) -> {
+            BufferedImage imageStrip = new BufferedImage( nWidth, nLastRow - nFirstRow, nType );
+            Graphics2D graphics = imageStrip.createGraphics( );
+            try
+            {
+                // the strip is drawn with the mapping of the whole target, shifted to its first row
+                graphics.translate( 0, -nFirstRow );
+                graphics.setRenderingHint( RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR );
+                graphics.drawImage( imageSource, 0, 0, nWidth, nHeight, rectangleDocument.x, rectangleDocument.y,
+                        rectangleDocument.x + rectangleDocument.width, rectangleDocument.y + rectangleDocument.height, null );
+            }
+            finally
+            {
+                graphics.dispose( );
+            }
+            rasterScaled.setDataElements( 0, nFirstRow, imageStrip.getRaster( ) );
+        } );
+
+        if ( !OcrConstants.IMAGE_TYPE_BINARY.equalsIgnoreCase( strImageType ) )
+        {
+            return imageScaled;
+        }
+
+        int nThreshold = getOtsuThreshold( imageScaled.getRaster( ) );
+        BufferedImage imageBinary = new BufferedImage( nWidth, nHeight, BufferedImage.TYPE_BYTE_BINARY );
+        Raster rasterGray = imageScaled.getRaster( );
+        WritableRaster rasterBinary = imageBinary.getRaster( );
+        runStrips( nHeight, ( nFirstRow, nLastRow ) -> {
+            int [ ] tabRow = new int [ nWidth];
+            for ( int y = nFirstRow; y < nLastRow; y++ )
+            {
+                rasterGray.getSamples( 0, y, nWidth, 1, 0, tabRow );
+                for ( int x = 0; x < nWidth; x++ )
+                {
+                    tabRow [x] = ( tabRow [x] > nThreshold ) ? 1 : 0;
+                }
+                rasterBinary.setSamples( 0, y, nWidth, 1, 0, tabRow );
+            }
+        } );
+
+        return imageBinary;
+    }
+
+    /**
+     * Split the rows of an image in strips and run a task for each strip on the worker pool.
+     *
+     * @param nHeight
+     *            image height
+     * @param stripTask
+     *            task to run on a strip
+     * @throws IOException
+     *             if a task failed or didn't complete in time
+     */
+    private void runStrips( int nHeight, StripTask stripTask ) throws IOException
+    {
+        int nStripHeight = Math.max( STRIP_MIN_HEIGHT, ( nHeight + _nNumberOfThreads - 1 ) / _nNumberOfThreads );
+        List<Callable<Void>> listTasks = new ArrayList<>( );
+        for ( int nFirstRow = 0; nFirstRow < nHeight; nFirstRow += nStripHeight )
+        {
+            int nStart = nFirstRow;
+            int nEnd = Math.min( nHeight, nFirstRow + nStripHeight );
+            listTasks.add( ( ) -> {
+                stripTask.run( nStart, nEnd );
+                return null;
+            } );
+        }
+
+        try
+        {
+            List<Future<Void>> listFutures = _executorService.invokeAll( listTasks,
+                    AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_PREPROCESS_TIMEOUT, 5000 ), TimeUnit.MILLISECONDS );
+            for ( Future<Void> future : listFutures )
+            {
+                future.get( );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread( ).interrupt( );
+            throw new IOException( "Image preprocessing interrupted", e );
+        }
+        catch( ExecutionException | CancellationException e )
+        {
+            throw new IOException( "Image preprocessing failed or timed out", e );
+        }
+    }
+
+    /**
+     * Find the region of the document in a photo : the background color is estimated on the image border, the document is the bounding box of the
+     * pixels that differ from it. The full image is returned when no clear region is found.
+     *
+     * @param image
+     *            the image
+     * @return the document region
+     */
+    Rectangle findDocumentRegion( BufferedImage image )
+    {
+        int nWidth = image.getWidth( );
+        int nHeight = image.getHeight( );
+        Rectangle rectangleFull = new Rectangle( 0, 0, nWidth, nHeight );
+        int nStep = Math.max( 1, Math.max( nWidth, nHeight ) / CROP_SAMPLES_BY_SIDE );
+        int nBorderX = Math.max( 1, (int) ( nWidth * CROP_BORDER_RATIO ) );
+        int nBorderY = Math.max( 1, (int) ( nHeight * CROP_BORDER_RATIO ) );
+
+        long lBorderSum = 0;
+        int nBorderSamples = 0;
+        for ( int y = 0; y < nHeight; y += nStep )
+        {
+            for ( int x = 0; x < nWidth; x += nStep )
+            {
+                if ( ( x < nBorderX ) || ( y < nBorderY ) || ( x >= ( nWidth - nBorderX ) ) || ( y >= ( nHeight - nBorderY ) ) )
+                {
+                    lBorderSum += getLuminance( image.getRGB( x, y ) );
+                    nBorderSamples++;
+                }
+            }
+        }
+        if ( nBorderSamples == 0 )
+        {
+            return rectangleFull;
+        }
+
+        int nBackground = (int) ( lBorderSum / nBorderSamples );
+        int nThreshold = AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_PREPROCESS_AUTOCROP_THRESHOLD, 40 );
+        int nMinX = nWidth;
+        int nMinY = nHeight;
+        int nMaxX = -1;
+        int nMaxY = -1;
+        for ( int y = nBorderY; y < ( nHeight - nBorderY ); y += nStep )
+        {
+            for ( int x = nBorderX; x < ( nWidth - nBorderX ); x += nStep )
+            {
+                if ( Math.abs( getLuminance( image.getRGB( x, y ) ) - nBackground ) > nThreshold )
+                {
+                    nMinX = Math.min( nMinX, x );
+                    nMinY = Math.min( nMinY, y );
+                    nMaxX = Math.max( nMaxX, x );
+                    nMaxY = Math.max( nMaxY, y );
+                }
+            }
+        }
+        if ( nMaxX < 0 )
+        {
+            return rectangleFull;
+        }
+
+        int nMarginX = (int) ( nWidth * CROP_MARGIN_RATIO ) + nStep;
+        int nMarginY = (int) ( nHeight * CROP_MARGIN_RATIO ) + nStep;
+        Rectangle rectangleDocument = new Rectangle( nMinX - nMarginX, nMinY - nMarginY, ( nMaxX - nMinX ) + ( 2 * nMarginX ),
+                ( nMaxY - nMinY ) + ( 2 * nMarginY ) ).intersection( rectangleFull );
+        double dAreaRatio = ( (double) rectangleDocument.width * rectangleDocument.height ) / ( (double) nWidth * nHeight );
+
+        return ( ( dAreaRatio < CROP_MIN_AREA_RATIO ) || ( dAreaRatio > CROP_MAX_AREA_RATIO ) ) ? rectangleFull : rectangleDocument;
+    }
+
+    /**
+     * Get the scale factor to reach the target resolution. The resolution of the image is computed from the length of the longest side of the
+     * document type in millimeters (ocra2ia.preprocess.length.&lt;document type&gt;).
+     *
+     * @param rectangleDocument
+     *            document region
+     * @param strDocumentType
+     *            document type
+     * @return scale factor, never above 1
+     */
+    private double getScale( Rectangle rectangleDocument, String strDocumentType )
+    {
+        int nDocumentLength = AppPropertiesService
+                .getPropertyInt( OcrConstants.PROPERTY_PREPROCESS_LENGTH_PREFIX + strDocumentType.toLowerCase( Locale.ENGLISH ), 0 );
+        int nTargetDpi = AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_PREPROCESS_TARGET_DPI, 300 );
+        if ( ( nDocumentLength <= 0 ) || ( nTargetDpi <= 0 ) )
+        {
+            return 1;
+        }
+
+        double dEffectiveDpi = Math.max( rectangleDocument.width, rectangleDocument.height ) / ( nDocumentLength / MM_BY_INCH );
+
+        return Math.min( 1, nTargetDpi / dEffectiveDpi );
+    }
+
+    /**
+     * Compute the Otsu threshold of a gray image.
+     *
+     * @param raster
+     *            gray raster
+     * @return the threshold
+     */
+    static int getOtsuThreshold( Raster raster )
+    {
+        long [ ] tabHistogram = new long [ GRAY_LEVELS];
+        int [ ] tabRow = new int [ raster.getWidth( )];
+        for ( int y = 0; y < raster.getHeight( ); y++ )
+        {
+            raster.getSamples( 0, y, raster.getWidth( ), 1, 0, tabRow );
+            for ( int nGray : tabRow )
+            {
+                tabHistogram [nGray]++;
+            }
+        }
+
+        long lTotal = (long) raster.getWidth( ) * raster.getHeight( );
+        double dSum = 0;
+        for ( int i = 0; i < GRAY_LEVELS; i++ )
+        {
+            dSum += (double) i * tabHistogram [i];
+        }
+
+        double dSumBackground = 0;
+        long lWeightBackground = 0;
+        double dMaxVariance = 0;
+        int nThreshold = GRAY_LEVELS / 2;
+        for ( int i = 0; i < GRAY_LEVELS; i++ )
+        {
+            lWeightBackground += tabHistogram [i];
+            long lWeightForeground = lTotal - lWeightBackground;
+            if ( ( lWeightBackground == 0 ) || ( lWeightForeground == 0 ) )
+            {
+                continue;
+            }
+            dSumBackground += (double) i * tabHistogram [i];
+            double dMeanBackground = dSumBackground / lWeightBackground;
+            double dMeanForeground = ( dSum - dSumBackground ) / lWeightForeground;
+            double dMeanGap = dMeanBackground - dMeanForeground;
+            double dVariance = (double) lWeightBackground * lWeightForeground * dMeanGap * dMeanGap;
+            if ( dVariance > dMaxVariance )
+            {
+                dMaxVariance = dVariance;
+                nThreshold = i;
+            }
+        }
+
+        return nThreshold;
+    }
+
+    /**
+     * Get the luminance of a rgb pixel.
+     *
+     * @param nRgb
+     *            rgb value
+     * @return luminance between 0 and 255
+     */
+    private static int getLuminance( int nRgb )
+    {
+        int nRed = ( nRgb >> 16 ) & 0xFF;
+        int nGreen = ( nRgb >> 8 ) & 0xFF;
+        int nBlue = nRgb & 0xFF;
+
+        return ( ( nRed * 299 ) + ( nGreen * 587 ) + ( nBlue * 114 ) ) / 1000;
+    }
+
+    /**
+     * Get the jpeg compression level.
+     *
+     * @return compression level between 0 and 1
+     */
+    private static float getCompressionLevel( )
+    {
+        try
+        {
+            float fCompressionLevel = Float
+                    .parseFloat( AppPropertiesService.getProperty( OcrConstants.PROPERTY_PREPROCESS_COMPRESSION_LEVEL, "0.8" ) );
+
+            return ( ( fCompressionLevel <= 0 ) || ( fCompressionLevel > 1 ) ) ? 1 : fCompressionLevel;
+        }
+        catch( NumberFormatException e )
+        {
+            AppLogService.error( "Bad value for properties ocra2ia.preprocess.compression.level.", e );
+
+            return 1;
+        }
+    }
+
+    /**
+     * Task processing a strip of rows of an image.
+     */
+    @FunctionalInterface
+    private interface StripTask
+    {
+        /**
+         * Process the rows between nFirstRow (inclusive) and nLastRow (exclusive).
+         *
+         * @param nFirstRow
+         *            first row
+         * @param nLastRow
+         *            last row
+         */
+        void run( int nFirstRow, int nLastRow );
+    }
+
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.ImageType;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrInputRejectedException;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.i18n.I18nService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Cheap validation of the input document, done before any expensive work (pdf rendering, jacob conversion, engine call). The real format is sniffed
+ * from the magic bytes, image dimensions are read from the header only and pdf page count is controlled on the document loaded for the render.
+ *
+ */
+public class OcrInputValidator
+{
+
+    private static final byte [ ] MAGIC_JPEG = {
+            (byte) 0xFF, (byte) 0xD8, (byte) 0xFF
+    };
+    private static final byte [ ] MAGIC_PNG = {
+            (byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A
+    };
+    private static final byte [ ] MAGIC_TIFF_LITTLE_ENDIAN = {
+            'I', 'I', 0x2A, 0x00
+    };
+    private static final byte [ ] MAGIC_TIFF_BIG_ENDIAN = {
+            'M', 'M', 0x00, 0x2A
+    };
+    private static final byte [ ] MAGIC_BMP = {
+            'B', 'M'
+    };
+    private static final byte [ ] MAGIC_PDF = "%PDF-".getBytes( StandardCharsets.US_ASCII );
+    private static final byte [ ] MARKER_PDF_EOF = "%%EOF".getBytes( StandardCharsets.US_ASCII );
+
+    /**
+     * The pdf header may be preceded by garbage bytes, readers look for it in the first 1024 bytes.
+     */
+    private static final int PDF_HEADER_SEARCH_LENGTH = 1024;
+    private static final int PDF_EOF_SEARCH_LENGTH = 2048;
+
+    private static final int TIFF_OFFSET_FIRST_IFD = 4;
+    private static final int TIFF_IFD_ENTRY_LENGTH = 12;
+    private static final int TIFF_TAG_IMAGE_WIDTH = 256;
+    private static final int TIFF_TAG_IMAGE_LENGTH = 257;
+    private static final int TIFF_TYPE_SHORT = 3;
+
+    /**
+     * Bound of the number of images of a tiff, a chain of IFD offsets looping on itself is corrupt.
+     */
+    private static final int TIFF_MAX_IFD = 1024;
+
+    private static final String COUNTER_ACCEPTED = "validation.accepted";
+    private static final String COUNTER_NORMALIZED = "validation.normalized";
+    private static final String COUNTER_REJECTED = "validation.rejected.";
+
+    /**
+     * Validate the input document and get its real format.
+     *
+     * @param byteFileContent
+     *            file content
+     * @param strFileExtension
+     *            extension given by the caller
+     * @return the extension to use to process the document, may differ from the given extension if the content was sniffed as another allowed format
+     * @throws OcrInputRejectedException
+     *             if the document must not be sent to the engine
+     */
+    public String validate( byte [ ] byteFileContent, String strFileExtension ) throws OcrInputRejectedException
+    {
+        if ( !AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_VALIDATION_ENABLED, true ) )
+        {
+            return strFileExtension;
+        }
+
+        long lMaxSize = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_VALIDATION_MAX_SIZE, OcrConstants.DEFAULT_VALIDATION_MAX_SIZE );
+        if ( ( lMaxSize > 0 ) && ( byteFileContent.length > lMaxSize ) )
+        {
+            reject( OcrConstants.REJECT_CODE_TOO_LARGE, byteFileContent.length, lMaxSize );
+        }
+
+        String strSniffedFormat = sniffFormat( byteFileContent );
+        if ( strSniffedFormat == null )
+        {
+            reject( OcrConstants.REJECT_CODE_UNKNOWN_FORMAT, strFileExtension );
+        }
+
+        String strExtension = strFileExtension;
+        if ( !strSniffedFormat.equals( getCanonicalFormat( strFileExtension ) ) )
+        {
+            if ( !OcrConstants.VALIDATION_MISMATCH_NORMALIZE.equalsIgnoreCase( AppPropertiesService.getProperty(
+                    OcrConstants.PROPERTY_VALIDATION_EXTENSION_MISMATCH, OcrConstants.VALIDATION_MISMATCH_NORMALIZE ) ) )
+            {
+                reject( OcrConstants.REJECT_CODE_FORMAT_MISMATCH, strFileExtension, strSniffedFormat );
+            }
+            AppLogService.info( "File given with extension " + strFileExtension + " is a " + strSniffedFormat + ", extension normalized." );
+            OcrMetricsService.getInstance( ).increment( COUNTER_NORMALIZED );
+            strExtension = strSniffedFormat;
+        }
+
+        if ( OcrConstants.EXTENSION_FILE_PDF.equals( strSniffedFormat ) )
+        {
+            validatePdf( byteFileContent );
+        }
+        else
+            if ( OcrConstants.EXTENSION_FILE_TIFF.equals( strSniffedFormat ) )
+            {
+                validateTiff( byteFileContent );
+            }
+            else
+            {
+                validateImage( byteFileContent );
+            }
+
+        OcrMetricsService.getInstance( ).increment( COUNTER_ACCEPTED );
+
+        return strExtension;
+    }
+
+    /**
+     * Find the format of the file from its magic bytes.
+     *
+     * @param byteFileContent
+     *            file content
+     * @return the format (one of the OcrConstants.EXTENSION_FILE_* constants) or null if the format is not supported
+     */
+    public static String sniffFormat( byte [ ] byteFileContent )
+    {
+        if ( startsWith( byteFileContent, MAGIC_JPEG ) )
+        {
+            return OcrConstants.EXTENSION_FILE_JPEG;
+        }
+        if ( startsWith( byteFileContent, MAGIC_PNG ) )
+        {
+            return OcrConstants.EXTENSION_FILE_PNG;
+        }
+        if ( startsWith( byteFileContent, MAGIC_TIFF_LITTLE_ENDIAN ) || startsWith( byteFileContent, MAGIC_TIFF_BIG_ENDIAN ) )
+        {
+            return OcrConstants.EXTENSION_FILE_TIFF;
+        }
+        if ( startsWith( byteFileContent, MAGIC_BMP ) )
+        {
+            return OcrConstants.EXTENSION_FILE_BMP;
+        }
+        if ( indexOf( byteFileContent, MAGIC_PDF, 0, Math.min( byteFileContent.length, PDF_HEADER_SEARCH_LENGTH ) ) >= 0 )
+        {
+            return OcrConstants.EXTENSION_FILE_PDF;
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the canonical format of an extension (Jpg and Jpeg are the same format).
+     *
+     * @param strFileExtension
+     *            file extension
+     * @return the canonical format
+     */
+    public static String getCanonicalFormat( String strFileExtension )
+    {
+        if ( OcrConstants.EXTENSION_FILE_JPG.equalsIgnoreCase( strFileExtension )
+                || OcrConstants.EXTENSION_FILE_JPEG.equalsIgnoreCase( strFileExtension ) )
+        {
+            return OcrConstants.EXTENSION_FILE_JPEG;
+        }
+        for ( String strFormat : new String [ ] {
+                OcrConstants.EXTENSION_FILE_PNG, OcrConstants.EXTENSION_FILE_TIFF, OcrConstants.EXTENSION_FILE_BMP, OcrConstants.EXTENSION_FILE_PDF
+        } )
+        {
+            if ( strFormat.equalsIgnoreCase( strFileExtension ) )
+            {
+                return strFormat;
+            }
+        }
+
+        return strFileExtension;
+    }
+
+    /**
+     * Control the image dimensions. Only the image header is read.
+     *
+     * @param byteFileContent
+     *            image content
+     * @throws OcrInputRejectedException
+     *             if the image is corrupt or exceeds the pixel budget
+     */
+    private void validateImage( byte [ ] byteFileContent ) throws OcrInputRejectedException
+    {
+        try ( ImageInputStream imageInputStream = ImageIO.createImageInputStream( new ByteArrayInputStream( byteFileContent ) ) )
+        {
+            Iterator<ImageReader> iteratorReaders = ImageIO.getImageReaders( imageInputStream );
+            if ( !iteratorReaders.hasNext( ) )
+            {
+                // dimensions that can't be controlled are refused
+                reject( OcrConstants.REJECT_CODE_UNKNOWN_FORMAT, sniffFormat( byteFileContent ) );
+            }
+
+            ImageReader imageReader = iteratorReaders.next( );
+            try
+            {
+                imageReader.setInput( imageInputStream, true, true );
+                checkPixelBudget( imageReader.getWidth( 0 ), imageReader.getHeight( 0 ) );
+            }
+            finally
+            {
+                imageReader.dispose( );
+            }
+        }
+        catch( IOException | RuntimeException e )
+        {
+            AppLogService.error( "Unable to read image header : " + e.getMessage( ) );
+            reject( OcrConstants.REJECT_CODE_CORRUPT );
+        }
+    }
+
+    /**
+     * Control the dimensions of each image of a tiff. The IFDs are read from the content, as no tiff reader is available in the jvm before java 9.
+     *
+     * @param byteFileContent
+     *            tiff content
+     * @throws OcrInputRejectedException
+     *             if the tiff is corrupt or an image exceeds the pixel budget
+     */
+    private void validateTiff( byte [ ] byteFileContent ) throws OcrInputRejectedException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap( byteFileContent ).order(
+                startsWith( byteFileContent, MAGIC_TIFF_LITTLE_ENDIAN ) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN );
+        try
+        {
+            long lIfdOffset = Integer.toUnsignedLong( buffer.getInt( TIFF_OFFSET_FIRST_IFD ) );
+            int nIfd = 0;
+            while ( lIfdOffset != 0 )
+            {
+                if ( ( ++nIfd > TIFF_MAX_IFD ) || ( lIfdOffset > byteFileContent.length ) )
+                {
+                    reject( OcrConstants.REJECT_CODE_CORRUPT );
+                }
+
+                int nOffset = (int) lIfdOffset;
+                int nEntries = Short.toUnsignedInt( buffer.getShort( nOffset ) );
+                long lWidth = 0;
+                long lHeight = 0;
+                for ( int i = 0; i < nEntries; i++ )
+                {
+                    int nEntryOffset = nOffset + 2 + ( i * TIFF_IFD_ENTRY_LENGTH );
+                    int nTag = Short.toUnsignedInt( buffer.getShort( nEntryOffset ) );
+                    if ( ( nTag == TIFF_TAG_IMAGE_WIDTH ) || ( nTag == TIFF_TAG_IMAGE_LENGTH ) )
+                    {
+                        // the value of a single short or long is held by the entry itself
+                        long lValue = ( Short.toUnsignedInt( buffer.getShort( nEntryOffset + 2 ) ) == TIFF_TYPE_SHORT ) ? Short.toUnsignedInt( buffer
+                                .getShort( nEntryOffset + 8 ) ) : Integer.toUnsignedLong( buffer.getInt( nEntryOffset + 8 ) );
+                        if ( nTag == TIFF_TAG_IMAGE_WIDTH )
+                        {
+                            lWidth = lValue;
+                        }
+                        else
+                        {
+                            lHeight = lValue;
+                        }
+                    }
+                }
+                checkPixelBudget( (int) Math.min( lWidth, Integer.MAX_VALUE ), (int) Math.min( lHeight, Integer.MAX_VALUE ) );
+
+                lIfdOffset = Integer.toUnsignedLong( buffer.getInt( nOffset + 2 + ( nEntries * TIFF_IFD_ENTRY_LENGTH ) ) );
+            }
+        }
+        catch( IndexOutOfBoundsException e )
+        {
+            AppLogService.error( "Unable to read tiff header : " + e.getMessage( ) );
+            reject( OcrConstants.REJECT_CODE_CORRUPT );
+        }
+    }
+
+    /**
+     * Control the pdf structure without parsing it : the number of pages and the size of the image are controlled on the document loaded for the
+     * render, by validatePdfDocument.
+     *
+     * @param byteFileContent
+     *            pdf content
+     * @throws OcrInputRejectedException
+     *             if the pdf is truncated
+     */
+    private void validatePdf( byte [ ] byteFileContent ) throws OcrInputRejectedException
+    {
+        // a truncated upload has no end of file marker
+        int nStartEofSearch = Math.max( 0, byteFileContent.length - PDF_EOF_SEARCH_LENGTH );
+        if ( indexOf( byteFileContent, MARKER_PDF_EOF, nStartEofSearch, byteFileContent.length ) < 0 )
+        {
+            reject( OcrConstants.REJECT_CODE_CORRUPT );
+        }
+    }
+
+    /**
+     * Control the number of pages of a pdf and the size of the image that will be rendered, before the render. The document is the one loaded for the
+     * render, so that the pdf is parsed once.
+     *
+     * @param document
+     *            the loaded pdf
+     * @param nDpi
+     *            DPI of the render
+     * @throws OcrInputRejectedException
+     *             if the pdf has a bad number of pages or exceeds the pixel budget or the memory shared by the renders
+     */
+    public void validatePdfDocument( PDDocument document, int nDpi ) throws OcrInputRejectedException
+    {
+        if ( !AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_VALIDATION_ENABLED, true ) )
+        {
+            return;
+        }
+
+        int nMaxPages = AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_VALIDATION_PDF_MAX_PAGES, 1 );
+        int nNumberOfPages = document.getNumberOfPages( );
+        if ( ( nNumberOfPages < 1 ) || ( ( nMaxPages > 0 ) && ( nNumberOfPages > nMaxPages ) ) )
+        {
+            reject( OcrConstants.REJECT_CODE_PAGE_COUNT, nNumberOfPages, nMaxPages );
+        }
+
+        PDRectangle rectangle = document.getPage( 0 ).getCropBox( );
+        int nWidth = Math.round( rectangle.getWidth( ) * nDpi / OcrConstants.PDF_POINTS_BY_INCH );
+        int nHeight = Math.round( rectangle.getHeight( ) * nDpi / OcrConstants.PDF_POINTS_BY_INCH );
+        checkPixelBudget( nWidth, nHeight );
+
+        // a render that can never fit in the memory shared by the renders is refused now rather than after a wait
+        OcrPdfMemoryBudget memoryBudget = OcrPdfMemoryBudget.getInstance( );
+        ImageType imageType = OcrConstants.IMAGE_TYPE_BINARY.equalsIgnoreCase( AppPropertiesService.getProperty( OcrConstants.PROPERTY_PDF_IMAGE_TYPE,
+                OcrConstants.IMAGE_TYPE_RGB ) ) ? ImageType.BINARY : ImageType.RGB;
+        long lEstimate = memoryBudget.estimate( nWidth, nHeight, imageType );
+        if ( !memoryBudget.fits( lEstimate ) )
+        {
+            reject( OcrConstants.REJECT_CODE_MEMORY_BUDGET, lEstimate, memoryBudget.getBudget( ) );
+        }
+    }
+
+    /**
+     * Control the number of pixels of an image.
+     *
+     * @param nWidth
+     *            width in pixels
+     * @param nHeight
+     *            height in pixels
+     * @throws OcrInputRejectedException
+     *             if the image exceeds the pixel budget
+     */
+    private void checkPixelBudget( int nWidth, int nHeight ) throws OcrInputRejectedException
+    {
+        long lMaxPixels = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_VALIDATION_MAX_PIXELS,
+                OcrConstants.DEFAULT_VALIDATION_MAX_PIXELS );
+        if ( ( nWidth <= 0 ) || ( nHeight <= 0 ) )
+        {
+            reject( OcrConstants.REJECT_CODE_CORRUPT );
+        }
+        if ( ( lMaxPixels > 0 ) && ( ( (long) nWidth * nHeight ) > lMaxPixels ) )
+        {
+            reject( OcrConstants.REJECT_CODE_PIXEL_BUDGET, nWidth, nHeight, lMaxPixels );
+        }
+    }
+
+    /**
+     * Count and throw a reject.
+     *
+     * @param strRejectCode
+     *            reject code
+     * @param messageArgs
+     *            arguments of the i18n message
+     * @throws OcrInputRejectedException
+     *             always
+     */
+    static void reject( String strRejectCode, Object... messageArgs ) throws OcrInputRejectedException
+    {
+        OcrMetricsService.getInstance( ).increment( COUNTER_REJECTED + strRejectCode );
+
+        String [ ] strMessageArgs = new String [ messageArgs.length];
+        for ( int i = 0; i < messageArgs.length; i++ )
+        {
+            strMessageArgs [i] = String.valueOf( messageArgs [i] );
+        }
+        String strMessage = I18nService.getLocalizedString( OcrConstants.MESSAGE_REJECT_PREFIX + strRejectCode, strMessageArgs,
+                Locale.getDefault( ) );
+        AppLogService.error( "Document rejected before OCR : " + strRejectCode );
+
+        throw new OcrInputRejectedException( strRejectCode, strMessage );
+    }
+
+    /**
+     * Test if a byte array starts with a prefix.
+     *
+     * @param byteContent
+     *            content
+     * @param bytePrefix
+     *            prefix
+     * @return true if the content starts with the prefix
+     */
+    private static boolean startsWith( byte [ ] byteContent, byte [ ] bytePrefix )
+    {
+        return indexOf( byteContent, bytePrefix, 0, Math.min( byteContent.length, bytePrefix.length ) ) == 0;
+    }
+
+    /**
+     * Search a pattern in a range of a byte array.
+     *
+     * @param byteContent
+     *            content
+     * @param bytePattern
+     *            pattern to search
+     * @param nFrom
+     *            start of the range (inclusive)
+     * @param nTo
+     *            end of the range (exclusive)
+     * @return position of the pattern, -1 if not found
+     */
+    private static int indexOf( byte [ ] byteContent, byte [ ] bytePattern, int nFrom, int nTo )
+    {
+        for ( int i = nFrom; i <= ( nTo - bytePattern.length ); i++ )
+        {
+            int j = 0;
+            while ( ( j < bytePattern.length ) && ( byteContent [i + j] == bytePattern [j] ) )
+            {
+                j++;
+            }
+            if ( j == bytePattern.length )
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+}
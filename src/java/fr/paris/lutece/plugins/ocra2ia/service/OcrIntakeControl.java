@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.util.Locale;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrInterruptedException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrOverloadedException;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.i18n.I18nService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Intake of the OCR requests, suspended by the operators during an engine maintenance. When the intake is paused the new requests wait for it to
+ * resume, up to a maximum wait; when it is drained they are refused at once, and the requests in progress finish.
+ *
+ */
+public class OcrIntakeControl
+{
+
+    private static final String STAGE_INTAKE = "intake";
+    private static final String COUNTER_HELD = "intake.held";
+    private static final String COUNTER_REFUSED = "intake.refused";
+
+    /**
+     * State of the intake.
+     */
+    public enum State
+    {
+        /**
+         * Requests accepted.
+         */
+        OPEN,
+        /**
+         * New requests wait for the intake to resume.
+         */
+        PAUSED,
+        /**
+         * New requests refused, the requests in progress finish.
+         */
+        DRAINING
+    }
+
+    private final long _lPauseMaxWait;
+    private final long _lRetryAfter;
+    private State _state = State.OPEN;
+    private int _nInProgress;
+    private int _nHeld;
+
+    /**
+     * Constructor.
+     */
+    public OcrIntakeControl( )
+    {
+        _lPauseMaxWait = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_INTAKE_PAUSE_MAX_WAIT, 30000L );
+        _lRetryAfter = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_INTAKE_RETRY_AFTER, 60000L );
+    }
+
+    /**
+     * Let a request in, waiting while the intake is paused.
+     *
+     * @param deadline
+     *            time budget of the request
+     * @throws OcrException
+     *             OcrOverloadedException if the intake is drained or stays paused too long, OcrDeadlineExceededException if the budget is spent
+     */
+    public synchronized void enter( OcrDeadline deadline ) throws OcrException
+    {
+        if ( _state == State.PAUSED )
+        {
+            OcrMetricsService.getInstance( ).increment( COUNTER_HELD );
+            long lEnd = System.currentTimeMillis( ) + deadline.clamp( _lPauseMaxWait );
+            _nHeld++;
+            try
+            {
+                while ( _state == State.PAUSED )
+                {
+                    long lWait = lEnd - System.currentTimeMillis( );
+                    if ( lWait <= 0 )
+                    {
+                        if ( deadline.isExpired( ) )
+                        {
+                            throw OcrDeadline.exceeded( STAGE_INTAKE );
+                        }
+                        throw refused( );
+                    }
+                    wait( lWait );
+                }
+            }
+            catch( InterruptedException e )
+            {
+                throw new OcrInterruptedException( e.getMessage( ) );
+            }
+            finally
+            {
+                _nHeld--;
+            }
+        }
+        if ( _state == State.DRAINING )
+        {
+            throw refused( );
+        }
+        _nInProgress++;
+    }
+
+    /**
+     * Count the end of a request let in with enter.
+     */
+    public synchronized void leave( )
+    {
+        _nInProgress--;
+    }
+
+    /**
+     * Pause the intake : the new requests wait for it to resume.
+     */
+    public synchronized void pause( )
+    {
+        changeState( State.PAUSED );
+    }
+
+    /**
+     * Drain the intake : the new requests are refused, the waiting ones too.
+     */
+    public synchronized void drain( )
+    {
+        changeState( State.DRAINING );
+    }
+
+    /**
+     * Resume the intake.
+     */
+    public synchronized void resume( )
+    {
+        changeState( State.OPEN );
+    }
+
+    /**
+     * Get the state of the intake.
+     *
+     * @return the state
+     */
+    public synchronized State getState( )
+    {
+        return _state;
+    }
+
+    /**
+     * Get the number of requests in progress.
+     *
+     * @return the number of requests let in and not finished
+     */
+    public synchronized int getInProgress( )
+    {
+        return _nInProgress;
+    }
+
+    /**
+     * Get the number of requests waiting for a paused intake.
+     *
+     * @return the number of waiting requests
+     */
+    public synchronized int getHeld( )
+    {
+        return _nHeld;
+    }
+
+    /**
+     * Tell whether the intake is drained and no request is in progress any more : the engine can be stopped.
+     *
+     * @return true if drained
+     */
+    public synchronized boolean isDrained( )
+    {
+        return ( _state == State.DRAINING ) && ( _nInProgress == 0 );
+    }
+
+    /**
+     * Change the state and wake up the waiting requests.
+     *
+     * @param state
+     *            the new state
+     */
+    private void changeState( State state )
+    {
+        AppLogService.info( "OCR intake " + _state + " -> " + state + ", " + _nInProgress + " requests in progress." );
+        _state = state;
+        notifyAll( );
+    }
+
+    /**
+     * Count and build the exception of a refused request.
+     *
+     * @return the exception
+     */
+    private OcrOverloadedException refused( )
+    {
+        OcrMetricsService.getInstance( ).increment( COUNTER_REFUSED );
+        String [ ] messageArgs = {
+            String.valueOf( ( _lRetryAfter + 999 ) / 1000 )
+        };
+
+        return new OcrOverloadedException( _lRetryAfter, I18nService.getLocalizedString( OcrConstants.MESSAGE_INTAKE_SUSPENDED, messageArgs,
+                Locale.getDefault( ) ) );
+    }
+
+}
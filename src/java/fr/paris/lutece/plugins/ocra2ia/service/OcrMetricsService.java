@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ *
+ * Counters of the OCR pipeline. Counters are created on first use and are identified by a dotted name (ex : validation.rejected.notPdf). Gauges
+ * are read from the component owning them each time they are asked for.
+ *
+ */
+public final class OcrMetricsService
+{
+
+    private static final String SUFFIX_COUNT = ".count";
+    private static final String SUFFIX_TIME = ".time";
+    private static final int LATENCY_WINDOW_CAPACITY = 1000;
+    private static final int THROUGHPUT_WINDOW_SECONDS = 61;
+
+    /**
+     * Unique instance.
+     */
+    private static final OcrMetricsService _singleton = new OcrMetricsService( );
+
+    /**
+     * Counters by name.
+     */
+    private final ConcurrentMap<String, LongAdder> _mapCounters = new ConcurrentHashMap<>( );
+
+    /**
+     * Recent durations by timer name.
+     */
+    private final ConcurrentMap<String, LatencyWindow> _mapLatencyWindows = new ConcurrentHashMap<>( );
+
+    /**
+     * Events of the last minute by meter name.
+     */
+    private final ConcurrentMap<String, ThroughputWindow> _mapThroughputWindows = new ConcurrentHashMap<>( );
+
+    /**
+     * Gauges by name.
+     */
+    private final ConcurrentMap<String, LongSupplier> _mapGauges = new ConcurrentHashMap<>( );
+
+    /**
+     * Private constructor.
+     */
+    private OcrMetricsService( )
+    {
+    }
+
+    /**
+     * Get the unique instance of the service.
+     *
+     * @return the metrics service
+     */
+    public static OcrMetricsService getInstance( )
+    {
+        return _singleton;
+    }
+
+    /**
+     * Increment a counter.
+     *
+     * @param strCounterName
+     *            counter name
+     */
+    public void increment( String strCounterName )
+    {
+        add( strCounterName, 1L );
+    }
+
+    /**
+     * Add a value to a counter.
+     *
+     * @param strCounterName
+     *            counter name
+     * @param lValue
+     *            value to add
+     */
+    public void add( String strCounterName, long lValue )
+    {
+        _mapCounters.computeIfAbsent( strCounterName, k -> new LongAdder( ) ).add( lValue );
+    }
+
+    /**
+     * Record the duration of an operation : increments the counters &lt;name&gt;.count and &lt;name&gt;.time (total in milliseconds) and keeps the
+     * duration in the window of recent durations of the timer.
+     *
+     * @param strTimerName
+     *            timer name
+     * @param lDurationMs
+     *            duration in milliseconds
+     */
+    public void recordTime( String strTimerName, long lDurationMs )
+    {
+        increment( strTimerName + SUFFIX_COUNT );
+        add( strTimerName + SUFFIX_TIME, lDurationMs );
+        _mapLatencyWindows.computeIfAbsent( strTimerName, k -> new LatencyWindow( LATENCY_WINDOW_CAPACITY ) ).record( lDurationMs );
+    }
+
+    /**
+     * Count an event of a meter : increments the counter of the meter and counts the event in the last minute of the meter.
+     *
+     * @param strMeterName
+     *            meter name
+     */
+    public void mark( String strMeterName )
+    {
+        increment( strMeterName );
+        _mapThroughputWindows.computeIfAbsent( strMeterName, k -> new ThroughputWindow( THROUGHPUT_WINDOW_SECONDS ) ).mark( );
+    }
+
+    /**
+     * Get the rate of a meter over the last minute.
+     *
+     * @param strMeterName
+     *            meter name
+     * @return the number of events by second
+     */
+    public double getRate( String strMeterName )
+    {
+        ThroughputWindow throughputWindow = _mapThroughputWindows.get( strMeterName );
+
+        return ( throughputWindow != null ) ? throughputWindow.getRate( ) : 0;
+    }
+
+    /**
+     * Get the names of the timers having recorded durations, sorted.
+     *
+     * @return the timer names
+     */
+    public Set<String> getTimerNames( )
+    {
+        return new TreeSet<>( _mapLatencyWindows.keySet( ) );
+    }
+
+    /**
+     * Get a percentile of the recent durations of a timer.
+     *
+     * @param strTimerName
+     *            timer name
+     * @param dPercentile
+     *            percentile between 0 and 100
+     * @return the percentile in milliseconds, 0 if no duration was recorded
+     */
+    public long getPercentile( String strTimerName, double dPercentile )
+    {
+        LatencyWindow latencyWindow = _mapLatencyWindows.get( strTimerName );
+
+        return ( latencyWindow != null ) ? latencyWindow.getPercentile( dPercentile ) : 0L;
+    }
+
+    /**
+     * Get the number of recent durations of a timer used to compute the percentiles.
+     *
+     * @param strTimerName
+     *            timer name
+     * @return the number of recent durations
+     */
+    public int getSampleCount( String strTimerName )
+    {
+        LatencyWindow latencyWindow = _mapLatencyWindows.get( strTimerName );
+
+        return ( latencyWindow != null ) ? latencyWindow.size( ) : 0;
+    }
+
+    /**
+     * Get the current value of a counter.
+     *
+     * @param strCounterName
+     *            counter name
+     * @return value of the counter, 0 if the counter was never incremented
+     */
+    public long getCounter( String strCounterName )
+    {
+        LongAdder counter = _mapCounters.get( strCounterName );
+
+        return ( counter != null ) ? counter.sum( ) : 0L;
+    }
+
+    /**
+     * Register a gauge, replacing the gauge of the same name if any.
+     *
+     * @param strGaugeName
+     *            gauge name
+     * @param gauge
+     *            supplier of the current value
+     */
+    public void registerGauge( String strGaugeName, LongSupplier gauge )
+    {
+        _mapGauges.put( strGaugeName, gauge );
+    }
+
+    /**
+     * Get the current value of a gauge.
+     *
+     * @param strGaugeName
+     *            gauge name
+     * @return value of the gauge, 0 if no gauge is registered under this name
+     */
+    public long getGauge( String strGaugeName )
+    {
+        LongSupplier gauge = _mapGauges.get( strGaugeName );
+
+        return ( gauge != null ) ? gauge.getAsLong( ) : 0L;
+    }
+
+    /**
+     * Get a snapshot of all the counters and gauges, sorted by name.
+     *
+     * @return map counter or gauge name / value
+     */
+    public Map<String, Long> getCounters( )
+    {
+        Map<String, Long> mapSnapshot = new TreeMap<>( );
+        _mapCounters.forEach( ( strName, counter ) -> mapSnapshot.put( strName, counter.sum( ) ) );
+        _mapGauges.forEach( ( strName, gauge ) -> mapSnapshot.put( strName, gauge.getAsLong( ) ) );
+
+        return mapSnapshot;
+    }
+
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.rendering.ImageType;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrInputRejectedException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrInterruptedException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrOverloadedException;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.i18n.I18nService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Memory budget of the pdf renders. In bounded mode each document is parsed with a heap cap, its buffers above the cap being spilled to a scratch
+ * file, and every render reserves its parsing cap and the size of its raster in a budget shared by all the concurrent renders. A render that does not
+ * fit waits its turn, and is refused when the wait is too long. A pdf whose render alone exceeds the budget is rejected.
+ *
+ */
+public final class OcrPdfMemoryBudget
+{
+
+    private static final String STAGE_PDF_MEMORY = "pdfMemory";
+    private static final String COUNTER_WAIT = "pdf.memory.wait";
+    private static final String COUNTER_TIMEOUT = "pdf.memory.timeout";
+    private static final String COUNTER_REJECTED = "pdf.memory.rejected";
+    private static final String COUNTER_RESERVED = "pdf.memory.reserved";
+    private static final String COUNTER_ALLOCATED = "pdf.render.allocated";
+    private static final String GAUGE_RESERVED = "pdf.memory.reserved.bytes";
+    private static final String GAUGE_BUDGET = "pdf.memory.budget.bytes";
+
+    /**
+     * Bytes by pixel of the ARGB image drawn by the renderer.
+     */
+    private static final int BYTES_BY_PIXEL_RENDER = 4;
+
+    /**
+     * Unique instance.
+     */
+    private static final OcrPdfMemoryBudget _singleton = new OcrPdfMemoryBudget( );
+
+    private final boolean _bEnabled;
+    private final long _lDocumentCap;
+    private final long _lBudget;
+    private final long _lWaitTimeout;
+    private final File _scratchDir;
+    private final Deque<Object> _queue = new ArrayDeque<>( );
+    private long _lReserved;
+
+    /**
+     * Private constructor, from the configuration. The memory reserved right now and the budget are exported as gauges.
+     */
+    private OcrPdfMemoryBudget( )
+    {
+        this( AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_PDF_MEMORY_BOUNDED, false ),
+                AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_PDF_MEMORY_DOCUMENT_CAP, 16777216L ),
+                AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_PDF_MEMORY_BUDGET, 536870912L ),
+                AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_PDF_MEMORY_WAIT_TIMEOUT, 5000L ),
+                AppPropertiesService.getProperty( OcrConstants.PROPERTY_PDF_MEMORY_SCRATCH_DIR ) );
+        OcrMetricsService.getInstance( ).registerGauge( GAUGE_RESERVED, this::getReserved );
+        OcrMetricsService.getInstance( ).registerGauge( GAUGE_BUDGET, this::getBudget );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param bEnabled
+     *            true to bound the memory of the renders
+     * @param lDocumentCap
+     *            heap cap of a parsed document in bytes
+     * @param lBudget
+     *            memory shared by all the concurrent renders in bytes
+     * @param lWaitTimeout
+     *            maximum wait of a render in milliseconds
+     * @param strScratchDir
+     *            directory of the scratch files, the temporary directory if blank
+     */
+    OcrPdfMemoryBudget( boolean bEnabled, long lDocumentCap, long lBudget, long lWaitTimeout, String strScratchDir )
+    {
+        _bEnabled = bEnabled;
+        _lDocumentCap = Math.max( 0, lDocumentCap );
+        _lBudget = Math.max( 1, lBudget );
+        _lWaitTimeout = lWaitTimeout;
+        _scratchDir = new File( StringUtils.isBlank( strScratchDir ) ? System.getProperty( "java.io.tmpdir" ) : strScratchDir.trim( ) );
+        if ( _bEnabled && !_scratchDir.isDirectory( ) && !_scratchDir.mkdirs( ) )
+        {
+            AppLogService.error( "Pdf scratch directory " + _scratchDir + " can not be created." );
+        }
+    }
+
+    /**
+     * Get the unique instance of the budget.
+     *
+     * @return the budget
+     */
+    public static OcrPdfMemoryBudget getInstance( )
+    {
+        return _singleton;
+    }
+
+    /**
+     * Tell whether the pdf are rendered in bounded memory mode.
+     *
+     * @return true if the memory of the renders is bounded
+     */
+    public boolean isEnabled( )
+    {
+        return _bEnabled;
+    }
+
+    /**
+     * Get the memory setting used to parse a pdf : main memory only, or in bounded mode the heap cap of a document with a scratch file beyond it.
+     *
+     * @return the memory setting
+     */
+    public MemoryUsageSetting getMemoryUsageSetting( )
+    {
+        if ( !_bEnabled )
+        {
+            return MemoryUsageSetting.setupMainMemoryOnly( );
+        }
+
+        return MemoryUsageSetting.setupMixed( _lDocumentCap ).setTempDir( _scratchDir );
+    }
+
+    /**
+     * Estimate the memory needed to render a page : the parsing cap of the document, the image drawn by the renderer and the image converted to the
+     * requested type.
+     *
+     * @param nWidth
+     *            width of the rendered image in pixels
+     * @param nHeight
+     *            height of the rendered image in pixels
+     * @param imageType
+     *            type of the rendered image
+     * @return the estimated number of bytes
+     */
+    public long estimate( int nWidth, int nHeight, ImageType imageType )
+    {
+        long lPixels = (long) Math.max( 0, nWidth ) * Math.max( 0, nHeight );
+        long lConverted = ( imageType == ImageType.BINARY ) ? ( lPixels + 7 ) / 8 : lPixels * BYTES_BY_PIXEL_RENDER;
+
+        return _lDocumentCap + ( lPixels * BYTES_BY_PIXEL_RENDER ) + lConverted;
+    }
+
+    /**
+     * Control that a render can fit in the budget, whatever the other renders in progress.
+     *
+     * @param lBytes
+     *            estimated memory of the render
+     * @return true if the render fits in the budget or the mode is disabled
+     */
+    public boolean fits( long lBytes )
+    {
+        return !_bEnabled || ( lBytes <= _lBudget );
+    }
+
+    /**
+     * Reserve memory for a render, waiting for the renders in progress to give it back if the budget is spent. The waiting renders are served in
+     * their order of arrival. Nothing is reserved when the mode is disabled.
+     *
+     * @param lBytes
+     *            estimated memory of the render
+     * @param deadline
+     *            time budget of the request
+     * @throws OcrException
+     *             OcrInputRejectedException if the render exceeds the whole budget, OcrOverloadedException if the wait is too long,
+     *             OcrDeadlineExceededException if the budget of the request is spent
+     */
+    public synchronized void acquire( long lBytes, OcrDeadline deadline ) throws OcrException
+    {
+        if ( !_bEnabled )
+        {
+            return;
+        }
+        if ( !fits( lBytes ) )
+        {
+            throw rejected( lBytes );
+        }
+
+        long lStart = System.currentTimeMillis( );
+        long lEnd = lStart + deadline.clamp( _lWaitTimeout );
+        Object ticket = new Object( );
+        _queue.addLast( ticket );
+        boolean bWaited = false;
+
+        try
+        {
+            while ( ( _queue.peekFirst( ) != ticket ) || ( ( _lReserved + lBytes ) > _lBudget ) )
+            {
+                bWaited = true;
+                long lWait = lEnd - System.currentTimeMillis( );
+                if ( lWait <= 0 )
+                {
+                    if ( deadline.isExpired( ) )
+                    {
+                        throw OcrDeadline.exceeded( STAGE_PDF_MEMORY );
+                    }
+                    throw timeout( lBytes );
+                }
+                wait( lWait );
+            }
+            _lReserved += lBytes;
+            OcrMetricsService.getInstance( ).add( COUNTER_RESERVED, lBytes );
+        }
+        catch( InterruptedException e )
+        {
+            throw new OcrInterruptedException( e.getMessage( ) );
+        }
+        finally
+        {
+            _queue.remove( ticket );
+            // the next render in line may fit now
+            notifyAll( );
+            if ( bWaited )
+            {
+                OcrMetricsService.getInstance( ).recordTime( COUNTER_WAIT, System.currentTimeMillis( ) - lStart );
+            }
+        }
+    }
+
+    /**
+     * Give back memory reserved with acquire.
+     *
+     * @param lBytes
+     *            estimated memory of the render
+     */
+    public synchronized void release( long lBytes )
+    {
+        if ( !_bEnabled )
+        {
+            return;
+        }
+        _lReserved = Math.max( 0, _lReserved - lBytes );
+        notifyAll( );
+    }
+
+    /**
+     * Get the memory shared by all the concurrent renders.
+     *
+     * @return the number of bytes
+     */
+    public long getBudget( )
+    {
+        return _lBudget;
+    }
+
+    /**
+     * Get the memory reserved by the renders in progress.
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getReserved( )
+    {
+        return _lReserved;
+    }
+
+    /**
+     * Get the number of renders waiting for memory.
+     *
+     * @return the number of waiting renders
+     */
+    public synchronized int getWaiting( )
+    {
+        return _queue.size( );
+    }
+
+    /**
+     * Get the number of bytes allocated so far by the current thread, to measure the memory used by a render.
+     *
+     * @return the number of bytes, or -1 if the virtual machine does not measure it
+     */
+    public static long getAllocatedBytes( )
+    {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean( );
+        if ( threadMXBean instanceof com.sun.management.ThreadMXBean )
+        {
+            return ( (com.sun.management.ThreadMXBean) threadMXBean ).getThreadAllocatedBytes( Thread.currentThread( ).getId( ) );
+        }
+
+        return -1;
+    }
+
+    /**
+     * Report the memory used by a render.
+     *
+     * @param lAllocatedBefore
+     *            bytes allocated by the current thread before the render, as given by getAllocatedBytes
+     * @param lEstimated
+     *            estimated memory of the render
+     * @param lElapsed
+     *            duration of the render in milliseconds
+     */
+    public static void report( long lAllocatedBefore, long lEstimated, long lElapsed )
+    {
+        long lAllocated = ( lAllocatedBefore < 0 ) ? -1 : getAllocatedBytes( ) - lAllocatedBefore;
+        if ( lAllocated >= 0 )
+        {
+            OcrMetricsService.getInstance( ).add( COUNTER_ALLOCATED, lAllocated );
+        }
+        AppLogService.info( "pdf rendered in " + lElapsed + " ms, estimated memory " + lEstimated + " bytes, allocated " + lAllocated + " bytes." );
+    }
+
+    /**
+     * Count and build the exception of a render larger than the whole budget.
+     *
+     * @param lBytes
+     *            estimated memory of the render
+     * @return the exception
+     */
+    private OcrInputRejectedException rejected( long lBytes )
+    {
+        OcrMetricsService.getInstance( ).increment( COUNTER_REJECTED );
+        AppLogService.error( "Pdf render of " + lBytes + " bytes exceeds the memory budget of " + _lBudget + " bytes." );
+        String [ ] messageArgs = {
+            String.valueOf( lBytes ), String.valueOf( _lBudget )
+        };
+
+        return new OcrInputRejectedException( OcrConstants.REJECT_CODE_MEMORY_BUDGET,
+                I18nService.getLocalizedString( OcrConstants.MESSAGE_REJECT_PREFIX + OcrConstants.REJECT_CODE_MEMORY_BUDGET, messageArgs,
+                        Locale.getDefault( ) ) );
+    }
+
+    /**
+     * Count and build the exception of a render that waited too long for memory.
+     *
+     * @param lBytes
+     *            estimated memory of the render
+     * @return the exception
+     */
+    private OcrOverloadedException timeout( long lBytes )
+    {
+        OcrMetricsService.getInstance( ).increment( COUNTER_TIMEOUT );
+        AppLogService.error( "Pdf render of " + lBytes + " bytes waited too long, " + _lReserved + " bytes of " + _lBudget + " reserved." );
+        String [ ] messageArgs = {
+            String.valueOf( ( _lWaitTimeout + 999 ) / 1000 )
+        };
+
+        return new OcrOverloadedException( _lWaitTimeout,
+                I18nService.getLocalizedString( OcrConstants.MESSAGE_OVERLOADED, messageArgs, Locale.getDefault( ) ) );
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+/**
+ *
+ * Priority class of an OCR request.
+ *
+ */
+public enum OcrPriority
+{
+    /**
+     * A user is waiting for the result (form upload).
+     */
+    INTERACTIVE( "interactive" ),
+
+    /**
+     * Back office or batch processing, nobody is waiting for the result.
+     */
+    BULK( "bulk" );
+
+    /**
+     * Key of the class in the properties and the metrics.
+     */
+    private final String _strKey;
+
+    /**
+     * Constructor.
+     *
+     * @param strKey
+     *            key of the class
+     */
+    OcrPriority( String strKey )
+    {
+        _strKey = strKey;
+    }
+
+    /**
+     * @return the key of the class in the properties and the metrics
+     */
+    public String getKey( )
+    {
+        return _strKey;
+    }
+
+    /**
+     * Find a class by its key.
+     *
+     * @param strKey
+     *            key of the class, case insensitive
+     * @param defaultPriority
+     *            class returned when the key is empty or unknown
+     * @return the class
+     */
+    public static OcrPriority fromKey( String strKey, OcrPriority defaultPriority )
+    {
+        for ( OcrPriority priority : values( ) )
+        {
+            if ( priority._strKey.equalsIgnoreCase( strKey ) )
+            {
+                return priority;
+            }
+        }
+
+        return defaultPriority;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.util.Map;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+
+/**
+ *
+ * Listener of the fields of a result, called as soon as each field is read from the engine, before the end of the request. The fields may come from
+ * the threads of the engine : the calls are serialized. A field is sent again only to correct its value, when the attempt streaming the fields fails
+ * or loses against a hedge attempt : just before onComplete, the fields sent with another value are sent again, and the fields sent that the result
+ * does not hold are retracted with a null value. Exactly one of onComplete and onError ends the request.
+ *
+ */
+public interface OcrResultListener
+{
+
+    /**
+     * Confidence of a field for which the engine gives no score.
+     */
+    double CONFIDENCE_UNKNOWN = -1;
+
+    /**
+     * A field of the result has been read.
+     *
+     * @param strKey
+     *            key of the field
+     * @param strValue
+     *            value of the field, not blank, or null to retract a field sent before that the result does not hold
+     * @param dConfidence
+     *            score of the field given by the engine, between 0 and 1, or CONFIDENCE_UNKNOWN
+     */
+    void onField( String strKey, String strValue, double dConfidence );
+
+    /**
+     * Tell whether the caller has what it needs : the fields not read yet are then skipped, as the pdf retry, and the partial result is neither cached
+     * nor learned.
+     *
+     * @return true to stop reading the fields
+     */
+    boolean isCancelled( );
+
+    /**
+     * The request is completed, called once before the result is returned, unless the request fails. The fields sent with another value are corrected
+     * and the fields the result does not hold are retracted before.
+     *
+     * @param mapResults
+     *            the result, with the fields read before a cancellation
+     */
+    void onComplete( Map<String, String> mapResults );
+
+    /**
+     * The request failed, called once before the exception is thrown : the fields sent may belong to an attempt that did not complete.
+     *
+     * @param exception
+     *            the failure of the request
+     */
+    void onError( OcrException exception );
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.commons.lang.StringUtils;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+
+/**
+ *
+ * Listener given to the engine for a caller listener : a field is sent again only when its value changes, the blank fields are not sent, and the
+ * calls from the threads of the engine are serialized. The completion corrects the fields sent by an attempt that lost, the fields the result does
+ * not hold being retracted with a null value, then exactly one of the completion and the failure is sent.
+ *
+ */
+final class OcrResultStream implements OcrResultListener
+{
+
+    /**
+     * Listener of the caller.
+     */
+    private final OcrResultListener _listener;
+
+    /**
+     * Value of the fields already sent, by key.
+     */
+    private final Map<String, String> _mapSentValues = new HashMap<>( );
+
+    /**
+     * true once the completion or the failure is sent.
+     */
+    private boolean _bCompleted;
+
+    /**
+     * Constructor.
+     *
+     * @param listener
+     *            listener of the caller
+     */
+    OcrResultStream( OcrResultListener listener )
+    {
+        _listener = listener;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void onField( String strKey, String strValue, double dConfidence )
+    {
+        if ( !_bCompleted && StringUtils.isNotBlank( strValue ) && !Objects.equals( _mapSentValues.put( strKey, strValue ), strValue ) )
+        {
+            _listener.onField( strKey, strValue, dConfidence );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isCancelled( )
+    {
+        return _listener.isCancelled( );
+    }
+
+    /**
+     * Send the fields of the result not sent yet (result from the cache) or sent with another value (attempt that lost), retract the fields sent that
+     * the result does not hold, then send the completion.
+     *
+     * @param mapResults
+     *            the result
+     */
+    @Override
+    public synchronized void onComplete( Map<String, String> mapResults )
+    {
+        if ( _bCompleted )
+        {
+            return;
+        }
+        mapResults.forEach( ( strKey, strValue ) -> onField( strKey, strValue, CONFIDENCE_UNKNOWN ) );
+        for ( String strKey : _mapSentValues.keySet( ) )
+        {
+            if ( StringUtils.isBlank( mapResults.get( strKey ) ) )
+            {
+                _listener.onField( strKey, null, CONFIDENCE_UNKNOWN );
+            }
+        }
+        _bCompleted = true;
+        _listener.onComplete( mapResults );
+    }
+
+    /**
+     * Send the failure, unless the completion or a failure is already sent.
+     *
+     * @param exception
+     *            the failure of the request
+     */
+    @Override
+    public synchronized void onError( OcrException exception )
+    {
+        if ( !_bCompleted )
+        {
+            _bCompleted = true;
+            _listener.onError( exception );
+        }
+    }
+
+}
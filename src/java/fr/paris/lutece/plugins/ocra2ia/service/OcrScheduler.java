@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrInterruptedException;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.i18n.I18nService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Scheduler in front of the engine : interactive requests are served before bulk requests, but after a number of interactive requests in a row a
+ * waiting bulk request is served, so that bulk keeps a minimum share of the engine. Each class has its own concurrency limit and maximum queue wait.
+ *
+ */
+public class OcrScheduler
+{
+
+    private static final String STAGE_QUEUE = "queue";
+    private static final String COUNTER_WAIT = "scheduler.wait.";
+    private static final String COUNTER_TIMEOUT = "scheduler.timeout.";
+    private static final String PROPERTY_QUEUE_TIMEOUT_INTERACTIVE = OcrConstants.PROPERTY_SCHEDULER_QUEUE_TIMEOUT + "."
+            + OcrPriority.INTERACTIVE.getKey( );
+    private static final String PROPERTY_QUEUE_TIMEOUT_BULK = OcrConstants.PROPERTY_SCHEDULER_QUEUE_TIMEOUT + "." + OcrPriority.BULK.getKey( );
+
+    private final int _nMaxConcurrency;
+    private final int _nInteractiveBurst;
+    private final Map<OcrPriority, Integer> _mapMaxConcurrency = new EnumMap<>( OcrPriority.class );
+    private final Map<OcrPriority, Integer> _mapRunning = new EnumMap<>( OcrPriority.class );
+    private final Map<OcrPriority, Deque<Object>> _mapQueues = new EnumMap<>( OcrPriority.class );
+    private final Map<OcrPriority, Long> _mapQueueTimeout = new EnumMap<>( OcrPriority.class );
+
+    /**
+     * Number of requests running on the engine.
+     */
+    private int _nRunning;
+
+    /**
+     * Number of interactive requests served in a row while bulk requests were waiting.
+     */
+    private int _nInteractiveInRow;
+
+    /**
+     * Constructor.
+     *
+     * @param nDefaultMaxConcurrency
+     *            number of requests running on the engine at the same time when ocra2ia.scheduler.max.concurrency is not set
+     */
+    public OcrScheduler( int nDefaultMaxConcurrency )
+    {
+        this( AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_SCHEDULER_MAX_CONCURRENCY, nDefaultMaxConcurrency ),
+                AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_SCHEDULER_BULK_SHARE, 20 ),
+                AppPropertiesService.getPropertyLong( PROPERTY_QUEUE_TIMEOUT_INTERACTIVE, 30000L ),
+                AppPropertiesService.getPropertyLong( PROPERTY_QUEUE_TIMEOUT_BULK, 600000L ) );
+        for ( OcrPriority priority : OcrPriority.values( ) )
+        {
+            _mapMaxConcurrency.put( priority, Math.max( 1, AppPropertiesService.getPropertyInt(
+                    OcrConstants.PROPERTY_SCHEDULER_MAX_CONCURRENCY + "." + priority.getKey( ), _nMaxConcurrency ) ) );
+        }
+
+        AppLogService.info( "OCR scheduler max concurrency " + _nMaxConcurrency + " " + _mapMaxConcurrency + " interactive burst "
+                + _nInteractiveBurst );
+    }
+
+    /**
+     * Constructor with explicit settings, each class may use every slot of the engine.
+     *
+     * @param nMaxConcurrency
+     *            number of requests running on the engine at the same time
+     * @param nBulkShare
+     *            minimum share of the engine kept for bulk requests, in percent
+     * @param lInteractiveQueueTimeout
+     *            maximum queue wait of an interactive request in milliseconds
+     * @param lBulkQueueTimeout
+     *            maximum queue wait of a bulk request in milliseconds
+     */
+    OcrScheduler( int nMaxConcurrency, int nBulkShare, long lInteractiveQueueTimeout, long lBulkQueueTimeout )
+    {
+        _nMaxConcurrency = Math.max( 1, nMaxConcurrency );
+        for ( OcrPriority priority : OcrPriority.values( ) )
+        {
+            _mapMaxConcurrency.put( priority, _nMaxConcurrency );
+            _mapRunning.put( priority, 0 );
+            _mapQueues.put( priority, new ArrayDeque<>( ) );
+        }
+        _mapQueueTimeout.put( OcrPriority.INTERACTIVE, lInteractiveQueueTimeout );
+        _mapQueueTimeout.put( OcrPriority.BULK, lBulkQueueTimeout );
+
+        // a bulk share of n percent lets a bulk request through after (100 - n) / n interactive requests
+        int nShare = Math.min( 50, nBulkShare );
+        _nInteractiveBurst = ( nShare > 0 ) ? (int) Math.ceil( ( 100 - nShare ) / (double) nShare ) : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Wait for the turn of a request and reserve a slot on the engine.
+     *
+     * @param priority
+     *            priority class of the request
+     * @param deadline
+     *            time budget of the request
+     * @throws OcrException
+     *             if the request waits longer than the maximum queue wait of its class, OcrDeadlineExceededException if the budget is spent
+     */
+    public synchronized void acquire( OcrPriority priority, OcrDeadline deadline ) throws OcrException
+    {
+        long lStart = System.currentTimeMillis( );
+        long lQueueTimeout = _mapQueueTimeout.get( priority );
+        long lMaxWait = deadline.clamp( lQueueTimeout );
+        long lEnd = lStart + lMaxWait;
+        Deque<Object> queue = _mapQueues.get( priority );
+        Object ticket = new Object( );
+        queue.addLast( ticket );
+        boolean bGranted = false;
+
+        try
+        {
+            while ( ( queue.peekFirst( ) != ticket ) || ( selectClass( ) != priority ) )
+            {
+                long lWait = lEnd - System.currentTimeMillis( );
+                if ( lWait <= 0 )
+                {
+                    throw timeout( priority, lMaxWait < lQueueTimeout );
+                }
+                wait( lWait );
+            }
+
+            queue.removeFirst( );
+            bGranted = true;
+            _nRunning++;
+            _mapRunning.put( priority, _mapRunning.get( priority ) + 1 );
+            if ( priority == OcrPriority.BULK )
+            {
+                _nInteractiveInRow = 0;
+            }
+            else
+                if ( !_mapQueues.get( OcrPriority.BULK ).isEmpty( ) )
+                {
+                    _nInteractiveInRow++;
+                }
+        }
+        catch( InterruptedException e )
+        {
+            throw new OcrInterruptedException( e.getMessage( ) );
+        }
+        finally
+        {
+            if ( !bGranted )
+            {
+                queue.remove( ticket );
+            }
+            // the next request of the queue may be served now
+            notifyAll( );
+            OcrMetricsService.getInstance( ).recordTime( COUNTER_WAIT + priority.getKey( ), System.currentTimeMillis( ) - lStart );
+        }
+    }
+
+    /**
+     * Give back a slot reserved with acquire.
+     *
+     * @param priority
+     *            priority class of the request
+     */
+    public synchronized void release( OcrPriority priority )
+    {
+        _nRunning--;
+        _mapRunning.put( priority, _mapRunning.get( priority ) - 1 );
+        notifyAll( );
+    }
+
+    /**
+     * Get the number of requests of a class waiting for the engine.
+     *
+     * @param priority
+     *            priority class
+     * @return the number of waiting requests
+     */
+    public synchronized int getQueueLength( OcrPriority priority )
+    {
+        return _mapQueues.get( priority ).size( );
+    }
+
+    /**
+     * Get the number of requests of a class running on the engine.
+     *
+     * @param priority
+     *            priority class
+     * @return the number of running requests
+     */
+    public synchronized int getRunning( OcrPriority priority )
+    {
+        return _mapRunning.get( priority );
+    }
+
+    /**
+     * Select the class served by the next free slot.
+     *
+     * @return the class, null if no request can be served
+     */
+    private OcrPriority selectClass( )
+    {
+        boolean bInteractive = canRun( OcrPriority.INTERACTIVE );
+        boolean bBulk = canRun( OcrPriority.BULK );
+
+        if ( bInteractive && bBulk )
+        {
+            return ( _nInteractiveInRow >= _nInteractiveBurst ) ? OcrPriority.BULK : OcrPriority.INTERACTIVE;
+        }
+        if ( bInteractive )
+        {
+            return OcrPriority.INTERACTIVE;
+        }
+
+        return bBulk ? OcrPriority.BULK : null;
+    }
+
+    /**
+     * Test if a request of a class can be served now.
+     *
+     * @param priority
+     *            priority class
+     * @return true if a request of the class is waiting and a slot is free for it
+     */
+    private boolean canRun( OcrPriority priority )
+    {
+        return !_mapQueues.get( priority ).isEmpty( ) && ( _nRunning < _nMaxConcurrency )
+                && ( _mapRunning.get( priority ) < _mapMaxConcurrency.get( priority ) );
+    }
+
+    /**
+     * Build the exception of a request waiting too long.
+     *
+     * @param priority
+     *            priority class of the request
+     * @param bDeadline
+     *            true if the wait was bounded by the time budget of the request rather than by the maximum queue wait of its class
+     * @return the exception
+     */
+    private static OcrException timeout( OcrPriority priority, boolean bDeadline )
+    {
+        if ( bDeadline )
+        {
+            return OcrDeadline.exceeded( STAGE_QUEUE );
+        }
+
+        OcrMetricsService.getInstance( ).increment( COUNTER_TIMEOUT + priority.getKey( ) );
+        AppLogService.error( "OCR request of class " + priority.getKey( ) + " waited too long for the engine." );
+        String [ ] messageArgs = {
+            priority.getKey( )
+        };
+
+        return new OcrException( I18nService.getLocalizedString( OcrConstants.MESSAGE_QUEUE_TIMEOUT, messageArgs, Locale.getDefault( ) ) );
+    }
+}
@@ -34,36 +34,63 @@
 package fr.paris.lutece.plugins.ocra2ia.service;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.rendering.ImageType;
 import org.apache.pdfbox.rendering.PDFRenderer;
 import org.apache.pdfbox.tools.imageio.ImageIOUtil;
 
-import com.jacob.activeX.ActiveXComponent;
-import com.jacob.com.Dispatch;
-import com.jacob.com.SafeArray;
-import com.jacob.com.Variant;
-
+import fr.paris.lutece.plugins.ocra2ia.business.ImageBean;
+import fr.paris.lutece.plugins.ocra2ia.business.OcrMultiTypeResult;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrDeadlineExceededException;
 import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrInputRejectedException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrInterruptedException;
+import fr.paris.lutece.plugins.ocra2ia.service.buffer.PooledOutputStream;
+import fr.paris.lutece.plugins.ocra2ia.service.cache.OcrResultCache;
+import fr.paris.lutece.plugins.ocra2ia.service.engine.EngineEndpoint;
+import fr.paris.lutece.plugins.ocra2ia.service.engine.EngineEndpointPool;
+import fr.paris.lutece.plugins.ocra2ia.service.engine.EngineRequest;
+import fr.paris.lutece.plugins.ocra2ia.service.engine.EngineRequestExecutor;
+import fr.paris.lutece.plugins.ocra2ia.service.engine.IA2iaEngine;
+import fr.paris.lutece.plugins.ocra2ia.service.engine.JacobA2iaEngine;
+import fr.paris.lutece.plugins.ocra2ia.service.engine.StubA2iaEngine;
+import fr.paris.lutece.plugins.ocra2ia.service.hotfolder.OcrHotFolderDaemon;
+import fr.paris.lutece.plugins.ocra2ia.service.jfr.OcrStage;
+import fr.paris.lutece.plugins.ocra2ia.service.job.OcrJobProcessor;
+import fr.paris.lutece.plugins.ocra2ia.service.similarity.OcrSimilarityIndex;
+import fr.paris.lutece.plugins.ocra2ia.service.traffic.OcrTrafficRecord;
+import fr.paris.lutece.plugins.ocra2ia.service.traffic.OcrTrafficRecorder;
+import fr.paris.lutece.plugins.ocra2ia.service.traffic.OcrTrafficStage;
+import fr.paris.lutece.plugins.ocra2ia.service.worker.OcrWorkerProcessPool;
+import fr.paris.lutece.plugins.ocra2ia.service.worker.ProcessA2iaEngine;
 import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
 import fr.paris.lutece.plugins.ocra2ia.util.OcrResultUtils;
 import fr.paris.lutece.portal.service.i18n.I18nService;
@@ -78,142 +105,1221 @@ import fr.paris.lutece.portal.service.util.AppPropertiesService;
 public class OcrService
 {
 
+    private static final String STAGE_VALIDATION = "validation";
+    private static final String STAGE_DECODE = "decode";
+    private static final String COUNTER_ENGINE_RAW = "engine.raw";
+    private static final String COUNTER_ENGINE_PREPROCESSED = "engine.preprocessed";
+    private static final String THREAD_NAME_PREFIX_PREPARATION = "ocra2ia-prepare-";
+    private static final String [ ] DOCUMENT_TYPE_PROPERTIES = {
+        OcrConstants.PROPERTY_A2IA_DOCUMENT_RIB, OcrConstants.PROPERTY_A2IA_DOCUMENT_TAX, OcrConstants.PROPERTY_A2IA_DOCUMENT_IDENTITY
+    };
+
     /**
      * clsid active x A2IA.
      */
     private String _strClsid;
 
     /**
-     * Load DLL Jacob and _dispatchA2iAObj.
+     * Validator of the input documents.
+     */
+    private final OcrInputValidator _inputValidator = new OcrInputValidator( );
+
+    /**
+     * Preprocessing of the images.
+     */
+    private OcrImagePreprocessor _imagePreprocessor;
+
+    /**
+     * Submission of the documents to the A2ia servers.
+     */
+    private EngineRequestExecutor _engineExecutor;
+
+    /**
+     * Scheduler of the engine calls by priority class.
+     */
+    private OcrScheduler _scheduler;
+
+    /**
+     * Isolation of the document types.
+     */
+    private OcrBulkhead _bulkhead;
+
+    /**
+     * Admission control of the requests.
+     */
+    private OcrAdmissionController _admissionController;
+
+    /**
+     * Engine used : jacob, stub or process.
+     */
+    private String _strEngine;
+
+    /**
+     * Worker processes running the engine, when the engine is process.
+     */
+    private OcrWorkerProcessPool _workerProcessPool;
+
+    /**
+     * Processor of the persistent job queue, null if this node does not process the queue.
+     */
+    private OcrJobProcessor _jobProcessor;
+
+    /**
+     * Hot folder ingestion daemon, null if disabled.
+     */
+    private OcrHotFolderDaemon _hotFolderDaemon;
+
+    /**
+     * Index of the perceptual hashes of the documents recently recognized, null if disabled.
+     */
+    private OcrSimilarityIndex _similarityIndex;
+
+    /**
+     * Disk cache of the results, null if disabled.
+     */
+    private OcrResultCache _resultCache;
+
+    /**
+     * Intake of the requests, paused or drained by the operators.
+     */
+    private final OcrIntakeControl _intakeControl = new OcrIntakeControl( );
+
+    /**
+     * Choice of the DPI of the pdf renders.
+     */
+    private OcrDpiTuner _dpiTuner;
+
+    /**
+     * Recorder of the traffic, null if the traffic is not recorded.
+     */
+    private OcrTrafficRecorder _trafficRecorder;
+
+    /**
+     * Threads preparing the images of a multi-image request in parallel.
+     */
+    private ExecutorService _preparationExecutor;
+
+    /**
+     * Load DLL Jacob (or start the worker processes, for the process engine) and the A2ia servers.
      */
     @PostConstruct
     public void init( )
     {
+        init( AppPropertiesService.getProperty( OcrConstants.PROPERTY_ENGINE, OcrConstants.ENGINE_JACOB ) );
+    }
+
+    /**
+     * Initialize the service with a given engine, whatever the configured one (used by the traffic replay to run on the stub engine).
+     *
+     * @param strEngine
+     *            the engine : jacob, process or stub
+     */
+    public void init( String strEngine )
+    {
+        _strEngine = strEngine.trim( ).toLowerCase( );
+
         try
         {
-            String folder = AppPropertiesService.getProperty( OcrConstants.PROPERTY_FOLDER_DLL_JACOB );
-            // Load Jacob dll
-            System.load( folder + OcrConstants.JACOB_DLL64_FILE );
+            if ( OcrConstants.ENGINE_JACOB.equals( _strEngine ) )
+            {
+                _strClsid = JacobA2iaEngine.loadLibrary( );
+            }
+            else
+            {
+                AppLogService.info( "OCR service uses the " + _strEngine + " engine." );
+                if ( OcrConstants.ENGINE_PROCESS.equals( _strEngine ) )
+                {
+                    _workerProcessPool = new OcrWorkerProcessPool( );
+                }
+            }
+        }
+        catch( UnsatisfiedLinkError e )
+        {
+            AppLogService.error( "Native code Jacob library failed to load.\n" + e );
+        }
 
-            // Laod A2ia ActiveX component with clsid
-            _strClsid = "clsid:{" + AppPropertiesService.getProperty( OcrConstants.PROPERTY_A2IA_CLSID ) + "}";
+        _imagePreprocessor = new OcrImagePreprocessor( );
+        AtomicInteger nThreadNumber = new AtomicInteger( );
+        int nPreparationThreads = Math.max( 1, AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_MULTI_IMAGE_THREADS, 4 ) );
+        _preparationExecutor = Executors.newFixedThreadPool( nPreparationThreads, r -> {
+            Thread thread = new Thread( r, THREAD_NAME_PREFIX_PREPARATION + nThreadNumber.getAndIncrement( ) );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        _dpiTuner = new OcrDpiTuner( );
+        EngineEndpointPool endpointPool = new EngineEndpointPool( );
+        _engineExecutor = new EngineRequestExecutor( endpointPool, this::createEngine );
+        int nEngineCapacity = endpointPool.getEndpoints( ).stream( ).mapToInt( EngineEndpoint::getMaxConcurrency ).sum( );
+        _scheduler = new OcrScheduler( nEngineCapacity );
+        _bulkhead = new OcrBulkhead( nEngineCapacity, getDocumentTypes( ) );
+        _admissionController = new OcrAdmissionController( nEngineCapacity );
+
+        if ( AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_CACHE_ENABLED, false ) )
+        {
+            try
+            {
+                _resultCache = new OcrResultCache( );
+            }
+            catch( IOException | GeneralSecurityException e )
+            {
+                AppLogService.error( "OCR result cache failed to open : " + e.getMessage( ), e );
+            }
+        }
+        if ( AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_SIMILARITY_ENABLED, false ) )
+        {
+            try
+            {
+                _similarityIndex = new OcrSimilarityIndex( );
+            }
+            catch( IOException e )
+            {
+                AppLogService.error( "OCR similarity index failed to open : " + e.getMessage( ), e );
+            }
+        }
+        if ( AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_TRAFFIC_ENABLED, false ) )
+        {
+            try
+            {
+                _trafficRecorder = new OcrTrafficRecorder( );
+            }
+            catch( IOException e )
+            {
+                AppLogService.error( "OCR traffic recorder failed to start : " + e.getMessage( ), e );
+            }
+        }
+        if ( AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_JOBQUEUE_PROCESSOR_ENABLED, false ) )
+        {
+            _jobProcessor = new OcrJobProcessor( this );
+        }
+        if ( AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_HOTFOLDER_ENABLED, false ) )
+        {
+            try
+            {
+                _hotFolderDaemon = new OcrHotFolderDaemon( this );
+            }
+            catch( IOException e )
+            {
+                AppLogService.error( "OCR hot folder daemon failed to start : " + e.getMessage( ), e );
+            }
+        }
+
+        AppLogService.info( "init OCR service done." );
+    }
 
+    /**
+     * Release the resources of the service.
+     */
+    @PreDestroy
+    public void destroy( )
+    {
+        if ( _hotFolderDaemon != null )
+        {
+            _hotFolderDaemon.shutdown( );
         }
-        catch( UnsatisfiedLinkError e )
+        if ( _jobProcessor != null )
+        {
+            _jobProcessor.shutdown( );
+        }
+        if ( _preparationExecutor != null )
+        {
+            _preparationExecutor.shutdownNow( );
+        }
+        if ( _imagePreprocessor != null )
+        {
+            _imagePreprocessor.shutdown( );
+        }
+        if ( _similarityIndex != null )
+        {
+            _similarityIndex.close( );
+        }
+        if ( _resultCache != null )
+        {
+            _resultCache.close( );
+        }
+        if ( _trafficRecorder != null )
+        {
+            _trafficRecorder.close( );
+        }
+        if ( _engineExecutor != null )
+        {
+            _engineExecutor.shutdown( );
+        }
+        if ( _workerProcessPool != null )
+        {
+            _workerProcessPool.shutdown( );
+        }
+    }
+
+    /**
+     * Perform OCR with A2iA.
+     *
+     * @param bytefileContent
+     *            file to read
+     * @param strFileExtension
+     *            image extension
+     * @param strDocumentType
+     *            document type : values allowed : Rib, TaxAssessment,Identity
+     * @return Map result of OCR
+     * @throws OcrException
+     *             the OcrException
+     *
+     */
+    public Map<String, String> proceed( byte [ ] bytefileContent, String strFileExtension, String strDocumentType ) throws OcrException
+    {
+        return proceed( bytefileContent, strFileExtension, strDocumentType,
+                OcrDeadline.after( AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_DEADLINE_DEFAULT, 0L ) ) );
+    }
+
+    /**
+     * Perform OCR with A2iA within a time budget. The budget is shared by all the stages of the request : a stage is not started once it is spent and
+     * the engine timeouts are reduced to the remaining time.
+     *
+     * @param bytefileContent
+     *            file to read
+     * @param strFileExtension
+     *            image extension
+     * @param strDocumentType
+     *            document type : values allowed : Rib, TaxAssessment,Identity
+     * @param deadline
+     *            time budget of the request
+     * @return Map result of OCR
+     * @throws OcrException
+     *             the OcrException, OcrDeadlineExceededException if the budget is spent
+     *
+     */
+    public Map<String, String> proceed( byte [ ] bytefileContent, String strFileExtension, String strDocumentType, OcrDeadline deadline )
+            throws OcrException
+    {
+        return proceed( bytefileContent, strFileExtension, strDocumentType, OcrPriority.INTERACTIVE, deadline );
+    }
+
+    /**
+     * Perform OCR with A2iA within a time budget, scheduled by priority class : interactive requests are served first, bulk requests keep a minimum
+     * share of the engine.
+     *
+     * @param bytefileContent
+     *            file to read
+     * @param strFileExtension
+     *            image extension
+     * @param strDocumentType
+     *            document type : values allowed : Rib, TaxAssessment,Identity
+     * @param priority
+     *            priority class of the request
+     * @param deadline
+     *            time budget of the request
+     * @return Map result of OCR
+     * @throws OcrException
+     *             the OcrException, OcrDeadlineExceededException if the budget is spent, OcrOverloadedException if the request is shed
+     *
+     */
+    public Map<String, String> proceed( byte [ ] bytefileContent, String strFileExtension, String strDocumentType, OcrPriority priority,
+            OcrDeadline deadline ) throws OcrException
+    {
+        return proceed( bytefileContent, strFileExtension, strDocumentType, priority, deadline, null );
+    }
+
+    /**
+     * Perform OCR with A2iA, each field of the result being sent to the listener as soon as it is read from the engine.
+     *
+     * @param bytefileContent
+     *            file to read
+     * @param strFileExtension
+     *            image extension
+     * @param strDocumentType
+     *            document type : values allowed : Rib, TaxAssessment,Identity
+     * @param listener
+     *            listener of the fields of the result
+     * @return Map result of OCR
+     * @throws OcrException
+     *             the OcrException
+     */
+    public Map<String, String> proceed( byte [ ] bytefileContent, String strFileExtension, String strDocumentType, OcrResultListener listener )
+            throws OcrException
+    {
+        return proceed( bytefileContent, strFileExtension, strDocumentType, OcrPriority.INTERACTIVE,
+                OcrDeadline.after( AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_DEADLINE_DEFAULT, 0L ) ), listener );
+    }
+
+    /**
+     * Perform OCR with A2iA within a time budget, scheduled by priority class, each field of the result being sent to the listener as soon as it is
+     * read from the engine. The fields found in the result cache are sent at the completion. Once the listener is cancelled, the fields not read yet
+     * and the pdf retry are skipped, and the partial result is neither cached nor learned.
+     *
+     * @param bytefileContent
+     *            file to read
+     * @param strFileExtension
+     *            image extension
+     * @param strDocumentType
+     *            document type : values allowed : Rib, TaxAssessment,Identity
+     * @param priority
+     *            priority class of the request
+     * @param deadline
+     *            time budget of the request
+     * @param listener
+     *            listener of the fields of the result, may be null
+     * @return Map result of OCR
+     * @throws OcrException
+     *             the OcrException, OcrDeadlineExceededException if the budget is spent, OcrOverloadedException if the request is shed
+     */
+    public Map<String, String> proceed( byte [ ] bytefileContent, String strFileExtension, String strDocumentType, OcrPriority priority,
+            OcrDeadline deadline, OcrResultListener listener ) throws OcrException
+    {
+        if ( StringUtils.isEmpty( strDocumentType ) )
+        {
+            throw new OcrException( I18nService.getLocalizedString( OcrConstants.MESSAGE_PARAMETER_MANDATORY, Locale.getDefault( ) ) );
+        }
+
+        OcrResultStream stream = ( listener != null ) ? new OcrResultStream( listener ) : null;
+        Map<String, String> mapResults;
+        try
+        {
+            OcrMultiTypeResult result = proceedTypes( bytefileContent, strFileExtension, Collections.singletonList( strDocumentType ), priority,
+                    deadline, stream );
+            mapResults = result.getResults( strDocumentType );
+        }
+        catch( OcrException e )
+        {
+            if ( stream != null )
+            {
+                stream.onError( e );
+            }
+            throw e;
+        }
+        catch( RuntimeException e )
+        {
+            if ( stream != null )
+            {
+                stream.onError( new OcrException( e.getMessage( ) ) );
+            }
+            throw e;
+        }
+        if ( stream != null )
+        {
+            stream.onComplete( mapResults );
+        }
+
+        return mapResults;
+    }
+
+    /**
+     * Perform OCR with A2iA of a document whose type is not known among several document types. The document is decoded once and submitted in a single
+     * engine call : one request by document type is opened on the same channel, sharing the image prepared once for the engine.
+     *
+     * @param bytefileContent
+     *            file to read
+     * @param strFileExtension
+     *            image extension
+     * @param listDocumentTypes
+     *            candidate document types : values allowed : Rib, TaxAssessment,Identity
+     * @return result of OCR of each document type, with the best match
+     * @throws OcrException
+     *             the OcrException
+     */
+    public OcrMultiTypeResult proceed( byte [ ] bytefileContent, String strFileExtension, List<String> listDocumentTypes ) throws OcrException
+    {
+        return proceed( bytefileContent, strFileExtension, listDocumentTypes, OcrPriority.INTERACTIVE,
+                OcrDeadline.after( AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_DEADLINE_DEFAULT, 0L ) ) );
+    }
+
+    /**
+     * Perform OCR with A2iA of a document whose type is not known among several document types, within a time budget and scheduled by priority class.
+     * The document is decoded once and submitted in a single engine call : one request by document type is opened on the same channel, sharing the
+     * image prepared once for the engine. The types already in the result cache are not submitted; the similarity index and the preprocessing, which
+     * depend on the document type, are only used for a single type.
+     *
+     * @param bytefileContent
+     *            file to read
+     * @param strFileExtension
+     *            image extension
+     * @param listDocumentTypes
+     *            candidate document types : values allowed : Rib, TaxAssessment,Identity
+     * @param priority
+     *            priority class of the request
+     * @param deadline
+     *            time budget of the request
+     * @return result of OCR of each document type, with the best match
+     * @throws OcrException
+     *             the OcrException, OcrDeadlineExceededException if the budget is spent, OcrOverloadedException if the request is shed
+     */
+    public OcrMultiTypeResult proceed( byte [ ] bytefileContent, String strFileExtension, List<String> listDocumentTypes, OcrPriority priority,
+            OcrDeadline deadline ) throws OcrException
+    {
+        return proceedTypes( bytefileContent, strFileExtension, listDocumentTypes, priority, deadline, null );
+    }
+
+    /**
+     * Perform OCR with A2iA of a document for several document types.
+     *
+     * @param bytefileContent
+     *            file to read
+     * @param strFileExtension
+     *            image extension
+     * @param listDocumentTypes
+     *            candidate document types
+     * @param priority
+     *            priority class of the request
+     * @param deadline
+     *            time budget of the request
+     * @param stream
+     *            listener of the fields of the results, may be null
+     * @return result of OCR of each document type, with the best match
+     * @throws OcrException
+     *             the OcrException, OcrDeadlineExceededException if the budget is spent, OcrOverloadedException if the request is shed
+     */
+    private OcrMultiTypeResult proceedTypes( byte [ ] bytefileContent, String strFileExtension, List<String> listDocumentTypes, OcrPriority priority,
+            OcrDeadline deadline, OcrResultStream stream ) throws OcrException
+    {
+        if ( OcrConstants.ENGINE_JACOB.equals( _strEngine ) && StringUtils.isEmpty( _strClsid ) )
+        {
+            AppLogService.error( "Bad initialisation of OCR Service." );
+            throw new OcrException( OcrConstants.MESSAGE_INIT_ERROR );
+        }
+
+        if ( ArrayUtils.isEmpty( bytefileContent ) || StringUtils.isEmpty( strFileExtension ) || ( listDocumentTypes == null )
+                || listDocumentTypes.isEmpty( ) || listDocumentTypes.stream( ).anyMatch( StringUtils::isEmpty ) )
+        {
+            throw new OcrException( I18nService.getLocalizedString( OcrConstants.MESSAGE_PARAMETER_MANDATORY, Locale.getDefault( ) ) );
+
+        }
+        String [ ] tabDocumentType = listDocumentTypes.stream( ).distinct( ).toArray( String [ ]::new );
+        for ( String strDocumentType : tabDocumentType )
+        {
+            // an unknown type is refused before any work
+            getTblDocumentPath( strDocumentType );
+        }
+
+        OcrTrafficRecord record = ( _trafficRecorder != null ) ? _trafficRecorder.begin( bytefileContent, strFileExtension,
+                String.join( ",", tabDocumentType ), priority, deadline ) : OcrTrafficRecord.INACTIVE;
+        try
+        {
+            // a document already recognized is answered from the cache, without taking a slot of the admission control
+            Map<String, Map<String, String>> mapCachedResults = new HashMap<>( );
+            if ( _resultCache != null )
+            {
+                for ( String strDocumentType : tabDocumentType )
+                {
+                    Map<String, String> mapCachedResult = _resultCache.get( OcrResultCache.key( bytefileContent, strDocumentType ) );
+                    if ( mapCachedResult != null )
+                    {
+                        mapCachedResults.put( strDocumentType, mapCachedResult );
+                    }
+                }
+                record.mark( OcrTrafficStage.CACHE );
+            }
+
+            String [ ] tabUncachedDocumentType = Arrays.stream( tabDocumentType )
+                    .filter( strDocumentType -> !mapCachedResults.containsKey( strDocumentType ) ).toArray( String [ ]::new );
+            Map<String, Map<String, String>> mapOcrServiceResults = new HashMap<>( mapCachedResults );
+            if ( tabUncachedDocumentType.length == 0 )
+            {
+                OcrMetricsService.getInstance( ).mark( OcrConstants.METER_REQUESTS_COMPLETED );
+                record.setOutcome( OcrTrafficRecord.OUTCOME_CACHED );
+            }
+            else
+            {
+                Map<String, Map<String, String>> mapEngineResults = proceedThroughIntake( priority, deadline, record,
+                        ( ) -> proceedAdmitted( bytefileContent, strFileExtension, tabUncachedDocumentType, priority, deadline, record, stream ) );
+                for ( Map.Entry<String, Map<String, String>> entry : mapEngineResults.entrySet( ) )
+                {
+                    // a result cut short by the listener is partial
+                    if ( ( _resultCache != null ) && !entry.getValue( ).isEmpty( ) && !isCancelled( stream ) )
+                    {
+                        _resultCache.put( OcrResultCache.key( bytefileContent, entry.getKey( ) ), entry.getValue( ) );
+                    }
+                }
+                mapOcrServiceResults.putAll( mapEngineResults );
+            }
+
+            OcrMultiTypeResult result = new OcrMultiTypeResult( );
+            for ( String strDocumentType : tabDocumentType )
+            {
+                Map<String, String> mapResults = mapOcrServiceResults.get( strDocumentType );
+                result.addResult( strDocumentType, mapResults, OcrResultUtils.getRequiredFieldsScore( strDocumentType, mapResults ) );
+            }
+            if ( tabUncachedDocumentType.length > 0 )
+            {
+                record.setResult( result.getBestMatchResults( ) );
+            }
+
+            return result;
+        }
+        catch( OcrException e )
+        {
+            record.setFailure( e );
+            throw e;
+        }
+        finally
+        {
+            if ( record.isActive( ) )
+            {
+                _trafficRecorder.end( record );
+            }
+        }
+    }
+
+    /**
+     * Perform OCR with A2iA of a document made of several images, such as the recto and the verso of an identity card. The images are prepared in
+     * parallel and submitted in a single engine call, one request by image on the same channel, then the fields of their results are merged.
+     *
+     * @param listFileContents
+     *            file of each image of the document
+     * @param listFileExtensions
+     *            extension of each image of the document
+     * @param strDocumentType
+     *            document type : values allowed : Rib, TaxAssessment,Identity
+     * @return Map result of OCR
+     * @throws OcrException
+     *             the OcrException
+     */
+    public Map<String, String> proceed( List<byte [ ]> listFileContents, List<String> listFileExtensions, String strDocumentType ) throws OcrException
+    {
+        return proceed( listFileContents, listFileExtensions, strDocumentType, OcrPriority.INTERACTIVE,
+                OcrDeadline.after( AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_DEADLINE_DEFAULT, 0L ) ) );
+    }
+
+    /**
+     * Perform OCR with A2iA of a document made of several images, such as the recto and the verso of an identity card, within a time budget and
+     * scheduled by priority class. The images are prepared in parallel and submitted in a single engine call, one request by image on the same
+     * channel, so that the engine setup is paid once. The fields of the results are merged according to the rules of the document type
+     * (ocra2ia.merge.fields.&lt;type&gt;.&lt;image number&gt;), a field without rule coming from the first image holding it.
+     *
+     * @param listFileContents
+     *            file of each image of the document
+     * @param listFileExtensions
+     *            extension of each image of the document
+     * @param strDocumentType
+     *            document type : values allowed : Rib, TaxAssessment,Identity
+     * @param priority
+     *            priority class of the request
+     * @param deadline
+     *            time budget of the request
+     * @return Map result of OCR
+     * @throws OcrException
+     *             the OcrException, OcrDeadlineExceededException if the budget is spent, OcrOverloadedException if the request is shed
+     */
+    public Map<String, String> proceed( List<byte [ ]> listFileContents, List<String> listFileExtensions, String strDocumentType, OcrPriority priority,
+            OcrDeadline deadline ) throws OcrException
+    {
+        if ( OcrConstants.ENGINE_JACOB.equals( _strEngine ) && StringUtils.isEmpty( _strClsid ) )
+        {
+            AppLogService.error( "Bad initialisation of OCR Service." );
+            throw new OcrException( OcrConstants.MESSAGE_INIT_ERROR );
+        }
+
+        if ( ( listFileContents == null ) || listFileContents.isEmpty( ) || ( listFileExtensions == null )
+                || ( listFileExtensions.size( ) != listFileContents.size( ) ) || listFileContents.stream( ).anyMatch( ArrayUtils::isEmpty )
+                || listFileExtensions.stream( ).anyMatch( StringUtils::isEmpty ) || StringUtils.isEmpty( strDocumentType ) )
+        {
+            throw new OcrException( I18nService.getLocalizedString( OcrConstants.MESSAGE_PARAMETER_MANDATORY, Locale.getDefault( ) ) );
+
+        }
+        // an unknown type is refused before any work
+        getTblDocumentPath( strDocumentType );
+
+        // a document already recognized is answered from the cache, without taking a slot of the admission control
+        byte [ ] cacheKey = ( _resultCache != null ) ? OcrResultCache.key( listFileContents, strDocumentType ) : null;
+        if ( cacheKey != null )
+        {
+            Map<String, String> mapCachedResult = _resultCache.get( cacheKey );
+            if ( mapCachedResult != null )
+            {
+                OcrMetricsService.getInstance( ).mark( OcrConstants.METER_REQUESTS_COMPLETED );
+                return mapCachedResult;
+            }
+        }
+
+        // the traffic recorder replays single file requests, a multi-image request is not recorded
+        Map<String, String> mapOcrServiceResults = proceedThroughIntake( priority, deadline, OcrTrafficRecord.INACTIVE,
+                ( ) -> proceedAdmittedImages( listFileContents, listFileExtensions, strDocumentType, priority, deadline ) );
+        if ( ( cacheKey != null ) && !mapOcrServiceResults.isEmpty( ) )
+        {
+            _resultCache.put( cacheKey, mapOcrServiceResults );
+        }
+
+        return mapOcrServiceResults;
+    }
+
+    /**
+     * Perform OCR of a request through the intake control.
+     *
+     * @param priority
+     *            priority class of the request
+     * @param deadline
+     *            time budget of the request
+     * @param record
+     *            traffic record of the request
+     * @param request
+     *            the processing of the request once admitted
+     * @param <T>
+     *            type of the result
+     * @return result of OCR
+     * @throws OcrException
+     *             the OcrException
+     */
+    private <T> T proceedThroughIntake( OcrPriority priority, OcrDeadline deadline, OcrTrafficRecord record, AdmittedRequest<T> request )
+            throws OcrException
+    {
+        _intakeControl.enter( deadline );
+        record.mark( OcrTrafficStage.INTAKE );
+        try
+        {
+            T result = proceedThroughAdmission( priority, record, request );
+            OcrMetricsService.getInstance( ).mark( OcrConstants.METER_REQUESTS_COMPLETED );
+
+            return result;
+        }
+        catch( OcrException e )
+        {
+            OcrMetricsService.getInstance( ).mark( OcrConstants.METER_REQUESTS_FAILED );
+            throw e;
+        }
+        finally
+        {
+            _intakeControl.leave( );
+        }
+    }
+
+    /**
+     * Perform OCR of a request under the admission control.
+     *
+     * @param priority
+     *            priority class of the request
+     * @param record
+     *            traffic record of the request
+     * @param request
+     *            the processing of the request once admitted
+     * @param <T>
+     *            type of the result
+     * @return result of OCR
+     * @throws OcrException
+     *             the OcrException, OcrOverloadedException if the request is shed
+     */
+    private <T> T proceedThroughAdmission( OcrPriority priority, OcrTrafficRecord record, AdmittedRequest<T> request ) throws OcrException
+    {
+        _admissionController.acquire( priority );
+        record.mark( OcrTrafficStage.ADMISSION );
+        long lStart = System.currentTimeMillis( );
+        boolean bDropped = false;
+        try
+        {
+            return request.proceed( );
+        }
+        catch( OcrDeadlineExceededException e )
+        {
+            bDropped = true;
+            throw e;
+        }
+        finally
+        {
+            _admissionController.release( priority, System.currentTimeMillis( ) - lStart, bDropped );
+        }
+    }
+
+    /**
+     * Perform OCR of an admitted request.
+     *
+     * @param bytefileContent
+     *            file to read
+     * @param strFileExtension
+     *            image extension
+     * @param tabDocumentType
+     *            document types
+     * @param priority
+     *            priority class of the request
+     * @param deadline
+     *            time budget of the request
+     * @param record
+     *            traffic record of the request
+     * @param stream
+     *            listener of the fields of the results, may be null
+     * @return Map result of OCR of each document type
+     * @throws OcrException
+     *             the OcrException
+     */
+    private Map<String, Map<String, String>> proceedAdmitted( byte [ ] bytefileContent, String strFileExtension, String [ ] tabDocumentType,
+            OcrPriority priority, OcrDeadline deadline, OcrTrafficRecord record, OcrResultStream stream ) throws OcrException
+    {
+        // reject bad documents before any expensive work
+        deadline.check( STAGE_VALIDATION );
+        String strValidExtension = _inputValidator.validate( bytefileContent, strFileExtension );
+        record.mark( OcrTrafficStage.VALIDATION );
+
+        deadline.check( STAGE_DECODE );
+        ImageBean imageBean = setValueImageExtensionAndContent( strValidExtension, bytefileContent, getRenderDocumentType( tabDocumentType ), deadline );
+        record.mark( OcrTrafficStage.DECODE );
+        record.setPageCount( imageBean.getPageCount( ) );
+        try
+        {
+            return proceedImage( imageBean, bytefileContent, strValidExtension, tabDocumentType, priority, deadline, record, stream );
+        }
+        finally
+        {
+            // the pooled arrays of the image go back to the pool, unless an engine attempt still holds them
+            imageBean.release( );
+        }
+    }
+
+    /**
+     * Perform OCR of an admitted multi-image request. The first image is prepared by the calling thread, the others by the preparation threads.
+     *
+     * @param listFileContents
+     *            file of each image of the document
+     * @param listFileExtensions
+     *            extension of each image of the document
+     * @param strDocumentType
+     *            document type
+     * @param priority
+     *            priority class of the request
+     * @param deadline
+     *            time budget of the request
+     * @return Map result of OCR
+     * @throws OcrException
+     *             the OcrException
+     */
+    private Map<String, String> proceedAdmittedImages( List<byte [ ]> listFileContents, List<String> listFileExtensions, String strDocumentType,
+            OcrPriority priority, OcrDeadline deadline ) throws OcrException
+    {
+        List<Future<ImageBean>> listFutures = new ArrayList<>( );
+        for ( int i = 1; i < listFileContents.size( ); i++ )
+        {
+            byte [ ] bytefileContent = listFileContents.get( i );
+            String strFileExtension = listFileExtensions.get( i );
+            listFutures.add( _preparationExecutor.submit( ( ) -> prepareImage( bytefileContent, strFileExtension, strDocumentType, deadline ) ) );
+        }
+
+        List<ImageBean> listImages = new ArrayList<>( );
+        try
+        {
+            OcrException exception = null;
+            try
+            {
+                listImages.add( prepareImage( listFileContents.get( 0 ), listFileExtensions.get( 0 ), strDocumentType, deadline ) );
+            }
+            catch( OcrException e )
+            {
+                exception = e;
+            }
+            // every preparation is awaited, so that no image is left unreleased : after an interruption the preparations not started yet are
+            // cancelled, the running ones are still awaited
+            boolean bInterrupted = false;
+            for ( Future<ImageBean> future : listFutures )
+            {
+                if ( bInterrupted && future.cancel( false ) )
+                {
+                    continue;
+                }
+                while ( true )
+                {
+                    try
+                    {
+                        listImages.add( future.get( ) );
+                        break;
+                    }
+                    catch( ExecutionException e )
+                    {
+                        if ( exception == null )
+                        {
+                            exception = ( e.getCause( ) instanceof OcrException ) ? (OcrException) e.getCause( )
+                                    : new OcrException( e.getCause( ).getMessage( ) );
+                        }
+                        break;
+                    }
+                    catch( InterruptedException e )
+                    {
+                        bInterrupted = true;
+                        if ( future.cancel( false ) )
+                        {
+                            break;
+                        }
+                    }
+                }
+            }
+            if ( bInterrupted )
+            {
+                throw new OcrInterruptedException( "OCR request interrupted while its images were prepared." );
+            }
+            if ( exception != null )
+            {
+                throw exception;
+            }
+
+            return proceedImages( listImages, strDocumentType, priority, deadline );
+        }
+        finally
+        {
+            listImages.forEach( ImageBean::release );
+        }
+    }
+
+    /**
+     * Validate, decode and preprocess an image of a multi-image request.
+     *
+     * @param bytefileContent
+     *            file to read
+     * @param strFileExtension
+     *            image extension
+     * @param strDocumentType
+     *            document type
+     * @param deadline
+     *            time budget of the request
+     * @return the prepared image
+     * @throws OcrException
+     *             the OcrException
+     */
+    private ImageBean prepareImage( byte [ ] bytefileContent, String strFileExtension, String strDocumentType, OcrDeadline deadline ) throws OcrException
+    {
+        deadline.check( STAGE_VALIDATION );
+        String strValidExtension = _inputValidator.validate( bytefileContent, strFileExtension );
+
+        deadline.check( STAGE_DECODE );
+        ImageBean imageBean = setValueImageExtensionAndContent( strValidExtension, bytefileContent, strDocumentType, deadline );
+        // preprocessing is optional, it is skipped rather than failing the request when the budget is spent
+        if ( !OcrConstants.EXTENSION_FILE_PDF.equalsIgnoreCase( strValidExtension ) && !deadline.isExpired( ) )
+        {
+            _imagePreprocessor.preprocess( imageBean, strDocumentType );
+        }
+
+        return imageBean;
+    }
+
+    /**
+     * Perform OCR of the prepared images of a document, one request by image on the same channel, and merge their results. The requests have no
+     * result stream : the fields of a multi-image document are only known once merged, and the document is not recorded by the traffic recorder.
+     *
+     * @param listImages
+     *            the prepared images, in order
+     * @param strDocumentType
+     *            document type
+     * @param priority
+     *            priority class of the request
+     * @param deadline
+     *            time budget of the request
+     * @return Map result of OCR
+     * @throws OcrException
+     *             the OcrException
+     */
+    private Map<String, String> proceedImages( List<ImageBean> listImages, String strDocumentType, OcrPriority priority, OcrDeadline deadline )
+            throws OcrException
+    {
+        String strModeOcr = AppPropertiesService.getProperty( OcrConstants.PROPERTY_A2IA_MODE_OCR, OcrConstants.OCR_MODE_MEMORY );
+        String strTblDocumentPath = getTblDocumentPath( strDocumentType );
+        List<EngineRequest> listRequests = new ArrayList<>( );
+        for ( ImageBean imageBean : listImages )
+        {
+            if ( OcrConstants.OCR_MODE_FILE.equalsIgnoreCase( strModeOcr ) )
+            {
+                writeImageFile( imageBean );
+            }
+            listRequests.add( new EngineRequest( strDocumentType, strTblDocumentPath, imageBean ) );
+        }
+
+        long lStartEngine = System.currentTimeMillis( );
+        List<Map<String, String>> listResults = performOcr( listRequests, strModeOcr, priority, deadline );
+        OcrMetricsService.getInstance( ).recordTime( COUNTER_ENGINE_RAW, System.currentTimeMillis( ) - lStartEngine );
+
+        for ( Map<String, String> mapResults : listResults )
+        {
+            mapResults.values( ).removeIf( StringUtils::isBlank );
+        }
+        Map<String, String> mapOcrServiceResults = mergeResults( strDocumentType, listResults );
+
+        String strCounterPrefix = OcrConstants.COUNTER_DOCUMENT_PREFIX + strDocumentType.toLowerCase( );
+        OcrMetricsService.getInstance( ).increment( strCounterPrefix + OcrConstants.COUNTER_DOCUMENT_PROCESSED );
+        if ( mapOcrServiceResults.isEmpty( ) )
+        {
+            OcrMetricsService.getInstance( ).increment( strCounterPrefix + OcrConstants.COUNTER_DOCUMENT_EMPTY );
+        }
+
+        return mapOcrServiceResults;
+    }
+
+    /**
+     * Merge the results of the images of a document : the fields listed for an image by the rules of the document type are taken from it first, the
+     * other fields from the first image holding them.
+     *
+     * @param strDocumentType
+     *            document type
+     * @param listResults
+     *            result of each image, in order
+     * @return the merged result
+     */
+    static Map<String, String> mergeResults( String strDocumentType, List<Map<String, String>> listResults )
+    {
+        Map<String, String> mapMergedResults = new HashMap<>( );
+        for ( int i = 0; i < listResults.size( ); i++ )
+        {
+            String strFields = AppPropertiesService
+                    .getProperty( OcrConstants.PROPERTY_MERGE_FIELDS_PREFIX + strDocumentType.toLowerCase( ) + "." + ( i + 1 ) );
+            if ( StringUtils.isNotBlank( strFields ) )
+            {
+                for ( String strField : strFields.split( "," ) )
+                {
+                    String strValue = listResults.get( i ).get( strField.trim( ) );
+                    if ( strValue != null )
+                    {
+                        mapMergedResults.putIfAbsent( strField.trim( ), strValue );
+                    }
+                }
+            }
+        }
+        for ( Map<String, String> mapResults : listResults )
+        {
+            mapResults.forEach( mapMergedResults::putIfAbsent );
+        }
+
+        return mapMergedResults;
+    }
+
+    /**
+     * Get the document type whose render DPI is used for a pdf shared by several document types : the one of highest DPI, so that each type gets at
+     * least the resolution it needs.
+     *
+     * @param tabDocumentType
+     *            document types
+     * @return the document type
+     */
+    private String getRenderDocumentType( String [ ] tabDocumentType )
+    {
+        String strRenderDocumentType = tabDocumentType [0];
+        for ( int i = 1; i < tabDocumentType.length; i++ )
         {
-            AppLogService.error( "Native code Jacob library failed to load.\n" + e );
+            if ( _dpiTuner.getDecision( tabDocumentType [i] ) > _dpiTuner.getDecision( strRenderDocumentType ) )
+            {
+                strRenderDocumentType = tabDocumentType [i];
+            }
         }
 
-        AppLogService.info( "init OCR service done." );
+        return strRenderDocumentType;
     }
 
     /**
-     * Perform OCR with A2iA.
+     * Perform OCR of a decoded image.
      *
+     * @param imageBean
+     *            the decoded image
      * @param bytefileContent
      *            file to read
-     * @param strFileExtension
-     *            image extension
-     * @param strDocumentType
-     *            document type : values allowed : Rib, TaxAssessment,Identity
-     * @return Map result of OCR
+     * @param strValidExtension
+     *            validated extension of the file
+     * @param tabDocumentType
+     *            document types
+     * @param priority
+     *            priority class of the request
+     * @param deadline
+     *            time budget of the request
+     * @param record
+     *            traffic record of the request
+     * @param stream
+     *            listener of the fields of the results, may be null
+     * @return Map result of OCR of each document type
      * @throws OcrException
      *             the OcrException
-     *
      */
-    public synchronized Map<String, String> proceed( byte [ ] bytefileContent, String strFileExtension, String strDocumentType ) throws OcrException
+    private Map<String, Map<String, String>> proceedImage( ImageBean imageBean, byte [ ] bytefileContent, String strValidExtension,
+            String [ ] tabDocumentType, OcrPriority priority, OcrDeadline deadline, OcrTrafficRecord record, OcrResultStream stream ) throws OcrException
     {
-        /**
-         * Jacob Object to wrap A2ia component.
-         */
-        // Init COM A2IA COM Object
-        ActiveXComponent comp = new ActiveXComponent( _strClsid );
-        Dispatch _dispatchA2iAObj = comp.getObject( );
+        // the similarity index and the preprocessing depend on the document type
+        String strDocumentType = ( tabDocumentType.length == 1 ) ? tabDocumentType [0] : null;
 
-        if ( StringUtils.isEmpty( _strClsid ) )
+        // the result will be compared with the result of a recent scan of the same document
+        Long lHash = null;
+        if ( ( _similarityIndex != null ) && ( strDocumentType != null ) )
         {
-            AppLogService.error( "Bad initialisation of OCR Service." );
-            throw new OcrException( OcrConstants.MESSAGE_INIT_ERROR );
+            lHash = _similarityIndex.hash( imageBean );
+            if ( lHash != null )
+            {
+                record.mark( OcrTrafficStage.SIMILARITY );
+            }
         }
 
-        if ( ArrayUtils.isEmpty( bytefileContent ) || StringUtils.isEmpty( strFileExtension ) || StringUtils.isEmpty( strDocumentType ) )
+        // preprocessing is optional, it is skipped rather than failing the request when the budget is spent
+        if ( !OcrConstants.EXTENSION_FILE_PDF.equalsIgnoreCase( strValidExtension ) && ( strDocumentType != null ) && !deadline.isExpired( ) )
         {
-            throw new OcrException( I18nService.getLocalizedString( OcrConstants.MESSAGE_PARAMETER_MANDATORY, Locale.getDefault( ) ) );
-
+            _imagePreprocessor.preprocess( imageBean, strDocumentType );
+            record.mark( OcrTrafficStage.PREPROCESS );
         }
 
-        ImageBean imageBean = setValueImageExtensionAndContent( strFileExtension, bytefileContent );
         String strModeOcr = AppPropertiesService.getProperty( OcrConstants.PROPERTY_A2IA_MODE_OCR, OcrConstants.OCR_MODE_MEMORY );
         if ( OcrConstants.OCR_MODE_FILE.equalsIgnoreCase( strModeOcr ) )
         {
             writeImageFile( imageBean );
         }
 
-        Map<String, String> mapOcrServiceResults = performOcr( _dispatchA2iAObj, imageBean, strDocumentType, strModeOcr );
+        long lStartEngine = System.currentTimeMillis( );
+        Map<String, Map<String, String>> mapOcrServiceResults = performOcr( imageBean, tabDocumentType, strModeOcr, priority, deadline, stream );
+        record.mark( OcrTrafficStage.ENGINE );
+        // a result cut short by the listener is partial : it is not learned and not retried
+        boolean bCancelled = isCancelled( stream );
+        long lEngineTime = System.currentTimeMillis( ) - lStartEngine;
+        OcrMetricsService.getInstance( ).recordTime( imageBean.isPreprocessed( ) ? COUNTER_ENGINE_PREPROCESSED : COUNTER_ENGINE_RAW, lEngineTime );
 
-        mapOcrServiceResults.values( ).removeIf( StringUtils::isBlank );
-        boolean bRetry = AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_PDF_IMAGE_RETRY, false ) && mapOcrServiceResults.isEmpty( )
-                && OcrConstants.EXTENSION_FILE_PDF.equalsIgnoreCase( strFileExtension );
+        boolean bEmpty = true;
+        for ( Map.Entry<String, Map<String, String>> entry : mapOcrServiceResults.entrySet( ) )
+        {
+            entry.getValue( ).values( ).removeIf( StringUtils::isBlank );
+            if ( OcrConstants.EXTENSION_FILE_PDF.equalsIgnoreCase( strValidExtension ) && ( imageBean.getDpi( ) > 0 ) && !bCancelled )
+            {
+                _dpiTuner.record( entry.getKey( ), imageBean.getDpi( ), entry.getValue( ), imageBean.getRenderTime( ) + lEngineTime );
+            }
+            bEmpty = bEmpty && entry.getValue( ).isEmpty( );
+        }
+        boolean bRetry = AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_PDF_IMAGE_RETRY, false ) && bEmpty
+                && OcrConstants.EXTENSION_FILE_PDF.equalsIgnoreCase( strValidExtension ) && !deadline.isExpired( ) && !bCancelled;
         if ( bRetry )
         {
             AppLogService.info( "the retry mechanism will be launched" );
+            ImageBean retryImageBean = new ImageBean( );
+            OcrStage stageRetry = OcrStage.begin( OcrStage.PDF_RETRY, String.join( ",", tabDocumentType ), bytefileContent.length,
+                    OcrConstants.PDF_OPTIMAL_DPI );
             try
             {
-                ImageBean retryImageBean = new ImageBean( );
-                retryImageBean.setContent( transformPdfToImage( bytefileContent, OcrConstants.EXTENSION_FILE_JPEG, true ) );
+                transformPdfToImage( bytefileContent, OcrConstants.EXTENSION_FILE_JPEG, true, retryImageBean, tabDocumentType [0], deadline );
                 retryImageBean.setExtension( OcrConstants.EXTENSION_FILE_JPEG );
                 if ( OcrConstants.OCR_MODE_FILE.equalsIgnoreCase( strModeOcr ) )
                 {
                     writeImageFile( retryImageBean );
                 }
-                mapOcrServiceResults = performOcr( _dispatchA2iAObj, retryImageBean, strDocumentType, strModeOcr );
+                mapOcrServiceResults = performOcr( retryImageBean, tabDocumentType, strModeOcr, priority, deadline, stream );
+                bEmpty = mapOcrServiceResults.values( ).stream( ).allMatch( Map::isEmpty );
+                stageRetry.setOutcome( bEmpty ? OcrStage.OUTCOME_EMPTY : OcrStage.OUTCOME_SUCCESS );
             }
             catch( IOException e )
             {
                 AppLogService.error( e.getMessage( ) );
             }
+            finally
+            {
+                stageRetry.end( );
+                record.mark( OcrTrafficStage.RETRY );
+                retryImageBean.release( );
+            }
+
+        }
+
+        for ( Map.Entry<String, Map<String, String>> entry : mapOcrServiceResults.entrySet( ) )
+        {
+            String strCounterPrefix = OcrConstants.COUNTER_DOCUMENT_PREFIX + entry.getKey( ).toLowerCase( );
+            OcrMetricsService.getInstance( ).increment( strCounterPrefix + OcrConstants.COUNTER_DOCUMENT_PROCESSED );
+            if ( bRetry )
+            {
+                OcrMetricsService.getInstance( ).increment( strCounterPrefix + OcrConstants.COUNTER_DOCUMENT_RETRIED );
+            }
+            if ( entry.getValue( ).isEmpty( ) )
+            {
+                OcrMetricsService.getInstance( ).increment( strCounterPrefix + OcrConstants.COUNTER_DOCUMENT_EMPTY );
+            }
+        }
 
+        if ( lHash != null )
+        {
+            Map<String, String> mapResults = mapOcrServiceResults.get( strDocumentType );
+            if ( !mapResults.isEmpty( ) && !isCancelled( stream ) )
+            {
+                _similarityIndex.compareAndAdd( strDocumentType, lHash, mapResults );
+            }
         }
 
         return mapOcrServiceResults;
     }
 
     /**
-     * Launch OCR and get results.
+     * Launch OCR of an image for several document types and get results.
      *
-     * @param dispatchA2iAObj
-     *            dispatchA2iAObj
      * @param imageBean
      *            imageBean object
-     * @param strDocumentType
-     *            document type
+     * @param tabDocumentType
+     *            document types
      * @param strModeOcr
      *            ocr mode
-     * @return Map result of OCR
+     * @param priority
+     *            priority class of the request
+     * @param deadline
+     *            time budget of the request
+     * @param stream
+     *            listener of the fields of the results, may be null
+     * @return Map result of OCR of each document type
      * @throws OcrException
      *             the OcrException
      */
-    private Map<String, String> performOcr( Dispatch dispatchA2iAObj, ImageBean imageBean, String strDocumentType, String strModeOcr ) throws OcrException
+    private Map<String, Map<String, String>> performOcr( ImageBean imageBean, String [ ] tabDocumentType, String strModeOcr, OcrPriority priority,
+            OcrDeadline deadline, OcrResultStream stream ) throws OcrException
     {
+        List<EngineRequest> listRequests = new ArrayList<>( );
+        for ( String strDocumentType : tabDocumentType )
+        {
+            listRequests.add( new EngineRequest( strDocumentType, getTblDocumentPath( strDocumentType ), imageBean, stream ) );
+        }
+        List<Map<String, String>> listResults = performOcr( listRequests, strModeOcr, priority, deadline );
+        Map<String, Map<String, String>> mapOcrServiceResults = new LinkedHashMap<>( );
+        for ( int i = 0; i < tabDocumentType.length; i++ )
+        {
+            mapOcrServiceResults.put( tabDocumentType [i], listResults.get( i ) );
+        }
+
+        return mapOcrServiceResults;
+    }
 
-        Variant variantChannelId = null;
-        Variant variantRequestId = null;
+    /**
+     * Launch OCR and get results.
+     *
+     * @param listRequests
+     *            requests of the document
+     * @param strModeOcr
+     *            ocr mode
+     * @param priority
+     *            priority class of the request
+     * @param deadline
+     *            time budget of the request
+     * @return Map result of OCR of each request
+     * @throws OcrException
+     *             the OcrException
+     */
+    private List<Map<String, String>> performOcr( List<EngineRequest> listRequests, String strModeOcr, OcrPriority priority, OcrDeadline deadline )
+            throws OcrException
+    {
 
-        Map<String, String> mapOcrServiceResults = new HashMap<>( );
+        List<Map<String, String>> listOcrServiceResults = new ArrayList<>( );
+        // the compartments are taken in the same order by all the requests, so that two multi-type requests never wait for each other
+        String [ ] tabBulkheadDocumentType = listRequests.stream( ).map( EngineRequest::getDocumentType ).distinct( ).sorted( )
+                .toArray( String [ ]::new );
+        int nAcquired = 0;
+        boolean bEngineCalled = false;
 
         try
         {
-            AppLogService.info( "openChannelA2ia begin" );
-            variantChannelId = openChannelA2ia( dispatchA2iAObj );
-            AppLogService.info( "openChannelA2ia end" );
-            variantRequestId = openRequestA2ia( imageBean, strDocumentType, new Long( variantChannelId.toString( ) ), dispatchA2iAObj, strModeOcr );
-            AppLogService.info( "openRequestA2ia end" );
-            // run A2IA OCR engine to get result
-            AppLogService.info( "Call a2ia engine begin" );
-            Variant variantResultId = Dispatch.call( dispatchA2iAObj, "ScrGetResult", variantChannelId, variantRequestId, 60000L );
-            mapOcrServiceResults = OcrResultUtils.getOcrResults( strDocumentType, dispatchA2iAObj, variantResultId );
-            AppLogService.info( "Call a2ia engine end" );
-
+            // the circuit breaker first, so that the requests fail fast instead of queueing while the circuit is open
+            _engineExecutor.acquirePermission( );
+            try
+            {
+                // the bulkhead of the document type first, so that a saturated type waits without holding an engine slot
+                for ( ; nAcquired < tabBulkheadDocumentType.length; nAcquired++ )
+                {
+                    _bulkhead.acquire( tabBulkheadDocumentType [nAcquired], deadline );
+                }
+                _scheduler.acquire( priority, deadline );
+                try
+                {
+                    bEngineCalled = true;
+                    listOcrServiceResults = _engineExecutor.execute( listRequests, strModeOcr, deadline );
+                }
+                finally
+                {
+                    _scheduler.release( priority );
+                }
+            }
+            finally
+            {
+                if ( !bEngineCalled )
+                {
+                    _engineExecutor.releasePermission( );
+                }
+            }
+        }
+        catch( OcrException e )
+        {
+            // keep the type of the exception (deadline, open circuit...) for the caller
+            AppLogService.error( e.getMessage( ), e );
+            throw e;
         }
         catch( Exception e )
         {
@@ -222,108 +1328,61 @@ public class OcrService
         }
         finally
         {
-            if ( variantRequestId != null )
-            {
-                Dispatch.call( dispatchA2iAObj, "ScrCloseRequest", new Long( variantRequestId.toString( ) ) );
-            }
-            if ( variantChannelId != null )
+            for ( int i = 0; i < nAcquired; i++ )
             {
-                Dispatch.call( dispatchA2iAObj, "ScrCloseChannel", new Long( variantChannelId.toString( ) ) );
+                _bulkhead.release( tabBulkheadDocumentType [i] );
             }
-
             if ( OcrConstants.OCR_MODE_FILE.equalsIgnoreCase( strModeOcr ) )
             {
-                // delete tempory file.
-                try
-                {
-                    Files.delete( Paths.get( imageBean.getImagePath( ) ) );
-                    AppLogService.info( "Delete file : " + imageBean.getImagePath( ) + " done." );
-                }
-                catch( IOException e )
+                // delete tempory files.
+                for ( String strImagePath : listRequests.stream( ).map( request -> request.getImageBean( ).getImagePath( ) ).distinct( )
+                        .toArray( String [ ]::new ) )
                 {
-                    throw new OcrException( e.getMessage( ) );
+                    try
+                    {
+                        Files.delete( Paths.get( strImagePath ) );
+                        AppLogService.info( "Delete file : " + strImagePath + " done." );
+                    }
+                    catch( IOException e )
+                    {
+                        throw new OcrException( e.getMessage( ) );
+                    }
                 }
             }
 
         }
 
-        return mapOcrServiceResults;
+        return listOcrServiceResults;
 
     }
 
     /**
-     * Open a channel communication with A2ia.
-     * 
-     * @param _dispatchA2iAObj
-     *
-     * @return id of the channel
+     * @param stream
+     *            listener of the fields of the results, may be null
+     * @return true if the listener is cancelled
      */
-    private Variant openChannelA2ia( Dispatch _dispatchA2iAObj )
+    private static boolean isCancelled( OcrResultStream stream )
     {
-
-        Dispatch.call( _dispatchA2iAObj, "ScrInit", "" );
-
-        // Init Param
-        Variant variantResChannelParamId = Dispatch.call( _dispatchA2iAObj, "ScrCreateChannelParam" );
-        Dispatch.call( _dispatchA2iAObj, OcrConstants.SET_PROPERTY_A2IA, new Long( variantResChannelParamId.toString( ) ), "cpu[1].cpuServer",
-                AppPropertiesService.getProperty( OcrConstants.PROPERTY_A2IA_SERVER_HOST, "" ) );
-        Dispatch.call( _dispatchA2iAObj, OcrConstants.SET_PROPERTY_A2IA, new Long( variantResChannelParamId.toString( ) ), "cpu[1].portServer",
-                AppPropertiesService.getProperty( OcrConstants.PROPERTY_A2IA_SERVER_PORT, "" ) );
-        Dispatch.call( _dispatchA2iAObj, OcrConstants.SET_PROPERTY_A2IA, new Long( variantResChannelParamId.toString( ) ), "cpu[1].paramdir",
-                AppPropertiesService.getProperty( OcrConstants.PROPERTY_A2IA_PARAM_DIR ) );
-
-        // Open channel
-        Variant variantResChannelId = Dispatch.call( _dispatchA2iAObj, "ScrOpenChannelExt", new Long( variantResChannelParamId.toString( ) ), 10000L );
-
-        return variantResChannelId;
+        return ( stream != null ) && stream.isCancelled( );
     }
 
     /**
-     * Open a request with A2ia.
+     * Create the object to call the A2ia engine.
      *
-     * @param imageBean
-     *            imageBean object
-     * @param strFileExtension
-     *            image extension
-     * @param strDocumentType
-     *            document type
-     * @param lChannelId
-     *            id of the channel communication
-     * @param _dispatchA2iAObj
-     * @return id of the request
-     * @throws OcrException
-     *             the OcrException
+     * @return the engine
      */
-    private Variant openRequestA2ia( ImageBean imageBean, String strDocumentType, Long lChannelId, Dispatch _dispatchA2iAObj, String strModeOcr )
-            throws OcrException
+    private IA2iaEngine createEngine( )
     {
-
-        // Open Tbl doc
-        Variant variantTblId = Dispatch.call( _dispatchA2iAObj, "ScrOpenDocumentTable", getTblDocumentPath( strDocumentType ) );
-        Variant variantDefaultDocId = Dispatch.call( _dispatchA2iAObj, "ScrGetDefaultDocument", new Long( variantTblId.toString( ) ) );
-
-        // Following Image Parameters required to be set correctly
-        Dispatch.call( _dispatchA2iAObj, OcrConstants.SET_PROPERTY_A2IA, variantDefaultDocId, "image.inputFormat", imageBean.getExtension( ) );
-
-        if ( OcrConstants.OCR_MODE_FILE.equalsIgnoreCase( strModeOcr ) )
+        if ( OcrConstants.ENGINE_STUB.equals( _strEngine ) )
         {
-            // File : image file write on disk
-            Dispatch.call( _dispatchA2iAObj, "SetProperty", variantDefaultDocId, "image.imageSourceType", OcrConstants.OCR_MODE_FILE );
-            Dispatch.call( _dispatchA2iAObj, "SetProperty", variantDefaultDocId, "image.imageSourceTypeInfo.CaseFile.fileName", imageBean.getImagePath( ) );
-
+            return new StubA2iaEngine( );
         }
-        else
+        if ( OcrConstants.ENGINE_PROCESS.equals( _strEngine ) )
         {
-            Dispatch.call( _dispatchA2iAObj, OcrConstants.SET_PROPERTY_A2IA, variantDefaultDocId, "image.imageSourceType", OcrConstants.OCR_MODE_MEMORY );
-            // Then Set the buffer to the corresponding A2iA imageBuffer
-            Dispatch.call( _dispatchA2iAObj, "ScrSetBuffer", variantDefaultDocId, "image.imageSourceTypeInfo.CaseMemory.buffer",
-                    trasformImagetoJacobOject( imageBean.getContent( ) ) ); // from memory
+            return new ProcessA2iaEngine( _workerProcessPool );
         }
 
-        // Open Request
-        Variant variantReqId = Dispatch.call( _dispatchA2iAObj, "ScrOpenRequest", lChannelId, new Long( variantDefaultDocId.toString( ) ) );
-
-        return variantReqId;
+        return new JacobA2iaEngine( _strClsid );
     }
 
     /**
@@ -345,7 +1404,10 @@ public class OcrService
 
         try
         {
-            Files.write( pathFile, imageBean.getContent( ) );
+            try ( OutputStream outputStream = Files.newOutputStream( pathFile ) )
+            {
+                outputStream.write( imageBean.getContent( ), 0, imageBean.getContentLength( ) );
+            }
             imageBean.setImagePath( pathFile.toString( ) );
         }
         catch( IOException e )
@@ -358,92 +1420,23 @@ public class OcrService
     }
 
     /**
-     * Transform each byte of the image to Jacob Variant.
+     * Get the document types configured.
      *
-     * @param byteImageContent
-     *            image to process
-     * @return image representation in variant.
-     * @throws OcrException
-     *             the OcrException
+     * @return the document types
      */
-    private Variant trasformImagetoJacobOject( byte [ ] byteImageContent ) throws OcrException
+    public static List<String> getDocumentTypes( )
     {
-        AppLogService.info( "trasformImagetoJacobOject Start - byteImageContent length : " + byteImageContent.length );
-        Variant variantImageObjects = new Variant( );
-
-        SafeArray safearray = new SafeArray( Variant.VariantVariant, byteImageContent.length );
-        // nNumberOfByte : number of byte processed by a single thread.
-        int nNumberOfByte = AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_NUMBER_OF_BYTE_BY_THREAD, byteImageContent.length );
-        // nNumberOfThread : number of thread to perform the image transformation.
-        int nNumberOfThread = ( ( nNumberOfByte > 1 ) && ( nNumberOfByte < byteImageContent.length ) ) ? byteImageContent.length / nNumberOfByte : 1;
-
-        Runnable [ ] tabRunnableTask = new Runnable [ nNumberOfThread];
-        ExecutorService executorService = Executors.newFixedThreadPool( nNumberOfThread );
-        int nCurrentThreadPosition = 0;
-        while ( nCurrentThreadPosition < nNumberOfThread )
-        {
-            int nStart = nCurrentThreadPosition * nNumberOfByte;
-            int nEnd = ( nCurrentThreadPosition + 1 ) < nNumberOfThread ? ( nCurrentThreadPosition + 1 ) * nNumberOfByte : byteImageContent.length;
-            tabRunnableTask [nCurrentThreadPosition] = createRunnableTask( byteImageContent, safearray, nStart, nEnd );
-            nCurrentThreadPosition++;
-        }
-
-        // process image transformation
-        for ( int i = 0; i < nNumberOfThread; i++ )
-        {
-            executorService.submit( tabRunnableTask [i] );
-        }
-        executorService.shutdown( );
-
-        boolean bExecutionComplet = false;
-        try
-        {
-            bExecutionComplet = executorService.awaitTermination( AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_MAX_TIME_TO_PROCESS_IMAGE, 5 ),
-                    TimeUnit.SECONDS );
-        }
-        catch( InterruptedException e )
-        {
-            AppLogService.error( e.getMessage( ), e );
-        }
-        finally
+        List<String> listDocumentTypes = new ArrayList<>( );
+        for ( String strProperty : DOCUMENT_TYPE_PROPERTIES )
         {
-            if ( bExecutionComplet )
-            {
-                variantImageObjects.putSafeArray( safearray );
-                AppLogService.info( "trasformImagetoJacobOject Complet" );
-            }
-            else
+            String strDocumentType = AppPropertiesService.getProperty( strProperty );
+            if ( StringUtils.isNotBlank( strDocumentType ) )
             {
-                throw new OcrException( I18nService.getLocalizedString( OcrConstants.MESSAGE_TIMEOUT_TRANSFORM_IMAGE, Locale.getDefault( ) ) );
+                listDocumentTypes.add( strDocumentType );
             }
         }
 
-        return variantImageObjects;
-    }
-
-    /**
-     * Create a single task to transform part of the image into variant. Each task is executed in a dedicated thread.
-     *
-     * @param byteImageContent
-     *            image to process
-     * @param safearray
-     *            jacob safe array
-     * @param nStart
-     *            first byte to process
-     * @param nEnd
-     *            last byte to process
-     * @return a runnable task.
-     */
-    private Runnable createRunnableTask( byte [ ] byteImageContent, SafeArray safearray, int nStart, int nEnd )
-    {
-        return ( ) -> {
-            for ( int i = nStart; i < nEnd; i++ )
-            {
-                Variant variantByteImage = new Variant( );
-                variantByteImage.putByte( byteImageContent [i] );
-                safearray.setVariant( i, variantByteImage );
-            }
-        };
+        return listDocumentTypes;
     }
 
     /**
@@ -492,10 +1485,15 @@ public class OcrService
      *            file to read
      * @param strFileExtension
      *            image extension
+     * @param strDocumentType
+     *            document type
+     * @param deadline
+     *            time budget of the request
      * @throws OcrException
      *             the OcrException
      */
-    private ImageBean setValueImageExtensionAndContent( String strFileExtension, byte [ ] bytefileContent ) throws OcrException
+    private ImageBean setValueImageExtensionAndContent( String strFileExtension, byte [ ] bytefileContent, String strDocumentType, OcrDeadline deadline )
+            throws OcrException
     {
         ImageBean result = new ImageBean( );
 
@@ -537,15 +1535,6 @@ public class OcrService
                                                 String strImageFormat = OcrConstants.EXTENSION_FILE_PNG.equalsIgnoreCase( AppPropertiesService
                                                         .getProperty( OcrConstants.PROPERTY_PDF_IMAGE_FORMAT ) ) ? OcrConstants.EXTENSION_FILE_PNG
                                                         : OcrConstants.EXTENSION_FILE_JPEG;
-                                                try
-                                                {
-                                                    result.setContent( transformPdfToImage( bytefileContent, strImageFormat, false ) );
-                                                }
-                                                catch( OcrException | IOException e )
-                                                {
-                                                    AppLogService.error( e.getMessage( ) );
-                                                }
-
                                                 result.setExtension( strImageFormat );
                                             }
 
@@ -561,14 +1550,25 @@ public class OcrService
             };
             throw new OcrException( I18nService.getLocalizedString( OcrConstants.MESSAGE_FILE_EXTENSION_TYPE_ERROR, messageArgs, Locale.getDefault( ) ) );
         }
-        else
+
+        if ( OcrConstants.EXTENSION_FILE_PDF.equalsIgnoreCase( strFileExtension ) )
         {
-            return result;
+            // rendered out of the loop so that a render refused by the memory budget reaches the caller
+            try
+            {
+                transformPdfToImage( bytefileContent, result.getExtension( ), false, result, strDocumentType, deadline );
+            }
+            catch( IOException e )
+            {
+                AppLogService.error( e.getMessage( ) );
+            }
         }
+
+        return result;
     }
 
     /**
-     * Convert pdf to image.
+     * Convert pdf to image. The image is encoded in an array of the buffer pool, handed over to the image bean.
      *
      * @param pdfByteContent
      *            pdf byte content
@@ -576,25 +1576,31 @@ public class OcrService
      *            image format
      * @param bOptimalImage
      *            true to generate high quality image
-     * @return image byte content
+     * @param imageBean
+     *            the image receiving the content
+     * @param strDocumentType
+     *            document type
+     * @param deadline
+     *            time budget of the request
      * @throws OcrException
      *             the OcrException
      * @throws IOException
      *             the IOException
      */
-    private byte [ ] transformPdfToImage( byte [ ] pdfByteContent, String strImageFormat, boolean bOptimalImage ) throws OcrException, IOException
+    private void transformPdfToImage( byte [ ] pdfByteContent, String strImageFormat, boolean bOptimalImage, ImageBean imageBean, String strDocumentType,
+            OcrDeadline deadline ) throws OcrException, IOException
     {
 
         AppLogService.info( "transformPdfToImage begin" );
 
         // initialize options to generate high quality image
-        int ndpi = 300;
+        int ndpi = OcrConstants.PDF_OPTIMAL_DPI;
         float fCompressionLevel = 1;
         ImageType imageType = ImageType.RGB;
 
         if ( !bOptimalImage )
         {
-            ndpi = AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_PDF_IMAGE_QUALITY, 150 );
+            ndpi = _dpiTuner.choose( strDocumentType );
             String strImageType = AppPropertiesService.getProperty( OcrConstants.PROPERTY_PDF_IMAGE_TYPE, OcrConstants.IMAGE_TYPE_RGB );
             imageType = OcrConstants.IMAGE_TYPE_BINARY.equalsIgnoreCase( strImageType ) ? ImageType.BINARY : ImageType.RGB;
 
@@ -612,66 +1618,216 @@ public class OcrService
             }
         }
 
-        final ByteArrayOutputStream byteArrayos = new ByteArrayOutputStream( );
-        byte [ ] byteImageByteContent = null;
+        OcrPdfMemoryBudget memoryBudget = OcrPdfMemoryBudget.getInstance( );
+        long lStart = System.currentTimeMillis( );
+        long lAllocatedBefore = OcrPdfMemoryBudget.getAllocatedBytes( );
+        long lReserved = 0;
+        OcrStage stageLoad = OcrStage.begin( OcrStage.PDF_LOAD, strDocumentType, pdfByteContent.length, ndpi );
+        try ( PDDocument document = loadPdf( pdfByteContent, memoryBudget, stageLoad ) )
+        {
+            if ( !bOptimalImage )
+            {
+                // controlled for the highest DPI the document may be rendered at, retry included
+                int nMaxDpi = _dpiTuner.getMaxDpi( strDocumentType );
+                if ( AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_PDF_IMAGE_RETRY, false ) )
+                {
+                    nMaxDpi = Math.max( nMaxDpi, OcrConstants.PDF_OPTIMAL_DPI );
+                }
+                _inputValidator.validatePdfDocument( document, nMaxDpi );
+            }
+            imageBean.setPageCount( document.getNumberOfPages( ) );
+            if ( document.getNumberOfPages( ) > 1 )
+            {
+                throw new OcrException( I18nService.getLocalizedString( OcrConstants.MESSAGE_PDF_NUMBER_PAGES_ERROR, Locale.getDefault( ) ) );
+            }
+
+            PDRectangle rectangle = document.getPage( 0 ).getCropBox( );
+            long lEstimate = memoryBudget.estimate( Math.round( rectangle.getWidth( ) * ndpi / OcrConstants.PDF_POINTS_BY_INCH ),
+                    Math.round( rectangle.getHeight( ) * ndpi / OcrConstants.PDF_POINTS_BY_INCH ), imageType );
+            memoryBudget.acquire( lEstimate, deadline );
+            lReserved = lEstimate;
+
+            PDFRenderer pdfRenderer = new PDFRenderer( document );
+            BufferedImage bim;
+            OcrStage stageRender = OcrStage.begin( OcrStage.PDF_RENDER, strDocumentType, pdfByteContent.length, ndpi );
+            try
+            {
+                bim = pdfRenderer.renderImageWithDPI( 0, ndpi, imageType );
+                stageRender.succeed( );
+            }
+            finally
+            {
+                stageRender.end( );
+            }
 
-        final PDDocument document = PDDocument.load( pdfByteContent );
-        if ( document.getNumberOfPages( ) > 1 )
+            OcrStage stageEncode = OcrStage.begin( OcrStage.IMAGE_ENCODE, strDocumentType, (long) bim.getWidth( ) * bim.getHeight( ), ndpi );
+            try ( PooledOutputStream pooledOutputStream = new PooledOutputStream( pdfByteContent.length ) )
+            {
+                ImageIOUtil.writeImage( bim, strImageFormat, pooledOutputStream, 72, fCompressionLevel );
+                int nLength = pooledOutputStream.size( );
+                imageBean.setPooledContent( pooledOutputStream.detach( ), nLength );
+                imageBean.setDpi( ndpi );
+                imageBean.setRenderTime( System.currentTimeMillis( ) - lStart );
+                stageEncode.succeed( );
+            }
+            finally
+            {
+                stageEncode.end( );
+            }
+        }
+        finally
         {
-            throw new OcrException( I18nService.getLocalizedString( OcrConstants.MESSAGE_PDF_NUMBER_PAGES_ERROR, Locale.getDefault( ) ) );
+            if ( lReserved > 0 )
+            {
+                memoryBudget.release( lReserved );
+                OcrPdfMemoryBudget.report( lAllocatedBefore, lReserved, System.currentTimeMillis( ) - lStart );
+            }
         }
 
-        PDFRenderer pdfRenderer = new PDFRenderer( document );
-        BufferedImage bim = pdfRenderer.renderImageWithDPI( 0, ndpi, imageType );
-        ImageIOUtil.writeImage( bim, strImageFormat, byteArrayos, 72, fCompressionLevel );
-        byteImageByteContent = byteArrayos.toByteArray( );
-        document.close( );
-
         AppLogService.info( "transformPdfToImage end" );
 
-        return byteImageByteContent;
-
     }
 
     /**
-     * Image bean class
+     * Load a pdf document, timed by the given stage.
+     *
+     * @param pdfByteContent
+     *            pdf byte content
+     * @param memoryBudget
+     *            memory budget of the renders
+     * @param stageLoad
+     *            the stage of the load, ended by this method
+     * @return the document
+     * @throws IOException
+     *             the IOException
+     * @throws OcrInputRejectedException
+     *             if the pdf can't be parsed and the input validation is enabled
      */
-    private class ImageBean
+    private static PDDocument loadPdf( byte [ ] pdfByteContent, OcrPdfMemoryBudget memoryBudget, OcrStage stageLoad ) throws IOException,
+            OcrInputRejectedException
     {
-        String _strExtension;
-        byte [ ] _byteContent;
-        String _imagePath;
-
-        public String getExtension( )
+        try
         {
-            return _strExtension;
-        }
+            PDDocument document = PDDocument.load( pdfByteContent, null, memoryBudget.getMemoryUsageSetting( ) );
+            stageLoad.succeed( );
 
-        public void setExtension( String _strExtension )
-        {
-            this._strExtension = _strExtension;
+            return document;
         }
-
-        public byte [ ] getContent( )
+        catch( IOException e )
         {
-            return _byteContent;
-        }
+            // the pdf is parsed once, by the render : a pdf that can't be parsed is rejected here
+            if ( !AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_VALIDATION_ENABLED, true ) )
+            {
+                throw e;
+            }
+            AppLogService.error( "Unable to parse pdf : " + e.getMessage( ) );
+            OcrInputValidator.reject( OcrConstants.REJECT_CODE_CORRUPT );
 
-        public void setContent( byte [ ] _byteContent )
-        {
-            this._byteContent = _byteContent;
+            return null;
         }
-
-        public String getImagePath( )
+        finally
         {
-            return _imagePath;
+            stageLoad.end( );
         }
+    }
 
-        public void setImagePath( String imagePath )
-        {
-            _imagePath = imagePath;
-        }
+    /**
+     * Get the intake of the requests.
+     *
+     * @return the intake control
+     */
+    public OcrIntakeControl getIntakeControl( )
+    {
+        return _intakeControl;
+    }
+
+    /**
+     * Get the choice of the DPI of the pdf renders.
+     *
+     * @return the DPI tuner
+     */
+    public OcrDpiTuner getDpiTuner( )
+    {
+        return _dpiTuner;
+    }
+
+    /**
+     * Get the admission control of the requests.
+     *
+     * @return the admission controller
+     */
+    public OcrAdmissionController getAdmissionController( )
+    {
+        return _admissionController;
+    }
+
+    /**
+     * Get the scheduler of the priority classes.
+     *
+     * @return the scheduler
+     */
+    public OcrScheduler getScheduler( )
+    {
+        return _scheduler;
+    }
+
+    /**
+     * Get the bulkheads of the document types.
+     *
+     * @return the bulkheads
+     */
+    public OcrBulkhead getBulkhead( )
+    {
+        return _bulkhead;
+    }
+
+    /**
+     * Get the executor of the engine calls.
+     *
+     * @return the executor
+     */
+    public EngineRequestExecutor getEngineExecutor( )
+    {
+        return _engineExecutor;
+    }
+
+    /**
+     * Get the pool of the worker processes.
+     *
+     * @return the pool, null if the engine does not run in worker processes
+     */
+    public OcrWorkerProcessPool getWorkerProcessPool( )
+    {
+        return _workerProcessPool;
+    }
+
+    /**
+     * Get the engine used.
+     *
+     * @return jacob, stub or process
+     */
+    public String getEngine( )
+    {
+        return _strEngine;
+    }
 
+    /**
+     * Processing of a request once admitted.
+     *
+     * @param <T>
+     *            type of the result
+     */
+    @FunctionalInterface
+    private interface AdmittedRequest<T>
+    {
+        /**
+         * Process the request.
+         *
+         * @return result of OCR
+         * @throws OcrException
+         *             the OcrException
+         */
+        T proceed( ) throws OcrException;
     }
 
 }
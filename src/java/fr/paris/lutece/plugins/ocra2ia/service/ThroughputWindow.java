@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+/**
+ *
+ * Number of events of the last seconds, to compute a live rate. Each second has its own bucket, reused once the second is out of the window.
+ *
+ */
+final class ThroughputWindow
+{
+
+    private final long [ ] _tabSeconds;
+    private final long [ ] _tabCounts;
+
+    /**
+     * Constructor.
+     *
+     * @param nSeconds
+     *            number of seconds of the window
+     */
+    ThroughputWindow( int nSeconds )
+    {
+        _tabSeconds = new long [ nSeconds];
+        _tabCounts = new long [ nSeconds];
+    }
+
+    /**
+     * Count an event in the bucket of the current second.
+     */
+    synchronized void mark( )
+    {
+        long lSecond = System.currentTimeMillis( ) / 1000;
+        int nBucket = (int) ( lSecond % _tabSeconds.length );
+        if ( _tabSeconds [nBucket] != lSecond )
+        {
+            _tabSeconds [nBucket] = lSecond;
+            _tabCounts [nBucket] = 0;
+        }
+        _tabCounts [nBucket]++;
+    }
+
+    /**
+     * Get the mean rate of the window, the current second excluded since it is not over.
+     *
+     * @return the number of events by second
+     */
+    synchronized double getRate( )
+    {
+        long lCurrentSecond = System.currentTimeMillis( ) / 1000;
+        long lTotal = 0;
+        for ( int i = 0; i < _tabSeconds.length; i++ )
+        {
+            if ( ( _tabSeconds [i] < lCurrentSecond ) && ( _tabSeconds [i] > ( lCurrentSecond - _tabSeconds.length ) ) )
+            {
+                lTotal += _tabCounts [i];
+            }
+        }
+
+        return (double) lTotal / ( _tabSeconds.length - 1 );
+    }
+
+}
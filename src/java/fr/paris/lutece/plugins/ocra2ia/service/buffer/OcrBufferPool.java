@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.buffer;
+
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.paris.lutece.plugins.ocra2ia.service.OcrMetricsService;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Pool of the byte arrays carrying the images through the pipeline (rendered pdf, preprocessed image, image handed to the engine). Arrays are sorted
+ * in size classes of powers of two, so that an array returned by a request serves any later request of the same class. The pool keeps at most a
+ * configured number of bytes; arrays returned beyond it, or larger than the biggest class, are left to the garbage collector. Only the arrays lent by
+ * the pool and not given back yet are taken back, so that an array released twice or never acquired can not be handed to two holders.
+ *
+ */
+public final class OcrBufferPool
+{
+
+    private static final String COUNTER_HIT = "buffer.pool.hit";
+    private static final String COUNTER_MISS = "buffer.pool.miss";
+    private static final String COUNTER_RETURNED = "buffer.pool.returned";
+    private static final String COUNTER_DISCARDED = "buffer.pool.discarded";
+    private static final String COUNTER_FOREIGN = "buffer.pool.foreign";
+
+    /**
+     * Smallest size class : 64 KB.
+     */
+    private static final int MIN_CLASS_SHIFT = 16;
+
+    /**
+     * Unique instance.
+     */
+    private static final OcrBufferPool _singleton = new OcrBufferPool( );
+
+    private final boolean _bEnabled;
+    private final long _lMaxRetainedBytes;
+    private final int _nMaxClassShift;
+    private final Deque<byte [ ]> [ ] _classes;
+    private final AtomicLong _lRetainedBytes = new AtomicLong( );
+    private final AtomicLong _lHits = new AtomicLong( );
+    private final AtomicLong _lRequests = new AtomicLong( );
+
+    /**
+     * Arrays lent and not given back yet. Arrays compare by identity, and the weak keys let the collector reclaim an array its holder never gives
+     * back.
+     */
+    private final Map<byte [ ], Boolean> _mapLent = Collections.synchronizedMap( new WeakHashMap<>( ) );
+
+    /**
+     * Private constructor.
+     */
+    @SuppressWarnings( "unchecked" )
+    private OcrBufferPool( )
+    {
+        _bEnabled = AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_BUFFER_POOL_ENABLED, true );
+        _lMaxRetainedBytes = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_BUFFER_POOL_MAX_BYTES, 268435456L );
+        int nMaxBufferSize = Math.max( 1 << MIN_CLASS_SHIFT,
+                AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_BUFFER_POOL_MAX_BUFFER, 67108864 ) );
+        _nMaxClassShift = Math.min( 30, 32 - Integer.numberOfLeadingZeros( nMaxBufferSize - 1 ) );
+        _classes = new Deque [ _nMaxClassShift - MIN_CLASS_SHIFT + 1];
+        for ( int i = 0; i < _classes.length; i++ )
+        {
+            _classes [i] = new ConcurrentLinkedDeque<>( );
+        }
+        OcrMetricsService.getInstance( ).registerGauge( OcrConstants.GAUGE_BUFFER_POOL_RETAINED_BYTES, this::getRetainedBytes );
+        OcrMetricsService.getInstance( ).registerGauge( OcrConstants.GAUGE_BUFFER_POOL_HIT_RATE, this::getHitRate );
+    }
+
+    /**
+     * Get the unique instance of the pool.
+     *
+     * @return the pool
+     */
+    public static OcrBufferPool getInstance( )
+    {
+        return _singleton;
+    }
+
+    /**
+     * Take an array of at least the given size. The array must be given back with release once its content is no longer used.
+     *
+     * @param nMinSize
+     *            minimum size
+     * @return an array whose length is the size class of nMinSize, or exactly nMinSize if it is larger than the biggest class
+     */
+    public byte [ ] acquire( int nMinSize )
+    {
+        int nClass = getClassIndex( nMinSize );
+        if ( !_bEnabled || nClass >= _classes.length )
+        {
+            return new byte [ nMinSize];
+        }
+
+        _lRequests.incrementAndGet( );
+        byte [ ] buffer = _classes [nClass].pollFirst( );
+        if ( buffer != null )
+        {
+            _lRetainedBytes.addAndGet( -buffer.length );
+            _lHits.incrementAndGet( );
+            OcrMetricsService.getInstance( ).increment( COUNTER_HIT );
+        }
+        else
+        {
+            OcrMetricsService.getInstance( ).increment( COUNTER_MISS );
+            buffer = new byte [ 1 << ( nClass + MIN_CLASS_SHIFT )];
+        }
+        _mapLent.put( buffer, Boolean.TRUE );
+
+        return buffer;
+    }
+
+    /**
+     * Give back an array taken with acquire. The caller must not use it afterwards.
+     *
+     * @param buffer
+     *            the array, ignored if null or not currently lent by the pool
+     */
+    public void release( byte [ ] buffer )
+    {
+        if ( !_bEnabled || buffer == null || getClassIndex( buffer.length ) >= _classes.length )
+        {
+            return;
+        }
+        if ( _mapLent.remove( buffer ) == null )
+        {
+            // never acquired, or already given back : pooling it could hand the same array to two holders
+            OcrMetricsService.getInstance( ).increment( COUNTER_FOREIGN );
+
+            return;
+        }
+        int nClass = getClassIndex( buffer.length );
+        if ( _lRetainedBytes.addAndGet( buffer.length ) > _lMaxRetainedBytes )
+        {
+            _lRetainedBytes.addAndGet( -buffer.length );
+            OcrMetricsService.getInstance( ).increment( COUNTER_DISCARDED );
+
+            return;
+        }
+        // last in, first out : the most recently used arrays are the most likely to be in the processor caches
+        _classes [nClass].offerFirst( buffer );
+        OcrMetricsService.getInstance( ).increment( COUNTER_RETURNED );
+    }
+
+    /**
+     * @return the number of bytes kept by the pool
+     */
+    public long getRetainedBytes( )
+    {
+        return _lRetainedBytes.get( );
+    }
+
+    /**
+     * @return the percentage of the requests served by a pooled array
+     */
+    public int getHitRate( )
+    {
+        long lRequests = _lRequests.get( );
+
+        return ( lRequests > 0 ) ? (int) ( _lHits.get( ) * 100 / lRequests ) : 0;
+    }
+
+    /**
+     * Empty the pool.
+     */
+    public void clear( )
+    {
+        for ( Deque<byte [ ]> deque : _classes )
+        {
+            byte [ ] buffer;
+            while ( ( buffer = deque.pollFirst( ) ) != null )
+            {
+                _lRetainedBytes.addAndGet( -buffer.length );
+            }
+        }
+    }
+
+    /**
+     * @param nSize
+     *            a size
+     * @return the index of the smallest size class holding nSize bytes
+     */
+    private static int getClassIndex( int nSize )
+    {
+        if ( nSize <= ( 1 << MIN_CLASS_SHIFT ) )
+        {
+            return 0;
+        }
+
+        return ( 32 - Integer.numberOfLeadingZeros( nSize - 1 ) ) - MIN_CLASS_SHIFT;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.buffer;
+
+import java.io.OutputStream;
+
+/**
+ *
+ * Output stream writing into arrays of the buffer pool : the array grows by taking a bigger one from the pool and giving back the previous one, and
+ * the final array is handed over as is instead of being copied. The array is given back to the pool on close, unless detached.
+ *
+ */
+public class PooledOutputStream extends OutputStream
+{
+
+    private byte [ ] _buffer;
+    private int _nCount;
+
+    /**
+     * Constructor.
+     *
+     * @param nInitialSize
+     *            expected size of the content
+     */
+    public PooledOutputStream( int nInitialSize )
+    {
+        _buffer = OcrBufferPool.getInstance( ).acquire( nInitialSize );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write( int nByte )
+    {
+        ensureCapacity( _nCount + 1 );
+        _buffer [_nCount++] = (byte) nByte;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write( byte [ ] bytes, int nOffset, int nLength )
+    {
+        ensureCapacity( _nCount + nLength );
+        System.arraycopy( bytes, nOffset, _buffer, _nCount, nLength );
+        _nCount += nLength;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public int size( )
+    {
+        return _nCount;
+    }
+
+    /**
+     * Hand over the array : the caller becomes responsible for giving it back to the pool.
+     *
+     * @return the array, holding size() bytes
+     */
+    public byte [ ] detach( )
+    {
+        byte [ ] buffer = _buffer;
+        _buffer = null;
+
+        return buffer;
+    }
+
+    /**
+     * Give the array back to the pool, unless detached.
+     */
+    @Override
+    public void close( )
+    {
+        if ( _buffer != null )
+        {
+            OcrBufferPool.getInstance( ).release( _buffer );
+            _buffer = null;
+        }
+    }
+
+    /**
+     * Grow the array.
+     *
+     * @param nCapacity
+     *            the capacity needed
+     */
+    private void ensureCapacity( int nCapacity )
+    {
+        if ( nCapacity > _buffer.length )
+        {
+            byte [ ] buffer = OcrBufferPool.getInstance( ).acquire( Math.max( nCapacity, _buffer.length * 2 ) );
+            System.arraycopy( _buffer, 0, buffer, 0, _nCount );
+            OcrBufferPool.getInstance( ).release( _buffer );
+            _buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,807 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fr.paris.lutece.plugins.ocra2ia.service.OcrMetricsService;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Disk cache of the OCR results, keyed by the hash of the document content and type, kept across restarts.
+ *
+ * The results are appended, encrypted with AES-GCM, to a log file. A memory-mapped hash table gives the position in the log of the last result of
+ * each key, so that a lookup reads one record with no parsing of the log. When the log or the table are full the live records are copied to a new
+ * log, dropping the expired results first and then the oldest ones. A record appended but not yet in the table when the node stopped is indexed
+ * again at the next opening, a record truncated by a crash is cut off.
+ *
+ */
+public class OcrResultCache
+{
+
+    private static final String FILE_LOG = "results.log";
+    private static final String FILE_LOG_COMPACT = "results.log.compact";
+    private static final String FILE_INDEX = "results.idx";
+
+    private static final String COUNTER_HIT = "cache.hit";
+    private static final String COUNTER_MISS = "cache.miss";
+    private static final String COUNTER_EXPIRED = "cache.expired";
+    private static final String COUNTER_CORRUPT = "cache.corrupt";
+    private static final String COUNTER_PUT = "cache.put";
+    private static final String COUNTER_COMPACTION = "cache.compaction";
+    private static final String COUNTER_LOOKUP_MICROS = "cache.lookup.micros";
+
+    private static final String ALGORITHM_DIGEST = "SHA-256";
+    private static final String ALGORITHM_KEY = "AES";
+    private static final String ALGORITHM_CIPHER = "AES/GCM/NoPadding";
+    private static final int KEY_LENGTH = 32;
+    private static final int GENERATED_SECRET_LENGTH = 16;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+
+    /**
+     * Record of the log : magic, length of the rest of the record, key, expiration date, iv, encrypted result.
+     */
+    private static final int RECORD_MAGIC = 0x4F435231;
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int RECORD_FIXED_LENGTH = KEY_LENGTH + 8 + IV_LENGTH;
+
+    /**
+     * Index file : header (magic, number of slots, number of keys, position of the log indexed up to), then the slots (start of the key, position of
+     * the record plus one, expiration date).
+     */
+    private static final int INDEX_MAGIC = 0x4F434931;
+    private static final int INDEX_HEADER_LENGTH = 32;
+    private static final int INDEX_OFFSET_SLOTS = 4;
+    private static final int INDEX_OFFSET_COUNT = 8;
+    private static final int INDEX_OFFSET_INDEXED = 16;
+    private static final int SLOT_KEY_LENGTH = 16;
+    private static final int SLOT_LENGTH = SLOT_KEY_LENGTH + 16;
+
+    /**
+     * Share of the slots used beyond which the log is compacted.
+     */
+    private static final double MAX_LOAD = 0.7;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper( );
+    private static final TypeReference<Map<String, String>> TYPE_RESULT = new TypeReference<Map<String, String>>( )
+    {
+    };
+
+    private final Path _directory;
+    private final long _lTtl;
+    private final long _lMaxBytes;
+    private final int _nSlots;
+    private final SecretKey _secretKey;
+    private final SecureRandom _random = new SecureRandom( );
+    private final ReadWriteLock _lock = new ReentrantReadWriteLock( );
+    private FileChannel _log;
+    private FileChannel _indexChannel;
+    private MappedByteBuffer _index;
+
+    /**
+     * Constructor : open the cache, index the records appended since the last indexing and drop the expired results.
+     *
+     * @throws IOException
+     *             if the files of the cache can not be opened
+     * @throws GeneralSecurityException
+     *             if no encryption key is configured or the key is invalid
+     */
+    public OcrResultCache( ) throws IOException, GeneralSecurityException
+    {
+        this( getDirectory( ) );
+    }
+
+    /**
+     * Constructor : open the cache of a directory with the configured settings.
+     *
+     * @param directory
+     *            directory of the cache
+     * @throws IOException
+     *             if the files of the cache can not be opened
+     * @throws GeneralSecurityException
+     *             if no encryption key is configured or the key is invalid
+     */
+    private OcrResultCache( Path directory ) throws IOException, GeneralSecurityException
+    {
+        this( directory, AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_CACHE_TTL, 604800000L ),
+                AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_CACHE_MAX_BYTES, 268435456L ),
+                AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_CACHE_INDEX_SLOTS, 65536 ), loadSecretKey( directory ) );
+    }
+
+    /**
+     * Constructor with explicit settings.
+     *
+     * @param directory
+     *            directory of the cache
+     * @param lTtl
+     *            time to live of the results in milliseconds
+     * @param lMaxBytes
+     *            maximum size of the log
+     * @param nSlots
+     *            number of slots of the index, rounded down to a power of two of at least 1024
+     * @param secretKey
+     *            encryption key of the results
+     * @throws IOException
+     *             if the files of the cache can not be opened
+     */
+    OcrResultCache( Path directory, long lTtl, long lMaxBytes, int nSlots, SecretKey secretKey ) throws IOException
+    {
+        _directory = directory;
+        _lTtl = lTtl;
+        _lMaxBytes = lMaxBytes;
+        _nSlots = Integer.highestOneBit( Math.max( 1024, nSlots ) );
+        _secretKey = secretKey;
+        Files.createDirectories( _directory );
+
+        _log = FileChannel.open( _directory.resolve( FILE_LOG ), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+        openIndex( );
+        compact( );
+        AppLogService.info( "OCR result cache opened in " + _directory + " : " + getCount( ) + " results, " + _log.size( ) + " bytes." );
+    }
+
+    /**
+     * Compute the key of a document.
+     *
+     * @param bytefileContent
+     *            content of the document
+     * @param strDocumentType
+     *            document type
+     * @return the key
+     */
+    public static byte [ ] key( byte [ ] bytefileContent, String strDocumentType )
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance( ALGORITHM_DIGEST );
+            digest.update( strDocumentType.toLowerCase( Locale.ROOT ).getBytes( StandardCharsets.UTF_8 ) );
+            digest.update( (byte) 0 );
+
+            return digest.digest( bytefileContent );
+        }
+        catch( NoSuchAlgorithmException e )
+        {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Compute the key of a document made of several images.
+     *
+     * @param listFileContents
+     *            content of each image of the document, in order
+     * @param strDocumentType
+     *            document type
+     * @return the key
+     */
+    public static byte [ ] key( List<byte [ ]> listFileContents, String strDocumentType )
+    {
+        if ( listFileContents.size( ) == 1 )
+        {
+            return key( listFileContents.get( 0 ), strDocumentType );
+        }
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance( ALGORITHM_DIGEST );
+            digest.update( strDocumentType.toLowerCase( Locale.ROOT ).getBytes( StandardCharsets.UTF_8 ) );
+            digest.update( (byte) 0 );
+            for ( byte [ ] bytefileContent : listFileContents )
+            {
+                // the length delimits the images, so that two splits of the same bytes do not share a key
+                digest.update( ByteBuffer.allocate( Integer.BYTES ).putInt( bytefileContent.length ).array( ) );
+                digest.update( bytefileContent );
+            }
+
+            return digest.digest( );
+        }
+        catch( NoSuchAlgorithmException e )
+        {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Get the result of a document.
+     *
+     * @param key
+     *            key of the document
+     * @return the result, or null if the document is not in the cache or its result is expired
+     */
+    public Map<String, String> get( byte [ ] key )
+    {
+        long lStart = System.nanoTime( );
+        Map<String, String> mapResult = null;
+        _lock.readLock( ).lock( );
+        try
+        {
+            int nSlot = findSlot( key );
+            long lPosition = _index.getLong( slotPosition( nSlot ) + SLOT_KEY_LENGTH ) - 1;
+            if ( lPosition < 0 )
+            {
+                OcrMetricsService.getInstance( ).increment( COUNTER_MISS );
+            }
+            else
+                if ( _index.getLong( slotPosition( nSlot ) + SLOT_KEY_LENGTH + 8 ) <= System.currentTimeMillis( ) )
+                {
+                    OcrMetricsService.getInstance( ).increment( COUNTER_EXPIRED );
+                }
+                else
+                {
+                    mapResult = readResult( key, lPosition );
+                    OcrMetricsService.getInstance( ).increment( ( mapResult == null ) ? COUNTER_CORRUPT : COUNTER_HIT );
+                }
+        }
+        catch( IOException | GeneralSecurityException e )
+        {
+            AppLogService.error( "OCR result cache unreadable : " + e.getMessage( ) );
+            OcrMetricsService.getInstance( ).increment( COUNTER_CORRUPT );
+        }
+        finally
+        {
+            _lock.readLock( ).unlock( );
+            OcrMetricsService.getInstance( ).add( COUNTER_LOOKUP_MICROS, ( System.nanoTime( ) - lStart ) / 1000 );
+        }
+
+        return mapResult;
+    }
+
+    /**
+     * Store the result of a document, replacing its previous result.
+     *
+     * @param key
+     *            key of the document
+     * @param mapResult
+     *            result of the engine
+     */
+    public void put( byte [ ] key, Map<String, String> mapResult )
+    {
+        _lock.writeLock( ).lock( );
+        try
+        {
+            byte [ ] result = MAPPER.writeValueAsString( mapResult ).getBytes( StandardCharsets.UTF_8 );
+            byte [ ] record = encrypt( key, System.currentTimeMillis( ) + _lTtl, result );
+            if ( ( ( _log.size( ) + record.length ) > _lMaxBytes ) || ( getCount( ) >= ( _nSlots * MAX_LOAD ) ) )
+            {
+                compact( );
+            }
+
+            long lPosition = _log.size( );
+            write( _log, ByteBuffer.wrap( record ), lPosition );
+            indexRecord( key, lPosition, ByteBuffer.wrap( record, RECORD_HEADER_LENGTH + KEY_LENGTH, 8 ).getLong( ) );
+            _index.putLong( INDEX_OFFSET_INDEXED, _log.size( ) );
+            OcrMetricsService.getInstance( ).increment( COUNTER_PUT );
+        }
+        catch( IOException | GeneralSecurityException e )
+        {
+            AppLogService.error( "Unable to store the result in the OCR result cache : " + e.getMessage( ), e );
+        }
+        finally
+        {
+            _lock.writeLock( ).unlock( );
+        }
+    }
+
+    /**
+     * Close the cache.
+     */
+    public void close( )
+    {
+        _lock.writeLock( ).lock( );
+        try
+        {
+            _index.force( );
+            _indexChannel.close( );
+            _log.close( );
+        }
+        catch( IOException e )
+        {
+            AppLogService.error( "Unable to close the OCR result cache : " + e.getMessage( ), e );
+        }
+        finally
+        {
+            _lock.writeLock( ).unlock( );
+        }
+    }
+
+    /**
+     * Get the number of keys in the cache, expired results included until the next compaction.
+     *
+     * @return the number of keys
+     */
+    public int getCount( )
+    {
+        return _index.getInt( INDEX_OFFSET_COUNT );
+    }
+
+    /**
+     * @return the configured directory of the cache
+     */
+    private static Path getDirectory( )
+    {
+        String strDirectory = AppPropertiesService.getProperty( OcrConstants.PROPERTY_CACHE_DIR );
+
+        return StringUtils.isBlank( strDirectory ) ? Paths.get( System.getProperty( "java.io.tmpdir" ), "ocra2ia-cache" ) : Paths.get( strDirectory
+                .trim( ) );
+    }
+
+    /**
+     * Load the encryption key from the configuration, or from the configured key file, generated on first use. A key file in the cache directory is
+     * refused : whoever reads the encrypted results would read the key with them.
+     *
+     * @param directory
+     *            directory of the cache
+     * @return the key
+     * @throws IOException
+     *             if the key file can not be read or written
+     * @throws InvalidKeyException
+     *             if no key is configured, the key file is in the cache directory or the key length is not an AES one
+     */
+    private static SecretKey loadSecretKey( Path directory ) throws IOException, InvalidKeyException
+    {
+        String strKey = AppPropertiesService.getProperty( OcrConstants.PROPERTY_CACHE_KEY );
+        if ( StringUtils.isNotBlank( strKey ) )
+        {
+            return checkKey( Base64.getDecoder( ).decode( strKey.trim( ) ) );
+        }
+
+        String strKeyFile = AppPropertiesService.getProperty( OcrConstants.PROPERTY_CACHE_KEY_FILE );
+        if ( StringUtils.isBlank( strKeyFile ) )
+        {
+            throw new InvalidKeyException( "No key configured for the OCR result cache : set " + OcrConstants.PROPERTY_CACHE_KEY + " or "
+                    + OcrConstants.PROPERTY_CACHE_KEY_FILE + "." );
+        }
+        Path keyFile = Paths.get( strKeyFile.trim( ) ).toAbsolutePath( ).normalize( );
+        if ( keyFile.startsWith( directory.toAbsolutePath( ).normalize( ) ) )
+        {
+            throw new InvalidKeyException( "The key file of the OCR result cache " + keyFile + " must not be in the cache directory." );
+        }
+        if ( !Files.exists( keyFile ) )
+        {
+            AppLogService.info( "The key of the OCR result cache is generated in " + keyFile + "." );
+            Files.createDirectories( keyFile.getParent( ) );
+            byte [ ] secret = new byte [ GENERATED_SECRET_LENGTH];
+            new SecureRandom( ).nextBytes( secret );
+            Files.write( keyFile, secret, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE );
+            try
+            {
+                Files.setPosixFilePermissions( keyFile, PosixFilePermissions.fromString( "rw-------" ) );
+            }
+            catch( UnsupportedOperationException e )
+            {
+                AppLogService.info( "The permissions of " + keyFile + " are those of the file system." );
+            }
+        }
+
+        return checkKey( Files.readAllBytes( keyFile ) );
+    }
+
+    /**
+     * Check the length of an AES key.
+     *
+     * @param secret
+     *            the key
+     * @return the key
+     * @throws InvalidKeyException
+     *             if the key is not 16, 24 or 32 bytes long
+     */
+    private static SecretKey checkKey( byte [ ] secret ) throws InvalidKeyException
+    {
+        if ( ( secret.length != 16 ) && ( secret.length != 24 ) && ( secret.length != 32 ) )
+        {
+            throw new InvalidKeyException( "The key of the OCR result cache is " + secret.length + " bytes long, 16, 24 or 32 are expected." );
+        }
+
+        return new SecretKeySpec( secret, ALGORITHM_KEY );
+    }
+
+    /**
+     * Map the index file, rebuilt from the log if it is missing or does not match the configuration, and index the records appended after it.
+     *
+     * @throws IOException
+     *             if the files can not be read
+     */
+    private void openIndex( ) throws IOException
+    {
+        _indexChannel = FileChannel.open( _directory.resolve( FILE_INDEX ), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE );
+        _index = _indexChannel.map( FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_LENGTH + ( (long) _nSlots * SLOT_LENGTH ) );
+
+        long lIndexed = _index.getLong( INDEX_OFFSET_INDEXED );
+        if ( ( _index.getInt( 0 ) != INDEX_MAGIC ) || ( _index.getInt( INDEX_OFFSET_SLOTS ) != _nSlots ) || ( lIndexed > _log.size( ) ) )
+        {
+            clearIndex( );
+            lIndexed = 0;
+        }
+        indexLog( lIndexed );
+    }
+
+    /**
+     * Empty the index.
+     */
+    private void clearIndex( )
+    {
+        for ( int i = 0; i < _index.capacity( ); i += 8 )
+        {
+            _index.putLong( i, 0L );
+        }
+        _index.putInt( 0, INDEX_MAGIC );
+        _index.putInt( INDEX_OFFSET_SLOTS, _nSlots );
+    }
+
+    /**
+     * Index the records of the log from a position, and cut off the log at the first incomplete record.
+     *
+     * @param lFrom
+     *            position of the first record to index
+     * @throws IOException
+     *             if the log can not be read
+     */
+    private void indexLog( long lFrom ) throws IOException
+    {
+        long lPosition = lFrom;
+        long lSize = _log.size( );
+        ByteBuffer header = ByteBuffer.allocate( RECORD_HEADER_LENGTH + RECORD_FIXED_LENGTH );
+        while ( lPosition < lSize )
+        {
+            header.clear( );
+            int nRecordLength = -1;
+            if ( ( read( _log, header, lPosition ) == header.capacity( ) ) && ( header.getInt( 0 ) == RECORD_MAGIC ) )
+            {
+                nRecordLength = RECORD_HEADER_LENGTH + header.getInt( 4 );
+            }
+            if ( ( nRecordLength < header.capacity( ) ) || ( ( lPosition + nRecordLength ) > lSize ) )
+            {
+                AppLogService.error( "OCR result cache log truncated at " + lPosition + " of " + lSize + " bytes." );
+                _log.truncate( lPosition );
+                break;
+            }
+
+            byte [ ] key = Arrays.copyOfRange( header.array( ), RECORD_HEADER_LENGTH, RECORD_HEADER_LENGTH + KEY_LENGTH );
+            indexRecord( key, lPosition, header.getLong( RECORD_HEADER_LENGTH + KEY_LENGTH ) );
+            lPosition += nRecordLength;
+        }
+        _index.putLong( INDEX_OFFSET_INDEXED, lPosition );
+    }
+
+    /**
+     * Point the slot of a key to a record.
+     *
+     * @param key
+     *            key of the record
+     * @param lPosition
+     *            position of the record in the log
+     * @param lExpiration
+     *            expiration date of the result
+     */
+    private void indexRecord( byte [ ] key, long lPosition, long lExpiration )
+    {
+        int nSlotPosition = slotPosition( findSlot( key ) );
+        if ( _index.getLong( nSlotPosition + SLOT_KEY_LENGTH ) == 0 )
+        {
+            for ( int i = 0; i < SLOT_KEY_LENGTH; i++ )
+            {
+                _index.put( nSlotPosition + i, key [i] );
+            }
+            _index.putInt( INDEX_OFFSET_COUNT, getCount( ) + 1 );
+        }
+        _index.putLong( nSlotPosition + SLOT_KEY_LENGTH, lPosition + 1 );
+        _index.putLong( nSlotPosition + SLOT_KEY_LENGTH + 8, lExpiration );
+    }
+
+    /**
+     * Find the slot of a key by linear probing : the slot holding the key, or the free slot where it would be added.
+     *
+     * @param key
+     *            the key
+     * @return the index of the slot
+     */
+    private int findSlot( byte [ ] key )
+    {
+        // the key is a hash, its first bytes are evenly spread
+        int nSlot = ByteBuffer.wrap( key ).getInt( ) & ( _nSlots - 1 );
+        while ( true )
+        {
+            int nSlotPosition = slotPosition( nSlot );
+            if ( ( _index.getLong( nSlotPosition + SLOT_KEY_LENGTH ) == 0 ) || matches( nSlotPosition, key ) )
+            {
+                return nSlot;
+            }
+            nSlot = ( nSlot + 1 ) & ( _nSlots - 1 );
+        }
+    }
+
+    /**
+     * Tell whether a slot holds a key.
+     *
+     * @param nSlotPosition
+     *            position of the slot in the index
+     * @param key
+     *            the key
+     * @return true if the start of the key is the one of the slot
+     */
+    private boolean matches( int nSlotPosition, byte [ ] key )
+    {
+        for ( int i = 0; i < SLOT_KEY_LENGTH; i++ )
+        {
+            if ( _index.get( nSlotPosition + i ) != key [i] )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the position of a slot in the index.
+     *
+     * @param nSlot
+     *            index of the slot
+     * @return the position
+     */
+    private static int slotPosition( int nSlot )
+    {
+        return INDEX_HEADER_LENGTH + ( nSlot * SLOT_LENGTH );
+    }
+
+    /**
+     * Read and decrypt the result of a record.
+     *
+     * @param key
+     *            key of the document
+     * @param lPosition
+     *            position of the record in the log
+     * @return the result, or null if the record does not hold the key
+     * @throws IOException
+     *             if the record can not be read
+     * @throws GeneralSecurityException
+     *             if the record was altered or encrypted with another key
+     */
+    private Map<String, String> readResult( byte [ ] key, long lPosition ) throws IOException, GeneralSecurityException
+    {
+        ByteBuffer header = ByteBuffer.allocate( RECORD_HEADER_LENGTH );
+        if ( ( read( _log, header, lPosition ) != RECORD_HEADER_LENGTH ) || ( header.getInt( 0 ) != RECORD_MAGIC ) )
+        {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.allocate( header.getInt( 4 ) );
+        if ( read( _log, body, lPosition + RECORD_HEADER_LENGTH ) != body.capacity( ) )
+        {
+            return null;
+        }
+
+        byte [ ] bytesBody = body.array( );
+        byte [ ] recordKey = Arrays.copyOfRange( bytesBody, 0, KEY_LENGTH );
+        if ( !MessageDigest.isEqual( key, recordKey ) )
+        {
+            return null;
+        }
+
+        Cipher cipher = Cipher.getInstance( ALGORITHM_CIPHER );
+        cipher.init( Cipher.DECRYPT_MODE, _secretKey, new GCMParameterSpec( TAG_BITS, bytesBody, KEY_LENGTH + 8, IV_LENGTH ) );
+        // the key and expiration date are authenticated with the result
+        cipher.updateAAD( bytesBody, 0, KEY_LENGTH + 8 );
+        byte [ ] result = cipher.doFinal( bytesBody, RECORD_FIXED_LENGTH, bytesBody.length - RECORD_FIXED_LENGTH );
+
+        return MAPPER.readValue( new String( result, StandardCharsets.UTF_8 ), TYPE_RESULT );
+    }
+
+    /**
+     * Build an encrypted record.
+     *
+     * @param key
+     *            key of the document
+     * @param lExpiration
+     *            expiration date of the result
+     * @param result
+     *            serialized result
+     * @return the record
+     * @throws GeneralSecurityException
+     *             if the result can not be encrypted
+     */
+    private byte [ ] encrypt( byte [ ] key, long lExpiration, byte [ ] result ) throws GeneralSecurityException
+    {
+        byte [ ] iv = new byte [ IV_LENGTH];
+        _random.nextBytes( iv );
+        Cipher cipher = Cipher.getInstance( ALGORITHM_CIPHER );
+        cipher.init( Cipher.ENCRYPT_MODE, _secretKey, new GCMParameterSpec( TAG_BITS, iv ) );
+
+        ByteBuffer record = ByteBuffer.allocate( RECORD_HEADER_LENGTH + RECORD_FIXED_LENGTH + cipher.getOutputSize( result.length ) );
+        record.putInt( RECORD_MAGIC ).putInt( record.capacity( ) - RECORD_HEADER_LENGTH ).put( key ).putLong( lExpiration ).put( iv );
+        cipher.updateAAD( record.array( ), RECORD_HEADER_LENGTH, KEY_LENGTH + 8 );
+        record.put( cipher.doFinal( result ) );
+
+        return record.array( );
+    }
+
+    /**
+     * Copy the live records to a new log, dropping the expired results, then the oldest ones until the log and the index are half full, and rebuild
+     * the index.
+     *
+     * @throws IOException
+     *             if the log can not be rewritten
+     */
+    private void compact( ) throws IOException
+    {
+        long lNow = System.currentTimeMillis( );
+        List<long [ ]> listLive = new ArrayList<>( );
+        long lLiveBytes = 0;
+        long lPosition = 0;
+        long lSize = _log.size( );
+        ByteBuffer header = ByteBuffer.allocate( RECORD_HEADER_LENGTH + RECORD_FIXED_LENGTH );
+        while ( lPosition < lSize )
+        {
+            header.clear( );
+            read( _log, header, lPosition );
+            int nRecordLength = RECORD_HEADER_LENGTH + header.getInt( 4 );
+            byte [ ] key = Arrays.copyOfRange( header.array( ), RECORD_HEADER_LENGTH, RECORD_HEADER_LENGTH + KEY_LENGTH );
+            int nSlotPosition = slotPosition( findSlot( key ) );
+            // a record is live if it is the last one of its key and not expired
+            if ( ( _index.getLong( nSlotPosition + SLOT_KEY_LENGTH ) == ( lPosition + 1 ) )
+                    && ( header.getLong( RECORD_HEADER_LENGTH + KEY_LENGTH ) > lNow ) )
+            {
+                listLive.add( new long [ ] {
+                        lPosition, nRecordLength
+                } );
+                lLiveBytes += nRecordLength;
+            }
+            lPosition += nRecordLength;
+        }
+        long lMaxCount = (long) ( _nSlots * MAX_LOAD / 2 );
+        if ( ( listLive.size( ) == getCount( ) ) && ( lLiveBytes == lSize ) && ( lSize <= ( _lMaxBytes / 2 ) ) && ( listLive.size( ) <= lMaxCount ) )
+        {
+            return;
+        }
+
+        // the log is ordered by age, the oldest records are dropped first
+        int nFirst = 0;
+        while ( ( nFirst < listLive.size( ) ) && ( ( lLiveBytes > ( _lMaxBytes / 2 ) ) || ( ( listLive.size( ) - nFirst ) > lMaxCount ) ) )
+        {
+            lLiveBytes -= listLive.get( nFirst ) [1];
+            nFirst++;
+        }
+
+        Path compactFile = _directory.resolve( FILE_LOG_COMPACT );
+        try ( FileChannel compactLog = FileChannel.open( compactFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE ) )
+        {
+            for ( long [ ] record : listLive.subList( nFirst, listLive.size( ) ) )
+            {
+                long lCopied = 0;
+                while ( lCopied < record [1] )
+                {
+                    lCopied += _log.transferTo( record [0] + lCopied, record [1] - lCopied, compactLog );
+                }
+            }
+            compactLog.force( true );
+        }
+        _log.close( );
+        Files.move( compactFile, _directory.resolve( FILE_LOG ), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        _log = FileChannel.open( _directory.resolve( FILE_LOG ), StandardOpenOption.READ, StandardOpenOption.WRITE );
+
+        clearIndex( );
+        indexLog( 0 );
+        OcrMetricsService.getInstance( ).increment( COUNTER_COMPACTION );
+        AppLogService.info( "OCR result cache compacted from " + lSize + " to " + _log.size( ) + " bytes, " + getCount( ) + " results kept." );
+    }
+
+    /**
+     * Read a buffer from a position of a file.
+     *
+     * @param channel
+     *            the file
+     * @param buffer
+     *            the buffer to fill
+     * @param lPosition
+     *            the position
+     * @return the number of bytes read
+     * @throws IOException
+     *             if the file can not be read
+     */
+    private static int read( FileChannel channel, ByteBuffer buffer, long lPosition ) throws IOException
+    {
+        int nRead = 0;
+        while ( buffer.hasRemaining( ) )
+        {
+            int n = channel.read( buffer, lPosition + nRead );
+            if ( n < 0 )
+            {
+                break;
+            }
+            nRead += n;
+        }
+
+        return nRead;
+    }
+
+    /**
+     * Write a buffer at a position of a file.
+     *
+     * @param channel
+     *            the file
+     * @param buffer
+     *            the buffer to write
+     * @param lPosition
+     *            the position
+     * @throws IOException
+     *             if the file can not be written
+     */
+    private static void write( FileChannel channel, ByteBuffer buffer, long lPosition ) throws IOException
+    {
+        long lWritten = 0;
+        while ( buffer.hasRemaining( ) )
+        {
+            lWritten += channel.write( buffer, lPosition + lWritten );
+        }
+    }
+
+}
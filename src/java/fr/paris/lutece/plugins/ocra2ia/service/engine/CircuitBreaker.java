@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.engine;
+
+import java.util.Locale;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrCircuitOpenException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrMetricsService;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.i18n.I18nService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Circuit breaker around the engine calls. The outcomes of the last calls are kept; when the failure rate (errors and timeouts) exceeds the threshold, the
+ * circuit opens and requests fail immediately instead of waiting behind a dead engine. After the open duration, a limited number of trial calls decide
+ * whether the circuit closes again.
+ *
+ */
+public class CircuitBreaker
+{
+
+    /**
+     * State of the circuit.
+     */
+    public enum State
+    {
+        /**
+         * Calls are allowed.
+         */
+        CLOSED,
+        /**
+         * Calls fail immediately.
+         */
+        OPEN,
+        /**
+         * A limited number of trial calls are allowed.
+         */
+        HALF_OPEN
+    }
+
+    private static final String COUNTER_OPENED = "circuit.opened";
+    private static final String COUNTER_REJECTED = "circuit.rejected";
+
+    private final boolean [ ] _tabFailures;
+    private int _nNextPosition;
+    private int _nCalls;
+    private int _nFailures;
+    private State _state = State.CLOSED;
+    private long _lOpenUntil;
+    private int _nTrialCalls;
+
+    /**
+     * Constructor.
+     */
+    public CircuitBreaker( )
+    {
+        _tabFailures = new boolean [ Math.max( 1, AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_CIRCUIT_WINDOW, 20 ) )];
+    }
+
+    /**
+     * Ask the permission to call the engine.
+     *
+     * @throws OcrCircuitOpenException
+     *             if the circuit is open
+     */
+    public synchronized void acquirePermission( ) throws OcrCircuitOpenException
+    {
+        if ( !AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_CIRCUIT_ENABLED, true ) )
+        {
+            return;
+        }
+
+        if ( ( _state == State.OPEN ) && ( System.currentTimeMillis( ) >= _lOpenUntil ) )
+        {
+            _state = State.HALF_OPEN;
+            _nTrialCalls = 0;
+            AppLogService.info( "OCR circuit breaker half open." );
+        }
+
+        if ( ( _state == State.OPEN )
+                || ( ( _state == State.HALF_OPEN ) && ( _nTrialCalls >= AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_CIRCUIT_HALF_OPEN_CALLS, 1 ) ) ) )
+        {
+            OcrMetricsService.getInstance( ).increment( COUNTER_REJECTED );
+            throw new OcrCircuitOpenException( I18nService.getLocalizedString( OcrConstants.MESSAGE_CIRCUIT_OPEN, Locale.getDefault( ) ) );
+        }
+
+        if ( _state == State.HALF_OPEN )
+        {
+            _nTrialCalls++;
+        }
+    }
+
+    /**
+     * Record a successful call.
+     */
+    public synchronized void onSuccess( )
+    {
+        if ( _state == State.HALF_OPEN )
+        {
+            AppLogService.info( "OCR circuit breaker closed." );
+            reset( State.CLOSED );
+        }
+        record( false );
+    }
+
+    /**
+     * Record a failed call (error or timeout of the engine).
+     */
+    public synchronized void onFailure( )
+    {
+        if ( _state == State.HALF_OPEN )
+        {
+            open( );
+
+            return;
+        }
+        record( true );
+
+        int nMinCalls = AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_CIRCUIT_MIN_CALLS, 10 );
+        int nFailureRate = AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_CIRCUIT_FAILURE_RATE, 50 );
+        if ( ( _state == State.CLOSED ) && ( _nCalls >= Math.min( nMinCalls, _tabFailures.length ) ) && ( ( _nFailures * 100 ) >= ( nFailureRate * _nCalls ) ) )
+        {
+            open( );
+        }
+    }
+
+    /**
+     * Give back a permission without outcome (the call was cancelled or its budget was exhausted).
+     */
+    public synchronized void onIgnored( )
+    {
+        if ( ( _state == State.HALF_OPEN ) && ( _nTrialCalls > 0 ) )
+        {
+            _nTrialCalls--;
+        }
+    }
+
+    /**
+     * @return the state of the circuit
+     */
+    public synchronized State getState( )
+    {
+        return _state;
+    }
+
+    /**
+     * Open the circuit.
+     */
+    private void open( )
+    {
+        reset( State.OPEN );
+        _lOpenUntil = System.currentTimeMillis( ) + AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_CIRCUIT_OPEN_DURATION, 30000L );
+        OcrMetricsService.getInstance( ).increment( COUNTER_OPENED );
+        AppLogService.error( "OCR circuit breaker opened, the engine keeps failing." );
+    }
+
+    /**
+     * Change the state and forget the previous outcomes.
+     *
+     * @param state
+     *            the new state
+     */
+    private void reset( State state )
+    {
+        _state = state;
+        _nCalls = 0;
+        _nFailures = 0;
+        _nNextPosition = 0;
+    }
+
+    /**
+     * Record an outcome in the window of the last calls.
+     *
+     * @param bFailure
+     *            true for a failure
+     */
+    private void record( boolean bFailure )
+    {
+        if ( _nCalls == _tabFailures.length )
+        {
+            _nFailures -= _tabFailures [_nNextPosition] ? 1 : 0;
+        }
+        else
+        {
+            _nCalls++;
+        }
+        _tabFailures [_nNextPosition] = bFailure;
+        _nFailures += bFailure ? 1 : 0;
+        _nNextPosition = ( _nNextPosition + 1 ) % _tabFailures.length;
+    }
+
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.engine;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import fr.paris.lutece.plugins.ocra2ia.business.ImageBean;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrDeadlineExceededException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrDeadline;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrMetricsService;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrResultListener;
+import fr.paris.lutece.plugins.ocra2ia.service.jfr.OcrStage;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * A single submission of a document to an endpoint, run by an engine worker of the endpoint : open the requests of the document on the channel of the
+ * worker, one for each image and document type, wait for the results and read them. The requests sharing an image share its preparation for the
+ * engine, and all the requests are processed concurrently by the server. The endpoint reserved in the pool is released at the end of the attempt. A
+ * pending attempt may be cancelled from another thread : the cancellation is only recorded, the worker owning the engine objects sees it between two
+ * waits of a result and closes the requests itself; an attempt cancelled before a worker takes it is not run. The attempts of a document share the
+ * streaming of the fields : the first attempt sending a field streams them until it fails, the fields of the other attempts being only returned.
+ *
+ */
+public class EngineAttempt
+{
+
+    /**
+     * Timer of the successful engine calls.
+     */
+    public static final String TIMER_ENGINE_CALL = "engine.call";
+
+    private static final String STAGE_CHANNEL = "channel";
+    private static final String STAGE_REQUEST = "request";
+    private static final String STAGE_RESULT = "result";
+    private static final String COUNTER_CANCELLED = "engine.attempt.cancelled";
+
+    private final EngineEndpoint _endpoint;
+    private final EngineEndpointPool _endpointPool;
+    private final List<EngineRequest> _listRequests;
+    private final List<ImageBean> _listImages = new ArrayList<>( );
+    private final String _strDocumentTypes;
+    private final long _lContentLength;
+    private final String _strModeOcr;
+    private final OcrDeadline _deadline;
+    private final AtomicReference<EngineAttempt> _refStreaming;
+
+    private volatile boolean _bCancelled;
+
+    /**
+     * Constructor.
+     *
+     * @param endpoint
+     *            the endpoint reserved for this attempt
+     * @param endpointPool
+     *            the pool to release the endpoint to
+     * @param listRequests
+     *            requests of the document
+     * @param strModeOcr
+     *            ocr mode
+     * @param deadline
+     *            time budget of the request
+     * @param refStreaming
+     *            attempt streaming the fields of the document, shared by its attempts
+     */
+    public EngineAttempt( EngineEndpoint endpoint, EngineEndpointPool endpointPool, List<EngineRequest> listRequests, String strModeOcr,
+            OcrDeadline deadline, AtomicReference<EngineAttempt> refStreaming )
+    {
+        _endpoint = endpoint;
+        _endpointPool = endpointPool;
+        _listRequests = listRequests;
+        // the images are held until the end of the attempt, even if the request returned the result of another attempt
+        Map<ImageBean, Boolean> mapImages = new IdentityHashMap<>( );
+        long lContentLength = 0;
+        for ( EngineRequest request : listRequests )
+        {
+            if ( mapImages.put( request.getImageBean( ), Boolean.TRUE ) == null )
+            {
+                _listImages.add( request.getImageBean( ).retain( ) );
+                lContentLength += request.getImageBean( ).getContentLength( );
+            }
+        }
+        _lContentLength = lContentLength;
+        _strDocumentTypes = listRequests.stream( ).map( EngineRequest::getDocumentType ).distinct( ).collect( Collectors.joining( "," ) );
+        _strModeOcr = strModeOcr;
+        _deadline = deadline;
+        _refStreaming = refStreaming;
+    }
+
+    /**
+     * @return the endpoint of the attempt
+     */
+    public EngineEndpoint getEndpoint( )
+    {
+        return _endpoint;
+    }
+
+    /**
+     * Run the attempt on an engine worker.
+     *
+     * @param worker
+     *            the worker running the attempt
+     * @return Map result of OCR of each request, in the order of the requests
+     * @throws OcrException
+     *             the OcrException
+     */
+    public List<Map<String, String>> run( EngineWorker worker ) throws OcrException
+    {
+        boolean bEngineSuccess = false;
+        long lStartEngine = System.currentTimeMillis( );
+
+        String strStage = STAGE_CHANNEL;
+        IA2iaEngine engine = null;
+        long [ ] tabRequestIds = null;
+
+        try
+        {
+            checkCancelled( );
+            _deadline.check( strStage );
+            engine = worker.getEngine( );
+            long lChannelTimeout = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_TIMEOUT_CHANNEL, 10000L );
+            long lChannelId = worker.getChannel( _deadline.clamp( lChannelTimeout ), _strDocumentTypes );
+
+            strStage = STAGE_REQUEST;
+            _deadline.check( strStage );
+            OcrStage stageRequest = OcrStage.begin( OcrStage.REQUEST_OPEN, _strDocumentTypes, _lContentLength, _listImages.get( 0 ).getDpi( ) );
+            try
+            {
+                tabRequestIds = engine.openRequests( lChannelId,
+                        _listRequests.stream( ).map( EngineRequest::getTblDocumentPath ).toArray( String [ ]::new ),
+                        _listRequests.stream( ).map( EngineRequest::getImageBean ).toArray( ImageBean [ ]::new ), _strModeOcr,
+                        _deadline.clamp( AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_MAX_TIME_TO_PROCESS_IMAGE, 5 ) * 1000L ) );
+                stageRequest.succeed( );
+            }
+            finally
+            {
+                stageRequest.end( );
+            }
+            checkCancelled( );
+            AppLogService.info( "openRequestA2ia end" );
+
+            // run A2IA OCR engine to get result, the requests being processed concurrently the wait of the first result covers most of the others
+            strStage = STAGE_RESULT;
+            AppLogService.info( "Call a2ia engine begin" );
+            List<Map<String, String>> listOcrServiceResults = new ArrayList<>( );
+            for ( int i = 0; i < tabRequestIds.length; i++ )
+            {
+                _deadline.check( strStage );
+                listOcrServiceResults.add( getResults( engine, lChannelId, tabRequestIds [i], _listRequests.get( i ) ) );
+            }
+            bEngineSuccess = true;
+            OcrMetricsService.getInstance( ).recordTime( TIMER_ENGINE_CALL, System.currentTimeMillis( ) - lStartEngine );
+            AppLogService.info( "Call a2ia engine end" );
+
+            return listOcrServiceResults;
+        }
+        catch( OcrDeadlineExceededException e )
+        {
+            _refStreaming.compareAndSet( this, null );
+            throw e;
+        }
+        catch( Exception e )
+        {
+            // another attempt may stream the fields, its values replacing the ones sent by this attempt
+            _refStreaming.compareAndSet( this, null );
+            // a stage cut short by the time budget is not a failure of the engine
+            if ( _deadline.isExpired( ) && !isCancelled( ) )
+            {
+                throw OcrDeadline.exceeded( strStage );
+            }
+            if ( e instanceof OcrException )
+            {
+                throw (OcrException) e;
+            }
+            throw new OcrException( e.getMessage( ) );
+        }
+        finally
+        {
+            try
+            {
+                if ( tabRequestIds != null )
+                {
+                    closeRequests( engine, tabRequestIds );
+                }
+                if ( !bEngineSuccess && ( engine != null ) )
+                {
+                    // the state of the channel is unknown after a failure
+                    worker.invalidateChannel( );
+                }
+            }
+            finally
+            {
+                _listImages.forEach( ImageBean::release );
+                // a cancelled attempt or an exhausted time budget is not a failure of the endpoint
+                _endpointPool.release( _endpoint, bEngineSuccess || isCancelled( ) || _deadline.isExpired( ),
+                        System.currentTimeMillis( ) - lStartEngine );
+            }
+        }
+    }
+
+    /**
+     * Give back the endpoint and the images of an attempt that will never run.
+     */
+    void abandon( )
+    {
+        _listImages.forEach( ImageBean::release );
+        _endpointPool.release( _endpoint, true, 0 );
+    }
+
+    /**
+     * Cancel the attempt : the worker running it closes its pending requests at the end of the current wait of a result, so that the engine stops
+     * working on them. The engine objects are never called from the cancelling thread.
+     */
+    public void cancel( )
+    {
+        _bCancelled = true;
+    }
+
+    /**
+     * @return true if the attempt was cancelled
+     */
+    public boolean isCancelled( )
+    {
+        return _bCancelled;
+    }
+
+    /**
+     * Stop the attempt if it was cancelled.
+     *
+     * @throws OcrException
+     *             if the attempt was cancelled
+     */
+    private void checkCancelled( ) throws OcrException
+    {
+        if ( _bCancelled )
+        {
+            OcrMetricsService.getInstance( ).increment( COUNTER_CANCELLED );
+            AppLogService.info( "Cancel OCR request on endpoint " + _endpoint.getName( ) );
+            throw new OcrException( "OCR attempt cancelled on endpoint " + _endpoint.getName( ) );
+        }
+    }
+
+    /**
+     * Wait for the result of a request and read it.
+     *
+     * @param engine
+     *            the engine
+     * @param lChannelId
+     *            id of the channel
+     * @param lRequestId
+     *            id of the request
+     * @param request
+     *            the request
+     * @return Map result of OCR
+     * @throws OcrException
+     *             the OcrException
+     */
+    private Map<String, String> getResults( IA2iaEngine engine, long lChannelId, long lRequestId, EngineRequest request ) throws OcrException
+    {
+        long lResultId = IA2iaEngine.RESULT_PENDING;
+        long lTimeout = _deadline.clamp( AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_TIMEOUT_RESULT, 60000L ) );
+        long lPoll = Math.max( 1, AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_TIMEOUT_RESULT_POLL, 500L ) );
+        long lEnd = System.currentTimeMillis( ) + lTimeout;
+        OcrStage stageResult = beginStage( OcrStage.RESULT_GET, request );
+        try
+        {
+            // the result is waited by slices, so that a cancellation is seen by this thread, which owns the engine objects
+            while ( lResultId == IA2iaEngine.RESULT_PENDING )
+            {
+                checkCancelled( );
+                long lRemaining = lEnd - System.currentTimeMillis( );
+                if ( lRemaining <= 0 )
+                {
+                    throw new OcrException( "No result of the OCR engine after " + lTimeout + " ms" );
+                }
+                lResultId = engine.getResult( lChannelId, lRequestId, Math.min( lPoll, lRemaining ) );
+            }
+            stageResult.succeed( );
+        }
+        finally
+        {
+            stageResult.end( );
+        }
+        Map<String, String> mapOcrServiceResults;
+        OcrStage stageExtraction = beginStage( OcrStage.RESULT_EXTRACTION, request );
+        try
+        {
+            mapOcrServiceResults = engine.getResults( request.getDocumentType( ), lResultId, getListener( request ) );
+            stageExtraction.setOutcome( ( ( mapOcrServiceResults == null ) || mapOcrServiceResults.isEmpty( ) ) ? OcrStage.OUTCOME_EMPTY
+                    : OcrStage.OUTCOME_SUCCESS );
+        }
+        finally
+        {
+            stageExtraction.end( );
+        }
+
+        return mapOcrServiceResults;
+    }
+
+    /**
+     * Get the listener given to the engine for a request : the fields are sent to the listener of the request only while this attempt streams them.
+     *
+     * @param request
+     *            the request
+     * @return the listener, null if the request has none
+     */
+    private OcrResultListener getListener( EngineRequest request )
+    {
+        OcrResultListener listener = request.getListener( );
+        if ( listener == null )
+        {
+            return null;
+        }
+
+        return new OcrResultListener( )
+        {
+            @Override
+            public void onField( String strKey, String strValue, double dConfidence )
+            {
+                if ( _refStreaming.compareAndSet( null, EngineAttempt.this ) || ( _refStreaming.get( ) == EngineAttempt.this ) )
+                {
+                    listener.onField( strKey, strValue, dConfidence );
+                }
+            }
+
+            @Override
+            public boolean isCancelled( )
+            {
+                return listener.isCancelled( );
+            }
+
+            @Override
+            public void onComplete( Map<String, String> mapResults )
+            {
+                // the completion is sent by the service once the winning attempt is known
+            }
+
+            @Override
+            public void onError( OcrException exception )
+            {
+                // the failure of an attempt is not the failure of the request
+            }
+        };
+    }
+
+    /**
+     * Begin a stage of a request of the attempt.
+     *
+     * @param strStage
+     *            name of the stage
+     * @param request
+     *            the request
+     * @return the stage
+     */
+    private static OcrStage beginStage( String strStage, EngineRequest request )
+    {
+        return OcrStage.begin( strStage, request.getDocumentType( ), request.getImageBean( ).getContentLength( ), request.getImageBean( ).getDpi( ) );
+    }
+
+    /**
+     * Close the requests of the attempt.
+     *
+     * @param engine
+     *            the engine of the worker
+     * @param tabRequestIds
+     *            ids of the requests
+     */
+    private static void closeRequests( IA2iaEngine engine, long [ ] tabRequestIds )
+    {
+        for ( long lRequestId : tabRequestIds )
+        {
+            engine.closeRequest( lRequestId );
+        }
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.engine;
+
+/**
+ *
+ * An A2IA server with its load and health state. The state is guarded by the EngineEndpointPool monitor.
+ *
+ */
+public class EngineEndpoint
+{
+
+    /**
+     * Health state of an endpoint.
+     */
+    public enum State
+    {
+        /**
+         * The endpoint receives requests.
+         */
+        HEALTHY,
+        /**
+         * The endpoint failed too many times and doesn't receive requests until the end of its ejection.
+         */
+        EJECTED,
+        /**
+         * A single request is sent to an ejected endpoint to check if it has recovered.
+         */
+        PROBING
+    }
+
+    private final String _strName;
+    private final String _strHost;
+    private final String _strPort;
+    private final int _nWeight;
+    private final int _nMaxConcurrency;
+
+    private State _state = State.HEALTHY;
+    private int _nOutstanding;
+    private int _nConsecutiveFailures;
+    private int _nEjections;
+    private long _lEjectedUntil;
+
+    /**
+     * Constructor.
+     *
+     * @param strHost
+     *            host of the server, empty for localhost
+     * @param strPort
+     *            port of the server, empty for localhost
+     * @param nWeight
+     *            weight of the server
+     * @param nMaxConcurrency
+     *            maximum number of requests sent at the same time to the server
+     */
+    public EngineEndpoint( String strHost, String strPort, int nWeight, int nMaxConcurrency )
+    {
+        _strHost = strHost;
+        _strPort = strPort;
+        _nWeight = Math.max( 1, nWeight );
+        _nMaxConcurrency = Math.max( 1, nMaxConcurrency );
+        _strName = strHost.isEmpty( ) ? "localhost" : ( strHost + ( strPort.isEmpty( ) ? "" : ( "_" + strPort ) ) );
+    }
+
+    /**
+     * Copy constructor, used to take a consistent snapshot of the state of an endpoint.
+     *
+     * @param endpoint
+     *            the endpoint to copy
+     */
+    EngineEndpoint( EngineEndpoint endpoint )
+    {
+        this( endpoint._strHost, endpoint._strPort, endpoint._nWeight, endpoint._nMaxConcurrency );
+        _state = endpoint._state;
+        _nOutstanding = endpoint._nOutstanding;
+        _nConsecutiveFailures = endpoint._nConsecutiveFailures;
+        _nEjections = endpoint._nEjections;
+        _lEjectedUntil = endpoint._lEjectedUntil;
+    }
+
+    /**
+     * @return the name of the endpoint, used in metrics
+     */
+    public String getName( )
+    {
+        return _strName;
+    }
+
+    /**
+     * @return the host
+     */
+    public String getHost( )
+    {
+        return _strHost;
+    }
+
+    /**
+     * @return the port
+     */
+    public String getPort( )
+    {
+        return _strPort;
+    }
+
+    /**
+     * @return the weight
+     */
+    public int getWeight( )
+    {
+        return _nWeight;
+    }
+
+    /**
+     * @return the maximum number of requests sent at the same time
+     */
+    public int getMaxConcurrency( )
+    {
+        return _nMaxConcurrency;
+    }
+
+    /**
+     * @return the health state
+     */
+    public State getState( )
+    {
+        return _state;
+    }
+
+    /**
+     * @param state
+     *            the health state to set
+     */
+    void setState( State state )
+    {
+        _state = state;
+    }
+
+    /**
+     * @return the number of requests in progress
+     */
+    public int getOutstanding( )
+    {
+        return _nOutstanding;
+    }
+
+    /**
+     * @param nOutstanding
+     *            the number of requests in progress to set
+     */
+    void setOutstanding( int nOutstanding )
+    {
+        _nOutstanding = nOutstanding;
+    }
+
+    /**
+     * @return the number of failures since the last success
+     */
+    public int getConsecutiveFailures( )
+    {
+        return _nConsecutiveFailures;
+    }
+
+    /**
+     * @param nConsecutiveFailures
+     *            the number of failures since the last success to set
+     */
+    void setConsecutiveFailures( int nConsecutiveFailures )
+    {
+        _nConsecutiveFailures = nConsecutiveFailures;
+    }
+
+    /**
+     * @return the number of ejections since the last recovery
+     */
+    public int getEjections( )
+    {
+        return _nEjections;
+    }
+
+    /**
+     * @param nEjections
+     *            the number of ejections since the last recovery to set
+     */
+    void setEjections( int nEjections )
+    {
+        _nEjections = nEjections;
+    }
+
+    /**
+     * @return the end of the ejection (epoch in milliseconds)
+     */
+    public long getEjectedUntil( )
+    {
+        return _lEjectedUntil;
+    }
+
+    /**
+     * @param lEjectedUntil
+     *            the end of the ejection to set
+     */
+    void setEjectedUntil( long lEjectedUntil )
+    {
+        _lEjectedUntil = lEjectedUntil;
+    }
+
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.lang.StringUtils;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrInterruptedException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrMetricsService;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.i18n.I18nService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Client side load balancing across the A2IA servers. A request is routed to the endpoint with the least outstanding requests relative to its
+ * weight, within the concurrency limit of each endpoint. An endpoint failing several times in a row is ejected for a while, then a single probe
+ * request checks if it has recovered; each failed probe doubles the ejection duration.
+ *
+ */
+public class EngineEndpointPool
+{
+
+    private static final String SEPARATOR_ENDPOINTS = ",";
+    private static final String SEPARATOR_FIELDS = ":";
+    private static final String COUNTER_PREFIX = "endpoint.";
+    private static final String COUNTER_UNAVAILABLE = "endpoint.unavailable";
+
+    private final List<EngineEndpoint> _listEndpoints;
+    private final int _nEjectFailures;
+    private final long _lEjectDuration;
+    private final long _lEjectMaxDuration;
+
+    /**
+     * Position of the first endpoint examined by the next selection, so that endpoints with the same score are used in turn.
+     */
+    private int _nNextPosition;
+
+    /**
+     * Constructor, the endpoints are read from ocra2ia.server.endpoints or from ocra2ia.server.host and ocra2ia.server.port when no list is
+     * configured.
+     */
+    public EngineEndpointPool( )
+    {
+        this( readEndpoints( ) );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param listEndpoints
+     *            the endpoints
+     */
+    public EngineEndpointPool( List<EngineEndpoint> listEndpoints )
+    {
+        _listEndpoints = new ArrayList<>( listEndpoints );
+        _nEjectFailures = Math.max( 1, AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_SERVER_EJECT_FAILURES, 3 ) );
+        _lEjectDuration = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_SERVER_EJECT_DURATION, 30000L );
+        _lEjectMaxDuration = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_SERVER_EJECT_MAX_DURATION, 300000L );
+        _listEndpoints.forEach( endpoint -> AppLogService.info( "A2ia endpoint " + endpoint.getName( ) + " weight " + endpoint.getWeight( )
+                + " max concurrency " + endpoint.getMaxConcurrency( ) ) );
+    }
+
+    /**
+     * Select an endpoint and reserve a slot on it. Waits when all the available endpoints are at their concurrency limit.
+     *
+     * @param lTimeoutMs
+     *            maximum time to wait in milliseconds
+     * @return the endpoint, to give back with release
+     * @throws OcrException
+     *             if no endpoint is available before the timeout or all the endpoints are ejected
+     */
+    public synchronized EngineEndpoint acquire( long lTimeoutMs ) throws OcrException
+    {
+        long lDeadline = System.currentTimeMillis( ) + lTimeoutMs;
+
+        while ( true )
+        {
+            long lNow = System.currentTimeMillis( );
+            EngineEndpoint endpoint = select( lNow, null );
+            if ( endpoint != null )
+            {
+                endpoint.setOutstanding( endpoint.getOutstanding( ) + 1 );
+                OcrMetricsService.getInstance( ).increment( COUNTER_PREFIX + endpoint.getName( ) + ".selected" );
+
+                return endpoint;
+            }
+
+            long lWait = Math.min( lDeadline, getNextEjectionEnd( ) ) - lNow;
+            if ( ( lNow >= lDeadline ) || !canBecomeAvailable( ) )
+            {
+                OcrMetricsService.getInstance( ).increment( COUNTER_UNAVAILABLE );
+                AppLogService.error( "No A2ia endpoint available." );
+                throw new OcrException( I18nService.getLocalizedString( OcrConstants.MESSAGE_NO_ENDPOINT_AVAILABLE, Locale.getDefault( ) ) );
+            }
+
+            try
+            {
+                wait( Math.max( 1, lWait ) );
+            }
+            catch( InterruptedException e )
+            {
+                throw new OcrInterruptedException( e.getMessage( ) );
+            }
+        }
+    }
+
+    /**
+     * Select an endpoint and reserve a slot on it without waiting. An endpoint other than the given one is preferred.
+     *
+     * @param endpointAvoided
+     *            endpoint selected only if no other endpoint is available, may be null
+     * @return the endpoint, to give back with release, null if no endpoint is available
+     */
+    public synchronized EngineEndpoint tryAcquire( EngineEndpoint endpointAvoided )
+    {
+        long lNow = System.currentTimeMillis( );
+        EngineEndpoint endpoint = select( lNow, endpointAvoided );
+        if ( ( endpoint == null ) && ( endpointAvoided != null ) )
+        {
+            endpoint = select( lNow, null );
+        }
+        if ( endpoint != null )
+        {
+            endpoint.setOutstanding( endpoint.getOutstanding( ) + 1 );
+            OcrMetricsService.getInstance( ).increment( COUNTER_PREFIX + endpoint.getName( ) + ".selected" );
+        }
+
+        return endpoint;
+    }
+
+    /**
+     * Give back an endpoint reserved with acquire, and update its health state.
+     *
+     * @param endpoint
+     *            the endpoint
+     * @param bSuccess
+     *            true if the engine answered, false if the call failed
+     * @param lDurationMs
+     *            duration of the call in milliseconds
+     */
+    public synchronized void release( EngineEndpoint endpoint, boolean bSuccess, long lDurationMs )
+    {
+        String strCounterPrefix = COUNTER_PREFIX + endpoint.getName( );
+        endpoint.setOutstanding( endpoint.getOutstanding( ) - 1 );
+        OcrMetricsService.getInstance( ).recordTime( strCounterPrefix, lDurationMs );
+
+        if ( bSuccess )
+        {
+            OcrMetricsService.getInstance( ).increment( strCounterPrefix + ".success" );
+            endpoint.setConsecutiveFailures( 0 );
+            if ( endpoint.getState( ) == EngineEndpoint.State.PROBING )
+            {
+                endpoint.setState( EngineEndpoint.State.HEALTHY );
+                endpoint.setEjections( 0 );
+                OcrMetricsService.getInstance( ).increment( strCounterPrefix + ".recovered" );
+                AppLogService.info( "A2ia endpoint " + endpoint.getName( ) + " recovered." );
+            }
+        }
+        else
+        {
+            OcrMetricsService.getInstance( ).increment( strCounterPrefix + ".failure" );
+            endpoint.setConsecutiveFailures( endpoint.getConsecutiveFailures( ) + 1 );
+            if ( ( endpoint.getState( ) == EngineEndpoint.State.PROBING )
+                    || ( ( endpoint.getState( ) == EngineEndpoint.State.HEALTHY ) && ( endpoint.getConsecutiveFailures( ) >= _nEjectFailures ) ) )
+            {
+                eject( endpoint );
+            }
+        }
+
+        notifyAll( );
+    }
+
+    /**
+     * Get the endpoints.
+     *
+     * @return the endpoints
+     */
+    public List<EngineEndpoint> getEndpoints( )
+    {
+        return Collections.unmodifiableList( _listEndpoints );
+    }
+
+    /**
+     * Get a copy of the endpoints taken under the pool monitor, so that the state, outstanding requests and failures of each endpoint are consistent.
+     *
+     * @return the copies of the endpoints
+     */
+    public synchronized List<EngineEndpoint> getEndpointsSnapshot( )
+    {
+        List<EngineEndpoint> listSnapshot = new ArrayList<>( _listEndpoints.size( ) );
+        _listEndpoints.forEach( endpoint -> listSnapshot.add( new EngineEndpoint( endpoint ) ) );
+
+        return listSnapshot;
+    }
+
+    /**
+     * Select the best endpoint. An ejected endpoint at the end of its ejection is selected first, as a probe.
+     *
+     * @param lNow
+     *            current time
+     * @param endpointExcluded
+     *            endpoint not to select, may be null
+     * @return the endpoint, null if no endpoint is available
+     */
+    private EngineEndpoint select( long lNow, EngineEndpoint endpointExcluded )
+    {
+        EngineEndpoint endpointSelected = null;
+        double dBestScore = Double.MAX_VALUE;
+        int nSize = _listEndpoints.size( );
+
+        for ( int i = 0; i < nSize; i++ )
+        {
+            EngineEndpoint endpoint = _listEndpoints.get( ( _nNextPosition + i ) % nSize );
+            if ( endpoint == endpointExcluded )
+            {
+                continue;
+            }
+            if ( endpoint.getState( ) == EngineEndpoint.State.EJECTED )
+            {
+                if ( ( lNow >= endpoint.getEjectedUntil( ) ) && ( endpoint.getOutstanding( ) == 0 ) )
+                {
+                    endpoint.setState( EngineEndpoint.State.PROBING );
+                    AppLogService.info( "Probing A2ia endpoint " + endpoint.getName( ) + "." );
+                    _nNextPosition = ( _nNextPosition + 1 ) % nSize;
+
+                    return endpoint;
+                }
+                continue;
+            }
+            if ( ( endpoint.getState( ) == EngineEndpoint.State.PROBING ) || ( endpoint.getOutstanding( ) >= endpoint.getMaxConcurrency( ) ) )
+            {
+                continue;
+            }
+
+            double dScore = ( endpoint.getOutstanding( ) + 1 ) / (double) endpoint.getWeight( );
+            if ( dScore < dBestScore )
+            {
+                dBestScore = dScore;
+                endpointSelected = endpoint;
+            }
+        }
+
+        _nNextPosition = ( _nNextPosition + 1 ) % Math.max( 1, nSize );
+
+        return endpointSelected;
+    }
+
+    /**
+     * Eject an endpoint. The duration of the ejection doubles with each consecutive ejection.
+     *
+     * @param endpoint
+     *            the endpoint
+     */
+    private void eject( EngineEndpoint endpoint )
+    {
+        int nEjections = endpoint.getEjections( ) + 1;
+        long lDuration = Math.min( _lEjectMaxDuration, _lEjectDuration << Math.min( nEjections - 1, 20 ) );
+        endpoint.setEjections( nEjections );
+        endpoint.setState( EngineEndpoint.State.EJECTED );
+        endpoint.setEjectedUntil( System.currentTimeMillis( ) + lDuration );
+        OcrMetricsService.getInstance( ).increment( COUNTER_PREFIX + endpoint.getName( ) + ".ejected" );
+        AppLogService.error( "A2ia endpoint " + endpoint.getName( ) + " ejected for " + lDuration + " ms after " + endpoint.getConsecutiveFailures( )
+                + " consecutive failures." );
+    }
+
+    /**
+     * Test if an endpoint may become available by waiting : an endpoint is healthy or a probe is in progress.
+     *
+     * @return true if waiting is useful
+     */
+    private boolean canBecomeAvailable( )
+    {
+        return _listEndpoints.stream( ).anyMatch( endpoint -> endpoint.getState( ) != EngineEndpoint.State.EJECTED );
+    }
+
+    /**
+     * Get the nearest end of ejection.
+     *
+     * @return the nearest end of ejection, Long.MAX_VALUE if no endpoint is ejected
+     */
+    private long getNextEjectionEnd( )
+    {
+        return _listEndpoints.stream( ).filter( endpoint -> endpoint.getState( ) == EngineEndpoint.State.EJECTED )
+                .mapToLong( EngineEndpoint::getEjectedUntil ).min( ).orElse( Long.MAX_VALUE );
+    }
+
+    /**
+     * Read the endpoints from the configuration. Format of ocra2ia.server.endpoints : host:port:weight:maxConcurrency separated by commas, weight
+     * and maxConcurrency are optional.
+     *
+     * @return the endpoints
+     */
+    private static List<EngineEndpoint> readEndpoints( )
+    {
+        int nDefaultMaxConcurrency = AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_SERVER_MAX_CONCURRENCY, 1 );
+        String strEndpoints = AppPropertiesService.getProperty( OcrConstants.PROPERTY_SERVER_ENDPOINTS, StringUtils.EMPTY );
+        List<EngineEndpoint> listEndpoints = new ArrayList<>( );
+
+        for ( String strEndpoint : strEndpoints.split( SEPARATOR_ENDPOINTS ) )
+        {
+            if ( StringUtils.isBlank( strEndpoint ) )
+            {
+                continue;
+            }
+
+            String [ ] tabFields = strEndpoint.trim( ).split( SEPARATOR_FIELDS );
+            try
+            {
+                String strPort = ( tabFields.length > 1 ) ? tabFields [1].trim( ) : StringUtils.EMPTY;
+                int nWeight = ( tabFields.length > 2 ) ? Integer.parseInt( tabFields [2].trim( ) ) : 1;
+                int nMaxConcurrency = ( tabFields.length > 3 ) ? Integer.parseInt( tabFields [3].trim( ) ) : nDefaultMaxConcurrency;
+                listEndpoints.add( new EngineEndpoint( tabFields [0].trim( ), strPort, nWeight, nMaxConcurrency ) );
+            }
+            catch( NumberFormatException e )
+            {
+                AppLogService.error( "Bad value for A2ia endpoint " + strEndpoint + ", endpoint ignored.", e );
+            }
+        }
+
+        if ( listEndpoints.isEmpty( ) )
+        {
+            String strHost = AppPropertiesService.getProperty( OcrConstants.PROPERTY_A2IA_SERVER_HOST, StringUtils.EMPTY ).trim( );
+            String strPort = AppPropertiesService.getProperty( OcrConstants.PROPERTY_A2IA_SERVER_PORT, StringUtils.EMPTY ).trim( );
+            listEndpoints.add( new EngineEndpoint( strHost, strPort, 1, nDefaultMaxConcurrency ) );
+        }
+
+        return listEndpoints;
+    }
+
+}
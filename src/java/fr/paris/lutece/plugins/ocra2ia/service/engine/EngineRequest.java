@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.engine;
+
+import fr.paris.lutece.plugins.ocra2ia.business.ImageBean;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrResultListener;
+
+/**
+ *
+ * A request of an engine call : an image to read with the tbl document of a document type. The requests of a call are opened on the same channel, an
+ * image shared by several requests being prepared once for the engine.
+ *
+ */
+public class EngineRequest
+{
+
+    private final String _strDocumentType;
+    private final String _strTblDocumentPath;
+    private final ImageBean _imageBean;
+    private final OcrResultListener _listener;
+
+    /**
+     * Constructor.
+     *
+     * @param strDocumentType
+     *            document type
+     * @param strTblDocumentPath
+     *            tbl document of the document type
+     * @param imageBean
+     *            image to process
+     */
+    public EngineRequest( String strDocumentType, String strTblDocumentPath, ImageBean imageBean )
+    {
+        this( strDocumentType, strTblDocumentPath, imageBean, null );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param strDocumentType
+     *            document type
+     * @param strTblDocumentPath
+     *            tbl document of the document type
+     * @param imageBean
+     *            image to process
+     * @param listener
+     *            listener of the fields of the result as they are read, may be null
+     */
+    public EngineRequest( String strDocumentType, String strTblDocumentPath, ImageBean imageBean, OcrResultListener listener )
+    {
+        _strDocumentType = strDocumentType;
+        _strTblDocumentPath = strTblDocumentPath;
+        _imageBean = imageBean;
+        _listener = listener;
+    }
+
+    /**
+     * @return the document type
+     */
+    public String getDocumentType( )
+    {
+        return _strDocumentType;
+    }
+
+    /**
+     * @return the tbl document of the document type
+     */
+    public String getTblDocumentPath( )
+    {
+        return _strTblDocumentPath;
+    }
+
+    /**
+     * @return the image to process
+     */
+    public ImageBean getImageBean( )
+    {
+        return _imageBean;
+    }
+
+    /**
+     * @return the listener of the fields of the result, null if none
+     */
+    public OcrResultListener getListener( )
+    {
+        return _listener;
+    }
+
+}
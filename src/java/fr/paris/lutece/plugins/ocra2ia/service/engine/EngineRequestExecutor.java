@@ -0,0 +1,449 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import fr.paris.lutece.plugins.ocra2ia.business.ImageBean;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrCircuitOpenException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrDeadlineExceededException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrInputRejectedException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrInterruptedException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrDeadline;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrMetricsService;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Submit a document to the engine workers, within the time budget of the request and behind a circuit breaker. When hedging is enabled, the document
+ * is submitted again to another channel, preferably on another endpoint, if the first submission hasn't completed after the hedging delay : the first
+ * result wins and the other submission is cancelled.
+ *
+ */
+public class EngineRequestExecutor
+{
+
+    private static final String STAGE_ENDPOINT = "endpoint";
+    private static final String STAGE_RESULT = "result";
+    private static final String COUNTER_HEDGE_LAUNCHED = "hedging.launched";
+    private static final String COUNTER_HEDGE_WON = "hedging.won";
+    private static final String COUNTER_HEDGE_BUDGET_EXHAUSTED = "hedging.budget.exhausted";
+    private static final String COUNTER_HEDGE_NO_ENDPOINT = "hedging.endpoint.unavailable";
+
+    private final EngineEndpointPool _endpointPool;
+    private final EngineWorkerPool _workerPool;
+    private final HedgingPolicy _hedgingPolicy = new HedgingPolicy( );
+    private final CircuitBreaker _circuitBreaker = new CircuitBreaker( );
+
+    /**
+     * Constructor.
+     *
+     * @param endpointPool
+     *            the A2ia servers
+     * @param engineFactory
+     *            create the engine object of each engine worker
+     */
+    public EngineRequestExecutor( EngineEndpointPool endpointPool, Supplier<IA2iaEngine> engineFactory )
+    {
+        _endpointPool = endpointPool;
+        _workerPool = new EngineWorkerPool( endpointPool.getEndpoints( ), engineFactory );
+    }
+
+    /**
+     * Ask the circuit breaker the permission to call the engine. It is asked before the request waits for an engine slot, so that the requests fail
+     * fast while the circuit is open. The permission is consumed by execute, or given back with releasePermission if the request never reaches the
+     * engine.
+     *
+     * @throws OcrCircuitOpenException
+     *             if the circuit is open
+     */
+    public void acquirePermission( ) throws OcrCircuitOpenException
+    {
+        _circuitBreaker.acquirePermission( );
+    }
+
+    /**
+     * Give back a permission of the circuit breaker without calling the engine.
+     */
+    public void releasePermission( )
+    {
+        _circuitBreaker.onIgnored( );
+    }
+
+    /**
+     * Submit a document to the engine and get the results. The permission of the circuit breaker must have been acquired.
+     *
+     * @param imageBean
+     *            image to process
+     * @param strTblDocumentPath
+     *            tbl document of the document type
+     * @param strDocumentType
+     *            document type
+     * @param strModeOcr
+     *            ocr mode
+     * @param deadline
+     *            time budget of the request
+     * @return Map result of OCR
+     * @throws OcrException
+     *             the OcrException
+     */
+    public Map<String, String> execute( ImageBean imageBean, String strTblDocumentPath, String strDocumentType, String strModeOcr,
+            OcrDeadline deadline )
+            throws OcrException
+    {
+        return execute( Collections.singletonList( new EngineRequest( strDocumentType, strTblDocumentPath, imageBean ) ), strModeOcr, deadline )
+                .get( 0 );
+    }
+
+    /**
+     * Submit the requests of a document to the engine and get the results : the requests are opened on the same channel, an image shared by several
+     * requests being prepared once for the engine. The permission of the circuit breaker must have been acquired, the outcome of the engine call is
+     * recorded by the circuit breaker.
+     *
+     * @param listRequests
+     *            requests of the document, one for each image and document type
+     * @param strModeOcr
+     *            ocr mode
+     * @param deadline
+     *            time budget of the request
+     * @return Map result of OCR of each request, in the order of the requests
+     * @throws OcrException
+     *             the OcrException
+     */
+    public List<Map<String, String>> execute( List<EngineRequest> listRequests, String strModeOcr, OcrDeadline deadline ) throws OcrException
+    {
+        try
+        {
+            List<Map<String, String>> listResults = executeAttempts( listRequests, strModeOcr, deadline );
+            _circuitBreaker.onSuccess( );
+
+            return listResults;
+        }
+        catch( OcrException e )
+        {
+            if ( isEngineFailure( e ) )
+            {
+                _circuitBreaker.onFailure( );
+            }
+            else
+            {
+                _circuitBreaker.onIgnored( );
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Tell whether an exception is a failure of the engine or of its endpoints : an exhausted time budget, an interruption or a rejected document
+     * say nothing of the health of the engine.
+     *
+     * @param exception
+     *            the exception of the engine call
+     * @return true if the exception counts as a failure for the circuit breaker
+     */
+    private static boolean isEngineFailure( OcrException exception )
+    {
+        return !( exception instanceof OcrDeadlineExceededException ) && !( exception instanceof OcrInterruptedException )
+                && !( exception instanceof OcrInputRejectedException ) && !( exception instanceof OcrCircuitOpenException )
+                && !Thread.currentThread( ).isInterrupted( );
+    }
+
+    /**
+     * @return the circuit breaker around the engine calls
+     */
+    public CircuitBreaker getCircuitBreaker( )
+    {
+        return _circuitBreaker;
+    }
+
+    /**
+     * Get the pool of the engine endpoints.
+     *
+     * @return the endpoint pool
+     */
+    public EngineEndpointPool getEndpointPool( )
+    {
+        return _endpointPool;
+    }
+
+    /**
+     * Stop the engine workers.
+     */
+    public void shutdown( )
+    {
+        _workerPool.shutdown( );
+    }
+
+    /**
+     * Submit a document to the engine, with a hedge attempt if enabled.
+     *
+     * @param listRequests
+     *            requests of the document
+     * @param strModeOcr
+     *            ocr mode
+     * @param deadline
+     *            time budget of the request
+     * @return Map result of OCR of each request
+     * @throws OcrException
+     *             the OcrException
+     */
+    private List<Map<String, String>> executeAttempts( List<EngineRequest> listRequests, String strModeOcr, OcrDeadline deadline ) throws OcrException
+    {
+        deadline.check( STAGE_ENDPOINT );
+        EngineEndpoint endpoint;
+        try
+        {
+            endpoint = _endpointPool
+                    .acquire( deadline.clamp( AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_SERVER_ACQUIRE_TIMEOUT, 60000L ) ) );
+        }
+        catch( OcrException e )
+        {
+            if ( deadline.isExpired( ) )
+            {
+                throw OcrDeadline.exceeded( STAGE_ENDPOINT );
+            }
+            throw e;
+        }
+
+        BlockingQueue<Future<List<Map<String, String>>>> queueCompleted = new LinkedBlockingQueue<>( );
+        List<EngineAttempt> listAttempts = new ArrayList<>( );
+        List<Future<List<Map<String, String>>>> listFutures = new ArrayList<>( );
+        AtomicReference<EngineAttempt> refStreaming = new AtomicReference<>( );
+        EngineAttempt attemptPrimary = submit( queueCompleted, endpoint, listRequests, strModeOcr, deadline, listAttempts, listFutures,
+                refStreaming );
+
+        try
+        {
+            if ( _hedgingPolicy.isEnabled( ) )
+            {
+                _hedgingPolicy.onRequest( );
+                Future<List<Map<String, String>>> futureDone = queueCompleted.poll( deadline.clamp( _hedgingPolicy.getDelay( ) ),
+                        TimeUnit.MILLISECONDS );
+                if ( futureDone != null )
+                {
+                    return getResult( futureDone );
+                }
+
+                if ( !deadline.isExpired( ) )
+                {
+                    submitHedge( queueCompleted, attemptPrimary, listRequests, strModeOcr, deadline, listAttempts, listFutures, refStreaming );
+                }
+            }
+
+            OcrException lastException = null;
+            long lTimeout = deadline.clamp( AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_TIMEOUT_ATTEMPT, 120000L ) );
+            long lEnd = System.currentTimeMillis( ) + lTimeout;
+            for ( int nPending = listAttempts.size( ); nPending > 0; nPending-- )
+            {
+                Future<List<Map<String, String>>> futureDone = queueCompleted.poll( Math.max( 0, lEnd - System.currentTimeMillis( ) ),
+                        TimeUnit.MILLISECONDS );
+                if ( futureDone == null )
+                {
+                    // the attempts still running are cancelled by the finally block
+                    if ( deadline.isExpired( ) )
+                    {
+                        throw OcrDeadline.exceeded( STAGE_RESULT );
+                    }
+                    throw new OcrException( "No answer of the OCR engine workers after " + lTimeout + " ms" );
+                }
+                try
+                {
+                    List<Map<String, String>> listResults = getResult( futureDone );
+                    if ( ( listFutures.size( ) > 1 ) && ( futureDone == listFutures.get( 1 ) ) )
+                    {
+                        OcrMetricsService.getInstance( ).increment( COUNTER_HEDGE_WON );
+                    }
+
+                    return listResults;
+                }
+                catch( OcrException e )
+                {
+                    lastException = e;
+                }
+            }
+
+            throw lastException;
+        }
+        catch( InterruptedException e )
+        {
+            throw new OcrInterruptedException( e.getMessage( ) );
+        }
+        finally
+        {
+            // the losers stop working on the document
+            listAttempts.forEach( EngineAttempt::cancel );
+        }
+    }
+
+    /**
+     * Submit a hedge attempt if the budget allows it and a channel is available.
+     *
+     * @param queueCompleted
+     *            queue of the completed attempts
+     * @param attemptPrimary
+     *            the primary attempt
+     * @param listRequests
+     *            requests of the document
+     * @param strModeOcr
+     *            ocr mode
+     * @param deadline
+     *            time budget of the request
+     * @param listAttempts
+     *            attempts submitted
+     * @param listFutures
+     *            futures of the attempts submitted
+     * @param refStreaming
+     *            attempt streaming the fields of the document
+     */
+    private void submitHedge( BlockingQueue<Future<List<Map<String, String>>>> queueCompleted, EngineAttempt attemptPrimary,
+            List<EngineRequest> listRequests, String strModeOcr, OcrDeadline deadline, List<EngineAttempt> listAttempts,
+            List<Future<List<Map<String, String>>>> listFutures, AtomicReference<EngineAttempt> refStreaming )
+    {
+        if ( !_hedgingPolicy.tryAcquireHedge( ) )
+        {
+            OcrMetricsService.getInstance( ).increment( COUNTER_HEDGE_BUDGET_EXHAUSTED );
+
+            return;
+        }
+
+        EngineEndpoint endpointHedge = _endpointPool.tryAcquire( attemptPrimary.getEndpoint( ) );
+        if ( endpointHedge == null )
+        {
+            // the budget is kept for the next slow request
+            _hedgingPolicy.releaseHedge( );
+            OcrMetricsService.getInstance( ).increment( COUNTER_HEDGE_NO_ENDPOINT );
+
+            return;
+        }
+
+        AppLogService.info( "OCR request slow on endpoint " + attemptPrimary.getEndpoint( ).getName( ) + ", hedge request sent to endpoint "
+                + endpointHedge.getName( ) );
+        OcrMetricsService.getInstance( ).increment( COUNTER_HEDGE_LAUNCHED );
+        submit( queueCompleted, endpointHedge, listRequests, strModeOcr, deadline, listAttempts, listFutures, refStreaming );
+    }
+
+    /**
+     * Hand off an attempt to the engine workers.
+     *
+     * @param queueCompleted
+     *            queue of the completed attempts
+     * @param endpoint
+     *            endpoint reserved for the attempt
+     * @param listRequests
+     *            requests of the document
+     * @param strModeOcr
+     *            ocr mode
+     * @param deadline
+     *            time budget of the request
+     * @param listAttempts
+     *            attempts submitted
+     * @param listFutures
+     *            futures of the attempts submitted
+     * @param refStreaming
+     *            attempt streaming the fields of the document
+     * @return the attempt
+     */
+    private EngineAttempt submit( BlockingQueue<Future<List<Map<String, String>>>> queueCompleted, EngineEndpoint endpoint,
+            List<EngineRequest> listRequests, String strModeOcr, OcrDeadline deadline, List<EngineAttempt> listAttempts,
+            List<Future<List<Map<String, String>>>> listFutures, AtomicReference<EngineAttempt> refStreaming )
+    {
+        EngineAttempt attempt = createAttempt( endpoint, listRequests, strModeOcr, deadline, refStreaming );
+        listAttempts.add( attempt );
+        listFutures.add( _workerPool.submit( attempt, queueCompleted ) );
+
+        return attempt;
+    }
+
+    /**
+     * Create an attempt.
+     *
+     * @param endpoint
+     *            endpoint reserved for the attempt
+     * @param listRequests
+     *            requests of the document
+     * @param strModeOcr
+     *            ocr mode
+     * @param deadline
+     *            time budget of the request
+     * @param refStreaming
+     *            attempt streaming the fields of the document
+     * @return the attempt
+     */
+    private EngineAttempt createAttempt( EngineEndpoint endpoint, List<EngineRequest> listRequests, String strModeOcr, OcrDeadline deadline,
+            AtomicReference<EngineAttempt> refStreaming )
+    {
+        return new EngineAttempt( endpoint, _endpointPool, listRequests, strModeOcr, deadline, refStreaming );
+    }
+
+    /**
+     * Get the result of a completed attempt.
+     *
+     * @param future
+     *            future of the attempt
+     * @return Map result of OCR of each request
+     * @throws OcrException
+     *             the exception of the attempt
+     * @throws InterruptedException
+     *             if interrupted
+     */
+    private static List<Map<String, String>> getResult( Future<List<Map<String, String>>> future ) throws OcrException, InterruptedException
+    {
+        try
+        {
+            return future.get( );
+        }
+        catch( ExecutionException e )
+        {
+            if ( e.getCause( ) instanceof OcrException )
+            {
+                throw (OcrException) e.getCause( );
+            }
+            throw new OcrException( e.getCause( ).getMessage( ) );
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.engine;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrMetricsService;
+import fr.paris.lutece.plugins.ocra2ia.service.jfr.OcrStage;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ *
+ * Engine worker thread of an endpoint. The worker creates its engine object once, in its own thread (which initializes COM for the Jacob engine), keeps a
+ * channel open to its endpoint and runs the attempts handed off by the worker pool. The channel is reopened after a failed attempt.
+ *
+ */
+public class EngineWorker implements Runnable
+{
+
+    private static final String COUNTER_CHANNEL_OPENED = "engine.channel.opened";
+
+    private final EngineEndpoint _endpoint;
+    private final BlockingQueue<EngineWorkerPool.EngineTask> _queueTasks;
+    private final Supplier<IA2iaEngine> _engineFactory;
+
+    /**
+     * Engine object owned by the worker, created on first use.
+     */
+    private IA2iaEngine _engine;
+
+    /**
+     * Channel open to the endpoint, null if no channel is open.
+     */
+    private Long _lChannelId;
+
+    /**
+     * Constructor.
+     *
+     * @param endpoint
+     *            endpoint of the worker
+     * @param queueTasks
+     *            hand-off queue of the endpoint
+     * @param engineFactory
+     *            create the engine object of the worker
+     */
+    EngineWorker( EngineEndpoint endpoint, BlockingQueue<EngineWorkerPool.EngineTask> queueTasks, Supplier<IA2iaEngine> engineFactory )
+    {
+        _endpoint = endpoint;
+        _queueTasks = queueTasks;
+        _engineFactory = engineFactory;
+    }
+
+    /**
+     * Run the attempts until the worker is interrupted.
+     */
+    @Override
+    public void run( )
+    {
+        try
+        {
+            while ( !Thread.currentThread( ).isInterrupted( ) )
+            {
+                // a task never lets an exception or an error escape, the worker outlives it
+                _queueTasks.take( ).execute( this );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread( ).interrupt( );
+        }
+        finally
+        {
+            release( );
+        }
+    }
+
+    /**
+     * Get the engine object of the worker, created on first use.
+     *
+     * @return the engine
+     */
+    IA2iaEngine getEngine( )
+    {
+        if ( _engine == null )
+        {
+            _engine = _engineFactory.get( );
+        }
+
+        return _engine;
+    }
+
+    /**
+     * Get the channel of the worker, opened if needed.
+     *
+     * @param lTimeoutMs
+     *            timeout in milliseconds to open the channel
+     * @param strDocumentType
+     *            document type of the request needing the channel
+     * @return id of the channel
+     * @throws OcrException
+     *             the OcrException
+     */
+    long getChannel( long lTimeoutMs, String strDocumentType ) throws OcrException
+    {
+        if ( _lChannelId == null )
+        {
+            AppLogService.info( "openChannelA2ia begin on endpoint " + _endpoint.getName( ) );
+            OcrStage stage = OcrStage.begin( OcrStage.CHANNEL_OPEN, strDocumentType, 0, 0 );
+            try
+            {
+                _lChannelId = getEngine( ).openChannel( _endpoint, lTimeoutMs );
+                stage.succeed( );
+            }
+            finally
+            {
+                stage.end( );
+            }
+            OcrMetricsService.getInstance( ).increment( COUNTER_CHANNEL_OPENED );
+            AppLogService.info( "openChannelA2ia end" );
+        }
+
+        return _lChannelId;
+    }
+
+    /**
+     * Close the channel after a failure, the next attempt opens a new one.
+     */
+    void invalidateChannel( )
+    {
+        if ( _lChannelId != null )
+        {
+            try
+            {
+                _engine.closeChannel( _lChannelId );
+            }
+            catch( RuntimeException e )
+            {
+                AppLogService.error( "Error closing A2ia channel on endpoint " + _endpoint.getName( ) + " : " + e.getMessage( ) );
+            }
+            _lChannelId = null;
+        }
+    }
+
+    /**
+     * Close the channel and release the engine object.
+     */
+    private void release( )
+    {
+        if ( _engine != null )
+        {
+            invalidateChannel( );
+            try
+            {
+                _engine.release( );
+            }
+            catch( RuntimeException e )
+            {
+                AppLogService.error( "Error releasing A2ia engine of endpoint " + _endpoint.getName( ) + " : " + e.getMessage( ) );
+            }
+            _engine = null;
+        }
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.engine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.function.Supplier;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ *
+ * Fixed set of engine worker threads : each endpoint has as many workers as its concurrency limit, fed through a lock-free hand-off queue. The engine
+ * objects and channels live as long as their worker instead of being created for each call.
+ *
+ */
+public class EngineWorkerPool
+{
+
+    private static final String THREAD_NAME_PREFIX = "ocra2ia-engine-";
+
+    private final Map<EngineEndpoint, BlockingQueue<EngineTask>> _mapQueues = new HashMap<>( );
+    private final List<Thread> _listThreads = new ArrayList<>( );
+
+    /**
+     * Constructor, start the workers.
+     *
+     * @param listEndpoints
+     *            the endpoints
+     * @param engineFactory
+     *            create the engine object of each worker, in the worker thread
+     */
+    public EngineWorkerPool( List<EngineEndpoint> listEndpoints, Supplier<IA2iaEngine> engineFactory )
+    {
+        for ( EngineEndpoint endpoint : listEndpoints )
+        {
+            BlockingQueue<EngineTask> queueTasks = new LinkedTransferQueue<>( );
+            _mapQueues.put( endpoint, queueTasks );
+            for ( int i = 0; i < endpoint.getMaxConcurrency( ); i++ )
+            {
+                Thread thread = new Thread( new EngineWorker( endpoint, queueTasks, engineFactory ), THREAD_NAME_PREFIX + endpoint.getName( ) + "-" + i );
+                thread.setDaemon( true );
+                _listThreads.add( thread );
+                thread.start( );
+            }
+        }
+        AppLogService.info( "OCR engine workers started : " + _listThreads.size( ) );
+    }
+
+    /**
+     * Hand off an attempt to a worker of its endpoint.
+     *
+     * @param attempt
+     *            the attempt
+     * @param queueCompleted
+     *            queue receiving the future once completed, may be null
+     * @return the future result of the attempt
+     */
+    public Future<List<Map<String, String>>> submit( EngineAttempt attempt, BlockingQueue<Future<List<Map<String, String>>>> queueCompleted )
+    {
+        EngineTask task = new EngineTask( attempt, queueCompleted );
+        _mapQueues.get( attempt.getEndpoint( ) ).add( task );
+
+        return task._future;
+    }
+
+    /**
+     * Stop the workers, the attempts not started fail and give back their endpoint and images.
+     */
+    public void shutdown( )
+    {
+        _listThreads.forEach( Thread::interrupt );
+        List<EngineTask> listPending = new ArrayList<>( );
+        _mapQueues.values( ).forEach( queueTasks -> queueTasks.drainTo( listPending ) );
+        for ( EngineTask task : listPending )
+        {
+            task._attempt.abandon( );
+            task.fail( new OcrException( "OCR engine workers stopped" ) );
+        }
+    }
+
+    /**
+     * Attempt handed off to a worker, with its future result.
+     */
+    static final class EngineTask
+    {
+        private final EngineAttempt _attempt;
+        private final BlockingQueue<Future<List<Map<String, String>>>> _queueCompleted;
+        private final CompletableFuture<List<Map<String, String>>> _future = new CompletableFuture<>( );
+
+        /**
+         * Constructor.
+         *
+         * @param attempt
+         *            the attempt
+         * @param queueCompleted
+         *            queue receiving the future once completed, may be null
+         */
+        EngineTask( EngineAttempt attempt, BlockingQueue<Future<List<Map<String, String>>>> queueCompleted )
+        {
+            _attempt = attempt;
+            _queueCompleted = queueCompleted;
+        }
+
+        /**
+         * Run the attempt on a worker and complete the future. An error (out of memory, native library not found...) completes the future too, so
+         * that the caller and the worker don't wait forever.
+         *
+         * @param worker
+         *            the worker
+         */
+        void execute( EngineWorker worker )
+        {
+            try
+            {
+                complete( _attempt.run( worker ) );
+            }
+            catch( Exception e )
+            {
+                fail( e );
+            }
+            catch( Error e )
+            {
+                AppLogService.error( "OCR engine attempt failed on endpoint " + _attempt.getEndpoint( ).getName( ) + " : " + e, e );
+                fail( e );
+            }
+        }
+
+        /**
+         * Complete the future with a result.
+         *
+         * @param listResults
+         *            Map result of OCR of each request of the attempt
+         */
+        private void complete( List<Map<String, String>> listResults )
+        {
+            _future.complete( listResults );
+            onCompleted( );
+        }
+
+        /**
+         * Complete the future with an exception.
+         *
+         * @param exception
+         *            the exception
+         */
+        void fail( Throwable exception )
+        {
+            _future.completeExceptionally( exception );
+            onCompleted( );
+        }
+
+        /**
+         * Notify the completion.
+         */
+        private void onCompleted( )
+        {
+            if ( _queueCompleted != null )
+            {
+                _queueCompleted.add( _future );
+            }
+        }
+    }
+
+}
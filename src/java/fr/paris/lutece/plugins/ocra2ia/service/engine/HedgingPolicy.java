@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.engine;
+
+import fr.paris.lutece.plugins.ocra2ia.service.OcrMetricsService;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Hedging configuration : delay before a hedge request is sent, computed from a percentile of the recent engine latency, and budget capping the extra
+ * load. Each request earns budget/100 hedge token, each hedge request spends a token, so hedge requests never exceed the budget percentage of the requests.
+ *
+ */
+public class HedgingPolicy
+{
+
+    /**
+     * Maximum number of tokens kept, allows a small burst of hedge requests after a quiet period.
+     */
+    private static final double MAX_TOKENS = 5;
+
+    private double _dTokens;
+
+    /**
+     * @return true if hedging is enabled
+     */
+    public boolean isEnabled( )
+    {
+        return AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_HEDGING_ENABLED, false );
+    }
+
+    /**
+     * Get the delay after which a hedge request is sent : the configured percentile of the recent engine latency, or the default delay when too few
+     * latencies were measured.
+     *
+     * @return the delay in milliseconds
+     */
+    public long getDelay( )
+    {
+        OcrMetricsService metricsService = OcrMetricsService.getInstance( );
+        long lMinDelay = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_HEDGING_DELAY_MIN, 1000L );
+        if ( metricsService.getSampleCount( EngineAttempt.TIMER_ENGINE_CALL ) < AppPropertiesService.getPropertyInt(
+                OcrConstants.PROPERTY_HEDGING_MIN_SAMPLES, 20 ) )
+        {
+            return Math.max( lMinDelay, AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_HEDGING_DELAY_DEFAULT, 10000L ) );
+        }
+
+        double dPercentile = AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_HEDGING_PERCENTILE, 95 );
+
+        return Math.max( lMinDelay, metricsService.getPercentile( EngineAttempt.TIMER_ENGINE_CALL, dPercentile ) );
+    }
+
+    /**
+     * Earn budget for a request.
+     */
+    public synchronized void onRequest( )
+    {
+        double dBudget = AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_HEDGING_BUDGET_PERCENT, 10 ) / 100d;
+        _dTokens = Math.min( MAX_TOKENS, _dTokens + dBudget );
+    }
+
+    /**
+     * Spend budget for a hedge request.
+     *
+     * @return true if the budget allows a hedge request
+     */
+    public synchronized boolean tryAcquireHedge( )
+    {
+        if ( _dTokens >= 1 )
+        {
+            _dTokens--;
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Give back the token of a hedge request that couldn't be sent.
+     */
+    public synchronized void releaseHedge( )
+    {
+        _dTokens = Math.min( MAX_TOKENS, _dTokens + 1 );
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.engine;
+
+import java.util.Map;
+
+import fr.paris.lutece.plugins.ocra2ia.business.ImageBean;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrResultListener;
+
+/**
+ *
+ * Calls to the A2IA engine. An engine object is created, used and released by a single engine worker thread : a request is cancelled by its worker,
+ * between two waits of its result.
+ *
+ */
+public interface IA2iaEngine
+{
+
+    /**
+     * Returned by getResult when the timeout expired before the result was ready.
+     */
+    long RESULT_PENDING = -1;
+
+    /**
+     * Open a channel communication with an A2ia server.
+     *
+     * @param endpoint
+     *            the server
+     * @param lTimeoutMs
+     *            timeout in milliseconds
+     * @return id of the channel
+     * @throws OcrException
+     *             the OcrException
+     */
+    long openChannel( EngineEndpoint endpoint, long lTimeoutMs ) throws OcrException;
+
+    /**
+     * Open a request on a channel.
+     *
+     * @param lChannelId
+     *            id of the channel
+     * @param strTblDocumentPath
+     *            path of the tbl document of the document type
+     * @param imageBean
+     *            image to process
+     * @param strModeOcr
+     *            ocr mode (file or memory)
+     * @param lTimeoutMs
+     *            timeout in milliseconds to prepare the image
+     * @return id of the request
+     * @throws OcrException
+     *             the OcrException
+     */
+    long openRequest( long lChannelId, String strTblDocumentPath, ImageBean imageBean, String strModeOcr, long lTimeoutMs ) throws OcrException;
+
+    /**
+     * Open several requests on a channel, the request i reading the image i with the tbl document i : an image given to several requests is prepared for
+     * the engine once and shared by them. The requests are then processed concurrently by the server. The requests already opened are closed if one of
+     * them cannot be opened.
+     *
+     * @param lChannelId
+     *            id of the channel
+     * @param tabTblDocumentPath
+     *            path of the tbl document of each request
+     * @param tabImageBean
+     *            image of each request
+     * @param strModeOcr
+     *            ocr mode (file or memory)
+     * @param lTimeoutMs
+     *            timeout in milliseconds to prepare the images
+     * @return ids of the requests, in the order of the tbl documents
+     * @throws OcrException
+     *             the OcrException
+     */
+    long [ ] openRequests( long lChannelId, String [ ] tabTblDocumentPath, ImageBean [ ] tabImageBean, String strModeOcr, long lTimeoutMs )
+            throws OcrException;
+
+    /**
+     * Wait for the result of a request. The wait may be repeated until the result is ready.
+     *
+     * @param lChannelId
+     *            id of the channel
+     * @param lRequestId
+     *            id of the request
+     * @param lTimeoutMs
+     *            timeout in milliseconds
+     * @return id of the result, RESULT_PENDING if the result is not ready after the timeout
+     * @throws OcrException
+     *             the OcrException
+     */
+    long getResult( long lChannelId, long lRequestId, long lTimeoutMs ) throws OcrException;
+
+    /**
+     * Read the fields of a result, each field being sent to the listener as soon as it is read. The fields not read yet are skipped once the listener
+     * is cancelled.
+     *
+     * @param strDocumentType
+     *            document type
+     * @param lResultId
+     *            id of the result
+     * @param listener
+     *            listener of the fields, may be null
+     * @return Map result of OCR
+     * @throws OcrException
+     *             the OcrException
+     */
+    Map<String, String> getResults( String strDocumentType, long lResultId, OcrResultListener listener ) throws OcrException;
+
+    /**
+     * Close a request.
+     *
+     * @param lRequestId
+     *            id of the request
+     */
+    void closeRequest( long lRequestId );
+
+    /**
+     * Close a channel.
+     *
+     * @param lChannelId
+     *            id of the channel
+     */
+    void closeChannel( long lChannelId );
+
+    /**
+     * Release the engine object, called by the thread which created it when it stops.
+     */
+    void release( );
+
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.engine;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.jacob.activeX.ActiveXComponent;
+import com.jacob.com.ComThread;
+import com.jacob.com.Dispatch;
+import com.jacob.com.SafeArray;
+import com.jacob.com.Variant;
+
+import fr.paris.lutece.plugins.ocra2ia.business.ImageBean;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrResultListener;
+import fr.paris.lutece.plugins.ocra2ia.service.jfr.OcrStage;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrResultUtils;
+import fr.paris.lutece.portal.service.i18n.I18nService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * A2IA engine called through the Jacob COM bridge. The Jacob objects of an engine call are owned by a scope released at the end of the call, the ones
+ * of a request (the image buffer) by a scope released when the last request sharing it is closed. The calls made for a request are children of its
+ * scope, which reports the handles they leave live when it is released.
+ *
+ */
+public class JacobA2iaEngine implements IA2iaEngine
+{
+
+    /**
+     * A2ia ActiveX component.
+     */
+    private final ActiveXComponent _component;
+
+    /**
+     * Jacob Object to wrap A2ia component.
+     */
+    private final Dispatch _dispatchA2iAObj;
+
+    /**
+     * Scope of the Jacob objects of each open request.
+     */
+    private final Map<Long, JacobScope> _mapRequestScopes = new ConcurrentHashMap<>( );
+
+    /**
+     * Scope of the request of each result not read yet.
+     */
+    private final Map<Long, JacobScope> _mapResultScopes = new ConcurrentHashMap<>( );
+
+    /**
+     * Load DLL Jacob and get the clsid of the A2ia ActiveX component, once per JVM before creating engines.
+     *
+     * @return the clsid of the A2IA active x
+     */
+    public static String loadLibrary( )
+    {
+        String folder = AppPropertiesService.getProperty( OcrConstants.PROPERTY_FOLDER_DLL_JACOB );
+        // Load Jacob dll
+        System.load( folder + OcrConstants.JACOB_DLL64_FILE );
+
+        // Laod A2ia ActiveX component with clsid
+        return "clsid:{" + AppPropertiesService.getProperty( OcrConstants.PROPERTY_A2IA_CLSID ) + "}";
+    }
+
+    /**
+     * Constructor, initialize COM for the current thread (multi-threaded apartment) and create the A2IA COM object. The engine must then be used and
+     * released by the same thread.
+     *
+     * @param strClsid
+     *            clsid of the A2IA active x
+     */
+    public JacobA2iaEngine( String strClsid )
+    {
+        ComThread.InitMTA( );
+        _component = new ActiveXComponent( strClsid );
+        _dispatchA2iAObj = _component.getObject( );
+        try ( JacobScope scope = new JacobScope( "init", _dispatchA2iAObj ) )
+        {
+            scope.call( "ScrInit", "" );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long openChannel( EngineEndpoint endpoint, long lTimeoutMs )
+    {
+        try ( JacobScope scope = new JacobScope( "openChannel", _dispatchA2iAObj ) )
+        {
+            // Init Param
+            Variant variantResChannelParamId = scope.call( "ScrCreateChannelParam" );
+            scope.call( OcrConstants.SET_PROPERTY_A2IA, new Long( variantResChannelParamId.toString( ) ), "cpu[1].cpuServer", endpoint.getHost( ) );
+            scope.call( OcrConstants.SET_PROPERTY_A2IA, new Long( variantResChannelParamId.toString( ) ), "cpu[1].portServer", endpoint.getPort( ) );
+            scope.call( OcrConstants.SET_PROPERTY_A2IA, new Long( variantResChannelParamId.toString( ) ), "cpu[1].paramdir",
+                    AppPropertiesService.getProperty( OcrConstants.PROPERTY_A2IA_PARAM_DIR ) );
+
+            // Open channel
+            Variant variantResChannelId = scope.call( "ScrOpenChannelExt", new Long( variantResChannelParamId.toString( ) ), lTimeoutMs );
+
+            return new Long( variantResChannelId.toString( ) );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long openRequest( long lChannelId, String strTblDocumentPath, ImageBean imageBean, String strModeOcr, long lTimeoutMs ) throws OcrException
+    {
+        return openRequests( lChannelId, new String [ ] {
+            strTblDocumentPath
+        }, new ImageBean [ ] {
+            imageBean
+        }, strModeOcr, lTimeoutMs ) [0];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long [ ] openRequests( long lChannelId, String [ ] tabTblDocumentPath, ImageBean [ ] tabImageBean, String strModeOcr, long lTimeoutMs )
+            throws OcrException
+    {
+        // the image buffers are kept until the requests reading them are closed
+        JacobScope scopeRequests = new JacobScope( "request on channel " + lChannelId, _dispatchA2iAObj );
+        long [ ] tabRequestIds = new long [ tabTblDocumentPath.length];
+        int nOpened = 0;
+        try
+        {
+            // each image is converted once and its buffer set on the document of each of its requests
+            Map<ImageBean, Variant> mapImages = new IdentityHashMap<>( );
+            if ( !OcrConstants.OCR_MODE_FILE.equalsIgnoreCase( strModeOcr ) )
+            {
+                for ( ImageBean imageBean : tabImageBean )
+                {
+                    if ( !mapImages.containsKey( imageBean ) )
+                    {
+                        mapImages.put( imageBean, convertImage( imageBean, lTimeoutMs, scopeRequests ) );
+                    }
+                }
+            }
+
+            for ( ; nOpened < tabTblDocumentPath.length; nOpened++ )
+            {
+                tabRequestIds [nOpened] = openRequest( lChannelId, tabTblDocumentPath [nOpened], tabImageBean [nOpened],
+                        mapImages.get( tabImageBean [nOpened] ), scopeRequests );
+            }
+        }
+        finally
+        {
+            if ( nOpened < tabTblDocumentPath.length )
+            {
+                for ( int i = 0; i < nOpened; i++ )
+                {
+                    closeRequest( tabRequestIds [i] );
+                }
+                scopeRequests.close( );
+            }
+        }
+        for ( long lRequestId : tabRequestIds )
+        {
+            _mapRequestScopes.put( lRequestId, scopeRequests );
+        }
+
+        return tabRequestIds;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getResult( long lChannelId, long lRequestId, long lTimeoutMs )
+    {
+        long lStart = System.currentTimeMillis( );
+        JacobScope scopeRequests = _mapRequestScopes.get( lRequestId );
+        try ( JacobScope scope = new JacobScope( "getResult", _dispatchA2iAObj, scopeRequests ) )
+        {
+            Variant variantResultId = scope.call( "ScrGetResult", lChannelId, lRequestId, lTimeoutMs );
+            long lResultId = variantResultId.getInt( );
+            if ( scopeRequests != null )
+            {
+                _mapResultScopes.put( lResultId, scopeRequests );
+            }
+
+            return lResultId;
+        }
+        catch( RuntimeException e )
+        {
+            // ScrGetResult fails when its timeout expires, the request is still processed by the server
+            if ( ( System.currentTimeMillis( ) - lStart ) >= lTimeoutMs )
+            {
+                return RESULT_PENDING;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, String> getResults( String strDocumentType, long lResultId, OcrResultListener listener )
+    {
+        try ( JacobScope scope = new JacobScope( "getResults", _dispatchA2iAObj, _mapResultScopes.remove( lResultId ) ) )
+        {
+            return OcrResultUtils.getOcrResults( strDocumentType, scope, (int) lResultId, listener );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void closeRequest( long lRequestId )
+    {
+        JacobScope scopeRequests = _mapRequestScopes.get( lRequestId );
+        try ( JacobScope scope = new JacobScope( "closeRequest", _dispatchA2iAObj, scopeRequests ) )
+        {
+            scope.call( "ScrCloseRequest", lRequestId );
+        }
+        finally
+        {
+            _mapRequestScopes.remove( lRequestId );
+            if ( ( scopeRequests != null ) && !_mapRequestScopes.containsValue( scopeRequests ) )
+            {
+                // the results of the request not read are dropped with it
+                _mapResultScopes.values( ).removeIf( scope -> scope == scopeRequests );
+                scopeRequests.close( );
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void closeChannel( long lChannelId )
+    {
+        try ( JacobScope scope = new JacobScope( "closeChannel", _dispatchA2iAObj ) )
+        {
+            scope.call( "ScrCloseChannel", lChannelId );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void release( )
+    {
+        // the requests are closed by the attempts, a scope still open here is a leak
+        Set<JacobScope> setScopes = Collections.newSetFromMap( new IdentityHashMap<>( ) );
+        setScopes.addAll( _mapRequestScopes.values( ) );
+        _mapRequestScopes.clear( );
+        _mapResultScopes.clear( );
+        setScopes.forEach( JacobScope::closeLeaked );
+        _component.safeRelease( );
+        ComThread.Release( );
+    }
+
+    /**
+     * Open a request on a tbl document.
+     *
+     * @param lChannelId
+     *            id of the channel
+     * @param strTblDocumentPath
+     *            path of the tbl document
+     * @param imageBean
+     *            image to process
+     * @param variantImage
+     *            image converted for the engine in memory mode, null in file mode
+     * @param scope
+     *            scope of the request
+     * @return id of the request
+     */
+    private long openRequest( long lChannelId, String strTblDocumentPath, ImageBean imageBean, Variant variantImage, JacobScope scope )
+    {
+        // Open Tbl doc
+        Variant variantTblId = scope.call( "ScrOpenDocumentTable", strTblDocumentPath );
+        Variant variantDefaultDocId = scope.call( "ScrGetDefaultDocument", new Long( variantTblId.toString( ) ) );
+
+        // Following Image Parameters required to be set correctly
+        scope.call( OcrConstants.SET_PROPERTY_A2IA, variantDefaultDocId, "image.inputFormat", imageBean.getExtension( ) );
+
+        if ( variantImage == null )
+        {
+            // File : image file write on disk
+            scope.call( "SetProperty", variantDefaultDocId, "image.imageSourceType", OcrConstants.OCR_MODE_FILE );
+            scope.call( "SetProperty", variantDefaultDocId, "image.imageSourceTypeInfo.CaseFile.fileName", imageBean.getImagePath( ) );
+
+        }
+        else
+        {
+            scope.call( OcrConstants.SET_PROPERTY_A2IA, variantDefaultDocId, "image.imageSourceType", OcrConstants.OCR_MODE_MEMORY );
+            // Then Set the buffer to the corresponding A2iA imageBuffer
+            scope.call( "ScrSetBuffer", variantDefaultDocId, "image.imageSourceTypeInfo.CaseMemory.buffer", variantImage ); // from memory
+        }
+
+        // Open Request
+        Variant variantReqId = scope.call( "ScrOpenRequest", lChannelId, new Long( variantDefaultDocId.toString( ) ) );
+
+        return new Long( variantReqId.toString( ) );
+    }
+
+    /**
+     * Convert an image for the engine in memory mode.
+     *
+     * @param imageBean
+     *            the image
+     * @param lTimeoutMs
+     *            maximum time in milliseconds to convert the image
+     * @param scope
+     *            scope owning the image converted
+     * @return the image converted
+     * @throws OcrException
+     *             the OcrException
+     */
+    private Variant convertImage( ImageBean imageBean, long lTimeoutMs, JacobScope scope ) throws OcrException
+    {
+        // the document type of the conversion is the one of the enclosing request stage
+        OcrStage stage = OcrStage.begin( OcrStage.BUFFER_CONVERSION, null, imageBean.getContentLength( ), imageBean.getDpi( ) );
+        try
+        {
+            Variant variantImage = trasformImagetoJacobOject( imageBean.getContent( ), imageBean.getContentLength( ), lTimeoutMs, scope );
+            stage.succeed( );
+
+            return variantImage;
+        }
+        finally
+        {
+            stage.end( );
+        }
+    }
+
+    /**
+     * Transform each byte of the image to Jacob Variant.
+     *
+     * @param byteImageContent
+     *            image to process
+     * @param nLength
+     *            number of bytes of the image
+     * @param lTimeoutMs
+     *            maximum time in milliseconds to transform the image
+     * @param scope
+     *            scope owning the image representation
+     * @return image representation in variant.
+     * @throws OcrException
+     *             the OcrException
+     */
+    private Variant trasformImagetoJacobOject( byte [ ] byteImageContent, int nLength, long lTimeoutMs, JacobScope scope ) throws OcrException
+    {
+        AppLogService.info( "trasformImagetoJacobOject Start - byteImageContent length : " + nLength );
+
+        SafeArray safearray = new SafeArray( Variant.VariantVariant, nLength );
+        // nNumberOfByte : number of byte processed by a single thread.
+        int nNumberOfByte = AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_NUMBER_OF_BYTE_BY_THREAD, nLength );
+        // nNumberOfThread : number of thread to perform the image transformation.
+        int nNumberOfThread = ( ( nNumberOfByte > 1 ) && ( nNumberOfByte < nLength ) ) ? nLength / nNumberOfByte : 1;
+
+        Runnable [ ] tabRunnableTask = new Runnable [ nNumberOfThread];
+        ExecutorService executorService = Executors.newFixedThreadPool( nNumberOfThread );
+        int nCurrentThreadPosition = 0;
+        while ( nCurrentThreadPosition < nNumberOfThread )
+        {
+            int nStart = nCurrentThreadPosition * nNumberOfByte;
+            int nEnd = ( nCurrentThreadPosition + 1 ) < nNumberOfThread ? ( nCurrentThreadPosition + 1 ) * nNumberOfByte : nLength;
+            tabRunnableTask [nCurrentThreadPosition] = createRunnableTask( byteImageContent, safearray, nStart, nEnd );
+            nCurrentThreadPosition++;
+        }
+
+        // process image transformation
+        for ( int i = 0; i < nNumberOfThread; i++ )
+        {
+            executorService.submit( tabRunnableTask [i] );
+        }
+        executorService.shutdown( );
+
+        boolean bExecutionComplet = false;
+        try
+        {
+            bExecutionComplet = executorService.awaitTermination( lTimeoutMs, TimeUnit.MILLISECONDS );
+        }
+        catch( InterruptedException e )
+        {
+            AppLogService.error( e.getMessage( ), e );
+        }
+        finally
+        {
+            if ( !bExecutionComplet )
+            {
+                executorService.shutdownNow( );
+                releaseAfterTasks( safearray, executorService, lTimeoutMs );
+                throw new OcrException( I18nService.getLocalizedString( OcrConstants.MESSAGE_TIMEOUT_TRANSFORM_IMAGE, Locale.getDefault( ) ) );
+            }
+        }
+
+        // the array is owned once no task writes it any more
+        scope.own( safearray );
+        Variant variantImageObjects = scope.own( new Variant( ) );
+        variantImageObjects.putSafeArray( safearray );
+        AppLogService.info( "trasformImagetoJacobOject Complet" );
+
+        return variantImageObjects;
+    }
+
+    /**
+     * Release the array of a transformation cut short, once its interrupted tasks stopped writing it. An array still written is left to the finalizer.
+     *
+     * @param safearray
+     *            jacob safe array
+     * @param executorService
+     *            the executor of the tasks, shut down
+     * @param lTimeoutMs
+     *            maximum time in milliseconds to wait for the tasks
+     */
+    private static void releaseAfterTasks( SafeArray safearray, ExecutorService executorService, long lTimeoutMs )
+    {
+        try
+        {
+            if ( executorService.awaitTermination( lTimeoutMs, TimeUnit.MILLISECONDS ) )
+            {
+                safearray.safeRelease( );
+                return;
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread( ).interrupt( );
+        }
+        AppLogService.error( "trasformImagetoJacobOject tasks still running, the array is left to the finalizer." );
+    }
+
+    /**
+     * Create a single task to transform part of the image into variant. Each task is executed in a dedicated thread.
+     *
+     * @param byteImageContent
+     *            image to process
+     * @param safearray
+     *            jacob safe array
+     * @param nStart
+     *            first byte to process
+     * @param nEnd
+     *            last byte to process
+     * @return a runnable task.
+     */
+    private Runnable createRunnableTask( byte [ ] byteImageContent, SafeArray safearray, int nStart, int nEnd )
+    {
+        return ( ) -> {
+            // the array stores a copy of the variant, a single variant is enough for all the bytes of the task
+            try ( JacobScope scope = new JacobScope( "conversion", null ) )
+            {
+                Variant variantByteImage = scope.own( new Variant( ) );
+                for ( int i = nStart; ( i < nEnd ) && !Thread.currentThread( ).isInterrupted( ); i++ )
+                {
+                    variantByteImage.putByte( byteImageContent [i] );
+                    safearray.setVariant( i, variantByteImage );
+                }
+            }
+        };
+    }
+
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jacob.com.Dispatch;
+import com.jacob.com.JacobObject;
+import com.jacob.com.Variant;
+
+import fr.paris.lutece.plugins.ocra2ia.service.OcrMetricsService;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Owner of the Jacob objects (Variant, SafeArray, Dispatch) created for an engine call or a request : their native handles are released together when
+ * the scope is closed, instead of waiting for the finalizers. The scope of an engine call made for a request is a child of the request scope, which
+ * counts the live handles of its open calls : a request scope closed while some of them are still live reports them as leaked. With the leak detection,
+ * the handles owned by the open scopes are exported as the jacob.handles.live gauge, and the leaked ones are counted in jacob.handles.leaked.
+ *
+ */
+public final class JacobScope implements AutoCloseable
+{
+
+    /**
+     * Handles owned by the open scopes, with the leak detection.
+     */
+    private static final AtomicLong _lLiveHandles = new AtomicLong( );
+
+    static
+    {
+        OcrMetricsService.getInstance( ).registerGauge( OcrConstants.GAUGE_JACOB_HANDLES_LIVE, _lLiveHandles::get );
+    }
+
+    /**
+     * Name of the scope, for the logs.
+     */
+    private final String _strName;
+
+    /**
+     * A2ia object called through the scope, null for a scope only owning objects.
+     */
+    private final Dispatch _dispatch;
+
+    /**
+     * Request scope counting the handles of this scope, null for a scope not made for a request.
+     */
+    private final JacobScope _scopeParent;
+
+    /**
+     * Handles owned by the open child scopes.
+     */
+    private int _nChildHandles;
+
+    /**
+     * Jacob objects owned by the scope, in creation order.
+     */
+    private final List<JacobObject> _listObjects = new ArrayList<>( );
+
+    /**
+     * true if the handles are counted.
+     */
+    private final boolean _bLeakDetection;
+
+    /**
+     * true once the objects are released.
+     */
+    private boolean _bClosed;
+
+    /**
+     * Constructor.
+     *
+     * @param strName
+     *            name of the scope, for the logs
+     * @param dispatch
+     *            A2ia object called through the scope, null for a scope only owning objects
+     */
+    public JacobScope( String strName, Dispatch dispatch )
+    {
+        this( strName, dispatch, null );
+    }
+
+    /**
+     * Constructor of the scope of an engine call made for a request.
+     *
+     * @param strName
+     *            name of the scope, for the logs
+     * @param dispatch
+     *            A2ia object called through the scope, null for a scope only owning objects
+     * @param scopeParent
+     *            scope of the request, null if unknown
+     */
+    public JacobScope( String strName, Dispatch dispatch, JacobScope scopeParent )
+    {
+        _strName = strName;
+        _dispatch = dispatch;
+        _scopeParent = scopeParent;
+        _bLeakDetection = AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_JACOB_LEAK_DETECTION, false );
+    }
+
+    /**
+     * Take the ownership of a Jacob object. An object given to a closed scope is released at once and counted as leaked.
+     *
+     * @param object
+     *            the object, may be null
+     * @param <T>
+     *            type of the object
+     * @return the object
+     */
+    public synchronized <T extends JacobObject> T own( T object )
+    {
+        if ( object != null )
+        {
+            if ( _bClosed )
+            {
+                AppLogService.error( "Jacob object created after the release of the scope " + _strName + ", released at once." );
+                countLeaked( 1 );
+                object.safeRelease( );
+            }
+            else
+            {
+                _listObjects.add( object );
+                if ( _scopeParent != null )
+                {
+                    _scopeParent.addChildHandles( 1 );
+                }
+                if ( _bLeakDetection )
+                {
+                    _lLiveHandles.incrementAndGet( );
+                }
+            }
+        }
+
+        return object;
+    }
+
+    /**
+     * Call a method of the A2ia object, the variant returned being owned by the scope.
+     *
+     * @param strMethod
+     *            name of the method
+     * @param tabArgs
+     *            arguments of the method
+     * @return the variant returned by the method
+     */
+    public Variant call( String strMethod, Object... tabArgs )
+    {
+        return own( Dispatch.call( _dispatch, strMethod, tabArgs ) );
+    }
+
+    /**
+     * @return the number of native handles owned by the scope
+     */
+    public synchronized int getHandleCount( )
+    {
+        return _listObjects.size( );
+    }
+
+    /**
+     * @return the number of native handles owned by the scope and its open child scopes
+     */
+    public synchronized int getLiveHandleCount( )
+    {
+        return _listObjects.size( ) + _nChildHandles;
+    }
+
+    /**
+     * Count handles taken or released by a child scope.
+     *
+     * @param nHandles
+     *            number of handles, negative when released
+     */
+    private synchronized void addChildHandles( int nHandles )
+    {
+        _nChildHandles += nHandles;
+    }
+
+    /**
+     * Release the objects of the scope, in the reverse order of their creation, and report as leaked the handles of the child scopes still open.
+     * Closing a closed scope does nothing.
+     */
+    @Override
+    public synchronized void close( )
+    {
+        if ( _bClosed )
+        {
+            return;
+        }
+        _bClosed = true;
+        int nHandles = _listObjects.size( );
+        for ( int i = nHandles - 1; i >= 0; i-- )
+        {
+            try
+            {
+                _listObjects.get( i ).safeRelease( );
+            }
+            catch( RuntimeException e )
+            {
+                AppLogService.error( "Jacob object of the scope " + _strName + " failed to release : " + e.getMessage( ), e );
+                countLeaked( 1 );
+            }
+        }
+        _listObjects.clear( );
+        if ( _scopeParent != null )
+        {
+            _scopeParent.addChildHandles( -nHandles );
+        }
+        if ( _nChildHandles > 0 )
+        {
+            AppLogService.error( "Jacob scope " + _strName + " closed while its calls still own " + _nChildHandles + " handles, leaked." );
+            countLeaked( _nChildHandles );
+        }
+        if ( _bLeakDetection )
+        {
+            _lLiveHandles.addAndGet( -nHandles );
+            AppLogService.debug( "Jacob scope " + _strName + " released " + nHandles + " handles." );
+        }
+    }
+
+    /**
+     * Close a scope left open by its owner, for instance a request never closed : its handles, and the ones of its open child scopes, are counted as
+     * leaked.
+     */
+    public synchronized void closeLeaked( )
+    {
+        if ( !_bClosed )
+        {
+            AppLogService.error( "Jacob scope " + _strName + " not closed by its owner, " + _listObjects.size( ) + " handles leaked." );
+            countLeaked( _listObjects.size( ) );
+            close( );
+        }
+    }
+
+    /**
+     * Count leaked handles.
+     *
+     * @param nHandles
+     *            number of handles
+     */
+    private void countLeaked( int nHandles )
+    {
+        if ( _bLeakDetection )
+        {
+            OcrMetricsService.getInstance( ).add( OcrConstants.COUNTER_JACOB_HANDLES_LEAKED, nHandles );
+        }
+    }
+
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.engine;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.paris.lutece.plugins.ocra2ia.business.ImageBean;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrResultListener;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Stub of the A2IA engine, without Jacob nor Windows. It simulates the engine latency and failures so that the plugin can be run and load tested on
+ * Linux. The latency and the failure rate can be configured by endpoint host (ocra2ia.engine.stub.latency.&lt;host&gt;,
+ * ocra2ia.engine.stub.failure.rate.&lt;host&gt;) to simulate several servers.
+ *
+ */
+public class StubA2iaEngine implements IA2iaEngine
+{
+
+    private static final AtomicLong _lNextId = new AtomicLong( 1 );
+
+    /**
+     * Endpoint of each open channel.
+     */
+    private static final Map<Long, EngineEndpoint> _mapChannels = new ConcurrentHashMap<>( );
+
+    /**
+     * Tbl, image size and endpoint of each open request, and a latch released when the request is closed.
+     */
+    private static final Map<Long, StubRequest> _mapRequests = new ConcurrentHashMap<>( );
+
+    /**
+     * Document type and image size of each result.
+     */
+    private static final Map<Long, String [ ]> _mapResults = new ConcurrentHashMap<>( );
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long openChannel( EngineEndpoint endpoint, long lTimeoutMs ) throws OcrException
+    {
+        simulateFailure( endpoint, "ScrOpenChannelExt" );
+        long lChannelId = _lNextId.getAndIncrement( );
+        _mapChannels.put( lChannelId, endpoint );
+
+        return lChannelId;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long openRequest( long lChannelId, String strTblDocumentPath, ImageBean imageBean, String strModeOcr, long lTimeoutMs ) throws OcrException
+    {
+        if ( !_mapChannels.containsKey( lChannelId ) )
+        {
+            throw new OcrException( "Stub engine : unknown channel " + lChannelId );
+        }
+        long lRequestId = _lNextId.getAndIncrement( );
+        _mapRequests.put( lRequestId, new StubRequest( new String [ ] {
+                strTblDocumentPath, String.valueOf( imageBean.getContentLength( ) ), _mapChannels.get( lChannelId ).getName( )
+        } ) );
+
+        return lRequestId;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long [ ] openRequests( long lChannelId, String [ ] tabTblDocumentPath, ImageBean [ ] tabImageBean, String strModeOcr, long lTimeoutMs )
+            throws OcrException
+    {
+        long [ ] tabRequestIds = new long [ tabTblDocumentPath.length];
+        for ( int i = 0; i < tabTblDocumentPath.length; i++ )
+        {
+            tabRequestIds [i] = openRequest( lChannelId, tabTblDocumentPath [i], tabImageBean [i], strModeOcr, lTimeoutMs );
+        }
+
+        return tabRequestIds;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getResult( long lChannelId, long lRequestId, long lTimeoutMs ) throws OcrException
+    {
+        EngineEndpoint endpoint = _mapChannels.get( lChannelId );
+        StubRequest request = _mapRequests.get( lRequestId );
+        if ( ( endpoint == null ) || ( request == null ) )
+        {
+            throw new OcrException( "Stub engine : unknown channel or request" );
+        }
+
+        // the latency runs from the opening of the request, the requests of a channel being processed concurrently
+        long lLatency = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_ENGINE_STUB_LATENCY + "." + endpoint.getHost( ),
+                AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_ENGINE_STUB_LATENCY, 500L ) )
+                - ( System.currentTimeMillis( ) - request._lOpened );
+        try
+        {
+            if ( request._latchClosed.await( Math.min( lLatency, lTimeoutMs ), TimeUnit.MILLISECONDS ) )
+            {
+                throw new OcrException( "Stub engine : request closed while waiting for the result" );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread( ).interrupt( );
+            throw new OcrException( "Stub engine : interrupted" );
+        }
+        if ( lLatency > lTimeoutMs )
+        {
+            return RESULT_PENDING;
+        }
+        simulateFailure( endpoint, "ScrGetResult" );
+
+        long lResultId = _lNextId.getAndIncrement( );
+        _mapResults.put( lResultId, request._tabInfos );
+
+        return lResultId;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, String> getResults( String strDocumentType, long lResultId, OcrResultListener listener )
+    {
+        String [ ] tabRequest = _mapResults.remove( lResultId );
+        Map<String, String> mapResults = new HashMap<>( );
+        if ( tabRequest != null )
+        {
+            // the fields are read one by one, as from the engine
+            Map<String, String> mapFields = new LinkedHashMap<>( );
+            mapFields.put( "stub.documentType", strDocumentType );
+            mapFields.put( "stub.tbl", tabRequest [0] );
+            mapFields.put( "stub.imageSize", tabRequest [1] );
+            mapFields.put( "stub.endpoint", tabRequest [2] );
+            for ( Map.Entry<String, String> entry : mapFields.entrySet( ) )
+            {
+                if ( ( listener != null ) && listener.isCancelled( ) )
+                {
+                    break;
+                }
+                mapResults.put( entry.getKey( ), entry.getValue( ) );
+                if ( listener != null )
+                {
+                    listener.onField( entry.getKey( ), entry.getValue( ), 1 );
+                }
+            }
+        }
+
+        return mapResults;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void closeRequest( long lRequestId )
+    {
+        StubRequest request = _mapRequests.remove( lRequestId );
+        if ( request != null )
+        {
+            request._latchClosed.countDown( );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void closeChannel( long lChannelId )
+    {
+        _mapChannels.remove( lChannelId );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void release( )
+    {
+        // nothing to release
+    }
+
+    /**
+     * Throw an exception according to the failure rate of the endpoint.
+     *
+     * @param endpoint
+     *            the endpoint
+     * @param strFunction
+     *            simulated engine function
+     * @throws OcrException
+     *             the simulated failure
+     */
+    private static void simulateFailure( EngineEndpoint endpoint, String strFunction ) throws OcrException
+    {
+        String strFailureRate = AppPropertiesService.getProperty( OcrConstants.PROPERTY_ENGINE_STUB_FAILURE_RATE + "." + endpoint.getHost( ),
+                AppPropertiesService.getProperty( OcrConstants.PROPERTY_ENGINE_STUB_FAILURE_RATE, "0" ) );
+        if ( ThreadLocalRandom.current( ).nextDouble( ) < Double.parseDouble( strFailureRate ) )
+        {
+            throw new OcrException( "Stub engine : simulated failure of " + strFunction + " on " + endpoint.getName( ) );
+        }
+    }
+
+    /**
+     * Open request of the stub.
+     */
+    private static final class StubRequest
+    {
+        private final String [ ] _tabInfos;
+        private final CountDownLatch _latchClosed = new CountDownLatch( 1 );
+        private final long _lOpened = System.currentTimeMillis( );
+
+        /**
+         * Constructor.
+         *
+         * @param tabInfos
+         *            tbl, image size and endpoint name
+         */
+        StubRequest( String [ ] tabInfos )
+        {
+            _tabInfos = tabInfos;
+        }
+    }
+
+}
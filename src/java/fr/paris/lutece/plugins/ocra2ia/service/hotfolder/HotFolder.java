@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.hotfolder;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ *
+ * A watched directory. Each sub-folder is the inbox of a document type (its name); the reserved sub-folders hold the processed files, the quarantined
+ * files and the results, written as one json document per line in a file per day. A journal records the files whose result is written, with
+ * their outcome, so that a file still in the inbox after a crash is moved to the processed files or to the quarantine without being processed again.
+ *
+ */
+class HotFolder
+{
+
+    static final String RESERVED_PREFIX = "_";
+    private static final String DIR_DONE = "_done";
+    private static final String DIR_QUARANTINE = "_quarantine";
+    private static final String DIR_RESULTS = "_results";
+    private static final String FILE_JOURNAL = ".completed";
+    private static final String JOURNAL_SEPARATOR = "|";
+    private static final String OUTCOME_DONE = "done";
+    private static final String OUTCOME_FAILED = "failed";
+    private static final String RESULTS_FILE_PREFIX = "results-";
+    private static final String RESULTS_FILE_SUFFIX = ".jsonl";
+    private static final String DATE_PATTERN = "yyyyMMdd";
+    private static final ObjectMapper MAPPER = new ObjectMapper( );
+
+    private final Path _root;
+    private final Map<String, Boolean> _mapJournal = new HashMap<>( );
+    private BufferedWriter _writerResults;
+    private BufferedWriter _writerJournal;
+    private String _strResultsDate;
+
+    /**
+     * Constructor, load the journal of an interrupted run.
+     *
+     * @param root
+     *            the watched directory
+     * @throws IOException
+     *             if the reserved directories can not be created or the journal read
+     */
+    HotFolder( Path root ) throws IOException
+    {
+        _root = root;
+        Files.createDirectories( root.resolve( DIR_RESULTS ) );
+        Path pathJournal = root.resolve( DIR_RESULTS ).resolve( FILE_JOURNAL );
+        if ( Files.exists( pathJournal ) )
+        {
+            for ( String strLine : Files.readAllLines( pathJournal, StandardCharsets.UTF_8 ) )
+            {
+                // key|outcome : the key itself contains the separator
+                int nSeparator = strLine.lastIndexOf( JOURNAL_SEPARATOR );
+                if ( nSeparator > 0 )
+                {
+                    _mapJournal.put( strLine.substring( 0, nSeparator ), OUTCOME_FAILED.equals( strLine.substring( nSeparator + 1 ) ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the watched directory
+     */
+    Path getRoot( )
+    {
+        return _root;
+    }
+
+    /**
+     * List the inboxes of the document types.
+     *
+     * @return the sub-folders, reserved ones excluded
+     * @throws IOException
+     *             if the directory can not be read
+     */
+    List<Path> getTypeDirectories( ) throws IOException
+    {
+        List<Path> listDirectories = new ArrayList<>( );
+        try ( DirectoryStream<Path> stream = Files.newDirectoryStream( _root ) )
+        {
+            for ( Path path : stream )
+            {
+                if ( Files.isDirectory( path ) && isInbox( path ) )
+                {
+                    listDirectories.add( path );
+                }
+            }
+        }
+
+        return listDirectories;
+    }
+
+    /**
+     * @param directory
+     *            a sub-folder of the watched directory
+     * @return true if it is the inbox of a document type
+     */
+    boolean isInbox( Path directory )
+    {
+        String strName = directory.getFileName( ).toString( );
+
+        return !strName.startsWith( RESERVED_PREFIX ) && !strName.startsWith( "." );
+    }
+
+    /**
+     * Check whether the result of a file was written before a crash.
+     *
+     * @param file
+     *            the file in its inbox
+     * @return null if the file is not completed, else true if it failed
+     * @throws IOException
+     *             if the file can not be read
+     */
+    synchronized Boolean getCompletedFailure( Path file ) throws IOException
+    {
+        return _mapJournal.get( getKey( file ) );
+    }
+
+    /**
+     * Write the result line of a file, record it and its outcome in the journal, then move the file out of its inbox.
+     *
+     * @param file
+     *            the file in its inbox
+     * @param mapLine
+     *            the result document
+     * @param bFailed
+     *            true to move the file to the quarantine instead of the processed files
+     * @throws IOException
+     *             if the result can not be written or the file moved
+     */
+    synchronized void complete( Path file, Map<String, Object> mapLine, boolean bFailed ) throws IOException
+    {
+        String strKey = getKey( file );
+        BufferedWriter writerResults = getResultsWriter( );
+        writerResults.write( MAPPER.writeValueAsString( mapLine ) );
+        writerResults.newLine( );
+        writerResults.flush( );
+        getJournalWriter( ).write( strKey + JOURNAL_SEPARATOR + ( bFailed ? OUTCOME_FAILED : OUTCOME_DONE ) );
+        _writerJournal.newLine( );
+        _writerJournal.flush( );
+        _mapJournal.put( strKey, bFailed );
+        move( file, bFailed );
+    }
+
+    /**
+     * Move a completed file out of its inbox.
+     *
+     * @param file
+     *            the file in its inbox
+     * @param bFailed
+     *            true to move the file to the quarantine
+     * @throws IOException
+     *             if the file can not be moved
+     */
+    synchronized void move( Path file, boolean bFailed ) throws IOException
+    {
+        Path target = _root.resolve( bFailed ? DIR_QUARANTINE : DIR_DONE ).resolve( _root.relativize( file ) );
+        Files.createDirectories( target.getParent( ) );
+        Files.move( file, target, StandardCopyOption.REPLACE_EXISTING );
+    }
+
+    /**
+     * Forget the journal once the files of the interrupted run are moved : the processed files are no longer in the inboxes.
+     *
+     * @throws IOException
+     *             if the journal can not be truncated
+     */
+    synchronized void resetJournal( ) throws IOException
+    {
+        _mapJournal.clear( );
+        closeQuietly( _writerJournal );
+        _writerJournal = Files.newBufferedWriter( _root.resolve( DIR_RESULTS ).resolve( FILE_JOURNAL ), StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE );
+    }
+
+    /**
+     * Close the files.
+     */
+    synchronized void close( )
+    {
+        closeQuietly( _writerResults );
+        closeQuietly( _writerJournal );
+        _writerResults = null;
+        _writerJournal = null;
+    }
+
+    /**
+     * @param file
+     *            a file in its inbox
+     * @return the relative path of the file in the watched directory
+     */
+    String getRelativePath( Path file )
+    {
+        return _root.relativize( file ).toString( ).replace( '\\', '/' );
+    }
+
+    /**
+     * Identify a file by its path, size and date, so that a new file with the same name is not mistaken for a completed one.
+     *
+     * @param file
+     *            the file
+     * @return the key of the file
+     * @throws IOException
+     *             if the file can not be read
+     */
+    private String getKey( Path file ) throws IOException
+    {
+        return getRelativePath( file ) + "|" + Files.size( file ) + "|" + Files.getLastModifiedTime( file ).toMillis( );
+    }
+
+    /**
+     * @return the writer of the results file of the day
+     * @throws IOException
+     *             if the file can not be opened
+     */
+    private BufferedWriter getResultsWriter( ) throws IOException
+    {
+        String strDate = new SimpleDateFormat( DATE_PATTERN ).format( new Date( ) );
+        if ( _writerResults == null || !strDate.equals( _strResultsDate ) )
+        {
+            closeQuietly( _writerResults );
+            _writerResults = Files.newBufferedWriter( _root.resolve( DIR_RESULTS ).resolve( RESULTS_FILE_PREFIX + strDate + RESULTS_FILE_SUFFIX ),
+                    StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE );
+            _strResultsDate = strDate;
+        }
+
+        return _writerResults;
+    }
+
+    /**
+     * @return the writer of the journal
+     * @throws IOException
+     *             if the file can not be opened
+     */
+    private BufferedWriter getJournalWriter( ) throws IOException
+    {
+        if ( _writerJournal == null )
+        {
+            _writerJournal = Files.newBufferedWriter( _root.resolve( DIR_RESULTS ).resolve( FILE_JOURNAL ), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE );
+        }
+
+        return _writerJournal;
+    }
+
+    /**
+     * Close a writer, ignoring errors.
+     *
+     * @param writer
+     *            the writer or null
+     */
+    private static void closeQuietly( BufferedWriter writer )
+    {
+        if ( writer != null )
+        {
+            try
+            {
+                writer.close( );
+            }
+            catch( IOException e )
+            {
+                // nothing more to do
+            }
+        }
+    }
+}
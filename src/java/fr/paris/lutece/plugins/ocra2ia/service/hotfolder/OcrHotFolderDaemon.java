@@ -0,0 +1,576 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.hotfolder;
+
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrCircuitOpenException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrInterruptedException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrOverloadedException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrDeadline;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrMetricsService;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrPriority;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrService;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Batch ingestion of the files dropped in hot folders. The daemon watches the inboxes of the document types, waits for each file to be completely
+ * written (size and date unchanged during the settle delay), then sends it to the OCR as a bulk request through a bounded pool of threads. The result
+ * of each file is appended to the results file of its hot folder and the file is moved to the processed files, or to the quarantine if the OCR failed.
+ * Files refused because the engine is saturated are retried, not quarantined.
+ *
+ */
+public class OcrHotFolderDaemon
+{
+
+    private static final String THREAD_NAME_WATCHER = "ocra2ia-hotfolder-watcher";
+    private static final String THREAD_NAME_SCHEDULER = "ocra2ia-hotfolder-scheduler";
+    private static final String THREAD_NAME_PREFIX = "ocra2ia-hotfolder-";
+    private static final String COUNTER_DONE = "hotfolder.done";
+    private static final String COUNTER_FAILED = "hotfolder.failed";
+    private static final String COUNTER_RETRIED = "hotfolder.retried";
+    private static final String TIMER_FILE = "hotfolder.file";
+    private static final String STATUS_DONE = "done";
+    private static final String STATUS_FAILED = "failed";
+    private static final String FIELD_FILE = "file";
+    private static final String FIELD_DOCUMENT_TYPE = "documentType";
+    private static final String FIELD_STATUS = "status";
+    private static final String FIELD_RESULT = "result";
+    private static final String FIELD_ERROR = "error";
+    private static final String FIELD_DURATION = "durationMs";
+    private static final String FIELD_COMPLETED = "completedAt";
+    private static final long RETRY_DELAY = 5000L;
+    private static final long SHUTDOWN_TIMEOUT = 10000L;
+
+    private final OcrService _ocrService;
+    private final List<HotFolder> _listFolders = new ArrayList<>( );
+    private final Map<WatchKey, HotFolder> _mapKeyFolders = new ConcurrentHashMap<>( );
+    private final Map<Path, FileState> _mapPending = new ConcurrentHashMap<>( );
+    private final Set<Path> _setInFlight = ConcurrentHashMap.newKeySet( );
+    private final WatchService _watchService;
+    private final ExecutorService _pipeline;
+    private final ScheduledExecutorService _scheduler;
+    private final Semaphore _slots;
+    private final long _lSettleDelay;
+    private final long _lDeadline;
+    private final AtomicLong _lDone = new AtomicLong( );
+    private final AtomicLong _lFailed = new AtomicLong( );
+    private long _lLastReportDone;
+    private long _lLastReportTime = System.currentTimeMillis( );
+    private volatile boolean _bStopped;
+
+    /**
+     * Constructor, resume the files of an interrupted run and start watching the hot folders.
+     *
+     * @param ocrService
+     *            the OCR service of the node
+     * @throws IOException
+     *             if a hot folder can not be watched
+     */
+    public OcrHotFolderDaemon( OcrService ocrService ) throws IOException
+    {
+        _ocrService = ocrService;
+        _lSettleDelay = Math.max( 100L, AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_HOTFOLDER_SETTLE_DELAY, 2000L ) );
+        _lDeadline = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_HOTFOLDER_DEADLINE, 0L );
+        int nThreads = Math.max( 1, AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_HOTFOLDER_THREADS, 2 ) );
+        long lReportInterval = Math.max( 1000L, AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_HOTFOLDER_REPORT_INTERVAL, 60000L ) );
+
+        // at most one file waiting per thread : files stay in their inbox until a thread is about to be free
+        _slots = new Semaphore( nThreads * 2 );
+        AtomicInteger nThreadNumber = new AtomicInteger( );
+        _pipeline = Executors.newFixedThreadPool( nThreads, r -> {
+            Thread thread = new Thread( r, THREAD_NAME_PREFIX + nThreadNumber.getAndIncrement( ) );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        _scheduler = Executors.newSingleThreadScheduledExecutor( r -> {
+            Thread thread = new Thread( r, THREAD_NAME_SCHEDULER );
+            thread.setDaemon( true );
+            return thread;
+        } );
+
+        _watchService = FileSystems.getDefault( ).newWatchService( );
+        for ( String strDirectory : AppPropertiesService.getProperty( OcrConstants.PROPERTY_HOTFOLDER_DIRS, StringUtils.EMPTY ).split( "," ) )
+        {
+            if ( StringUtils.isNotBlank( strDirectory ) )
+            {
+                HotFolder folder = new HotFolder( Paths.get( strDirectory.trim( ) ) );
+                _listFolders.add( folder );
+                _mapKeyFolders.put( folder.getRoot( ).register( _watchService, StandardWatchEventKinds.ENTRY_CREATE ), folder );
+                for ( Path directory : folder.getTypeDirectories( ) )
+                {
+                    watchInbox( folder, directory, true );
+                }
+                folder.resetJournal( );
+            }
+        }
+
+        Thread watcher = new Thread( this::watch, THREAD_NAME_WATCHER );
+        watcher.setDaemon( true );
+        watcher.start( );
+        _scheduler.scheduleWithFixedDelay( this::settle, _lSettleDelay, _lSettleDelay / 2, TimeUnit.MILLISECONDS );
+        _scheduler.scheduleWithFixedDelay( this::report, lReportInterval, lReportInterval, TimeUnit.MILLISECONDS );
+
+        AppLogService.info( "OCR hot folder daemon started on " + _listFolders.size( ) + " folder(s) with " + nThreads + " threads." );
+    }
+
+    /**
+     * Stop the daemon. The files being processed stay in their inbox and are processed again at the next start. The results being written are
+     * awaited before the files of the hot folders are closed.
+     */
+    public void shutdown( )
+    {
+        _bStopped = true;
+        try
+        {
+            _watchService.close( );
+        }
+        catch( IOException e )
+        {
+            AppLogService.error( "Closing the hot folder watch service failed : " + e.getMessage( ) );
+        }
+        _scheduler.shutdownNow( );
+        _pipeline.shutdownNow( );
+        try
+        {
+            if ( !_pipeline.awaitTermination( SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS ) )
+            {
+                AppLogService.error( "Hot folder threads still running after " + SHUTDOWN_TIMEOUT + " ms, the hot folders are closed anyway." );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread( ).interrupt( );
+        }
+        for ( HotFolder folder : _listFolders )
+        {
+            folder.close( );
+        }
+    }
+
+    /**
+     * Watch the inbox of a document type and take its files.
+     *
+     * @param folder
+     *            the hot folder
+     * @param directory
+     *            the inbox
+     * @param bResume
+     *            true at startup : the files completed before a crash are moved, according to their outcome, without being processed again
+     * @throws IOException
+     *             if the inbox can not be watched
+     */
+    private void watchInbox( HotFolder folder, Path directory, boolean bResume ) throws IOException
+    {
+        _mapKeyFolders.put( directory.register( _watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY ), folder );
+        scan( folder, directory, bResume );
+    }
+
+    /**
+     * Take the files present in an inbox.
+     *
+     * @param folder
+     *            the hot folder
+     * @param directory
+     *            the inbox
+     * @param bResume
+     *            true to move the files completed before a crash
+     * @throws IOException
+     *             if the inbox can not be read
+     */
+    private void scan( HotFolder folder, Path directory, boolean bResume ) throws IOException
+    {
+        try ( DirectoryStream<Path> stream = Files.newDirectoryStream( directory ) )
+        {
+            for ( Path file : stream )
+            {
+                Boolean bFailed = ( bResume && Files.isRegularFile( file ) ) ? folder.getCompletedFailure( file ) : null;
+                if ( bFailed != null )
+                {
+                    folder.move( file, bFailed );
+                }
+                else
+                {
+                    addPending( folder, file );
+                }
+            }
+        }
+    }
+
+    /**
+     * Loop on the events of the watched directories.
+     */
+    private void watch( )
+    {
+        while ( !_bStopped )
+        {
+            WatchKey key;
+            try
+            {
+                key = _watchService.take( );
+            }
+            catch( InterruptedException | ClosedWatchServiceException e )
+            {
+                Thread.currentThread( ).interrupt( );
+                return;
+            }
+
+            HotFolder folder = _mapKeyFolders.get( key );
+            Path directory = (Path) key.watchable( );
+            for ( WatchEvent<?> event : key.pollEvents( ) )
+            {
+                try
+                {
+                    onEvent( folder, directory, event );
+                }
+                catch( IOException | RuntimeException e )
+                {
+                    AppLogService.error( "Hot folder event on " + directory + " failed : " + e.getMessage( ), e );
+                }
+            }
+            if ( !key.reset( ) )
+            {
+                _mapKeyFolders.remove( key );
+            }
+        }
+    }
+
+    /**
+     * Handle an event : new inbox, new or modified file, or lost events.
+     *
+     * @param folder
+     *            the hot folder
+     * @param directory
+     *            the watched directory
+     * @param event
+     *            the event
+     * @throws IOException
+     *             if a directory can not be read
+     */
+    private void onEvent( HotFolder folder, Path directory, WatchEvent<?> event ) throws IOException
+    {
+        if ( folder == null )
+        {
+            return;
+        }
+        if ( event.kind( ) == StandardWatchEventKinds.OVERFLOW )
+        {
+            for ( Path inbox : folder.getTypeDirectories( ) )
+            {
+                scan( folder, inbox, false );
+            }
+            return;
+        }
+
+        Path path = directory.resolve( (Path) event.context( ) );
+        if ( directory.equals( folder.getRoot( ) ) )
+        {
+            if ( Files.isDirectory( path ) && folder.isInbox( path ) )
+            {
+                watchInbox( folder, path, false );
+            }
+        }
+        else
+        {
+            addPending( folder, path );
+        }
+    }
+
+    /**
+     * Track a file until it is completely written.
+     *
+     * @param folder
+     *            the hot folder
+     * @param file
+     *            the file
+     */
+    private void addPending( HotFolder folder, Path file )
+    {
+        String strName = file.getFileName( ).toString( );
+        if ( !strName.startsWith( "." ) && !strName.endsWith( ".tmp" ) && !strName.endsWith( ".part" ) && Files.isRegularFile( file )
+                && !_setInFlight.contains( file ) )
+        {
+            _mapPending.putIfAbsent( file, new FileState( folder ) );
+        }
+    }
+
+    /**
+     * Send to the pipeline the files unchanged since the last check, while threads are available.
+     */
+    private void settle( )
+    {
+        long lNow = System.currentTimeMillis( );
+        for ( Map.Entry<Path, FileState> entry : _mapPending.entrySet( ) )
+        {
+            Path file = entry.getKey( );
+            FileState state = entry.getValue( );
+            try
+            {
+                if ( !Files.isRegularFile( file ) )
+                {
+                    _mapPending.remove( file );
+                    continue;
+                }
+
+                long lSize = Files.size( file );
+                long lModified = Files.getLastModifiedTime( file ).toMillis( );
+                if ( lSize != state._lSize || lModified != state._lModified )
+                {
+                    state._lSize = lSize;
+                    state._lModified = lModified;
+                    state._lSince = lNow;
+                }
+                else
+                    if ( lNow - state._lSince >= _lSettleDelay )
+                    {
+                        if ( !_slots.tryAcquire( ) )
+                        {
+                            return;
+                        }
+                        _mapPending.remove( file );
+                        _setInFlight.add( file );
+                        _pipeline.execute( ( ) -> process( state._folder, file ) );
+                    }
+            }
+            catch( IOException | RuntimeException e )
+            {
+                AppLogService.error( "Hot folder file " + file + " can not be read : " + e.getMessage( ) );
+                _mapPending.remove( file );
+            }
+        }
+    }
+
+    /**
+     * Process a file and write its result.
+     *
+     * @param folder
+     *            the hot folder
+     * @param file
+     *            the file
+     */
+    private void process( HotFolder folder, Path file )
+    {
+        long lStart = System.currentTimeMillis( );
+        String strDocumentType = file.getParent( ).getFileName( ).toString( );
+        String strFileName = file.getFileName( ).toString( );
+        String strExtension = strFileName.contains( "." ) ? strFileName.substring( strFileName.lastIndexOf( '.' ) + 1 ) : StringUtils.EMPTY;
+
+        Map<String, Object> mapLine = new LinkedHashMap<>( );
+        mapLine.put( FIELD_FILE, folder.getRelativePath( file ) );
+        mapLine.put( FIELD_DOCUMENT_TYPE, strDocumentType );
+        boolean bFailed = false;
+        try
+        {
+            Map<String, String> mapResult = proceed( Files.readAllBytes( file ), strExtension, strDocumentType );
+            mapLine.put( FIELD_STATUS, STATUS_DONE );
+            mapLine.put( FIELD_RESULT, mapResult );
+        }
+        catch( InterruptedException | OcrInterruptedException | ClosedByInterruptException e )
+        {
+            // shutdown : the file stays in its inbox
+            Thread.currentThread( ).interrupt( );
+            return;
+        }
+        catch( OcrException | IOException e )
+        {
+            bFailed = true;
+            mapLine.put( FIELD_STATUS, STATUS_FAILED );
+            mapLine.put( FIELD_ERROR, e.getMessage( ) );
+        }
+        catch( RuntimeException e )
+        {
+            // a bug or a corrupt file the decoders choke on : quarantined rather than left in the inbox to fail again at each start
+            AppLogService.error( "OCR of hot folder file " + file + " failed : " + e.getMessage( ), e );
+            bFailed = true;
+            mapLine.put( FIELD_STATUS, STATUS_FAILED );
+            mapLine.put( FIELD_ERROR, StringUtils.defaultString( e.getMessage( ), e.getClass( ).getName( ) ) );
+        }
+        finally
+        {
+            _setInFlight.remove( file );
+            _slots.release( );
+        }
+        if ( isStopping( ) )
+        {
+            // a wait or a read cut short by the shutdown is not a failure of the file, and the writes of an interrupted thread would close the
+            // files of the hot folder : the file stays in its inbox and is processed again at the next start
+            return;
+        }
+
+        long lDuration = System.currentTimeMillis( ) - lStart;
+        mapLine.put( FIELD_DURATION, lDuration );
+        mapLine.put( FIELD_COMPLETED, System.currentTimeMillis( ) );
+        try
+        {
+            folder.complete( file, mapLine, bFailed );
+            OcrMetricsService.getInstance( ).recordTime( TIMER_FILE, lDuration );
+            OcrMetricsService.getInstance( ).increment( bFailed ? COUNTER_FAILED : COUNTER_DONE );
+            ( bFailed ? _lFailed : _lDone ).incrementAndGet( );
+        }
+        catch( IOException e )
+        {
+            AppLogService.error( "Result of hot folder file " + file + " can not be written : " + e.getMessage( ), e );
+        }
+    }
+
+    /**
+     * @return true if the daemon is stopping and the file being processed must stay in its inbox
+     */
+    private boolean isStopping( )
+    {
+        return _bStopped || Thread.currentThread( ).isInterrupted( );
+    }
+
+    /**
+     * Perform the OCR of a file, sending it again while the engine is saturated.
+     *
+     * @param byteContent
+     *            the file content
+     * @param strExtension
+     *            the file extension
+     * @param strDocumentType
+     *            the document type
+     * @return Map result of OCR
+     * @throws OcrException
+     *             if the OCR fails
+     * @throws InterruptedException
+     *             if the daemon is stopped
+     */
+    private Map<String, String> proceed( byte [ ] byteContent, String strExtension, String strDocumentType ) throws OcrException, InterruptedException
+    {
+        while ( true )
+        {
+            try
+            {
+                return _ocrService.proceed( byteContent, strExtension, strDocumentType, OcrPriority.BULK, OcrDeadline.after( _lDeadline ) );
+            }
+            catch( OcrOverloadedException e )
+            {
+                waitBeforeRetry( e.getRetryAfter( ) );
+            }
+            catch( OcrCircuitOpenException e )
+            {
+                waitBeforeRetry( RETRY_DELAY );
+            }
+        }
+    }
+
+    /**
+     * Wait before sending again a file refused because the engine is saturated.
+     *
+     * @param lDelay
+     *            the delay in milliseconds
+     * @throws InterruptedException
+     *             if the daemon is stopped
+     */
+    private void waitBeforeRetry( long lDelay ) throws InterruptedException
+    {
+        OcrMetricsService.getInstance( ).increment( COUNTER_RETRIED );
+        if ( _bStopped )
+        {
+            throw new InterruptedException( );
+        }
+        Thread.sleep( Math.max( 100L, lDelay ) );
+    }
+
+    /**
+     * Log the throughput since the last report.
+     */
+    private void report( )
+    {
+        long lNow = System.currentTimeMillis( );
+        long lDone = _lDone.get( );
+        long lCount = lDone - _lLastReportDone;
+        long lRate = ( lNow > _lLastReportTime ) ? lCount * 60000L / ( lNow - _lLastReportTime ) : 0;
+        if ( lCount > 0 || !_mapPending.isEmpty( ) || !_setInFlight.isEmpty( ) )
+        {
+            AppLogService.info( "OCR hot folders : " + lCount + " file(s) processed (" + lRate + " per minute), " + _lFailed.get( ) + " failed in total, "
+                    + _setInFlight.size( ) + " in progress, " + _mapPending.size( ) + " waiting." );
+        }
+        _lLastReportDone = lDone;
+        _lLastReportTime = lNow;
+    }
+
+    /**
+     * Size and date of a file, to detect the end of its writing.
+     */
+    private static final class FileState
+    {
+        private final HotFolder _folder;
+        private long _lSize = -1;
+        private long _lModified = -1;
+        private long _lSince = System.currentTimeMillis( );
+
+        /**
+         * Constructor.
+         *
+         * @param folder
+         *            the hot folder of the file
+         */
+        FileState( HotFolder folder )
+        {
+            _folder = folder;
+        }
+    }
+}
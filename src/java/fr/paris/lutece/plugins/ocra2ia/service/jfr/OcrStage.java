@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.jfr;
+
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Timing of a stage of the OCR pipeline, recorded as a flight recorder event. When no recording collects the events, or when the virtual machine has no
+ * flight recorder, begin returns a shared inactive stage and nothing is allocated nor recorded. Usage :
+ *
+ * <pre>
+ * OcrStage stage = OcrStage.begin( OcrStage.PDF_RENDER, strDocumentType, lInputSize, nDpi );
+ * try
+ * {
+ *     ...
+ *     stage.succeed( );
+ * }
+ * finally
+ * {
+ *     stage.end( );
+ * }
+ * </pre>
+ *
+ */
+public final class OcrStage
+{
+
+    public static final String PDF_LOAD = "pdf.load";
+    public static final String PDF_RENDER = "pdf.render";
+    public static final String IMAGE_ENCODE = "image.encode";
+    public static final String BUFFER_CONVERSION = "buffer.conversion";
+    public static final String CHANNEL_OPEN = "channel.open";
+    public static final String REQUEST_OPEN = "request.open";
+    public static final String RESULT_GET = "result.get";
+    public static final String RESULT_EXTRACTION = "result.extraction";
+    public static final String PDF_RETRY = "pdf.retry";
+
+    public static final String OUTCOME_SUCCESS = "success";
+    public static final String OUTCOME_EMPTY = "empty";
+    public static final String OUTCOME_FAILURE = "failure";
+
+    private static final String JFR_EVENT_CLASS = "jdk.jfr.Event";
+
+    private static final OcrStage INACTIVE = new OcrStage( null );
+
+    private static volatile Boolean _bAvailable;
+
+    /**
+     * The flight recorder event, held as an object so that this class never needs the flight recorder classes.
+     */
+    private final Object _event;
+
+    private String _strOutcome = OUTCOME_FAILURE;
+
+    /**
+     * Constructor.
+     *
+     * @param event
+     *            the started event, null for the inactive stage
+     */
+    private OcrStage( Object event )
+    {
+        _event = event;
+    }
+
+    /**
+     * Begin a stage.
+     *
+     * @param strStage
+     *            name of the stage
+     * @param strDocumentType
+     *            document type, may be null
+     * @param lInputSize
+     *            number of bytes processed by the stage
+     * @param nDpi
+     *            resolution of the image, 0 when unknown
+     * @return the stage to end once done
+     */
+    public static OcrStage begin( String strStage, String strDocumentType, long lInputSize, int nDpi )
+    {
+        if ( !isAvailable( ) || !OcrStageEvent.isRecording( ) )
+        {
+            return INACTIVE;
+        }
+
+        return new OcrStage( OcrStageEvent.start( strStage, strDocumentType, lInputSize, nDpi ) );
+    }
+
+    /**
+     * Mark the stage as successful.
+     */
+    public void succeed( )
+    {
+        _strOutcome = OUTCOME_SUCCESS;
+    }
+
+    /**
+     * Set the outcome of the stage, failure by default.
+     *
+     * @param strOutcome
+     *            the outcome
+     */
+    public void setOutcome( String strOutcome )
+    {
+        _strOutcome = strOutcome;
+    }
+
+    /**
+     * End the stage and record its event.
+     */
+    public void end( )
+    {
+        if ( _event != null )
+        {
+            ( (OcrStageEvent) _event ).finish( _strOutcome );
+        }
+    }
+
+    /**
+     * Check once whether the stage events can be recorded : enabled by the configuration and supported by the virtual machine.
+     *
+     * @return true if the events can be recorded
+     */
+    private static boolean isAvailable( )
+    {
+        Boolean bAvailable = _bAvailable;
+        if ( bAvailable == null )
+        {
+            bAvailable = AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_JFR_ENABLED, true );
+            if ( bAvailable )
+            {
+                try
+                {
+                    Class.forName( JFR_EVENT_CLASS );
+                }
+                catch( ClassNotFoundException e )
+                {
+                    AppLogService.info( "Flight recorder not available, the OCR stage events are not recorded." );
+                    bAvailable = false;
+                }
+            }
+            _bAvailable = bAvailable;
+        }
+
+        return bAvailable;
+    }
+
+}
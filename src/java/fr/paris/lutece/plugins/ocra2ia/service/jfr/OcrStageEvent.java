@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ *
+ * Flight recorder event of a stage of the OCR pipeline. Only loaded through OcrStage, when the virtual machine provides the flight recorder.
+ *
+ */
+@Name( "fr.paris.lutece.plugins.ocra2ia.Stage" )
+@Label( "OCR Stage" )
+@Description( "A stage of the processing of a document by the OCR plugin" )
+@Category( {
+        "Lutece", "OCR"
+} )
+@StackTrace( false )
+public class OcrStageEvent extends Event
+{
+
+    private static final EventType EVENT_TYPE = EventType.getEventType( OcrStageEvent.class );
+
+    @Name( "stage" )
+    @Label( "Stage" )
+    String _strStage;
+
+    @Name( "documentType" )
+    @Label( "Document Type" )
+    String _strDocumentType;
+
+    @Name( "inputSize" )
+    @Label( "Input Size" )
+    @DataAmount( DataAmount.BYTES )
+    long _lInputSize;
+
+    @Name( "dpi" )
+    @Label( "DPI" )
+    @Description( "Resolution of the image, 0 when unknown" )
+    int _nDpi;
+
+    @Name( "outcome" )
+    @Label( "Outcome" )
+    String _strOutcome;
+
+    /**
+     * @return true if a recording collects the stage events
+     */
+    static boolean isRecording( )
+    {
+        return EVENT_TYPE.isEnabled( );
+    }
+
+    /**
+     * Start the event of a stage.
+     *
+     * @param strStage
+     *            name of the stage
+     * @param strDocumentType
+     *            document type, may be null
+     * @param lInputSize
+     *            number of bytes processed by the stage
+     * @param nDpi
+     *            resolution of the image, 0 when unknown
+     * @return the started event
+     */
+    static OcrStageEvent start( String strStage, String strDocumentType, long lInputSize, int nDpi )
+    {
+        OcrStageEvent event = new OcrStageEvent( );
+        event._strStage = strStage;
+        event._strDocumentType = strDocumentType;
+        event._lInputSize = lInputSize;
+        event._nDpi = nDpi;
+        event.begin( );
+
+        return event;
+    }
+
+    /**
+     * End the event and commit it, unless shorter than the threshold of the recording.
+     *
+     * @param strOutcome
+     *            outcome of the stage
+     */
+    void finish( String strOutcome )
+    {
+        end( );
+        if ( shouldCommit( ) )
+        {
+            _strOutcome = strOutcome;
+            commit( );
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.job;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import fr.paris.lutece.plugins.ocra2ia.business.OcrJob;
+import fr.paris.lutece.plugins.ocra2ia.business.OcrJobHome;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrMetricsService;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Posts the json document of a finished job to its callback url, on a thread of its own so that a slow receiver does not hold the OCR threads. A
+ * failed notification is retried with a doubling delay; the receiver can still poll the job afterwards.
+ *
+ */
+public class OcrJobCallbackNotifier
+{
+
+    private static final String THREAD_NAME = "ocra2ia-jobqueue-callback";
+    private static final String COUNTER_SENT = "jobqueue.callback.sent";
+    private static final String COUNTER_FAILED = "jobqueue.callback.failed";
+    private static final String METHOD_POST = "POST";
+    private static final String HEADER_CONTENT_TYPE = "Content-Type";
+    private static final String CONTENT_TYPE_JSON = "application/json; charset=UTF-8";
+    private static final long FIRST_RETRY_DELAY = 1000L;
+
+    private final ScheduledExecutorService _executor;
+    private final int _nMaxAttempts;
+    private final int _nTimeout;
+
+    /**
+     * Constructor.
+     */
+    public OcrJobCallbackNotifier( )
+    {
+        _nMaxAttempts = Math.max( 1, AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_JOBQUEUE_CALLBACK_ATTEMPTS, 3 ) );
+        _nTimeout = AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_JOBQUEUE_CALLBACK_TIMEOUT, 5000 );
+        _executor = Executors.newSingleThreadScheduledExecutor( r -> {
+            Thread thread = new Thread( r, THREAD_NAME );
+            thread.setDaemon( true );
+            return thread;
+        } );
+    }
+
+    /**
+     * Notify the callback url of a finished job.
+     *
+     * @param nId
+     *            the job id
+     * @param strCallbackUrl
+     *            the callback url
+     */
+    public void notify( int nId, String strCallbackUrl )
+    {
+        _executor.execute( ( ) -> send( nId, strCallbackUrl, 1, FIRST_RETRY_DELAY ) );
+    }
+
+    /**
+     * Stop sending the notifications.
+     */
+    public void shutdown( )
+    {
+        _executor.shutdownNow( );
+    }
+
+    /**
+     * Send a notification, schedule a retry if it fails.
+     *
+     * @param nId
+     *            the job id
+     * @param strCallbackUrl
+     *            the callback url
+     * @param nAttempt
+     *            number of the attempt
+     * @param lRetryDelay
+     *            delay before the next attempt
+     */
+    private void send( int nId, String strCallbackUrl, int nAttempt, long lRetryDelay )
+    {
+        try
+        {
+            // the job is read back so that the notification reflects what is stored, whichever node finished the job
+            OcrJob job = OcrJobHome.findByPrimaryKey( nId );
+            if ( job == null || !job.isFinished( ) || !OcrJobService.isCallbackAllowed( strCallbackUrl ) )
+            {
+                return;
+            }
+            post( strCallbackUrl, OcrJobService.toJson( job ) );
+            OcrMetricsService.getInstance( ).increment( COUNTER_SENT );
+        }
+        catch( IOException | RuntimeException e )
+        {
+            if ( nAttempt < _nMaxAttempts )
+            {
+                _executor.schedule( ( ) -> send( nId, strCallbackUrl, nAttempt + 1, lRetryDelay * 2 ), lRetryDelay, TimeUnit.MILLISECONDS );
+            }
+            else
+            {
+                OcrMetricsService.getInstance( ).increment( COUNTER_FAILED );
+                AppLogService.error( "Callback of OCR job " + nId + " to " + strCallbackUrl + " failed : " + e.getMessage( ) );
+            }
+        }
+    }
+
+    /**
+     * Post a json document.
+     *
+     * @param strUrl
+     *            the url
+     * @param strJson
+     *            the document
+     * @throws IOException
+     *             if the request fails or the response is not a success
+     */
+    private void post( String strUrl, String strJson ) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL( strUrl ).openConnection( );
+        try
+        {
+            connection.setConnectTimeout( _nTimeout );
+            connection.setReadTimeout( _nTimeout );
+            connection.setInstanceFollowRedirects( false );
+            connection.setRequestMethod( METHOD_POST );
+            connection.setRequestProperty( HEADER_CONTENT_TYPE, CONTENT_TYPE_JSON );
+            connection.setDoOutput( true );
+            try ( OutputStream out = connection.getOutputStream( ) )
+            {
+                out.write( strJson.getBytes( StandardCharsets.UTF_8 ) );
+            }
+
+            int nStatus = connection.getResponseCode( );
+            if ( nStatus < 200 || nStatus >= 300 )
+            {
+                throw new IOException( "HTTP status " + nStatus );
+            }
+        }
+        finally
+        {
+            connection.disconnect( );
+        }
+    }
+}
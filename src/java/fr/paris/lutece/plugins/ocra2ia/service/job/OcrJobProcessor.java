@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.job;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.paris.lutece.plugins.ocra2ia.business.OcrJob;
+import fr.paris.lutece.plugins.ocra2ia.business.OcrJobHome;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrCircuitOpenException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrInputRejectedException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrOverloadedException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrDeadline;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrMetricsService;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrPriority;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrService;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Processes the jobs of the persistent queue on a node running the engine. The node polls the table, claims jobs with a lease stored in the job row
+ * and renews it while the OCR runs. A job whose node stopped renewing its lease (crash, network loss) is claimed again by another node once the lease
+ * has expired, until the maximum number of attempts is reached. The lease dates come from the clock of the nodes, which must be synchronized.
+ *
+ */
+public class OcrJobProcessor
+{
+
+    private static final String THREAD_NAME_POLLER = "ocra2ia-jobqueue-poller";
+    private static final String THREAD_NAME_PREFIX = "ocra2ia-jobqueue-";
+    private static final String COUNTER_CLAIMED = "jobqueue.claimed";
+    private static final String COUNTER_DONE = "jobqueue.done";
+    private static final String COUNTER_FAILED = "jobqueue.failed";
+    private static final String COUNTER_RETRIED = "jobqueue.retried";
+    private static final String TIMER_WAIT = "jobqueue.wait";
+    private static final long PURGE_INTERVAL = 3600000L;
+
+    private final OcrService _ocrService;
+    private final String _strNodeId;
+    private final long _lLeaseDuration;
+    private final long _lDeadline;
+    private final int _nMaxAttempts;
+    private final long _lRetention;
+    private final Semaphore _slots;
+    private final Map<Integer, String> _mapLeases = new ConcurrentHashMap<>( );
+    private final ScheduledExecutorService _poller;
+    private final ExecutorService _executor;
+    private final OcrJobCallbackNotifier _callbackNotifier = new OcrJobCallbackNotifier( );
+    private long _lLastPurge;
+
+    /**
+     * Constructor, start polling the queue.
+     *
+     * @param ocrService
+     *            the OCR service of the node
+     */
+    public OcrJobProcessor( OcrService ocrService )
+    {
+        _ocrService = ocrService;
+        _strNodeId = AppPropertiesService.getProperty( OcrConstants.PROPERTY_JOBQUEUE_NODE_ID, getHostName( ) );
+        _lLeaseDuration = Math.max( 1000L, AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_JOBQUEUE_LEASE_DURATION, 60000L ) );
+        _lDeadline = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_JOBQUEUE_DEADLINE, 0L );
+        _nMaxAttempts = Math.max( 1, AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_JOBQUEUE_MAX_ATTEMPTS, 3 ) );
+        _lRetention = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_JOBQUEUE_RETENTION, 604800000L );
+        long lPollInterval = Math.max( 100L, AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_JOBQUEUE_POLL_INTERVAL, 2000L ) );
+        int nThreads = Math.max( 1, AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_JOBQUEUE_THREADS, 2 ) );
+
+        _slots = new Semaphore( nThreads );
+        AtomicInteger nThreadNumber = new AtomicInteger( );
+        _executor = Executors.newFixedThreadPool( nThreads, r -> {
+            Thread thread = new Thread( r, THREAD_NAME_PREFIX + nThreadNumber.getAndIncrement( ) );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        _poller = Executors.newSingleThreadScheduledExecutor( r -> {
+            Thread thread = new Thread( r, THREAD_NAME_POLLER );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        _poller.scheduleWithFixedDelay( this::poll, lPollInterval, lPollInterval, TimeUnit.MILLISECONDS );
+        _poller.scheduleWithFixedDelay( this::renewLeases, _lLeaseDuration / 3, _lLeaseDuration / 3, TimeUnit.MILLISECONDS );
+
+        AppLogService.info( "OCR job queue processor started on node " + _strNodeId + " with " + nThreads + " threads." );
+    }
+
+    /**
+     * Stop polling. The running jobs are interrupted, their lease expires and they are processed again by another node.
+     */
+    public void shutdown( )
+    {
+        _poller.shutdownNow( );
+        _executor.shutdownNow( );
+        _callbackNotifier.shutdown( );
+    }
+
+    /**
+     * Claim as many jobs as there are free threads.
+     */
+    private void poll( )
+    {
+        try
+        {
+            int nFree = _slots.availablePermits( );
+            if ( nFree > 0 )
+            {
+                Timestamp now = new Timestamp( System.currentTimeMillis( ) );
+                // other nodes claim the same candidates : take more than needed so that losing a race does not waste the poll
+                List<Integer> listIds = OcrJobHome.findClaimableIds( now, nFree * 2 );
+                for ( int i = 0; ( i < listIds.size( ) ) && _slots.tryAcquire( ); i++ )
+                {
+                    if ( !claim( listIds.get( i ) ) )
+                    {
+                        _slots.release( );
+                    }
+                }
+            }
+            purge( );
+        }
+        catch( RuntimeException e )
+        {
+            AppLogService.error( "OCR job queue poll failed : " + e.getMessage( ), e );
+        }
+    }
+
+    /**
+     * Claim a job and start it.
+     *
+     * @param nId
+     *            the job id
+     * @return true if the job was started
+     */
+    private boolean claim( int nId )
+    {
+        String strLeaseOwner = _strNodeId + ":" + UUID.randomUUID( );
+        OcrJob job = OcrJobHome.claim( nId, strLeaseOwner, new Timestamp( System.currentTimeMillis( ) + _lLeaseDuration ) );
+        if ( job == null )
+        {
+            return false;
+        }
+
+        OcrMetricsService.getInstance( ).increment( COUNTER_CLAIMED );
+        if ( job.getAttempts( ) > _nMaxAttempts )
+        {
+            AppLogService.error( "OCR job " + nId + " abandoned after " + _nMaxAttempts + " attempts." );
+            OcrJobHome.fail( nId, strLeaseOwner, job.getErrorMessage( ) != null ? job.getErrorMessage( ) : "Maximum number of attempts reached" );
+            OcrMetricsService.getInstance( ).increment( COUNTER_FAILED );
+            notifyCallback( job );
+            return false;
+        }
+
+        _mapLeases.put( nId, strLeaseOwner );
+        OcrMetricsService.getInstance( ).recordTime( TIMER_WAIT, System.currentTimeMillis( ) - job.getDateCreation( ).getTime( ) );
+        _executor.execute( ( ) -> process( job, strLeaseOwner ) );
+
+        return true;
+    }
+
+    /**
+     * Run the OCR of a leased job and store its outcome.
+     *
+     * @param job
+     *            the job with its file content
+     * @param strLeaseOwner
+     *            the lease token
+     */
+    private void process( OcrJob job, String strLeaseOwner )
+    {
+        int nId = job.getId( );
+        try
+        {
+            OcrPriority priority = OcrPriority.values( ) [Math.min( job.getPriority( ), OcrPriority.values( ).length - 1 )];
+            Map<String, String> mapResult = _ocrService.proceed( job.getFileContent( ), job.getFileExtension( ), job.getDocumentType( ), priority,
+                    OcrDeadline.after( _lDeadline ) );
+            OcrJobHome.complete( nId, strLeaseOwner, OcrJobService.toJson( mapResult ) );
+            OcrMetricsService.getInstance( ).increment( COUNTER_DONE );
+            notifyCallback( job );
+        }
+        catch( OcrOverloadedException | OcrCircuitOpenException e )
+        {
+            // the node or the engine is saturated, the document is not at fault
+            OcrJobHome.release( nId, strLeaseOwner, e.getMessage( ), false );
+            OcrMetricsService.getInstance( ).increment( COUNTER_RETRIED );
+        }
+        catch( OcrInputRejectedException e )
+        {
+            OcrJobHome.fail( nId, strLeaseOwner, e.getMessage( ) );
+            OcrMetricsService.getInstance( ).increment( COUNTER_FAILED );
+            notifyCallback( job );
+        }
+        catch( OcrException | IOException e )
+        {
+            if ( job.getAttempts( ) < _nMaxAttempts )
+            {
+                OcrJobHome.release( nId, strLeaseOwner, e.getMessage( ), true );
+                OcrMetricsService.getInstance( ).increment( COUNTER_RETRIED );
+            }
+            else
+            {
+                OcrJobHome.fail( nId, strLeaseOwner, e.getMessage( ) );
+                OcrMetricsService.getInstance( ).increment( COUNTER_FAILED );
+                notifyCallback( job );
+            }
+        }
+        catch( RuntimeException e )
+        {
+            // the lease will expire and the job will be claimed again
+            AppLogService.error( "OCR job " + nId + " failed : " + e.getMessage( ), e );
+        }
+        finally
+        {
+            _mapLeases.remove( nId );
+            _slots.release( );
+        }
+    }
+
+    /**
+     * Notify the callback url of a finished job, if any.
+     *
+     * @param job
+     *            the job
+     */
+    private void notifyCallback( OcrJob job )
+    {
+        if ( job.getCallbackUrl( ) != null )
+        {
+            _callbackNotifier.notify( job.getId( ), job.getCallbackUrl( ) );
+        }
+    }
+
+    /**
+     * Extend the lease of the jobs running on this node.
+     */
+    private void renewLeases( )
+    {
+        Timestamp leaseExpiration = new Timestamp( System.currentTimeMillis( ) + _lLeaseDuration );
+        for ( Map.Entry<Integer, String> entry : _mapLeases.entrySet( ) )
+        {
+            try
+            {
+                OcrJobHome.renewLease( entry.getKey( ), entry.getValue( ), leaseExpiration );
+            }
+            catch( RuntimeException e )
+            {
+                AppLogService.error( "Renewal of the lease of OCR job " + entry.getKey( ) + " failed : " + e.getMessage( ), e );
+            }
+        }
+    }
+
+    /**
+     * Delete the old finished jobs, once an hour.
+     */
+    private void purge( )
+    {
+        long lNow = System.currentTimeMillis( );
+        if ( _lRetention > 0 && lNow - _lLastPurge > PURGE_INTERVAL )
+        {
+            _lLastPurge = lNow;
+            OcrJobHome.removeFinished( new Timestamp( lNow - _lRetention ) );
+        }
+    }
+
+    /**
+     * @return the host name, used as default node id
+     */
+    private static String getHostName( )
+    {
+        try
+        {
+            return InetAddress.getLocalHost( ).getHostName( );
+        }
+        catch( UnknownHostException e )
+        {
+            return UUID.randomUUID( ).toString( );
+        }
+    }
+}
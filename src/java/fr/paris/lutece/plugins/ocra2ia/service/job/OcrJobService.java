@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.job;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang3.ArrayUtils;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fr.paris.lutece.plugins.ocra2ia.business.OcrJob;
+import fr.paris.lutece.plugins.ocra2ia.business.OcrJobHome;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrOverloadedException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrMetricsService;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrPriority;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.i18n.I18nService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Persistent OCR job queue shared by the nodes of a cluster : any node can enqueue a document, the nodes running the engine process the jobs (see
+ * OcrJobProcessor) and store the result in the database.
+ *
+ */
+public final class OcrJobService
+{
+
+    private static final String COUNTER_ENQUEUED = "jobqueue.enqueued";
+    private static final String COUNTER_REJECTED = "jobqueue.rejected";
+    private static final String FIELD_ID = "id";
+    private static final String FIELD_STATUS = "status";
+    private static final String FIELD_RESULT = "result";
+    private static final String FIELD_ERROR = "error";
+    private static final ObjectMapper MAPPER = new ObjectMapper( );
+    private static final TypeReference<Map<String, String>> TYPE_RESULT = new TypeReference<Map<String, String>>( )
+    {
+    };
+
+    /**
+     * Private constructor - this class need not be instantiated
+     */
+    private OcrJobService( )
+    {
+    }
+
+    /**
+     * Add a document to the job queue.
+     *
+     * @param bytefileContent
+     *            file to read
+     * @param strFileExtension
+     *            image extension
+     * @param strDocumentType
+     *            document type : values allowed : Rib, TaxAssessment,Identity
+     * @param priority
+     *            priority class of the job
+     * @return the job reference
+     * @throws OcrException
+     *             if a parameter is missing, OcrOverloadedException if too many jobs are waiting
+     */
+    public static String enqueue( byte [ ] bytefileContent, String strFileExtension, String strDocumentType, OcrPriority priority )
+            throws OcrException
+    {
+        if ( ArrayUtils.isEmpty( bytefileContent ) )
+        {
+            throw new OcrException( I18nService.getLocalizedString( OcrConstants.MESSAGE_PARAMETER_MANDATORY, Locale.getDefault( ) ) );
+        }
+
+        return enqueue( new ByteArrayInputStream( bytefileContent ), bytefileContent.length, strFileExtension, strDocumentType, priority, null );
+    }
+
+    /**
+     * Add a document to the job queue, its content being streamed to the database.
+     *
+     * @param content
+     *            file to read
+     * @param nLength
+     *            length of the file
+     * @param strFileExtension
+     *            image extension
+     * @param strDocumentType
+     *            document type : values allowed : Rib, TaxAssessment,Identity
+     * @param priority
+     *            priority class of the job
+     * @param strCallbackUrl
+     *            url notified when the job is finished, or null
+     * @return the job reference
+     * @throws OcrException
+     *             if a parameter is missing or the callback url is not allowed, OcrOverloadedException if too many jobs are waiting
+     */
+    public static String enqueue( InputStream content, int nLength, String strFileExtension, String strDocumentType, OcrPriority priority,
+            String strCallbackUrl ) throws OcrException
+    {
+        if ( nLength <= 0 || StringUtils.isEmpty( strFileExtension ) || StringUtils.isEmpty( strDocumentType ) )
+        {
+            throw new OcrException( I18nService.getLocalizedString( OcrConstants.MESSAGE_PARAMETER_MANDATORY, Locale.getDefault( ) ) );
+        }
+        if ( StringUtils.isNotEmpty( strCallbackUrl ) && !isCallbackAllowed( strCallbackUrl ) )
+        {
+            throw new OcrException( I18nService.getLocalizedString( OcrConstants.MESSAGE_CALLBACK_NOT_ALLOWED, Locale.getDefault( ) ) );
+        }
+
+        int nMaxUnfinished = AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_JOBQUEUE_MAX_UNFINISHED, 0 );
+        if ( nMaxUnfinished > 0 && OcrJobHome.countUnfinished( ) >= nMaxUnfinished )
+        {
+            OcrMetricsService.getInstance( ).increment( COUNTER_REJECTED );
+            long lRetryAfter = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_JOBQUEUE_POLL_INTERVAL, 2000L ) * 10;
+            String [ ] messageArgs = {
+                String.valueOf( ( lRetryAfter + 999 ) / 1000 )
+            };
+            throw new OcrOverloadedException( lRetryAfter,
+                    I18nService.getLocalizedString( OcrConstants.MESSAGE_OVERLOADED, messageArgs, Locale.getDefault( ) ) );
+        }
+
+        OcrJob job = new OcrJob( );
+        job.setReference( UUID.randomUUID( ).toString( ) );
+        job.setFileExtension( strFileExtension );
+        job.setDocumentType( strDocumentType );
+        job.setPriority( priority.ordinal( ) );
+        job.setCallbackUrl( StringUtils.isNotEmpty( strCallbackUrl ) ? strCallbackUrl : null );
+        OcrJobHome.create( job, content, nLength );
+        OcrMetricsService.getInstance( ).increment( COUNTER_ENQUEUED );
+
+        return job.getReference( );
+    }
+
+    /**
+     * Get a job and its status.
+     *
+     * @param strReference
+     *            the job reference
+     * @return the job, without its file content, or null
+     */
+    public static OcrJob getJob( String strReference )
+    {
+        return OcrJobHome.findByReference( strReference );
+    }
+
+    /**
+     * Get the result of a job.
+     *
+     * @param strReference
+     *            the job reference
+     * @return Map result of OCR, or null if the job is not finished yet
+     * @throws OcrException
+     *             if the job does not exist or failed
+     */
+    public static Map<String, String> getResult( String strReference ) throws OcrException
+    {
+        OcrJob job = OcrJobHome.findByReference( strReference );
+        if ( job == null )
+        {
+            throw new OcrException( I18nService.getLocalizedString( OcrConstants.MESSAGE_JOB_NOT_FOUND, Locale.getDefault( ) ) );
+        }
+        if ( OcrJob.STATUS_FAILED.equals( job.getStatus( ) ) )
+        {
+            throw new OcrException( job.getErrorMessage( ) );
+        }
+        if ( !OcrJob.STATUS_DONE.equals( job.getStatus( ) ) )
+        {
+            return null;
+        }
+
+        try
+        {
+            return MAPPER.readValue( job.getResult( ), TYPE_RESULT );
+        }
+        catch( IOException e )
+        {
+            throw new OcrException( "Unreadable result of OCR job " + strReference + " : " + e.getMessage( ) );
+        }
+    }
+
+    /**
+     * Get the json document describing a job : reference, status, and result or error once finished.
+     *
+     * @param job
+     *            the job
+     * @return the json
+     * @throws IOException
+     *             if the document can not be built
+     */
+    public static String toJson( OcrJob job ) throws IOException
+    {
+        Map<String, Object> mapJob = new LinkedHashMap<>( );
+        mapJob.put( FIELD_ID, job.getReference( ) );
+        mapJob.put( FIELD_STATUS, job.getStatus( ) );
+        if ( OcrJob.STATUS_DONE.equals( job.getStatus( ) ) )
+        {
+            mapJob.put( FIELD_RESULT, MAPPER.readValue( job.getResult( ), TYPE_RESULT ) );
+        }
+        else
+            if ( OcrJob.STATUS_FAILED.equals( job.getStatus( ) ) )
+            {
+                mapJob.put( FIELD_ERROR, job.getErrorMessage( ) );
+            }
+
+        return MAPPER.writeValueAsString( mapJob );
+    }
+
+    /**
+     * Check a callback url against the allowed urls, so that the service can not be used to send requests to any host. The scheme, host and port
+     * must be those of an allowed url, and the path must be below its path : comparing the strings would accept http://allowed.host.evil.org or
+     * http://allowed.host@evil.org.
+     *
+     * @param strCallbackUrl
+     *            the url
+     * @return true if the url matches one of the allowed urls
+     */
+    public static boolean isCallbackAllowed( String strCallbackUrl )
+    {
+        String strAllowed = AppPropertiesService.getProperty( OcrConstants.PROPERTY_JOBQUEUE_CALLBACK_ALLOWED, StringUtils.EMPTY );
+
+        return isCallbackAllowed( strCallbackUrl, strAllowed );
+    }
+
+    /**
+     * Check a callback url against a list of allowed urls.
+     *
+     * @param strCallbackUrl
+     *            the url
+     * @param strAllowed
+     *            the allowed urls separated by commas
+     * @return true if the url matches one of the allowed urls
+     */
+    static boolean isCallbackAllowed( String strCallbackUrl, String strAllowed )
+    {
+        URI uriCallback = parseHttpUrl( strCallbackUrl );
+        if ( uriCallback == null || uriCallback.getRawUserInfo( ) != null )
+        {
+            return false;
+        }
+
+        for ( String strAllowedUrl : StringUtils.defaultString( strAllowed ).split( "," ) )
+        {
+            URI uriAllowed = parseHttpUrl( strAllowedUrl.trim( ) );
+            if ( uriAllowed != null && uriAllowed.getScheme( ).equalsIgnoreCase( uriCallback.getScheme( ) )
+                    && uriAllowed.getHost( ).equalsIgnoreCase( uriCallback.getHost( ) ) && getPort( uriAllowed ) == getPort( uriCallback )
+                    && isBelow( uriCallback.getPath( ), uriAllowed.getPath( ) ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Parse an absolute http or https url.
+     *
+     * @param strUrl
+     *            the url
+     * @return the normalized url, or null if it is not an absolute http url with a host
+     */
+    private static URI parseHttpUrl( String strUrl )
+    {
+        if ( StringUtils.isBlank( strUrl ) )
+        {
+            return null;
+        }
+        try
+        {
+            URI uri = new URI( strUrl ).normalize( );
+            boolean bHttp = "http".equalsIgnoreCase( uri.getScheme( ) ) || "https".equalsIgnoreCase( uri.getScheme( ) );
+
+            return bHttp && uri.getHost( ) != null ? uri : null;
+        }
+        catch( URISyntaxException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @param uri
+     *            an http url
+     * @return its port, the default port of its scheme if none is given
+     */
+    private static int getPort( URI uri )
+    {
+        if ( uri.getPort( ) != -1 )
+        {
+            return uri.getPort( );
+        }
+
+        return "https".equalsIgnoreCase( uri.getScheme( ) ) ? 443 : 80;
+    }
+
+    /**
+     * Check that a path is an allowed path or below it.
+     *
+     * @param strPath
+     *            the normalized path of the callback url
+     * @param strAllowedPath
+     *            the normalized path of the allowed url
+     * @return true if the path is the allowed path or one of its sub paths
+     */
+    private static boolean isBelow( String strPath, String strAllowedPath )
+    {
+        String strPrefix = StringUtils.removeEnd( StringUtils.defaultString( strAllowedPath ), "/" );
+        String strCallbackPath = StringUtils.defaultString( strPath );
+        if ( strCallbackPath.contains( "/../" ) || strCallbackPath.endsWith( "/.." ) )
+        {
+            return false;
+        }
+
+        return strPrefix.isEmpty( ) || strCallbackPath.equals( strPrefix ) || strCallbackPath.startsWith( strPrefix + "/" );
+    }
+
+    /**
+     * Serialize an OCR result to be stored.
+     *
+     * @param mapResult
+     *            the result
+     * @return the json
+     * @throws IOException
+     *             if the result can not be serialized
+     */
+    static String toJson( Map<String, String> mapResult ) throws IOException
+    {
+        return MAPPER.writeValueAsString( mapResult );
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.similarity;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.imageio.ImageIO;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fr.paris.lutece.plugins.ocra2ia.business.ImageBean;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrMetricsService;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Lucene index of the perceptual hashes of the documents recently recognized. The result of a document is compared field by field with the result of
+ * the closest recent document of the same type : a drop of the agreement between new scans of the same documents signals a degradation of the
+ * engine or of the scans. The result of a similar document is never returned nor used to fill a field, since a similar image may be the document of
+ * another person; the exact duplicates are served by the result cache.
+ *
+ * The index does not hold the field values : only their HMAC, under a key drawn at startup and kept in memory. The index is therefore recreated at
+ * each start.
+ *
+ * The 64 bits hash is indexed as 8 bands of 8 bits : two hashes differing by less than 8 bits share at least one band, so the candidates are found
+ * with term queries on the bands, then filtered on their exact distance.
+ *
+ */
+public class OcrSimilarityIndex
+{
+
+    private static final String FIELD_TYPE = "type";
+    private static final String FIELD_BAND = "band";
+    private static final String FIELD_HASH = "hash";
+    private static final String FIELD_DATE = "date";
+    private static final String FIELD_FINGERPRINTS = "fingerprints";
+
+    private static final String COUNTER_LOOKUP = "similarity.lookup";
+    private static final String COUNTER_HIT = "similarity.hit";
+    private static final String COUNTER_MISS = "similarity.miss";
+    private static final String COUNTER_UNHASHED = "similarity.unhashed";
+    private static final String COUNTER_AGREE = "similarity.agree";
+    private static final String COUNTER_DISAGREE = "similarity.disagree";
+    private static final String COUNTER_TIME = "similarity.time";
+
+    private static final int NB_BANDS = 8;
+    private static final int BAND_BITS = 64 / NB_BANDS;
+    private static final int MAX_CANDIDATES = 100;
+    private static final String DATE_FORMAT = "%019d";
+    private static final String ALGORITHM_HMAC = "HmacSHA256";
+    private static final int KEY_SIZE = 32;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper( );
+    private static final TypeReference<Map<String, String>> TYPE_FINGERPRINTS = new TypeReference<Map<String, String>>( )
+    {
+    };
+
+    private final int _nMaxDistance;
+    private final long _lMaxAge;
+    private final SecretKeySpec _keyFingerprint;
+    private final Directory _directory;
+    private final IndexWriter _writer;
+    private final SearcherManager _searcherManager;
+    private final AtomicLong _lLookups = new AtomicLong( );
+    private final AtomicLong _lHits = new AtomicLong( );
+
+    /**
+     * Constructor : create the index, replacing the index of a previous run whose fingerprints can no longer be compared.
+     *
+     * @throws IOException
+     *             if the index can not be created
+     */
+    public OcrSimilarityIndex( ) throws IOException
+    {
+        int nMaxDistance = AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_SIMILARITY_MAX_DISTANCE, 6 );
+        if ( ( nMaxDistance < 0 ) || ( nMaxDistance >= NB_BANDS ) )
+        {
+            AppLogService.error( "Bad value for property " + OcrConstants.PROPERTY_SIMILARITY_MAX_DISTANCE + " : " + nMaxDistance + ", it must be between 0 and "
+                    + ( NB_BANDS - 1 ) + "." );
+            nMaxDistance = Math.max( 0, Math.min( NB_BANDS - 1, nMaxDistance ) );
+        }
+        _nMaxDistance = nMaxDistance;
+        _lMaxAge = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_SIMILARITY_MAX_AGE, 604800000L );
+        byte [ ] key = new byte [ KEY_SIZE];
+        new SecureRandom( ).nextBytes( key );
+        _keyFingerprint = new SecretKeySpec( key, ALGORITHM_HMAC );
+
+        String strIndexDir = AppPropertiesService.getProperty( OcrConstants.PROPERTY_SIMILARITY_INDEX_DIR );
+        Path indexDir = StringUtils.isBlank( strIndexDir ) ? Paths.get( System.getProperty( "java.io.tmpdir" ), "ocra2ia-similarity" ) : Paths.get( strIndexDir
+                .trim( ) );
+        Files.createDirectories( indexDir );
+
+        _directory = FSDirectory.open( indexDir );
+        _writer = new IndexWriter( _directory, new IndexWriterConfig( new KeywordAnalyzer( ) ).setOpenMode( IndexWriterConfig.OpenMode.CREATE ) );
+        // near real time searcher : the documents added are searchable without committing the index
+        _searcherManager = new SearcherManager( _writer, new SearcherFactory( ) );
+        AppLogService.info( "OCR similarity index created in " + indexDir + ", maximum distance " + _nMaxDistance + "." );
+    }
+
+    /**
+     * Compute the perceptual hash of an image.
+     *
+     * @param imageBean
+     *            the image
+     * @return the hash, or null if the image can not be decoded
+     */
+    public Long hash( ImageBean imageBean )
+    {
+        if ( imageBean.getContent( ) == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            BufferedImage image = ImageIO.read( new ByteArrayInputStream( imageBean.getContent( ), 0, imageBean.getContentLength( ) ) );
+            if ( image != null )
+            {
+                return PerceptualHash.dHash( image );
+            }
+        }
+        catch( IOException e )
+        {
+            AppLogService.error( "Unable to compute the perceptual hash of the image : " + e.getMessage( ) );
+        }
+        OcrMetricsService.getInstance( ).increment( COUNTER_UNHASHED );
+
+        return null;
+    }
+
+    /**
+     * Compare the result of a document with the result of the closest recent document of the same type, counting the fields on which they agree,
+     * then add the document to the index. The result is not modified.
+     *
+     * @param strDocumentType
+     *            document type
+     * @param lHash
+     *            perceptual hash of the document
+     * @param mapResult
+     *            result of the engine
+     */
+    public void compareAndAdd( String strDocumentType, long lHash, Map<String, String> mapResult )
+    {
+        long lStart = System.currentTimeMillis( );
+        _lLookups.incrementAndGet( );
+        OcrMetricsService.getInstance( ).increment( COUNTER_LOOKUP );
+
+        try
+        {
+            Map<String, String> mapFingerprints = getFingerprints( mapResult );
+            Map<String, String> mapSimilarFingerprints = search( strDocumentType, lHash );
+            if ( mapSimilarFingerprints == null )
+            {
+                OcrMetricsService.getInstance( ).increment( COUNTER_MISS );
+            }
+            else
+            {
+                _lHits.incrementAndGet( );
+                OcrMetricsService.getInstance( ).increment( COUNTER_HIT );
+                compare( mapFingerprints, mapSimilarFingerprints );
+            }
+            add( strDocumentType, lHash, mapFingerprints );
+        }
+        catch( IOException e )
+        {
+            AppLogService.error( "OCR similarity index update failed : " + e.getMessage( ), e );
+        }
+        finally
+        {
+            OcrMetricsService.getInstance( ).recordTime( COUNTER_TIME, System.currentTimeMillis( ) - lStart );
+        }
+    }
+
+    /**
+     * Get the share of the lookups finding a similar document.
+     *
+     * @return the hit rate, between 0 and 1
+     */
+    public double getHitRate( )
+    {
+        long lLookups = _lLookups.get( );
+
+        return ( lLookups == 0 ) ? 0 : ( (double) _lHits.get( ) / lLookups );
+    }
+
+    /**
+     * Close the index.
+     */
+    public void close( )
+    {
+        AppLogService.info( "OCR similarity index closed, hit rate " + Math.round( getHitRate( ) * 100 ) + "% on " + _lLookups.get( ) + " lookups." );
+        try
+        {
+            _searcherManager.close( );
+            _writer.close( );
+            _directory.close( );
+        }
+        catch( IOException e )
+        {
+            AppLogService.error( "Unable to close the OCR similarity index : " + e.getMessage( ), e );
+        }
+    }
+
+    /**
+     * Count the fields read in both results on which they agree.
+     *
+     * @param mapFingerprints
+     *            fingerprints of the result of the engine
+     * @param mapSimilarFingerprints
+     *            fingerprints of the result of the similar document
+     */
+    private static void compare( Map<String, String> mapFingerprints, Map<String, String> mapSimilarFingerprints )
+    {
+        for ( Map.Entry<String, String> entry : mapSimilarFingerprints.entrySet( ) )
+        {
+            String strFingerprint = mapFingerprints.get( entry.getKey( ) );
+            if ( strFingerprint != null )
+            {
+                OcrMetricsService.getInstance( ).increment( strFingerprint.equals( entry.getValue( ) ) ? COUNTER_AGREE : COUNTER_DISAGREE );
+            }
+        }
+    }
+
+    /**
+     * Add a document to the index, and remove the documents older than the maximum age. The index is not committed : it only lives as long as the
+     * key of its fingerprints.
+     *
+     * @param strDocumentType
+     *            document type
+     * @param lHash
+     *            perceptual hash of the document
+     * @param mapFingerprints
+     *            fingerprints of the result of the engine
+     * @throws IOException
+     *             if the index can not be written
+     */
+    private void add( String strDocumentType, long lHash, Map<String, String> mapFingerprints ) throws IOException
+    {
+        long lNow = System.currentTimeMillis( );
+        Document document = new Document( );
+        document.add( new StringField( FIELD_TYPE, strDocumentType.toLowerCase( Locale.ROOT ), Field.Store.NO ) );
+        for ( int i = 0; i < NB_BANDS; i++ )
+        {
+            document.add( new StringField( FIELD_BAND + i, getBand( lHash, i ), Field.Store.NO ) );
+        }
+        document.add( new StoredField( FIELD_HASH, Long.toHexString( lHash ) ) );
+        document.add( new StringField( FIELD_DATE, String.format( DATE_FORMAT, lNow ), Field.Store.NO ) );
+        document.add( new StoredField( FIELD_FINGERPRINTS, MAPPER.writeValueAsString( mapFingerprints ) ) );
+
+        _writer.addDocument( document );
+        _writer.deleteDocuments( TermRangeQuery.newStringRange( FIELD_DATE, null, String.format( DATE_FORMAT, lNow - _lMaxAge ), false, false ) );
+    }
+
+    /**
+     * Search the closest recent document of the same type.
+     *
+     * @param strDocumentType
+     *            document type
+     * @param lHash
+     *            perceptual hash of the document
+     * @return the fingerprints of the closest document, or null if there is none within the maximum distance
+     * @throws IOException
+     *             if the index can not be read
+     */
+    private Map<String, String> search( String strDocumentType, long lHash ) throws IOException
+    {
+        BooleanQuery.Builder bands = new BooleanQuery.Builder( );
+        for ( int i = 0; i < NB_BANDS; i++ )
+        {
+            bands.add( new TermQuery( new Term( FIELD_BAND + i, getBand( lHash, i ) ) ), BooleanClause.Occur.SHOULD );
+        }
+        Query query = new BooleanQuery.Builder( ).add( new TermQuery( new Term( FIELD_TYPE, strDocumentType.toLowerCase( Locale.ROOT ) ) ),
+                BooleanClause.Occur.FILTER )
+                .add( TermRangeQuery.newStringRange( FIELD_DATE, String.format( DATE_FORMAT, System.currentTimeMillis( ) - _lMaxAge ), null, true, false ),
+                        BooleanClause.Occur.FILTER ).add( bands.setMinimumNumberShouldMatch( 1 ).build( ), BooleanClause.Occur.MUST ).build( );
+
+        // cheap when nothing was added since the last refresh
+        _searcherManager.maybeRefresh( );
+        IndexSearcher searcher = _searcherManager.acquire( );
+        try
+        {
+            // the documents sharing the most bands come first, the closest one is kept
+            TopDocs topDocs = searcher.search( query, MAX_CANDIDATES );
+            Document closest = null;
+            int nClosestDistance = _nMaxDistance + 1;
+            for ( ScoreDoc scoreDoc : topDocs.scoreDocs )
+            {
+                Document document = searcher.doc( scoreDoc.doc );
+                int nDistance = PerceptualHash.distance( lHash, Long.parseUnsignedLong( document.get( FIELD_HASH ), 16 ) );
+                if ( nDistance < nClosestDistance )
+                {
+                    closest = document;
+                    nClosestDistance = nDistance;
+                }
+            }
+
+            return ( closest == null ) ? null : MAPPER.readValue( closest.get( FIELD_FINGERPRINTS ), TYPE_FINGERPRINTS );
+        }
+        finally
+        {
+            _searcherManager.release( searcher );
+        }
+    }
+
+    /**
+     * Get the fingerprints of the fields read in a result : the HMAC of their value, so that the index only allows to compare two values.
+     *
+     * @param mapResult
+     *            result of the engine
+     * @return map field name / fingerprint of the value
+     */
+    private Map<String, String> getFingerprints( Map<String, String> mapResult )
+    {
+        Map<String, String> mapFingerprints = new HashMap<>( );
+        try
+        {
+            Mac mac = Mac.getInstance( ALGORITHM_HMAC );
+            mac.init( _keyFingerprint );
+            for ( Map.Entry<String, String> entry : mapResult.entrySet( ) )
+            {
+                if ( StringUtils.isNotBlank( entry.getValue( ) ) )
+                {
+                    byte [ ] fingerprint = mac.doFinal( entry.getValue( ).getBytes( StandardCharsets.UTF_8 ) );
+                    mapFingerprints.put( entry.getKey( ), Base64.getEncoder( ).encodeToString( fingerprint ) );
+                }
+            }
+        }
+        catch( GeneralSecurityException e )
+        {
+            // every Java platform supports HmacSHA256
+            throw new IllegalStateException( e );
+        }
+
+        return mapFingerprints;
+    }
+
+    /**
+     * Get a band of a hash as an index term.
+     *
+     * @param lHash
+     *            the hash
+     * @param nBand
+     *            index of the band
+     * @return the value of the band in hexadecimal
+     */
+    private static String getBand( long lHash, int nBand )
+    {
+        return Integer.toHexString( (int) ( ( lHash >>> ( nBand * BAND_BITS ) ) & 0xFF ) );
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.similarity;
+
+import java.awt.image.BufferedImage;
+
+/**
+ *
+ * Difference hash (dHash) of an image : the image is reduced to a grey grid of 9 columns by 8 rows, and each of the 64 bits tells whether a cell is
+ * brighter than its right neighbour. A new scan or photo of the same document gives a hash differing by a few bits only, the distance between two
+ * documents being the number of different bits.
+ *
+ */
+public final class PerceptualHash
+{
+
+    private static final int GRID_WIDTH = 9;
+    private static final int GRID_HEIGHT = 8;
+
+    /**
+     * Number of pixels read along each axis : large images are sampled rather than fully read.
+     */
+    private static final int MAX_SAMPLES = 512;
+
+    /**
+     * Private constructor - this class need not be instantiated
+     */
+    private PerceptualHash( )
+    {
+    }
+
+    /**
+     * Compute the difference hash of an image.
+     *
+     * @param image
+     *            the image
+     * @return the 64 bits hash
+     */
+    public static long dHash( BufferedImage image )
+    {
+        int nWidth = image.getWidth( );
+        int nHeight = image.getHeight( );
+        int nStepX = Math.max( 1, nWidth / MAX_SAMPLES );
+        int nStepY = Math.max( 1, nHeight / MAX_SAMPLES );
+        long [ ] sums = new long [ GRID_WIDTH * GRID_HEIGHT];
+        int [ ] counts = new int [ GRID_WIDTH * GRID_HEIGHT];
+
+        for ( int y = 0; y < nHeight; y += nStepY )
+        {
+            int nRow = ( y * GRID_HEIGHT ) / nHeight;
+            for ( int x = 0; x < nWidth; x += nStepX )
+            {
+                int nCell = ( nRow * GRID_WIDTH ) + ( ( x * GRID_WIDTH ) / nWidth );
+                int nRgb = image.getRGB( x, y );
+                // luma of ITU-R BT.601
+                sums [nCell] += ( ( ( nRgb >> 16 ) & 0xFF ) * 299 ) + ( ( ( nRgb >> 8 ) & 0xFF ) * 587 ) + ( ( nRgb & 0xFF ) * 114 );
+                counts [nCell]++;
+            }
+        }
+
+        long lHash = 0;
+        for ( int nRow = 0; nRow < GRID_HEIGHT; nRow++ )
+        {
+            for ( int nColumn = 0; nColumn < ( GRID_WIDTH - 1 ); nColumn++ )
+            {
+                int nCell = ( nRow * GRID_WIDTH ) + nColumn;
+                lHash <<= 1;
+                if ( mean( sums, counts, nCell ) > mean( sums, counts, nCell + 1 ) )
+                {
+                    lHash |= 1;
+                }
+            }
+        }
+
+        return lHash;
+    }
+
+    /**
+     * Get the number of different bits of two hashes.
+     *
+     * @param lHash1
+     *            first hash
+     * @param lHash2
+     *            second hash
+     * @return the Hamming distance, between 0 and 64
+     */
+    public static int distance( long lHash1, long lHash2 )
+    {
+        return Long.bitCount( lHash1 ^ lHash2 );
+    }
+
+    /**
+     * Get the mean brightness of a cell of the grid.
+     *
+     * @param sums
+     *            sum of the brightness of the pixels read in each cell
+     * @param counts
+     *            number of pixels read in each cell
+     * @param nCell
+     *            index of the cell
+     * @return the mean brightness
+     */
+    private static long mean( long [ ] sums, int [ ] counts, int nCell )
+    {
+        return ( counts [nCell] == 0 ) ? 0 : ( sums [nCell] / counts [nCell] );
+    }
+
+}
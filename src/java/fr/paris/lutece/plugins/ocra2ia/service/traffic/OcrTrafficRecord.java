@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.traffic;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrDeadlineExceededException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrInputRejectedException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrOverloadedException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrPriority;
+
+/**
+ *
+ * A request captured by the traffic recorder : its shape (arrival, size, format, page count, document type, priority, time budget, content hash), its
+ * outcome and the duration of each stage, and the content when the payloads are recorded. Stages are timed by successive marks : a mark gives the stage the
+ * time elapsed since the previous mark. The inactive record, used when nothing is recorded, ignores all the calls.
+ *
+ */
+public final class OcrTrafficRecord
+{
+
+    public static final byte OUTCOME_SUCCESS = 0;
+    public static final byte OUTCOME_EMPTY = 1;
+    public static final byte OUTCOME_CACHED = 2;
+    public static final byte OUTCOME_FAILED = 3;
+    public static final byte OUTCOME_REJECTED = 4;
+    public static final byte OUTCOME_SHED = 5;
+    public static final byte OUTCOME_EXPIRED = 6;
+
+    /**
+     * Record ignoring all the calls, used when the traffic is not recorded.
+     */
+    public static final OcrTrafficRecord INACTIVE = new OcrTrafficRecord( false );
+
+    private static final String [ ] OUTCOME_NAMES = {
+            "success", "empty", "cached", "failed", "rejected", "shed", "expired"
+    };
+    private static final int HASH_LENGTH = 32;
+    private static final int NO_PAYLOAD = -1;
+    private static final long NOT_RUN = -1;
+
+    private final boolean _bActive;
+    private final long [ ] _tabStageTimes = new long [ OcrTrafficStage.values( ).length];
+    private long _lArrival;
+    private long _lStart;
+    private long _lLastMark;
+    private long _lTotal;
+    private int _nSize;
+    private String _strFormat;
+    private String _strDocumentType;
+    private OcrPriority _priority;
+    private long _lBudget;
+    private int _nPageCount;
+    private byte [ ] _byteHash;
+    private byte [ ] _bytePayload;
+    private byte _outcome = OUTCOME_FAILED;
+
+    /**
+     * Constructor of a record started now.
+     *
+     * @param nSize
+     *            size of the content in bytes
+     * @param strFormat
+     *            format of the content (file extension)
+     * @param strDocumentType
+     *            document type
+     * @param priority
+     *            priority class
+     * @param lBudget
+     *            time budget in milliseconds, 0 for no limit
+     * @param byteHash
+     *            SHA-256 hash of the content
+     * @param bytePayload
+     *            content, null if not recorded
+     */
+    OcrTrafficRecord( int nSize, String strFormat, String strDocumentType, OcrPriority priority, long lBudget, byte [ ] byteHash, byte [ ] bytePayload )
+    {
+        this( true );
+        _lArrival = System.currentTimeMillis( );
+        _lStart = System.nanoTime( );
+        _lLastMark = _lStart;
+        _nSize = nSize;
+        _strFormat = strFormat;
+        _strDocumentType = strDocumentType;
+        _priority = priority;
+        _lBudget = lBudget;
+        _byteHash = byteHash;
+        _bytePayload = bytePayload;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param bActive
+     *            false for the inactive record
+     */
+    private OcrTrafficRecord( boolean bActive )
+    {
+        _bActive = bActive;
+        Arrays.fill( _tabStageTimes, NOT_RUN );
+    }
+
+    /**
+     * End a stage : the time elapsed since the previous mark is given to the stage.
+     *
+     * @param stage
+     *            the stage
+     */
+    public void mark( OcrTrafficStage stage )
+    {
+        if ( _bActive )
+        {
+            long lNow = System.nanoTime( );
+            long lElapsed = ( lNow - _lLastMark ) / 1000;
+            int nIndex = stage.ordinal( );
+            _tabStageTimes [nIndex] = ( _tabStageTimes [nIndex] == NOT_RUN ) ? lElapsed : ( _tabStageTimes [nIndex] + lElapsed );
+            _lLastMark = lNow;
+        }
+    }
+
+    /**
+     * @param nPageCount
+     *            number of pages of the document, 0 if unknown
+     */
+    public void setPageCount( int nPageCount )
+    {
+        _nPageCount = nPageCount;
+    }
+
+    /**
+     * @param outcome
+     *            the outcome of the request, one of the OUTCOME constants
+     */
+    public void setOutcome( byte outcome )
+    {
+        _outcome = outcome;
+    }
+
+    /**
+     * Set the outcome of a request answered with a result.
+     *
+     * @param mapResults
+     *            the result
+     */
+    public void setResult( Map<String, String> mapResults )
+    {
+        _outcome = mapResults.isEmpty( ) ? OUTCOME_EMPTY : OUTCOME_SUCCESS;
+    }
+
+    /**
+     * Set the outcome of a request that failed.
+     *
+     * @param e
+     *            the failure
+     */
+    public void setFailure( OcrException e )
+    {
+        if ( e instanceof OcrInputRejectedException )
+        {
+            _outcome = OUTCOME_REJECTED;
+        }
+        else
+            if ( e instanceof OcrOverloadedException )
+            {
+                _outcome = OUTCOME_SHED;
+            }
+            else
+                if ( e instanceof OcrDeadlineExceededException )
+                {
+                    _outcome = OUTCOME_EXPIRED;
+                }
+                else
+                {
+                    _outcome = OUTCOME_FAILED;
+                }
+    }
+
+    /**
+     * @return true if the record is recorded, false for the inactive record
+     */
+    public boolean isActive( )
+    {
+        return _bActive;
+    }
+
+    /**
+     * @return the arrival time of the request, in milliseconds since the epoch
+     */
+    public long getArrival( )
+    {
+        return _lArrival;
+    }
+
+    /**
+     * @return the size of the content in bytes
+     */
+    public int getSize( )
+    {
+        return _nSize;
+    }
+
+    /**
+     * @return the format of the content (file extension)
+     */
+    public String getFormat( )
+    {
+        return _strFormat;
+    }
+
+    /**
+     * @return the document type
+     */
+    public String getDocumentType( )
+    {
+        return _strDocumentType;
+    }
+
+    /**
+     * @return the priority class
+     */
+    public OcrPriority getPriority( )
+    {
+        return _priority;
+    }
+
+    /**
+     * @return the time budget in milliseconds, 0 for no limit
+     */
+    public long getBudget( )
+    {
+        return _lBudget;
+    }
+
+    /**
+     * @return the number of pages of the document, 0 if unknown
+     */
+    public int getPageCount( )
+    {
+        return _nPageCount;
+    }
+
+    /**
+     * @return the SHA-256 hash of the content
+     */
+    public byte [ ] getHash( )
+    {
+        return _byteHash;
+    }
+
+    /**
+     * @return the content, null if not recorded
+     */
+    public byte [ ] getPayload( )
+    {
+        return _bytePayload;
+    }
+
+    /**
+     * @return the outcome, one of the OUTCOME constants
+     */
+    public byte getOutcome( )
+    {
+        return _outcome;
+    }
+
+    /**
+     * @return the name of the outcome
+     */
+    public String getOutcomeName( )
+    {
+        return ( _outcome >= 0 ) && ( _outcome < OUTCOME_NAMES.length ) ? OUTCOME_NAMES [_outcome] : String.valueOf( _outcome );
+    }
+
+    /**
+     * @return the duration of the request in microseconds
+     */
+    public long getTotal( )
+    {
+        return _lTotal;
+    }
+
+    /**
+     * Get the duration of a stage.
+     *
+     * @param stage
+     *            the stage
+     * @return the duration in microseconds, -1 if the stage was not run
+     */
+    public long getStageTime( OcrTrafficStage stage )
+    {
+        return _tabStageTimes [stage.ordinal( )];
+    }
+
+    /**
+     * End the request.
+     */
+    void finish( )
+    {
+        _lTotal = ( System.nanoTime( ) - _lStart ) / 1000;
+    }
+
+    /**
+     * Write the record.
+     *
+     * @param out
+     *            the traffic log
+     * @throws IOException
+     *             the IOException
+     */
+    void write( DataOutputStream out ) throws IOException
+    {
+        out.writeLong( _lArrival );
+        out.writeInt( _nSize );
+        out.writeUTF( _strFormat );
+        out.writeUTF( _strDocumentType );
+        out.writeByte( _priority.ordinal( ) );
+        out.writeInt( (int) Math.min( _lBudget, Integer.MAX_VALUE ) );
+        out.writeShort( Math.min( _nPageCount, Short.MAX_VALUE ) );
+        out.write( _byteHash );
+        out.writeByte( _outcome );
+        out.writeInt( (int) Math.min( _lTotal, Integer.MAX_VALUE ) );
+
+        int nStages = 0;
+        for ( long lStageTime : _tabStageTimes )
+        {
+            nStages += ( lStageTime == NOT_RUN ) ? 0 : 1;
+        }
+        out.writeByte( nStages );
+        for ( int i = 0; i < _tabStageTimes.length; i++ )
+        {
+            if ( _tabStageTimes [i] != NOT_RUN )
+            {
+                out.writeByte( i );
+                out.writeInt( (int) Math.min( _tabStageTimes [i], Integer.MAX_VALUE ) );
+            }
+        }
+
+        if ( _bytePayload == null )
+        {
+            out.writeInt( NO_PAYLOAD );
+        }
+        else
+        {
+            out.writeInt( _bytePayload.length );
+            out.write( _bytePayload );
+        }
+    }
+
+    /**
+     * Read a record.
+     *
+     * @param in
+     *            the traffic log
+     * @return the record, null at the end of the log or on a record cut short by a crash
+     * @throws IOException
+     *             the IOException
+     */
+    static OcrTrafficRecord read( DataInputStream in ) throws IOException
+    {
+        OcrTrafficRecord record = new OcrTrafficRecord( true );
+        try
+        {
+            record._lArrival = in.readLong( );
+            record._nSize = in.readInt( );
+            record._strFormat = in.readUTF( );
+            record._strDocumentType = in.readUTF( );
+            OcrPriority [ ] tabPriorities = OcrPriority.values( );
+            record._priority = tabPriorities [Math.min( in.readUnsignedByte( ), tabPriorities.length - 1 )];
+            record._lBudget = in.readInt( );
+            record._nPageCount = in.readShort( );
+            record._byteHash = new byte [ HASH_LENGTH];
+            in.readFully( record._byteHash );
+            record._outcome = in.readByte( );
+            record._lTotal = in.readInt( );
+
+            int nStages = in.readUnsignedByte( );
+            for ( int i = 0; i < nStages; i++ )
+            {
+                int nIndex = in.readUnsignedByte( );
+                int nStageTime = in.readInt( );
+                if ( nIndex < record._tabStageTimes.length )
+                {
+                    record._tabStageTimes [nIndex] = nStageTime;
+                }
+            }
+
+            int nPayloadLength = in.readInt( );
+            if ( nPayloadLength != NO_PAYLOAD )
+            {
+                record._bytePayload = new byte [ nPayloadLength];
+                in.readFully( record._bytePayload );
+            }
+        }
+        catch( EOFException e )
+        {
+            return null;
+        }
+
+        return record;
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.traffic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+
+import fr.paris.lutece.plugins.ocra2ia.service.OcrDeadline;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrMetricsService;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrPriority;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Recorder of the traffic of the OCR service, replayed by OcrTrafficReplay for capacity planning. Each request is appended to a binary log when it ends :
+ * its shape, outcome and stage durations, and its content only if the payloads are recorded. The log is buffered and flushed every second; a new file is
+ * started once the current one reaches the maximum size.
+ *
+ */
+public class OcrTrafficRecorder
+{
+
+    /**
+     * First bytes of a traffic log : "OCRT".
+     */
+    static final int MAGIC = 0x4F435254;
+    static final short VERSION = 1;
+
+    private static final String FILE_PREFIX = "traffic-";
+    private static final String FILE_SUFFIX = ".ocrt";
+    private static final String FILE_DATE_FORMAT = "yyyyMMdd-HHmmss-SSS";
+    private static final String COUNTER_RECORDED = "traffic.recorded";
+    private static final String COUNTER_ERRORS = "traffic.errors";
+    private static final int BUFFER_SIZE = 65536;
+
+    private final Path _directory;
+    private final boolean _bPayloads;
+    private final long _lMaxFileBytes;
+    private final ScheduledExecutorService _flusher;
+    private DataOutputStream _out;
+
+    /**
+     * Constructor, open a new traffic log.
+     *
+     * @throws IOException
+     *             if the log cannot be created
+     */
+    public OcrTrafficRecorder( ) throws IOException
+    {
+        String strDirectory = AppPropertiesService.getProperty( OcrConstants.PROPERTY_TRAFFIC_DIR );
+        _directory = StringUtils.isBlank( strDirectory ) ? Paths.get( System.getProperty( "java.io.tmpdir" ), "ocra2ia-traffic" ) : Paths.get( strDirectory
+                .trim( ) );
+        _bPayloads = AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_TRAFFIC_PAYLOADS, false );
+        _lMaxFileBytes = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_TRAFFIC_MAX_FILE_BYTES, 268435456L );
+        Files.createDirectories( _directory );
+        open( );
+
+        _flusher = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, "ocra2ia-traffic-flush" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        _flusher.scheduleWithFixedDelay( this::flush, 1, 1, TimeUnit.SECONDS );
+        AppLogService.info( "OCR traffic recorded in " + _directory + ( _bPayloads ? " with the payloads." : "." ) );
+    }
+
+    /**
+     * Start the record of a request.
+     *
+     * @param byteContent
+     *            content of the request
+     * @param strFileExtension
+     *            format of the content
+     * @param strDocumentType
+     *            document type
+     * @param priority
+     *            priority class
+     * @param deadline
+     *            time budget of the request
+     * @return the record, to end once the request is done
+     */
+    public OcrTrafficRecord begin( byte [ ] byteContent, String strFileExtension, String strDocumentType, OcrPriority priority, OcrDeadline deadline )
+    {
+        byte [ ] byteHash;
+        try
+        {
+            byteHash = MessageDigest.getInstance( "SHA-256" ).digest( byteContent );
+        }
+        catch( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        long lRemaining = deadline.getRemaining( );
+
+        return new OcrTrafficRecord( byteContent.length, strFileExtension, strDocumentType, priority,
+                ( lRemaining == Long.MAX_VALUE ) ? 0 : lRemaining, byteHash, _bPayloads ? byteContent : null );
+    }
+
+    /**
+     * End the record of a request and append it to the log.
+     *
+     * @param record
+     *            the record
+     */
+    public void end( OcrTrafficRecord record )
+    {
+        record.finish( );
+        synchronized( this )
+        {
+            if ( _out == null )
+            {
+                return;
+            }
+            try
+            {
+                record.write( _out );
+                if ( _out.size( ) >= _lMaxFileBytes )
+                {
+                    _out.close( );
+                    _out = null;
+                    open( );
+                }
+                OcrMetricsService.getInstance( ).increment( COUNTER_RECORDED );
+            }
+            catch( IOException e )
+            {
+                OcrMetricsService.getInstance( ).increment( COUNTER_ERRORS );
+                AppLogService.error( "Error recording OCR traffic : " + e.getMessage( ), e );
+            }
+        }
+    }
+
+    /**
+     * Stop recording and close the log.
+     */
+    public void close( )
+    {
+        _flusher.shutdownNow( );
+        synchronized( this )
+        {
+            if ( _out != null )
+            {
+                try
+                {
+                    _out.close( );
+                }
+                catch( IOException e )
+                {
+                    AppLogService.error( "Error closing OCR traffic log : " + e.getMessage( ), e );
+                }
+                _out = null;
+            }
+        }
+    }
+
+    /**
+     * Read all the records of a traffic log. A record cut short by a crash ends the reading.
+     *
+     * @param file
+     *            the traffic log
+     * @return the records, in the order of their end
+     * @throws IOException
+     *             if the file is not a traffic log or cannot be read
+     */
+    public static List<OcrTrafficRecord> read( Path file ) throws IOException
+    {
+        List<OcrTrafficRecord> listRecords = new ArrayList<>( );
+        try ( InputStream inputStream = Files.newInputStream( file );
+                DataInputStream in = new DataInputStream( new BufferedInputStream( inputStream, BUFFER_SIZE ) ) )
+        {
+            if ( ( in.readInt( ) != MAGIC ) || ( in.readShort( ) != VERSION ) )
+            {
+                throw new IOException( "Not a traffic log of version " + VERSION + " : " + file );
+            }
+            in.readLong( );
+
+            OcrTrafficRecord record = OcrTrafficRecord.read( in );
+            while ( record != null )
+            {
+                listRecords.add( record );
+                record = OcrTrafficRecord.read( in );
+            }
+        }
+
+        return listRecords;
+    }
+
+    /**
+     * Start a new file.
+     *
+     * @throws IOException
+     *             the IOException
+     */
+    private void open( ) throws IOException
+    {
+        Path file = _directory.resolve( FILE_PREFIX + new SimpleDateFormat( FILE_DATE_FORMAT ).format( new Date( ) ) + FILE_SUFFIX );
+        _out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( file ), BUFFER_SIZE ) );
+        _out.writeInt( MAGIC );
+        _out.writeShort( VERSION );
+        _out.writeLong( System.currentTimeMillis( ) );
+    }
+
+    /**
+     * Write the buffered records.
+     */
+    private synchronized void flush( )
+    {
+        if ( _out != null )
+        {
+            try
+            {
+                _out.flush( );
+            }
+            catch( IOException e )
+            {
+                AppLogService.error( "Error flushing OCR traffic log : " + e.getMessage( ), e );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.traffic;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.imageio.ImageIO;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrDeadline;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrInputValidator;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrService;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppPathService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Replay of a traffic log against the OCR service, to size the engine capacity. The requests are sent at the rate of the recording, at a multiple of it
+ * or at a fixed rate, to the configured engine or to the stub engine. Requests recorded without their payload are sent with a synthetic document of the
+ * same format, identical for identical contents so that the cache behaves as recorded. The latency of a request is measured from its scheduled time, so
+ * that a saturated service does not hide its queueing delay. Usage :
+ *
+ * <pre>
+ * OcrTrafficReplay &lt;webapp path&gt; &lt;traffic log&gt; [original | scale:&lt;factor&gt; | fixed:&lt;requests per second&gt;] [configured | stub] [client threads]
+ * </pre>
+ *
+ */
+public final class OcrTrafficReplay
+{
+
+    private static final String PATH_CONF = "/WEB-INF/conf/";
+    private static final String RATE_ORIGINAL = "original";
+    private static final String RATE_SCALE = "scale:";
+    private static final String RATE_FIXED = "fixed:";
+    private static final String ENGINE_CONFIGURED = "configured";
+    private static final int DEFAULT_THREADS = 64;
+    private static final int SYNTHETIC_WIDTH = 1240;
+    private static final int SYNTHETIC_HEIGHT = 1754;
+    private static final int SYNTHETIC_CELL = 40;
+    private static final double [ ] PERCENTILES = {
+            50, 90, 99, 99.9, 100
+    };
+
+    /**
+     * Private constructor.
+     */
+    private OcrTrafficReplay( )
+    {
+    }
+
+    /**
+     * Replay a traffic log.
+     *
+     * @param args
+     *            path of the webapp, traffic log, rate, engine, client threads
+     * @throws Exception
+     *             if the replay cannot run
+     */
+    public static void main( String [ ] args ) throws Exception
+    {
+        if ( args.length < 2 )
+        {
+            System.err.println( "Usage : OcrTrafficReplay <webapp path> <traffic log> [original | scale:<factor> | fixed:<requests per second>]"
+                    + " [configured | stub] [client threads]" );
+            System.exit( 1 );
+        }
+        AppPathService.init( args [0] );
+        AppPropertiesService.init( PATH_CONF );
+        String strRate = ( args.length > 2 ) ? args [2] : RATE_ORIGINAL;
+        String strEngine = ( args.length > 3 ) ? args [3] : ENGINE_CONFIGURED;
+        int nThreads = ( args.length > 4 ) ? Integer.parseInt( args [4] ) : DEFAULT_THREADS;
+
+        List<OcrTrafficRecord> listRecords = new ArrayList<>( OcrTrafficRecorder.read( Paths.get( args [1] ) ) );
+        if ( listRecords.isEmpty( ) )
+        {
+            System.out.println( "The traffic log is empty." );
+            return;
+        }
+        listRecords.sort( Comparator.comparingLong( OcrTrafficRecord::getArrival ) );
+        long [ ] tabOffsets = schedule( listRecords, strRate );
+        List<byte [ ]> listPayloads = preparePayloads( listRecords );
+
+        OcrService ocrService = new OcrService( );
+        ocrService.init( ENGINE_CONFIGURED.equalsIgnoreCase( strEngine ) ? AppPropertiesService.getProperty( OcrConstants.PROPERTY_ENGINE,
+                OcrConstants.ENGINE_JACOB ) : strEngine );
+        try
+        {
+            System.out.println( String.format( Locale.ROOT, "Replay of %d requests, rate %s, engine %s, %d client threads.", listRecords.size( ), strRate,
+                    strEngine, nThreads ) );
+            replay( ocrService, listRecords, listPayloads, tabOffsets, nThreads );
+        }
+        finally
+        {
+            ocrService.destroy( );
+        }
+        System.exit( 0 );
+    }
+
+    /**
+     * Compute the time of each request from the start of the replay.
+     *
+     * @param listRecords
+     *            records sorted by arrival
+     * @param strRate
+     *            the rate
+     * @return the offsets in nanoseconds
+     */
+    private static long [ ] schedule( List<OcrTrafficRecord> listRecords, String strRate )
+    {
+        long [ ] tabOffsets = new long [ listRecords.size( )];
+        long lFirstArrival = listRecords.get( 0 ).getArrival( );
+        for ( int i = 0; i < tabOffsets.length; i++ )
+        {
+            if ( strRate.startsWith( RATE_FIXED ) )
+            {
+                tabOffsets [i] = (long) ( i * TimeUnit.SECONDS.toNanos( 1 ) / Double.parseDouble( strRate.substring( RATE_FIXED.length( ) ) ) );
+            }
+            else
+            {
+                double dFactor = strRate.startsWith( RATE_SCALE ) ? Double.parseDouble( strRate.substring( RATE_SCALE.length( ) ) ) : 1;
+                tabOffsets [i] = (long) ( TimeUnit.MILLISECONDS.toNanos( listRecords.get( i ).getArrival( ) - lFirstArrival ) / dFactor );
+            }
+        }
+
+        return tabOffsets;
+    }
+
+    /**
+     * Prepare the content of each request before the replay starts, so that the synthesis of documents does not delay the requests.
+     *
+     * @param listRecords
+     *            the records
+     * @return the contents, null for a request that cannot be replayed
+     * @throws IOException
+     *             the IOException
+     */
+    private static List<byte [ ]> preparePayloads( List<OcrTrafficRecord> listRecords ) throws IOException
+    {
+        List<byte [ ]> listPayloads = new ArrayList<>( listRecords.size( ) );
+        Map<String, byte [ ]> mapSynthetic = new HashMap<>( );
+        for ( OcrTrafficRecord record : listRecords )
+        {
+            byte [ ] bytePayload = record.getPayload( );
+            if ( bytePayload == null )
+            {
+                String strKey = Base64.getEncoder( ).encodeToString( record.getHash( ) );
+                bytePayload = mapSynthetic.get( strKey );
+                if ( ( bytePayload == null ) && !mapSynthetic.containsKey( strKey ) )
+                {
+                    bytePayload = synthesize( record );
+                    mapSynthetic.put( strKey, bytePayload );
+                }
+            }
+            listPayloads.add( bytePayload );
+        }
+
+        return listPayloads;
+    }
+
+    /**
+     * Create a synthetic document of the format of a record : a blank page marked with the bits of the hash of the recorded content.
+     *
+     * @param record
+     *            the record
+     * @return the document, null if the format cannot be written by this virtual machine
+     * @throws IOException
+     *             the IOException
+     */
+    private static byte [ ] synthesize( OcrTrafficRecord record ) throws IOException
+    {
+        BufferedImage image = new BufferedImage( SYNTHETIC_WIDTH, SYNTHETIC_HEIGHT, BufferedImage.TYPE_INT_RGB );
+        Graphics2D graphics = image.createGraphics( );
+        graphics.setColor( Color.WHITE );
+        graphics.fillRect( 0, 0, SYNTHETIC_WIDTH, SYNTHETIC_HEIGHT );
+        graphics.setColor( Color.BLACK );
+        byte [ ] byteHash = record.getHash( );
+        int nColumns = SYNTHETIC_WIDTH / SYNTHETIC_CELL;
+        for ( int i = 0; i < byteHash.length * 8; i++ )
+        {
+            if ( ( byteHash [i / 8] & ( 1 << ( i % 8 ) ) ) != 0 )
+            {
+                graphics.fillRect( ( i % nColumns ) * SYNTHETIC_CELL, ( 1 + ( i / nColumns ) ) * SYNTHETIC_CELL, SYNTHETIC_CELL, SYNTHETIC_CELL );
+            }
+        }
+        graphics.dispose( );
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream( );
+        String strFormat = OcrInputValidator.getCanonicalFormat( record.getFormat( ) );
+        if ( OcrConstants.EXTENSION_FILE_PDF.equals( strFormat ) )
+        {
+            try ( PDDocument document = new PDDocument( ) )
+            {
+                PDPage page = new PDPage( PDRectangle.A4 );
+                document.addPage( page );
+                PDImageXObject imageXObject = LosslessFactory.createFromImage( document, image );
+                try ( PDPageContentStream contentStream = new PDPageContentStream( document, page ) )
+                {
+                    contentStream.drawImage( imageXObject, 0, 0, PDRectangle.A4.getWidth( ), PDRectangle.A4.getHeight( ) );
+                }
+                document.save( outputStream );
+            }
+        }
+        else
+            if ( !ImageIO.write( image, strFormat.toLowerCase( ), outputStream ) )
+            {
+                System.err.println( "No image writer for the format " + record.getFormat( ) + ", requests recorded without payload in this format are skipped." );
+
+                return null;
+            }
+
+        return outputStream.toByteArray( );
+    }
+
+    /**
+     * Send the requests at their scheduled time and report the throughput and the latency distribution.
+     *
+     * @param ocrService
+     *            the OCR service
+     * @param listRecords
+     *            the records
+     * @param listPayloads
+     *            the contents of the requests
+     * @param tabOffsets
+     *            the scheduled times from the start of the replay, in nanoseconds
+     * @param nThreads
+     *            number of client threads
+     * @throws InterruptedException
+     *             the InterruptedException
+     */
+    private static void replay( OcrService ocrService, List<OcrTrafficRecord> listRecords, List<byte [ ]> listPayloads, long [ ] tabOffsets, int nThreads )
+            throws InterruptedException
+    {
+        long [ ] tabLatencies = new long [ listRecords.size( )];
+        String [ ] tabOutcomes = new String [ listRecords.size( )];
+        ExecutorService executor = Executors.newFixedThreadPool( nThreads );
+        long lStart = System.nanoTime( );
+        for ( int i = 0; i < tabOffsets.length; i++ )
+        {
+            OcrTrafficRecord record = listRecords.get( i );
+            byte [ ] bytePayload = listPayloads.get( i );
+            if ( bytePayload == null )
+            {
+                tabLatencies [i] = -1;
+                tabOutcomes [i] = "skipped";
+                continue;
+            }
+            long lScheduled = lStart + tabOffsets [i];
+            long lWait = lScheduled - System.nanoTime( );
+            if ( lWait > 0 )
+            {
+                LockSupport.parkNanos( lWait );
+            }
+            int nIndex = i;
+            executor.execute( ( ) -> {
+                String strOutcome;
+                try
+                {
+                    OcrDeadline deadline = ( record.getBudget( ) > 0 ) ? OcrDeadline.after( record.getBudget( ) ) : OcrDeadline.none( );
+                    // a multi-type request is recorded with its document types separated by commas
+                    Map<String, String> mapResults = ocrService.proceed( bytePayload, record.getFormat( ),
+                            Arrays.asList( record.getDocumentType( ).split( "," ) ), record.getPriority( ), deadline ).getBestMatchResults( );
+                    strOutcome = mapResults.isEmpty( ) ? "empty" : "success";
+                }
+                catch( OcrException | RuntimeException e )
+                {
+                    strOutcome = e.getClass( ).getSimpleName( );
+                }
+                tabLatencies [nIndex] = System.nanoTime( ) - lScheduled;
+                tabOutcomes [nIndex] = strOutcome;
+            } );
+        }
+        executor.shutdown( );
+        executor.awaitTermination( Long.MAX_VALUE, TimeUnit.NANOSECONDS );
+        long lElapsed = System.nanoTime( ) - lStart;
+
+        report( listRecords, tabLatencies, tabOutcomes, lElapsed );
+    }
+
+    /**
+     * Print the report of the replay, compared with the recording.
+     *
+     * @param listRecords
+     *            the records
+     * @param tabLatencies
+     *            latency of each request in nanoseconds, -1 if skipped
+     * @param tabOutcomes
+     *            outcome of each request
+     * @param lElapsed
+     *            duration of the replay in nanoseconds
+     */
+    private static void report( List<OcrTrafficRecord> listRecords, long [ ] tabLatencies, String [ ] tabOutcomes, long lElapsed )
+    {
+        List<Long> listReplayed = new ArrayList<>( );
+        List<Long> listRecorded = new ArrayList<>( );
+        Map<String, Integer> mapOutcomes = new TreeMap<>( );
+        for ( int i = 0; i < tabLatencies.length; i++ )
+        {
+            mapOutcomes.merge( tabOutcomes [i], 1, Integer::sum );
+            if ( tabLatencies [i] >= 0 )
+            {
+                listReplayed.add( TimeUnit.NANOSECONDS.toMicros( tabLatencies [i] ) );
+                listRecorded.add( listRecords.get( i ).getTotal( ) );
+            }
+        }
+        Collections.sort( listReplayed );
+        Collections.sort( listRecorded );
+
+        long lRecordedSpan = listRecords.get( listRecords.size( ) - 1 ).getArrival( ) - listRecords.get( 0 ).getArrival( );
+        System.out.println( String.format( Locale.ROOT, "Replayed %d requests in %.1f s : %.2f requests/s (recorded arrival rate %.2f requests/s)",
+                listReplayed.size( ), lElapsed / 1e9, listReplayed.size( ) * 1e9 / lElapsed, ( lRecordedSpan > 0 ) ? ( listRecords.size( ) * 1000.0 / lRecordedSpan )
+                        : 0 ) );
+        System.out.println( "Outcomes : " + mapOutcomes );
+        System.out.println( "Latency (ms)    replayed    recorded" );
+        for ( double dPercentile : PERCENTILES )
+        {
+            System.out.println( String.format( Locale.ROOT, "  %-12s %10.1f  %10.1f", ( dPercentile == 100 ) ? "max" : ( "p" + dPercentile ).replace( ".0", "" ),
+                    percentile( listReplayed, dPercentile ) / 1000.0, percentile( listRecorded, dPercentile ) / 1000.0 ) );
+        }
+    }
+
+    /**
+     * Get a percentile of a sorted list.
+     *
+     * @param listSorted
+     *            the values, sorted
+     * @param dPercentile
+     *            the percentile, between 0 and 100
+     * @return the value, 0 for an empty list
+     */
+    private static long percentile( List<Long> listSorted, double dPercentile )
+    {
+        if ( listSorted.isEmpty( ) )
+        {
+            return 0;
+        }
+        int nIndex = (int) Math.ceil( dPercentile / 100 * listSorted.size( ) ) - 1;
+
+        return listSorted.get( Math.max( 0, Math.min( nIndex, listSorted.size( ) - 1 ) ) );
+    }
+
+}
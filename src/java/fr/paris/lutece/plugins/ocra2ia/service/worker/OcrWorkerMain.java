@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.worker;
+
+import java.io.IOException;
+import java.util.function.Supplier;
+
+import fr.paris.lutece.plugins.ocra2ia.service.engine.IA2iaEngine;
+import fr.paris.lutece.plugins.ocra2ia.service.engine.JacobA2iaEngine;
+import fr.paris.lutece.plugins.ocra2ia.service.engine.StubA2iaEngine;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPathService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Entry point of an OCR worker process, started by OcrWorkerProcessPool. The process reads the configuration of the webapp given as argument, runs the
+ * engine set by ocra2ia.worker.engine (jacob, or stub for tests on Linux) and stops when the webapp stops.
+ *
+ */
+public final class OcrWorkerMain
+{
+
+    private static final String PATH_CONF = "/WEB-INF/conf/";
+
+    /**
+     * Private constructor.
+     */
+    private OcrWorkerMain( )
+    {
+    }
+
+    /**
+     * Start the worker.
+     *
+     * @param args
+     *            path of the webapp
+     * @throws Exception
+     *             if the worker cannot start
+     */
+    public static void main( String [ ] args ) throws Exception
+    {
+        if ( args.length > 0 )
+        {
+            AppPathService.init( args [0] );
+            AppPropertiesService.init( PATH_CONF );
+        }
+
+        OcrWorkerServer server = new OcrWorkerServer( System.getenv( OcrWorkerProtocol.ENV_TOKEN ), createEngineFactory( ) );
+        watchParent( );
+
+        System.out.println( OcrWorkerProtocol.READY_PREFIX + server.getPort( ) );
+        System.out.flush( );
+        server.serve( );
+    }
+
+    /**
+     * Create the factory of the engine objects.
+     *
+     * @return the factory
+     */
+    private static Supplier<IA2iaEngine> createEngineFactory( )
+    {
+        String strEngine = AppPropertiesService.getProperty( OcrConstants.PROPERTY_WORKER_ENGINE, OcrConstants.ENGINE_JACOB );
+        if ( OcrConstants.ENGINE_STUB.equalsIgnoreCase( strEngine.trim( ) ) )
+        {
+            AppLogService.info( "OCR worker uses the stub engine." );
+
+            return StubA2iaEngine::new;
+        }
+
+        String strClsid = JacobA2iaEngine.loadLibrary( );
+
+        return ( ) -> new JacobA2iaEngine( strClsid );
+    }
+
+    /**
+     * Stop the process when the webapp stops : the standard input of the process, kept open by the webapp, is then closed.
+     */
+    private static void watchParent( )
+    {
+        Thread thread = new Thread( ( ) -> {
+            try
+            {
+                while ( System.in.read( ) >= 0 )
+                {
+                    // nothing is sent on the standard input
+                }
+            }
+            catch( IOException e )
+            {
+                AppLogService.error( e.getMessage( ) );
+            }
+            AppLogService.info( "OCR worker : the webapp stopped." );
+            System.exit( 0 );
+        }, "ocra2ia-worker-parent-watch" );
+        thread.setDaemon( true );
+        thread.start( );
+    }
+
+}
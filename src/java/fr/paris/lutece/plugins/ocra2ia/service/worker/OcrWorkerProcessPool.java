@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.worker;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import org.apache.commons.lang.StringUtils;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrMetricsService;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.i18n.I18nService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPathService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Pool of OCR worker processes : separate JVMs running the engine, so that a native crash or a leak of the engine does not affect the webapp. Each
+ * worker process is supervised by a thread which restarts it when it stops, with an increasing delay if it keeps stopping. The number of processes is
+ * independent from the number of engine worker threads of the webapp, whose connections are spread over the processes.
+ *
+ */
+public class OcrWorkerProcessPool
+{
+
+    private static final String THREAD_NAME_PREFIX = "ocra2ia-worker-supervisor-";
+    private static final String COUNTER_STARTED = "worker.process.started";
+    private static final String COUNTER_RESTARTED = "worker.process.restarted";
+    private static final String COUNTER_UNAVAILABLE = "worker.process.unavailable";
+    private static final String PATH_CLASSES = "/WEB-INF/classes";
+    private static final String PATH_LIB = "/WEB-INF/lib/*";
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    /**
+     * A process running at least this time in milliseconds is considered stable : the next restart delay is the initial one.
+     */
+    private static final long STABLE_DURATION = 60000L;
+
+    private final List<WorkerSlot> _listSlots = new ArrayList<>( );
+    private final String _strToken;
+    private final long _lRestartDelay;
+    private final long _lRestartMaxDelay;
+    private final long _lConnectTimeout;
+    private int _nNextSlot;
+    private volatile boolean _bStopped;
+
+    /**
+     * Constructor, start the worker processes.
+     */
+    public OcrWorkerProcessPool( )
+    {
+        _strToken = UUID.randomUUID( ).toString( );
+        _lRestartDelay = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_WORKER_RESTART_DELAY, 1000L );
+        _lRestartMaxDelay = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_WORKER_RESTART_MAX_DELAY, 60000L );
+        _lConnectTimeout = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_WORKER_CONNECT_TIMEOUT, 30000L );
+        int nCount = Math.max( 1, AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_WORKER_COUNT, 2 ) );
+
+        for ( int i = 0; i < nCount; i++ )
+        {
+            WorkerSlot slot = new WorkerSlot( i );
+            _listSlots.add( slot );
+            Thread thread = new Thread( slot, THREAD_NAME_PREFIX + i );
+            thread.setDaemon( true );
+            slot._thread = thread;
+            thread.start( );
+        }
+    }
+
+    /**
+     * Constructor of a pool connecting to a worker server already running in this JVM, without starting nor supervising a process : used to test the
+     * protocol.
+     *
+     * @param strToken
+     *            token of the worker server
+     * @param nPort
+     *            port of the worker server
+     */
+    OcrWorkerProcessPool( String strToken, int nPort )
+    {
+        _strToken = strToken;
+        _lRestartDelay = 0;
+        _lRestartMaxDelay = 0;
+        _lConnectTimeout = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_WORKER_CONNECT_TIMEOUT, 30000L );
+        WorkerSlot slot = new WorkerSlot( 0 );
+        slot._nPort = nPort;
+        _listSlots.add( slot );
+    }
+
+    /**
+     * Open a connection to a ready worker process, the processes being used in turn. Waits for a process to be ready, at startup or during a restart.
+     *
+     * @return the socket, authenticated with the token of the pool
+     * @throws OcrException
+     *             if no worker process accepts a connection before the timeout
+     */
+    public Socket connect( ) throws OcrException
+    {
+        long lEnd = System.currentTimeMillis( ) + _lConnectTimeout;
+
+        do
+        {
+            WorkerSlot slot = nextReadySlot( lEnd );
+            if ( slot != null )
+            {
+                try
+                {
+                    return open( slot._nPort );
+                }
+                catch( IOException e )
+                {
+                    AppLogService.error( "Connection to OCR worker process " + slot._nIndex + " failed : " + e.getMessage( ) );
+                    pause( );
+                }
+            }
+        }
+        while ( !_bStopped && !Thread.currentThread( ).isInterrupted( ) && ( System.currentTimeMillis( ) < lEnd ) );
+
+        OcrMetricsService.getInstance( ).increment( COUNTER_UNAVAILABLE );
+        throw new OcrException( I18nService.getLocalizedString( OcrConstants.MESSAGE_NO_WORKER_AVAILABLE, Locale.getDefault( ) ) );
+    }
+
+    /**
+     * Stop the worker processes.
+     */
+    public void shutdown( )
+    {
+        _bStopped = true;
+        for ( WorkerSlot slot : _listSlots )
+        {
+            if ( slot._thread != null )
+            {
+                slot._thread.interrupt( );
+            }
+            Process process = slot._process;
+            if ( process != null )
+            {
+                process.destroy( );
+            }
+        }
+    }
+
+    /**
+     * Get the number of worker processes.
+     *
+     * @return the number of processes, started or not
+     */
+    public int getSize( )
+    {
+        return _listSlots.size( );
+    }
+
+    /**
+     * Get the number of worker processes ready to serve requests.
+     *
+     * @return the number of ready processes
+     */
+    public int getReadyCount( )
+    {
+        return (int) _listSlots.stream( ).filter( slot -> slot._nPort > 0 ).count( );
+    }
+
+    /**
+     * Get the next ready worker process, waiting for one if none is ready.
+     *
+     * @param lEnd
+     *            end of the wait
+     * @return the slot of the process, null if none is ready before the end of the wait
+     */
+    private synchronized WorkerSlot nextReadySlot( long lEnd )
+    {
+        while ( !_bStopped )
+        {
+            for ( int i = 0; i < _listSlots.size( ); i++ )
+            {
+                WorkerSlot slot = _listSlots.get( _nNextSlot );
+                _nNextSlot = ( _nNextSlot + 1 ) % _listSlots.size( );
+                if ( slot._nPort > 0 )
+                {
+                    return slot;
+                }
+            }
+
+            long lWait = lEnd - System.currentTimeMillis( );
+            if ( lWait <= 0 )
+            {
+                break;
+            }
+            try
+            {
+                wait( lWait );
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread( ).interrupt( );
+                break;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Pause before trying again to connect to a process, which may be stopping.
+     */
+    private static void pause( )
+    {
+        try
+        {
+            Thread.sleep( 100 );
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread( ).interrupt( );
+        }
+    }
+
+    /**
+     * Notify the threads waiting for a ready process.
+     */
+    private synchronized void onReady( )
+    {
+        notifyAll( );
+    }
+
+    /**
+     * Open an authenticated connection to a worker process.
+     *
+     * @param nPort
+     *            port of the process
+     * @return the socket
+     * @throws IOException
+     *             if the connection fails
+     */
+    Socket open( int nPort ) throws IOException
+    {
+        Socket socket = new Socket( );
+        try
+        {
+            socket.connect( new InetSocketAddress( InetAddress.getLoopbackAddress( ), nPort ), CONNECT_TIMEOUT );
+            socket.setTcpNoDelay( true );
+            DataOutputStream out = new DataOutputStream( socket.getOutputStream( ) );
+            out.writeUTF( _strToken );
+            out.flush( );
+
+            return socket;
+        }
+        catch( IOException e )
+        {
+            socket.close( );
+            throw e;
+        }
+    }
+
+    /**
+     * Build the command line of a worker process. By default the worker uses the java of the webapp and the classes and libraries of the webapp.
+     *
+     * @return the command line
+     */
+    private static List<String> buildCommand( )
+    {
+        String strWebappPath = AppPathService.getWebAppPath( );
+        List<String> listCommand = new ArrayList<>( );
+        listCommand.add( AppPropertiesService.getProperty( OcrConstants.PROPERTY_WORKER_JAVA,
+                System.getProperty( "java.home" ) + File.separator + "bin" + File.separator + "java" ) );
+        for ( String strOption : AppPropertiesService.getProperty( OcrConstants.PROPERTY_WORKER_JVM_OPTIONS, StringUtils.EMPTY ).split( "\\s+" ) )
+        {
+            if ( StringUtils.isNotBlank( strOption ) )
+            {
+                listCommand.add( strOption );
+            }
+        }
+        listCommand.add( "-cp" );
+        listCommand.add( AppPropertiesService.getProperty( OcrConstants.PROPERTY_WORKER_CLASSPATH,
+                strWebappPath + PATH_CLASSES + File.pathSeparator + strWebappPath + PATH_LIB ) );
+        listCommand.add( OcrWorkerMain.class.getName( ) );
+        listCommand.add( strWebappPath );
+
+        return listCommand;
+    }
+
+    /**
+     * Supervision of a worker process.
+     */
+    private final class WorkerSlot implements Runnable
+    {
+        private final int _nIndex;
+        private Thread _thread;
+        private volatile Process _process;
+
+        /**
+         * Port of the process, 0 when it is not ready.
+         */
+        private volatile int _nPort;
+
+        /**
+         * Constructor.
+         *
+         * @param nIndex
+         *            index of the process
+         */
+        WorkerSlot( int nIndex )
+        {
+            _nIndex = nIndex;
+        }
+
+        /**
+         * Start the process, and restart it each time it stops.
+         */
+        @Override
+        public void run( )
+        {
+            long lDelay = _lRestartDelay;
+
+            while ( !_bStopped )
+            {
+                long lStart = System.currentTimeMillis( );
+                try
+                {
+                    runProcess( );
+                }
+                catch( IOException e )
+                {
+                    AppLogService.error( "Cannot start OCR worker process " + _nIndex + " : " + e.getMessage( ), e );
+                }
+                catch( InterruptedException e )
+                {
+                    Thread.currentThread( ).interrupt( );
+                }
+                _nPort = 0;
+                if ( _bStopped || Thread.currentThread( ).isInterrupted( ) )
+                {
+                    break;
+                }
+
+                if ( ( System.currentTimeMillis( ) - lStart ) > STABLE_DURATION )
+                {
+                    lDelay = _lRestartDelay;
+                }
+                OcrMetricsService.getInstance( ).increment( COUNTER_RESTARTED );
+                AppLogService.error( "OCR worker process " + _nIndex + " stopped, restart in " + lDelay + " ms." );
+                try
+                {
+                    Thread.sleep( lDelay );
+                }
+                catch( InterruptedException e )
+                {
+                    break;
+                }
+                lDelay = Math.min( _lRestartMaxDelay, lDelay * 2 );
+            }
+        }
+
+        /**
+         * Start the process and follow its output until it stops.
+         *
+         * @throws IOException
+         *             if the process cannot be started
+         * @throws InterruptedException
+         *             if the supervision is stopped
+         */
+        private void runProcess( ) throws IOException, InterruptedException
+        {
+            ProcessBuilder processBuilder = new ProcessBuilder( buildCommand( ) ).redirectErrorStream( true );
+            processBuilder.environment( ).put( OcrWorkerProtocol.ENV_TOKEN, _strToken );
+            Process process = processBuilder.start( );
+            _process = process;
+
+            try ( BufferedReader reader = new BufferedReader( new InputStreamReader( process.getInputStream( ), StandardCharsets.UTF_8 ) ) )
+            {
+                String strLine;
+                while ( ( strLine = reader.readLine( ) ) != null )
+                {
+                    if ( strLine.startsWith( OcrWorkerProtocol.READY_PREFIX ) )
+                    {
+                        _nPort = Integer.parseInt( strLine.substring( OcrWorkerProtocol.READY_PREFIX.length( ) ).trim( ) );
+                        OcrMetricsService.getInstance( ).increment( COUNTER_STARTED );
+                        AppLogService.info( "OCR worker process " + _nIndex + " ready on port " + _nPort + "." );
+                        onReady( );
+                    }
+                    else
+                    {
+                        AppLogService.info( "[OCR worker " + _nIndex + "] " + strLine );
+                    }
+                }
+            }
+            finally
+            {
+                _nPort = 0;
+                process.destroy( );
+            }
+            AppLogService.info( "OCR worker process " + _nIndex + " exited with code " + process.waitFor( ) + "." );
+        }
+    }
+
+}
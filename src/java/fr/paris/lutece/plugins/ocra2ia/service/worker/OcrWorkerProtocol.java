@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.worker;
+
+/**
+ *
+ * Protocol between the webapp and the OCR worker processes, over a loopback socket. Each message is a command byte followed by its arguments written
+ * with DataOutputStream; the answer is a status byte followed by the result, or by the error message. The image bytes are not sent over the socket but
+ * through a shared file whose path and length are given with the request. A get results command may stream the fields before its answer, each
+ * one as a field status byte followed by the key, the value and the confidence.
+ *
+ */
+public final class OcrWorkerProtocol
+{
+
+    /**
+     * Line written on the standard output by a worker process ready to accept connections, followed by its port.
+     */
+    public static final String READY_PREFIX = "OCRA2IA-WORKER-READY ";
+
+    /**
+     * Environment variable giving the token a client must send to a worker process when connecting.
+     */
+    public static final String ENV_TOKEN = "OCRA2IA_WORKER_TOKEN";
+
+    public static final byte CMD_OPEN_CHANNEL = 1;
+    public static final byte CMD_OPEN_REQUEST = 2;
+    public static final byte CMD_GET_RESULT = 3;
+    public static final byte CMD_GET_RESULTS = 4;
+    public static final byte CMD_CLOSE_REQUEST = 5;
+    public static final byte CMD_CLOSE_CHANNEL = 6;
+    public static final byte CMD_OPEN_REQUESTS = 7;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+    public static final byte STATUS_FIELD = 2;
+
+    /**
+     * Private constructor.
+     */
+    private OcrWorkerProtocol( )
+    {
+    }
+
+}
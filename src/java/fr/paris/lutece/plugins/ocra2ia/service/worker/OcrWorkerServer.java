@@ -0,0 +1,705 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.worker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang.StringUtils;
+
+import fr.paris.lutece.plugins.ocra2ia.business.ImageBean;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrResultListener;
+import fr.paris.lutece.plugins.ocra2ia.service.engine.EngineEndpoint;
+import fr.paris.lutece.plugins.ocra2ia.service.engine.IA2iaEngine;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ *
+ * Server of an OCR worker process : each connection of the webapp is served by its own thread, which owns an engine object for the life of the
+ * connection, and only this thread calls the engine : a request closed from another connection (cancellation) is queued to the connection which
+ * opened it. The requests and channels left open by a connection are closed when it ends.
+ *
+ */
+public class OcrWorkerServer
+{
+
+    private static final String THREAD_NAME_PREFIX = "ocra2ia-worker-connection-";
+    private static final int AUTHENTICATION_TIMEOUT = 5000;
+
+    private final String _strToken;
+    private final Supplier<IA2iaEngine> _engineFactory;
+    private final ServerSocket _serverSocket;
+    private final AtomicInteger _nConnections = new AtomicInteger( );
+
+    /**
+     * Connection which opened each open request, so that a request can be cancelled from another connection.
+     */
+    private final Map<Long, Connection> _mapRequestConnections = new ConcurrentHashMap<>( );
+
+    /**
+     * Constructor, listen on a free port of the loopback interface.
+     *
+     * @param strToken
+     *            token the clients must send when connecting
+     * @param engineFactory
+     *            create the engine object of each connection
+     * @throws IOException
+     *             if the server socket cannot be opened
+     */
+    public OcrWorkerServer( String strToken, Supplier<IA2iaEngine> engineFactory ) throws IOException
+    {
+        _strToken = strToken;
+        _engineFactory = engineFactory;
+        _serverSocket = new ServerSocket( 0, 50, InetAddress.getLoopbackAddress( ) );
+    }
+
+    /**
+     * @return the port of the server
+     */
+    public int getPort( )
+    {
+        return _serverSocket.getLocalPort( );
+    }
+
+    /**
+     * Accept the connections until the server socket is closed.
+     */
+    public void serve( )
+    {
+        while ( !_serverSocket.isClosed( ) )
+        {
+            try
+            {
+                Socket socket = _serverSocket.accept( );
+                Thread thread = new Thread( new Connection( socket ), THREAD_NAME_PREFIX + _nConnections.incrementAndGet( ) );
+                thread.setDaemon( true );
+                thread.start( );
+            }
+            catch( IOException e )
+            {
+                AppLogService.error( "OCR worker accept failed : " + e.getMessage( ) );
+            }
+        }
+    }
+
+    /**
+     * Connection of the webapp, with its engine and the requests and channels it opened.
+     */
+    private final class Connection implements Runnable
+    {
+        private final Socket _socket;
+        private final Set<Long> _setChannels = new HashSet<>( );
+        private final Set<Long> _setRequests = new HashSet<>( );
+        private final Map<String, FileChannel> _mapSharedFiles = new HashMap<>( );
+        private final Queue<Long> _queueClosedRequests = new ConcurrentLinkedQueue<>( );
+        private IA2iaEngine _engine;
+
+        /**
+         * Constructor.
+         *
+         * @param socket
+         *            the socket of the connection
+         */
+        Connection( Socket socket )
+        {
+            _socket = socket;
+        }
+
+        /**
+         * Serve the commands of the connection until it is closed.
+         */
+        @Override
+        public void run( )
+        {
+            try ( Socket socket = _socket )
+            {
+                DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream( ) ) );
+                DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream( ) ) );
+
+                socket.setSoTimeout( AUTHENTICATION_TIMEOUT );
+                if ( !StringUtils.equals( _strToken, in.readUTF( ) ) )
+                {
+                    AppLogService.error( "OCR worker : connection refused, bad token." );
+
+                    return;
+                }
+                socket.setSoTimeout( 0 );
+                socket.setTcpNoDelay( true );
+
+                while ( true )
+                {
+                    byte nCommand = in.readByte( );
+                    closeQueuedRequests( );
+                    execute( nCommand, in, out );
+                    out.flush( );
+                }
+            }
+            catch( EOFException e )
+            {
+                // connection closed by the webapp
+            }
+            catch( IOException e )
+            {
+                AppLogService.error( "OCR worker connection lost : " + e.getMessage( ) );
+            }
+            finally
+            {
+                close( );
+            }
+        }
+
+        /**
+         * Read the arguments of a command, run it and write its answer.
+         *
+         * @param nCommand
+         *            the command
+         * @param in
+         *            input of the connection
+         * @param out
+         *            output of the connection
+         * @throws IOException
+         *             if the connection is lost or the command is unknown
+         */
+        private void execute( byte nCommand, DataInputStream in, DataOutputStream out ) throws IOException
+        {
+            CommandAction action = readCommand( nCommand, in, out );
+            try
+            {
+                Object result = action.run( );
+                out.writeByte( OcrWorkerProtocol.STATUS_OK );
+                writeResult( result, out );
+            }
+            catch( UncheckedIOException e )
+            {
+                // connection lost while streaming the fields
+                throw e.getCause( );
+            }
+            catch( OcrException | RuntimeException e )
+            {
+                AppLogService.error( "OCR worker command " + nCommand + " failed : " + e.getMessage( ), e );
+                out.writeByte( OcrWorkerProtocol.STATUS_ERROR );
+                out.writeUTF( StringUtils.defaultString( e.getMessage( ), e.getClass( ).getName( ) ) );
+            }
+        }
+
+        /**
+         * Read the arguments of a command, before running it, so that the stream stays consistent whatever the outcome of the command.
+         *
+         * @param nCommand
+         *            the command
+         * @param in
+         *            input of the connection
+         * @param out
+         *            output of the connection, for the fields streamed by the command
+         * @return the action running the command
+         * @throws IOException
+         *             if the connection is lost or the command is unknown
+         */
+        private CommandAction readCommand( byte nCommand, DataInputStream in, DataOutputStream out ) throws IOException
+        {
+            switch( nCommand )
+            {
+                case OcrWorkerProtocol.CMD_OPEN_CHANNEL:
+                    return readOpenChannel( in );
+                case OcrWorkerProtocol.CMD_OPEN_REQUEST:
+                    return readOpenRequest( in );
+                case OcrWorkerProtocol.CMD_OPEN_REQUESTS:
+                    return readOpenRequests( in );
+                case OcrWorkerProtocol.CMD_GET_RESULT:
+                {
+                    long lChannelId = in.readLong( );
+                    long lRequestId = in.readLong( );
+                    long lTimeoutMs = in.readLong( );
+
+                    return ( ) -> getEngine( ).getResult( lChannelId, lRequestId, lTimeoutMs );
+                }
+                case OcrWorkerProtocol.CMD_GET_RESULTS:
+                {
+                    String strDocumentType = in.readUTF( );
+                    long lResultId = in.readLong( );
+                    boolean bStream = in.readBoolean( );
+
+                    return ( ) -> getEngine( ).getResults( strDocumentType, lResultId, bStream ? new FieldWriter( out ) : null );
+                }
+                case OcrWorkerProtocol.CMD_CLOSE_REQUEST:
+                {
+                    long lRequestId = in.readLong( );
+
+                    return ( ) -> {
+                        closeRequest( lRequestId );
+                        return null;
+                    };
+                }
+                case OcrWorkerProtocol.CMD_CLOSE_CHANNEL:
+                {
+                    long lChannelId = in.readLong( );
+
+                    return ( ) -> {
+                        if ( _setChannels.remove( lChannelId ) )
+                        {
+                            getEngine( ).closeChannel( lChannelId );
+                        }
+                        return null;
+                    };
+                }
+                default:
+                    throw new IOException( "Unknown OCR worker command " + nCommand );
+            }
+        }
+
+        /**
+         * Read the arguments of an open channel command.
+         *
+         * @param in
+         *            input of the connection
+         * @return the action
+         * @throws IOException
+         *             if the connection is lost
+         */
+        private CommandAction readOpenChannel( DataInputStream in ) throws IOException
+        {
+            String strHost = in.readUTF( );
+            String strPort = in.readUTF( );
+            long lTimeoutMs = in.readLong( );
+
+            return ( ) -> {
+                long lChannelId = getEngine( ).openChannel( new EngineEndpoint( strHost, strPort, 1, 1 ), lTimeoutMs );
+                _setChannels.add( lChannelId );
+
+                return lChannelId;
+            };
+        }
+
+        /**
+         * Read the arguments of an open request command. The image is read from the shared file.
+         *
+         * @param in
+         *            input of the connection
+         * @return the action
+         * @throws IOException
+         *             if the connection is lost
+         */
+        private CommandAction readOpenRequest( DataInputStream in ) throws IOException
+        {
+            long lChannelId = in.readLong( );
+            String strTblDocumentPath = in.readUTF( );
+            String strExtension = in.readUTF( );
+            String strModeOcr = in.readUTF( );
+            String strImagePath = in.readUTF( );
+            long lTimeoutMs = in.readLong( );
+            String strSharedPath = in.readUTF( );
+            int nLength = in.readInt( );
+
+            return ( ) -> {
+                ImageBean imageBean = new ImageBean( );
+                imageBean.setExtension( strExtension );
+                imageBean.setImagePath( strImagePath );
+                if ( nLength > 0 )
+                {
+                    imageBean.setPooledContent( readSharedImage( strSharedPath, 0, nLength ), nLength );
+                }
+                else
+                {
+                    imageBean.setContent( new byte [ 0] );
+                }
+
+                IA2iaEngine engine = getEngine( );
+                long lRequestId;
+                try
+                {
+                    lRequestId = engine.openRequest( lChannelId, strTblDocumentPath, imageBean, strModeOcr, lTimeoutMs );
+                }
+                finally
+                {
+                    // the engine copies the image when the request is opened
+                    imageBean.release( );
+                }
+                _mapRequestConnections.put( lRequestId, Connection.this );
+                _setRequests.add( lRequestId );
+
+                return lRequestId;
+            };
+        }
+
+        /**
+         * Read the arguments of an open requests command : several images, read from the shared file one after the other, and several
+         * requests each reading one of the images with a tbl document.
+         *
+         * @param in
+         *            input of the connection
+         * @return the action
+         * @throws IOException
+         *             if the connection is lost
+         */
+        private CommandAction readOpenRequests( DataInputStream in ) throws IOException
+        {
+            long lChannelId = in.readLong( );
+            String strModeOcr = in.readUTF( );
+            long lTimeoutMs = in.readLong( );
+            String strSharedPath = in.readUTF( );
+            String [ ] tabExtension = new String [ in.readInt( )];
+            String [ ] tabImagePath = new String [ tabExtension.length];
+            int [ ] tabOffset = new int [ tabExtension.length];
+            int [ ] tabLength = new int [ tabExtension.length];
+            for ( int i = 0; i < tabExtension.length; i++ )
+            {
+                tabExtension [i] = in.readUTF( );
+                tabImagePath [i] = in.readUTF( );
+                tabOffset [i] = in.readInt( );
+                tabLength [i] = in.readInt( );
+            }
+            String [ ] tabTblDocumentPath = new String [ in.readInt( )];
+            int [ ] tabImageIndex = new int [ tabTblDocumentPath.length];
+            for ( int i = 0; i < tabTblDocumentPath.length; i++ )
+            {
+                tabTblDocumentPath [i] = in.readUTF( );
+                tabImageIndex [i] = in.readInt( );
+            }
+
+            return ( ) -> {
+                ImageBean [ ] tabImageBean = new ImageBean [ tabExtension.length];
+                ImageBean [ ] tabRequestImageBean = new ImageBean [ tabTblDocumentPath.length];
+                IA2iaEngine engine = getEngine( );
+                long [ ] tabRequestIds;
+                try
+                {
+                    for ( int i = 0; i < tabExtension.length; i++ )
+                    {
+                        tabImageBean [i] = new ImageBean( );
+                        tabImageBean [i].setExtension( tabExtension [i] );
+                        tabImageBean [i].setImagePath( tabImagePath [i] );
+                        if ( tabLength [i] > 0 )
+                        {
+                            tabImageBean [i].setPooledContent( readSharedImage( strSharedPath, tabOffset [i], tabLength [i] ), tabLength [i] );
+                        }
+                        else
+                        {
+                            tabImageBean [i].setContent( new byte [ 0] );
+                        }
+                    }
+                    for ( int i = 0; i < tabTblDocumentPath.length; i++ )
+                    {
+                        tabRequestImageBean [i] = tabImageBean [tabImageIndex [i]];
+                    }
+                    tabRequestIds = engine.openRequests( lChannelId, tabTblDocumentPath, tabRequestImageBean, strModeOcr, lTimeoutMs );
+                }
+                finally
+                {
+                    // the engine copies the images when the requests are opened
+                    for ( ImageBean imageBean : tabImageBean )
+                    {
+                        if ( imageBean != null )
+                        {
+                            imageBean.release( );
+                        }
+                    }
+                }
+                for ( long lRequestId : tabRequestIds )
+                {
+                    _mapRequestConnections.put( lRequestId, Connection.this );
+                    _setRequests.add( lRequestId );
+                }
+
+                return tabRequestIds;
+            };
+        }
+
+        /**
+         * Read the image from a shared file.
+         *
+         * @param strSharedPath
+         *            path of the file
+         * @param nOffset
+         *            offset of the image in the file
+         * @param nLength
+         *            length of the image
+         * @return the image, in an array of the buffer pool
+         * @throws OcrException
+         *             if the file cannot be read
+         */
+        private byte [ ] readSharedImage( String strSharedPath, int nOffset, int nLength ) throws OcrException
+        {
+            try
+            {
+                FileChannel fileChannel = _mapSharedFiles.get( strSharedPath );
+                if ( fileChannel == null )
+                {
+                    fileChannel = FileChannel.open( Paths.get( strSharedPath ), StandardOpenOption.READ );
+                    _mapSharedFiles.put( strSharedPath, fileChannel );
+                }
+
+                return SharedImageBuffer.read( fileChannel, nOffset, nLength );
+            }
+            catch( IOException e )
+            {
+                throw new OcrException( "OCR worker cannot read the shared image : " + e.getMessage( ) );
+            }
+        }
+
+        /**
+         * Close a request, possibly opened by another connection (cancellation) : the close is then queued to this connection, whose thread runs
+         * it before its next command, since an engine object must only be called by the thread which created it.
+         *
+         * @param lRequestId
+         *            id of the request
+         */
+        private void closeRequest( long lRequestId )
+        {
+            Connection connection = _mapRequestConnections.get( lRequestId );
+            if ( connection == this )
+            {
+                _setRequests.remove( lRequestId );
+                _mapRequestConnections.remove( lRequestId );
+                getEngine( ).closeRequest( lRequestId );
+            }
+            else
+                if ( connection != null )
+                {
+                    connection._queueClosedRequests.add( lRequestId );
+                }
+        }
+
+        /**
+         * Close the requests of this connection closed from another connection.
+         */
+        private void closeQueuedRequests( )
+        {
+            Long lRequestId;
+            while ( ( lRequestId = _queueClosedRequests.poll( ) ) != null )
+            {
+                closeRequest( lRequestId );
+            }
+        }
+
+        /**
+         * Write the result of a command.
+         *
+         * @param result
+         *            the result, a Long, an array of long, a Map or null
+         * @param out
+         *            output of the connection
+         * @throws IOException
+         *             if the connection is lost
+         */
+        @SuppressWarnings( "unchecked" )
+        private void writeResult( Object result, DataOutputStream out ) throws IOException
+        {
+            if ( result instanceof Long )
+            {
+                out.writeLong( (Long) result );
+            }
+            else
+                if ( result instanceof long [ ] )
+                {
+                    long [ ] tabResult = (long [ ]) result;
+                    out.writeInt( tabResult.length );
+                    for ( long lValue : tabResult )
+                    {
+                        out.writeLong( lValue );
+                    }
+                }
+                else
+                    if ( result instanceof Map )
+                    {
+                        Map<String, String> mapResults = (Map<String, String>) result;
+                        out.writeInt( mapResults.size( ) );
+                        for ( Map.Entry<String, String> entry : mapResults.entrySet( ) )
+                        {
+                            out.writeUTF( entry.getKey( ) );
+                            out.writeUTF( StringUtils.defaultString( entry.getValue( ) ) );
+                        }
+                    }
+        }
+
+        /**
+         * Get the engine of the connection, created on first use in the thread of the connection.
+         *
+         * @return the engine
+         */
+        private IA2iaEngine getEngine( )
+        {
+            if ( _engine == null )
+            {
+                _engine = _engineFactory.get( );
+            }
+
+            return _engine;
+        }
+
+        /**
+         * Close the requests, channels and shared files left open, and release the engine.
+         */
+        private void close( )
+        {
+            try
+            {
+                for ( Long lRequestId : new HashSet<>( _setRequests ) )
+                {
+                    closeRequest( lRequestId );
+                }
+                if ( _engine != null )
+                {
+                    _setChannels.forEach( _engine::closeChannel );
+                    _engine.release( );
+                }
+            }
+            catch( RuntimeException e )
+            {
+                AppLogService.error( "OCR worker : error closing the connection : " + e.getMessage( ), e );
+            }
+            for ( FileChannel fileChannel : _mapSharedFiles.values( ) )
+            {
+                try
+                {
+                    fileChannel.close( );
+                }
+                catch( IOException e )
+                {
+                    AppLogService.error( e.getMessage( ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * Listener streaming the fields of a result to the webapp as they are read, before the answer of the command.
+     */
+    private static final class FieldWriter implements OcrResultListener
+    {
+
+        /**
+         * Output of the connection.
+         */
+        private final DataOutputStream _out;
+
+        /**
+         * Constructor.
+         *
+         * @param out
+         *            output of the connection
+         */
+        FieldWriter( DataOutputStream out )
+        {
+            _out = out;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onField( String strKey, String strValue, double dConfidence )
+        {
+            try
+            {
+                _out.writeByte( OcrWorkerProtocol.STATUS_FIELD );
+                _out.writeUTF( strKey );
+                _out.writeUTF( StringUtils.defaultString( strValue ) );
+                _out.writeDouble( dConfidence );
+                _out.flush( );
+            }
+            catch( IOException e )
+            {
+                throw new UncheckedIOException( e );
+            }
+        }
+
+        /**
+         * The cancellation of the webapp listener is not seen by the worker.
+         *
+         * @return false
+         */
+        @Override
+        public boolean isCancelled( )
+        {
+            return false;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onComplete( Map<String, String> mapResults )
+        {
+            // the result is the answer of the command
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onError( OcrException exception )
+        {
+            // the failure is the answer of the command
+        }
+
+    }
+
+    /**
+     * Command whose arguments have been read.
+     */
+    @FunctionalInterface
+    private interface CommandAction
+    {
+        /**
+         * Run the command.
+         *
+         * @return the result : a Long, an array of long, a Map or null
+         * @throws OcrException
+         *             the OcrException
+         */
+        Object run( ) throws OcrException;
+    }
+
+}
@@ -0,0 +1,537 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.worker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang.StringUtils;
+
+import fr.paris.lutece.plugins.ocra2ia.business.ImageBean;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrResultListener;
+import fr.paris.lutece.plugins.ocra2ia.service.engine.EngineEndpoint;
+import fr.paris.lutece.plugins.ocra2ia.service.engine.IA2iaEngine;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * Engine running in a worker process : each call is sent over the connection of this object to a worker process, which runs it on its own engine. The
+ * image bytes are handed over through a shared file. A connection lost (crash of the worker process) fails the current call, the next call
+ * connects to a running process.
+ *
+ */
+public class ProcessA2iaEngine implements IA2iaEngine
+{
+
+    private final OcrWorkerProcessPool _processPool;
+    private final long _lCallMargin;
+
+    /**
+     * Lock of the connection : a call made while another one is in progress (cancellation) uses a separate connection.
+     */
+    private final ReentrantLock _lockConnection = new ReentrantLock( );
+
+    private Socket _socket;
+    private DataInputStream _in;
+    private DataOutputStream _out;
+    private SharedImageBuffer _sharedImageBuffer;
+
+    /**
+     * Port of the process of the current connection.
+     */
+    private volatile int _nPort;
+
+    /**
+     * Constructor.
+     *
+     * @param processPool
+     *            the worker processes
+     */
+    public ProcessA2iaEngine( OcrWorkerProcessPool processPool )
+    {
+        _processPool = processPool;
+        _lCallMargin = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_WORKER_CALL_MARGIN, 10000L );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long openChannel( EngineEndpoint endpoint, long lTimeoutMs ) throws OcrException
+    {
+        return call( lTimeoutMs, out -> {
+            out.writeByte( OcrWorkerProtocol.CMD_OPEN_CHANNEL );
+            out.writeUTF( endpoint.getHost( ) );
+            out.writeUTF( endpoint.getPort( ) );
+            out.writeLong( lTimeoutMs );
+        }, DataInputStream::readLong );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long openRequest( long lChannelId, String strTblDocumentPath, ImageBean imageBean, String strModeOcr, long lTimeoutMs ) throws OcrException
+    {
+        boolean bMemory = !OcrConstants.OCR_MODE_FILE.equalsIgnoreCase( strModeOcr );
+
+        return call( lTimeoutMs, out -> {
+            String strSharedPath = StringUtils.EMPTY;
+            if ( bMemory )
+            {
+                getSharedImageBuffer( ).write( imageBean.getContent( ), imageBean.getContentLength( ) );
+                strSharedPath = _sharedImageBuffer.getPath( );
+            }
+            out.writeByte( OcrWorkerProtocol.CMD_OPEN_REQUEST );
+            out.writeLong( lChannelId );
+            out.writeUTF( strTblDocumentPath );
+            out.writeUTF( imageBean.getExtension( ) );
+            out.writeUTF( strModeOcr );
+            out.writeUTF( StringUtils.defaultString( imageBean.getImagePath( ) ) );
+            out.writeLong( lTimeoutMs );
+            out.writeUTF( strSharedPath );
+            out.writeInt( bMemory ? imageBean.getContentLength( ) : 0 );
+        }, DataInputStream::readLong );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long [ ] openRequests( long lChannelId, String [ ] tabTblDocumentPath, ImageBean [ ] tabImageBean, String strModeOcr, long lTimeoutMs )
+            throws OcrException
+    {
+        boolean bMemory = !OcrConstants.OCR_MODE_FILE.equalsIgnoreCase( strModeOcr );
+        Map<ImageBean, Integer> mapImageIndexes = new IdentityHashMap<>( );
+        List<ImageBean> listImages = new ArrayList<>( );
+        for ( ImageBean imageBean : tabImageBean )
+        {
+            if ( !mapImageIndexes.containsKey( imageBean ) )
+            {
+                mapImageIndexes.put( imageBean, listImages.size( ) );
+                listImages.add( imageBean );
+            }
+        }
+
+        // each image crosses the shared file once, one after the other, for all its requests
+        return call( lTimeoutMs, out -> {
+            String strSharedPath = StringUtils.EMPTY;
+            int [ ] tabOffsets = new int [ listImages.size( )];
+            if ( bMemory )
+            {
+                int nOffset = 0;
+                for ( int i = 0; i < listImages.size( ); i++ )
+                {
+                    tabOffsets [i] = nOffset;
+                    getSharedImageBuffer( ).write( listImages.get( i ).getContent( ), nOffset, listImages.get( i ).getContentLength( ) );
+                    nOffset += listImages.get( i ).getContentLength( );
+                }
+                strSharedPath = _sharedImageBuffer.getPath( );
+            }
+            out.writeByte( OcrWorkerProtocol.CMD_OPEN_REQUESTS );
+            out.writeLong( lChannelId );
+            out.writeUTF( strModeOcr );
+            out.writeLong( lTimeoutMs );
+            out.writeUTF( strSharedPath );
+            out.writeInt( listImages.size( ) );
+            for ( int i = 0; i < listImages.size( ); i++ )
+            {
+                out.writeUTF( listImages.get( i ).getExtension( ) );
+                out.writeUTF( StringUtils.defaultString( listImages.get( i ).getImagePath( ) ) );
+                out.writeInt( tabOffsets [i] );
+                out.writeInt( bMemory ? listImages.get( i ).getContentLength( ) : 0 );
+            }
+            out.writeInt( tabTblDocumentPath.length );
+            for ( int i = 0; i < tabTblDocumentPath.length; i++ )
+            {
+                out.writeUTF( tabTblDocumentPath [i] );
+                out.writeInt( mapImageIndexes.get( tabImageBean [i] ) );
+            }
+        }, in -> {
+            long [ ] tabRequestIds = new long [ in.readInt( )];
+            for ( int i = 0; i < tabRequestIds.length; i++ )
+            {
+                tabRequestIds [i] = in.readLong( );
+            }
+
+            return tabRequestIds;
+        } );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getResult( long lChannelId, long lRequestId, long lTimeoutMs ) throws OcrException
+    {
+        return call( lTimeoutMs, out -> {
+            out.writeByte( OcrWorkerProtocol.CMD_GET_RESULT );
+            out.writeLong( lChannelId );
+            out.writeLong( lRequestId );
+            out.writeLong( lTimeoutMs );
+        }, DataInputStream::readLong );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, String> getResults( String strDocumentType, long lResultId, OcrResultListener listener ) throws OcrException
+    {
+        // the worker cannot see the cancellation of the listener : it reads all the fields, the ones after the cancellation being dropped here
+        return call( 0, out -> {
+            out.writeByte( OcrWorkerProtocol.CMD_GET_RESULTS );
+            out.writeUTF( strDocumentType );
+            out.writeLong( lResultId );
+            out.writeBoolean( listener != null );
+        }, listener, in -> {
+            int nSize = in.readInt( );
+            Map<String, String> mapResults = new HashMap<>( );
+            for ( int i = 0; i < nSize; i++ )
+            {
+                mapResults.put( in.readUTF( ), in.readUTF( ) );
+            }
+
+            return mapResults;
+        } );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void closeRequest( long lRequestId )
+    {
+        RequestWriter writer = out -> {
+            out.writeByte( OcrWorkerProtocol.CMD_CLOSE_REQUEST );
+            out.writeLong( lRequestId );
+        };
+
+        if ( _lockConnection.tryLock( ) )
+        {
+            try
+            {
+                closeIfConnected( writer );
+            }
+            finally
+            {
+                _lockConnection.unlock( );
+            }
+        }
+        else
+        {
+            // cancellation of a request waiting for its result : the connection is busy
+            closeOnSideConnection( writer );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void closeChannel( long lChannelId )
+    {
+        _lockConnection.lock( );
+        try
+        {
+            closeIfConnected( out -> {
+                out.writeByte( OcrWorkerProtocol.CMD_CLOSE_CHANNEL );
+                out.writeLong( lChannelId );
+            } );
+        }
+        finally
+        {
+            _lockConnection.unlock( );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void release( )
+    {
+        _lockConnection.lock( );
+        try
+        {
+            disconnect( );
+            if ( _sharedImageBuffer != null )
+            {
+                _sharedImageBuffer.release( );
+                _sharedImageBuffer = null;
+            }
+        }
+        finally
+        {
+            _lockConnection.unlock( );
+        }
+    }
+
+    /**
+     * Send a command to the worker process and read its answer.
+     *
+     * @param lTimeoutMs
+     *            timeout of the command in milliseconds, the answer is awaited for this time plus a margin
+     * @param writer
+     *            write the command
+     * @param reader
+     *            read the result
+     * @param <T>
+     *            type of the result
+     * @return the result
+     * @throws OcrException
+     *             the error of the worker process, or the loss of the connection
+     */
+    private <T> T call( long lTimeoutMs, RequestWriter writer, ResponseReader<T> reader ) throws OcrException
+    {
+        return call( lTimeoutMs, writer, null, reader );
+    }
+
+    /**
+     * Send a command to the worker process and read its answer, the fields streamed before the answer being sent to the listener.
+     *
+     * @param lTimeoutMs
+     *            timeout of the command in milliseconds, the answer is awaited for this time plus a margin
+     * @param writer
+     *            write the command
+     * @param listener
+     *            listener of the fields streamed, may be null
+     * @param reader
+     *            read the result
+     * @param <T>
+     *            type of the result
+     * @return the result
+     * @throws OcrException
+     *             the error of the worker process, or the loss of the connection
+     */
+    private <T> T call( long lTimeoutMs, RequestWriter writer, OcrResultListener listener, ResponseReader<T> reader ) throws OcrException
+    {
+        _lockConnection.lock( );
+        try
+        {
+            if ( _socket == null )
+            {
+                connect( );
+            }
+            _socket.setSoTimeout( (int) Math.min( Integer.MAX_VALUE, lTimeoutMs + _lCallMargin ) );
+            writer.write( _out );
+            _out.flush( );
+            byte nStatus = _in.readByte( );
+            while ( nStatus == OcrWorkerProtocol.STATUS_FIELD )
+            {
+                String strKey = _in.readUTF( );
+                String strValue = _in.readUTF( );
+                double dConfidence = _in.readDouble( );
+                if ( ( listener != null ) && !listener.isCancelled( ) )
+                {
+                    listener.onField( strKey, strValue, dConfidence );
+                }
+                nStatus = _in.readByte( );
+            }
+            if ( nStatus != OcrWorkerProtocol.STATUS_OK )
+            {
+                throw new OcrException( _in.readUTF( ) );
+            }
+
+            return reader.read( _in );
+        }
+        catch( IOException e )
+        {
+            disconnect( );
+            throw new OcrException( "Connection to the OCR worker process lost : " + e.getMessage( ) );
+        }
+        finally
+        {
+            _lockConnection.unlock( );
+        }
+    }
+
+    /**
+     * Send a close command over the current connection. Nothing is sent if the connection was lost : the worker process has then closed the requests and
+     * channels of the connection itself.
+     *
+     * @param writer
+     *            write the command
+     */
+    private void closeIfConnected( RequestWriter writer )
+    {
+        if ( _socket == null )
+        {
+            return;
+        }
+
+        try
+        {
+            call( 0, writer, in -> null );
+        }
+        catch( OcrException e )
+        {
+            AppLogService.error( "Error closing OCR request or channel in worker process : " + e.getMessage( ) );
+        }
+    }
+
+    /**
+     * Send a close command over a separate connection to the process of the current connection.
+     *
+     * @param writer
+     *            write the command
+     */
+    private void closeOnSideConnection( RequestWriter writer )
+    {
+        int nPort = _nPort;
+        if ( nPort <= 0 )
+        {
+            return;
+        }
+
+        try ( Socket socket = _processPool.open( nPort ) )
+        {
+            socket.setSoTimeout( (int) _lCallMargin );
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream( ) ) );
+            writer.write( out );
+            out.flush( );
+            new DataInputStream( socket.getInputStream( ) ).readByte( );
+        }
+        catch( IOException e )
+        {
+            AppLogService.error( "Error closing OCR request in worker process : " + e.getMessage( ) );
+        }
+    }
+
+    /**
+     * Connect to a worker process.
+     *
+     * @throws OcrException
+     *             if no worker process is available
+     * @throws IOException
+     *             if the connection fails
+     */
+    private void connect( ) throws OcrException, IOException
+    {
+        _socket = _processPool.connect( );
+        _nPort = _socket.getPort( );
+        _in = new DataInputStream( new BufferedInputStream( _socket.getInputStream( ) ) );
+        _out = new DataOutputStream( new BufferedOutputStream( _socket.getOutputStream( ) ) );
+    }
+
+    /**
+     * Close the connection.
+     */
+    private void disconnect( )
+    {
+        if ( _socket != null )
+        {
+            try
+            {
+                _socket.close( );
+            }
+            catch( IOException e )
+            {
+                AppLogService.error( e.getMessage( ) );
+            }
+            _socket = null;
+            _nPort = 0;
+        }
+    }
+
+    /**
+     * Get the shared image buffer of this engine, created on first use.
+     *
+     * @return the shared image buffer
+     * @throws IOException
+     *             if the file cannot be created
+     */
+    private SharedImageBuffer getSharedImageBuffer( ) throws IOException
+    {
+        if ( _sharedImageBuffer == null )
+        {
+            _sharedImageBuffer = new SharedImageBuffer( AppPropertiesService.getProperty( OcrConstants.PROPERTY_WORKER_SHARED_DIR,
+                    System.getProperty( "java.io.tmpdir" ) ) );
+        }
+
+        return _sharedImageBuffer;
+    }
+
+    /**
+     * Write a command.
+     */
+    @FunctionalInterface
+    private interface RequestWriter
+    {
+        /**
+         * Write the command.
+         *
+         * @param out
+         *            the connection
+         * @throws IOException
+         *             if the connection is lost
+         */
+        void write( DataOutputStream out ) throws IOException;
+    }
+
+    /**
+     * Read the result of a command.
+     *
+     * @param <T>
+     *            type of the result
+     */
+    @FunctionalInterface
+    private interface ResponseReader<T>
+    {
+        /**
+         * Read the result.
+         *
+         * @param in
+         *            the connection
+         * @return the result
+         * @throws IOException
+         *             if the connection is lost
+         */
+        T read( DataInputStream in ) throws IOException;
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.worker;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import fr.paris.lutece.plugins.ocra2ia.service.buffer.OcrBufferPool;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+/**
+ *
+ * File through which a client hands the image bytes to a worker process. The file is written by the client and read by the worker with positional
+ * reads and writes, never mapped : Windows refuses to resize or delete a file while a mapping of it is alive, and a mapping is only released by the
+ * garbage collector. On Linux the file should be located in a tmpfs such as /dev/shm so that the bytes never reach the disk.
+ *
+ */
+public class SharedImageBuffer
+{
+
+    private static final String FILE_PREFIX = "ocra2ia-";
+    private static final String FILE_SUFFIX = ".shm";
+
+    private final File _file;
+    private final FileChannel _fileChannel;
+
+    /**
+     * Constructor, create the file.
+     *
+     * @param strDirectory
+     *            directory of the file
+     * @throws IOException
+     *             if the file cannot be created
+     */
+    public SharedImageBuffer( String strDirectory ) throws IOException
+    {
+        _file = File.createTempFile( FILE_PREFIX, FILE_SUFFIX, new File( strDirectory ) );
+        _file.deleteOnExit( );
+        _fileChannel = FileChannel.open( _file.toPath( ), StandardOpenOption.READ, StandardOpenOption.WRITE );
+    }
+
+    /**
+     * Write bytes at the beginning of the file, which grows if needed.
+     *
+     * @param byteContent
+     *            the bytes
+     * @param nLength
+     *            the number of bytes to write
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    public void write( byte [ ] byteContent, int nLength ) throws IOException
+    {
+        write( byteContent, 0, nLength );
+    }
+
+    /**
+     * Write bytes at an offset of the file, which grows if needed, so that several images can be handed over at once.
+     *
+     * @param byteContent
+     *            the bytes
+     * @param nOffset
+     *            offset in the file
+     * @param nLength
+     *            the number of bytes to write
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    public void write( byte [ ] byteContent, int nOffset, int nLength ) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap( byteContent, 0, nLength );
+        while ( buffer.hasRemaining( ) )
+        {
+            _fileChannel.write( buffer, (long) nOffset + buffer.position( ) );
+        }
+    }
+
+    /**
+     * @return the path of the file
+     */
+    public String getPath( )
+    {
+        return _file.getAbsolutePath( );
+    }
+
+    /**
+     * Close and delete the file.
+     */
+    public void release( )
+    {
+        try
+        {
+            _fileChannel.close( );
+            Files.deleteIfExists( _file.toPath( ) );
+        }
+        catch( IOException e )
+        {
+            AppLogService.error( "Error deleting shared image file " + _file + " : " + e.getMessage( ) );
+        }
+    }
+
+    /**
+     * Read bytes written in a shared image file, in the worker process.
+     *
+     * @param fileChannel
+     *            channel of the file opened by the worker
+     * @param nLength
+     *            number of bytes to read
+     * @return the bytes, in an array of the buffer pool
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    public static byte [ ] read( FileChannel fileChannel, int nLength ) throws IOException
+    {
+        return read( fileChannel, 0, nLength );
+    }
+
+    /**
+     * Read bytes written at an offset of a shared image file, in the worker process.
+     *
+     * @param fileChannel
+     *            channel of the file opened by the worker
+     * @param nOffset
+     *            offset in the file
+     * @param nLength
+     *            number of bytes to read
+     * @return the bytes, in an array of the buffer pool
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    public static byte [ ] read( FileChannel fileChannel, int nOffset, int nLength ) throws IOException
+    {
+        byte [ ] byteContent = OcrBufferPool.getInstance( ).acquire( nLength );
+        try
+        {
+            ByteBuffer buffer = ByteBuffer.wrap( byteContent, 0, nLength );
+            while ( buffer.hasRemaining( ) )
+            {
+                if ( fileChannel.read( buffer, (long) nOffset + buffer.position( ) ) < 0 )
+                {
+                    throw new EOFException( "Shared image file truncated" );
+                }
+            }
+        }
+        catch( IOException e )
+        {
+            OcrBufferPool.getInstance( ).release( byteContent );
+            throw e;
+        }
+
+        return byteContent;
+    }
+
+}
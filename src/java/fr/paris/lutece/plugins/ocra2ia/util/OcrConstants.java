@@ -41,6 +41,9 @@ package fr.paris.lutece.plugins.ocra2ia.util;
 public final class OcrConstants
 {
 
+    public static final String PLUGIN_NAME = "ocra2ia";
+    public static final String BEAN_OCR_SERVICE = "OcrService";
+
     // i18n message
     public static final String MESSAGE_PARAMETER_MANDATORY = "ocra2ia.message.error.parameters.mandatory";
     public static final String MESSAGE_INIT_ERROR = "ocra2ia.message.error.init.ocr";
@@ -48,12 +51,110 @@ public final class OcrConstants
     public static final String MESSAGE_FILE_EXTENSION_TYPE_ERROR = "ocra2ia.message.error.fileextension";
     public static final String MESSAGE_PDF_NUMBER_PAGES_ERROR = "ocra2ia.message.error.pdfnumberpages";
     public static final String MESSAGE_TIMEOUT_TRANSFORM_IMAGE = "ocra2ia.message.error.timeout.image";
+    public static final String MESSAGE_NO_ENDPOINT_AVAILABLE = "ocra2ia.message.error.endpoint.unavailable";
+    public static final String MESSAGE_REJECT_PREFIX = "ocra2ia.message.error.reject.";
+    public static final String MESSAGE_DEADLINE_EXCEEDED = "ocra2ia.message.error.deadline.exceeded";
+    public static final String MESSAGE_CIRCUIT_OPEN = "ocra2ia.message.error.circuit.open";
+    public static final String MESSAGE_QUEUE_TIMEOUT = "ocra2ia.message.error.queue.timeout";
+    public static final String MESSAGE_BULKHEAD_FULL = "ocra2ia.message.error.bulkhead.full";
+    public static final String MESSAGE_OVERLOADED = "ocra2ia.message.error.overloaded";
+    public static final String MESSAGE_NO_WORKER_AVAILABLE = "ocra2ia.message.error.worker.unavailable";
+    public static final String MESSAGE_JOB_NOT_FOUND = "ocra2ia.message.error.job.notfound";
+    public static final String MESSAGE_CALLBACK_NOT_ALLOWED = "ocra2ia.message.error.job.callback";
+    public static final String MESSAGE_INTAKE_SUSPENDED = "ocra2ia.message.error.intake.suspended";
 
     // properties
     public static final String PROPERTY_FOLDER_DLL_JACOB = "ocra2ia.jacob.dll";
     public static final String PROPERTY_A2IA_CLSID = "ocra2ia.activex.clsid";
     public static final String PROPERTY_A2IA_SERVER_HOST = "ocra2ia.server.host";
     public static final String PROPERTY_A2IA_SERVER_PORT = "ocra2ia.server.port";
+    public static final String PROPERTY_SERVER_ENDPOINTS = "ocra2ia.server.endpoints";
+    public static final String PROPERTY_SERVER_MAX_CONCURRENCY = "ocra2ia.server.max.concurrency";
+    public static final String PROPERTY_SERVER_ACQUIRE_TIMEOUT = "ocra2ia.server.acquire.timeout";
+    public static final String PROPERTY_SERVER_EJECT_FAILURES = "ocra2ia.server.eject.failures";
+    public static final String PROPERTY_SERVER_EJECT_DURATION = "ocra2ia.server.eject.duration";
+    public static final String PROPERTY_SERVER_EJECT_MAX_DURATION = "ocra2ia.server.eject.max.duration";
+    public static final String PROPERTY_HEDGING_ENABLED = "ocra2ia.hedging.enabled";
+    public static final String PROPERTY_HEDGING_PERCENTILE = "ocra2ia.hedging.percentile";
+    public static final String PROPERTY_HEDGING_MIN_SAMPLES = "ocra2ia.hedging.min.samples";
+    public static final String PROPERTY_HEDGING_DELAY_MIN = "ocra2ia.hedging.delay.min";
+    public static final String PROPERTY_HEDGING_DELAY_DEFAULT = "ocra2ia.hedging.delay.default";
+    public static final String PROPERTY_HEDGING_BUDGET_PERCENT = "ocra2ia.hedging.budget.percent";
+    public static final String PROPERTY_TIMEOUT_CHANNEL = "ocra2ia.timeout.channel";
+    public static final String PROPERTY_TIMEOUT_RESULT = "ocra2ia.timeout.result";
+    public static final String PROPERTY_TIMEOUT_RESULT_POLL = "ocra2ia.timeout.result.poll";
+    public static final String PROPERTY_TIMEOUT_ATTEMPT = "ocra2ia.timeout.attempt";
+    public static final String PROPERTY_DEADLINE_DEFAULT = "ocra2ia.deadline.default";
+    public static final String PROPERTY_CIRCUIT_ENABLED = "ocra2ia.circuit.enabled";
+    public static final String PROPERTY_CIRCUIT_WINDOW = "ocra2ia.circuit.window";
+    public static final String PROPERTY_CIRCUIT_MIN_CALLS = "ocra2ia.circuit.min.calls";
+    public static final String PROPERTY_CIRCUIT_FAILURE_RATE = "ocra2ia.circuit.failure.rate";
+    public static final String PROPERTY_CIRCUIT_OPEN_DURATION = "ocra2ia.circuit.open.duration";
+    public static final String PROPERTY_CIRCUIT_HALF_OPEN_CALLS = "ocra2ia.circuit.half.open.calls";
+    public static final String PROPERTY_SCHEDULER_MAX_CONCURRENCY = "ocra2ia.scheduler.max.concurrency";
+    public static final String PROPERTY_SCHEDULER_QUEUE_TIMEOUT = "ocra2ia.scheduler.queue.timeout";
+    public static final String PROPERTY_SCHEDULER_BULK_SHARE = "ocra2ia.scheduler.bulk.share";
+    public static final String PROPERTY_BULKHEAD_MAX_CONCURRENCY = "ocra2ia.bulkhead.max.concurrency";
+    public static final String PROPERTY_BULKHEAD_MAX_QUEUE = "ocra2ia.bulkhead.max.queue";
+    public static final String PROPERTY_BULKHEAD_QUEUE_TIMEOUT = "ocra2ia.bulkhead.queue.timeout";
+    public static final String PROPERTY_ADMISSION_ENABLED = "ocra2ia.admission.enabled";
+    public static final String PROPERTY_ADMISSION_LIMIT_INITIAL = "ocra2ia.admission.limit.initial";
+    public static final String PROPERTY_ADMISSION_LIMIT_MIN = "ocra2ia.admission.limit.min";
+    public static final String PROPERTY_ADMISSION_LIMIT_MAX = "ocra2ia.admission.limit.max";
+    public static final String PROPERTY_ADMISSION_LATENCY_TARGET = "ocra2ia.admission.latency.target";
+    public static final String PROPERTY_ADMISSION_BACKOFF_PERCENT = "ocra2ia.admission.backoff.percent";
+    public static final String PROPERTY_ADMISSION_BULK_RATIO = "ocra2ia.admission.bulk.ratio";
+    public static final String PROPERTY_ADMISSION_RETRY_AFTER_MIN = "ocra2ia.admission.retry.after.min";
+    public static final String PROPERTY_ENGINE = "ocra2ia.engine";
+    public static final String PROPERTY_ENGINE_STUB_LATENCY = "ocra2ia.engine.stub.latency";
+    public static final String PROPERTY_ENGINE_STUB_FAILURE_RATE = "ocra2ia.engine.stub.failure.rate";
+    public static final String PROPERTY_WORKER_COUNT = "ocra2ia.worker.count";
+    public static final String PROPERTY_WORKER_ENGINE = "ocra2ia.worker.engine";
+    public static final String PROPERTY_WORKER_JAVA = "ocra2ia.worker.java";
+    public static final String PROPERTY_WORKER_JVM_OPTIONS = "ocra2ia.worker.jvm.options";
+    public static final String PROPERTY_WORKER_CLASSPATH = "ocra2ia.worker.classpath";
+    public static final String PROPERTY_WORKER_SHARED_DIR = "ocra2ia.worker.shared.dir";
+    public static final String PROPERTY_WORKER_CALL_MARGIN = "ocra2ia.worker.call.margin";
+    public static final String PROPERTY_WORKER_CONNECT_TIMEOUT = "ocra2ia.worker.connect.timeout";
+    public static final String PROPERTY_WORKER_RESTART_DELAY = "ocra2ia.worker.restart.delay";
+    public static final String PROPERTY_WORKER_RESTART_MAX_DELAY = "ocra2ia.worker.restart.max.delay";
+    public static final String PROPERTY_JOBQUEUE_PROCESSOR_ENABLED = "ocra2ia.jobqueue.processor.enabled";
+    public static final String PROPERTY_JOBQUEUE_NODE_ID = "ocra2ia.jobqueue.node.id";
+    public static final String PROPERTY_JOBQUEUE_THREADS = "ocra2ia.jobqueue.threads";
+    public static final String PROPERTY_JOBQUEUE_POLL_INTERVAL = "ocra2ia.jobqueue.poll.interval";
+    public static final String PROPERTY_JOBQUEUE_LEASE_DURATION = "ocra2ia.jobqueue.lease.duration";
+    public static final String PROPERTY_JOBQUEUE_MAX_ATTEMPTS = "ocra2ia.jobqueue.max.attempts";
+    public static final String PROPERTY_JOBQUEUE_DEADLINE = "ocra2ia.jobqueue.deadline";
+    public static final String PROPERTY_JOBQUEUE_RETENTION = "ocra2ia.jobqueue.retention";
+    public static final String PROPERTY_JOBQUEUE_MAX_UNFINISHED = "ocra2ia.jobqueue.max.unfinished";
+    public static final String PROPERTY_JOBQUEUE_SPOOL_DIR = "ocra2ia.jobqueue.spool.dir";
+    public static final String PROPERTY_JOBQUEUE_API_KEY = "ocra2ia.jobqueue.api.key";
+    public static final String PROPERTY_JOBQUEUE_CALLBACK_ALLOWED = "ocra2ia.jobqueue.callback.allowed";
+    public static final String PROPERTY_JOBQUEUE_CALLBACK_ATTEMPTS = "ocra2ia.jobqueue.callback.attempts";
+    public static final String PROPERTY_JOBQUEUE_CALLBACK_TIMEOUT = "ocra2ia.jobqueue.callback.timeout";
+    public static final String PROPERTY_HOTFOLDER_ENABLED = "ocra2ia.hotfolder.enabled";
+    public static final String PROPERTY_HOTFOLDER_DIRS = "ocra2ia.hotfolder.dirs";
+    public static final String PROPERTY_HOTFOLDER_THREADS = "ocra2ia.hotfolder.threads";
+    public static final String PROPERTY_HOTFOLDER_SETTLE_DELAY = "ocra2ia.hotfolder.settle.delay";
+    public static final String PROPERTY_HOTFOLDER_DEADLINE = "ocra2ia.hotfolder.deadline";
+    public static final String PROPERTY_HOTFOLDER_REPORT_INTERVAL = "ocra2ia.hotfolder.report.interval";
+    public static final String PROPERTY_BUFFER_POOL_ENABLED = "ocra2ia.buffer.pool.enabled";
+    public static final String PROPERTY_BUFFER_POOL_MAX_BYTES = "ocra2ia.buffer.pool.max.bytes";
+    public static final String PROPERTY_BUFFER_POOL_MAX_BUFFER = "ocra2ia.buffer.pool.max.buffer";
+    public static final String PROPERTY_SIMILARITY_ENABLED = "ocra2ia.similarity.enabled";
+    public static final String PROPERTY_SIMILARITY_INDEX_DIR = "ocra2ia.similarity.index.dir";
+    public static final String PROPERTY_SIMILARITY_MAX_DISTANCE = "ocra2ia.similarity.max.distance";
+    public static final String PROPERTY_SIMILARITY_MAX_AGE = "ocra2ia.similarity.max.age";
+    public static final String PROPERTY_CACHE_ENABLED = "ocra2ia.cache.enabled";
+    public static final String PROPERTY_CACHE_DIR = "ocra2ia.cache.dir";
+    public static final String PROPERTY_CACHE_TTL = "ocra2ia.cache.ttl";
+    public static final String PROPERTY_CACHE_MAX_BYTES = "ocra2ia.cache.max.bytes";
+    public static final String PROPERTY_CACHE_INDEX_SLOTS = "ocra2ia.cache.index.slots";
+    public static final String PROPERTY_CACHE_KEY = "ocra2ia.cache.key";
+    public static final String PROPERTY_CACHE_KEY_FILE = "ocra2ia.cache.key.file";
+    public static final String PROPERTY_INTAKE_PAUSE_MAX_WAIT = "ocra2ia.intake.pause.max.wait";
+    public static final String PROPERTY_INTAKE_RETRY_AFTER = "ocra2ia.intake.retry.after";
+    public static final String PROPERTY_DASHBOARD_REFRESH = "ocra2ia.dashboard.refresh.interval";
     public static final String PROPERTY_A2IA_PARAM_DIR = "ocra2ia.param.dir";
     public static final String PROPERTY_A2IA_DOCUMENT_RIB = "ocra2ia.document.rib";
     public static final String PROPERTY_A2IA_DOCUMENT_TAX = "ocra2ia.document.tax";
@@ -96,6 +197,41 @@ public final class OcrConstants
     public static final String PROPERTY_PDF_IMAGE_COMPRESSION_LEVEL = "ocra2ia.pdf.image.compression.level";
     public static final String PROPERTY_PDF_IMAGE_FORMAT = "ocra2ia.pdf.image.format";
     public static final String PROPERTY_PDF_IMAGE_RETRY = "ocra2ia.pdf.image.retry";
+    public static final String PROPERTY_PDF_MEMORY_BOUNDED = "ocra2ia.pdf.memory.bounded";
+    public static final String PROPERTY_PDF_MEMORY_DOCUMENT_CAP = "ocra2ia.pdf.memory.document.cap";
+    public static final String PROPERTY_PDF_MEMORY_BUDGET = "ocra2ia.pdf.memory.budget";
+    public static final String PROPERTY_PDF_MEMORY_WAIT_TIMEOUT = "ocra2ia.pdf.memory.wait.timeout";
+    public static final String PROPERTY_PDF_MEMORY_SCRATCH_DIR = "ocra2ia.pdf.memory.scratch.dir";
+    public static final String PROPERTY_PDF_DPI_ADAPTIVE = "ocra2ia.pdf.dpi.adaptive";
+    public static final String PROPERTY_PDF_DPI_CANDIDATES = "ocra2ia.pdf.dpi.candidates";
+    public static final String PROPERTY_PDF_DPI_TARGET_SUCCESS = "ocra2ia.pdf.dpi.target.success";
+    public static final String PROPERTY_PDF_DPI_MIN_SAMPLES = "ocra2ia.pdf.dpi.min.samples";
+    public static final String PROPERTY_PDF_DPI_WINDOW = "ocra2ia.pdf.dpi.window";
+    public static final String PROPERTY_PDF_DPI_EXPLORATION = "ocra2ia.pdf.dpi.exploration";
+    public static final String PROPERTY_PDF_DPI_PINNED_PREFIX = "ocra2ia.pdf.dpi.pinned.";
+    public static final String PROPERTY_RESULT_REQUIRED_FIELDS_PREFIX = "ocra2ia.result.required.fields.";
+    public static final String PROPERTY_MULTI_IMAGE_THREADS = "ocra2ia.multi.image.threads";
+    public static final String PROPERTY_MERGE_FIELDS_PREFIX = "ocra2ia.merge.fields.";
+    public static final String PROPERTY_JACOB_LEAK_DETECTION = "ocra2ia.jacob.leak.detection";
+    public static final String PROPERTY_JFR_ENABLED = "ocra2ia.jfr.enabled";
+    public static final String PROPERTY_TRAFFIC_ENABLED = "ocra2ia.traffic.enabled";
+    public static final String PROPERTY_TRAFFIC_DIR = "ocra2ia.traffic.dir";
+    public static final String PROPERTY_TRAFFIC_PAYLOADS = "ocra2ia.traffic.payloads";
+    public static final String PROPERTY_TRAFFIC_MAX_FILE_BYTES = "ocra2ia.traffic.max.file.bytes";
+    public static final String PROPERTY_VALIDATION_ENABLED = "ocra2ia.validation.enabled";
+    public static final String PROPERTY_VALIDATION_MAX_SIZE = "ocra2ia.validation.max.size";
+    public static final String PROPERTY_VALIDATION_MAX_PIXELS = "ocra2ia.validation.max.pixels";
+    public static final String PROPERTY_VALIDATION_PDF_MAX_PAGES = "ocra2ia.validation.pdf.max.pages";
+    public static final String PROPERTY_VALIDATION_EXTENSION_MISMATCH = "ocra2ia.validation.extension.mismatch";
+    public static final String PROPERTY_PREPROCESS_DOCUMENTS = "ocra2ia.preprocess.documents";
+    public static final String PROPERTY_PREPROCESS_THREADS = "ocra2ia.preprocess.threads";
+    public static final String PROPERTY_PREPROCESS_TIMEOUT = "ocra2ia.preprocess.timeout";
+    public static final String PROPERTY_PREPROCESS_TARGET_DPI = "ocra2ia.preprocess.target.dpi";
+    public static final String PROPERTY_PREPROCESS_LENGTH_PREFIX = "ocra2ia.preprocess.length.";
+    public static final String PROPERTY_PREPROCESS_IMAGE_TYPE = "ocra2ia.preprocess.image.type";
+    public static final String PROPERTY_PREPROCESS_COMPRESSION_LEVEL = "ocra2ia.preprocess.compression.level";
+    public static final String PROPERTY_PREPROCESS_AUTOCROP = "ocra2ia.preprocess.autocrop";
+    public static final String PROPERTY_PREPROCESS_AUTOCROP_THRESHOLD = "ocra2ia.preprocess.autocrop.threshold";
 
     // constants
     public static final String JACOB_DLL64_FILE = "jacob-1.19-x64.dll";
@@ -109,8 +245,38 @@ public final class OcrConstants
     public static final String EXTENSION_FILE_PDF = "Pdf";
     public static final String IMAGE_TYPE_RGB = "rgb";
     public static final String IMAGE_TYPE_BINARY = "binary";
+    public static final String IMAGE_TYPE_GRAY = "gray";
     public static final String OCR_MODE_FILE = "File";
     public static final String OCR_MODE_MEMORY = "Memory";
+    public static final String ENGINE_JACOB = "jacob";
+    public static final String ENGINE_STUB = "stub";
+    public static final String ENGINE_PROCESS = "process";
+
+    // meters
+    public static final String METER_REQUESTS_COMPLETED = "requests.completed";
+    public static final String METER_REQUESTS_FAILED = "requests.failed";
+    public static final String COUNTER_DOCUMENT_PREFIX = "document.";
+    public static final String COUNTER_DOCUMENT_PROCESSED = ".processed";
+    public static final String COUNTER_DOCUMENT_EMPTY = ".empty";
+    public static final String COUNTER_DOCUMENT_RETRIED = ".retried";
+    public static final String GAUGE_JACOB_HANDLES_LIVE = "jacob.handles.live";
+    public static final String COUNTER_JACOB_HANDLES_LEAKED = "jacob.handles.leaked";
+    public static final String GAUGE_BUFFER_POOL_RETAINED_BYTES = "buffer.pool.retained.bytes";
+    public static final String GAUGE_BUFFER_POOL_HIT_RATE = "buffer.pool.hit.rate";
+
+    // constants input validation
+    public static final long DEFAULT_VALIDATION_MAX_SIZE = 20971520L;
+    public static final long DEFAULT_VALIDATION_MAX_PIXELS = 40000000L;
+    public static final int PDF_POINTS_BY_INCH = 72;
+    public static final int PDF_OPTIMAL_DPI = 300;
+    public static final String VALIDATION_MISMATCH_NORMALIZE = "normalize";
+    public static final String REJECT_CODE_TOO_LARGE = "tooLarge";
+    public static final String REJECT_CODE_UNKNOWN_FORMAT = "unknownFormat";
+    public static final String REJECT_CODE_FORMAT_MISMATCH = "formatMismatch";
+    public static final String REJECT_CODE_CORRUPT = "corrupt";
+    public static final String REJECT_CODE_PAGE_COUNT = "pageCount";
+    public static final String REJECT_CODE_PIXEL_BUDGET = "pixelBudget";
+    public static final String REJECT_CODE_MEMORY_BUDGET = "memoryBudget";
 
     // constants rib
     public static final String OUTPUT_ZONE_RIB = "documentTypeInfo.CaseSpecific.specificOutput.subTypeInfo.CaseRIB.RIB.result.reco";
@@ -38,10 +38,14 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import com.jacob.com.Dispatch;
+import org.apache.commons.lang.StringUtils;
+
 import com.jacob.com.Variant;
 
 import fr.paris.lutece.plugins.ocra2ia.business.A2iaOutput;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrResultListener;
+import fr.paris.lutece.plugins.ocra2ia.service.engine.JacobScope;
+import fr.paris.lutece.portal.service.util.AppLogService;
 import fr.paris.lutece.portal.service.util.AppPropertiesService;
 
 /**
@@ -52,6 +56,10 @@ import fr.paris.lutece.portal.service.util.AppPropertiesService;
 public final class OcrResultUtils
 {
 
+    private static final String OUTPUT_ZONE_SUFFIX_RECO = ".reco";
+    private static final String OUTPUT_ZONE_SUFFIX_SCORE = ".score";
+    private static final double SCORE_MAX = 1000;
+
     /**
      * Default private constructor. Do not call
      */
@@ -68,43 +76,77 @@ public final class OcrResultUtils
      * @param strDocumentType
      *            Document type
      *
-     * @param dispatchA2iaObject
-     *            A2ia Jacob wrapper
-     * @param variantResultOcrId
+     * @param scope
+     *            A2ia Jacob wrapper, owning the variants read
+     * @param nResultOcrId
      *            id result Ocr A2ia
+     * @param listener
+     *            listener of the fields read, may be null
      * @return Map result of OCR
      */
-    public static Map<String, String> getOcrResults( String strDocumentType, Dispatch dispatchA2iaObject, Variant variantResultOcrId )
+    public static Map<String, String> getOcrResults( String strDocumentType, JacobScope scope, int nResultOcrId, OcrResultListener listener )
     {
 
         if ( strDocumentType.equalsIgnoreCase( AppPropertiesService.getProperty( OcrConstants.PROPERTY_A2IA_DOCUMENT_RIB ) ) )
         {
-            return getRIBResult( dispatchA2iaObject, variantResultOcrId );
+            return getRIBResult( scope, nResultOcrId, listener );
         }
         else
             if ( strDocumentType.equalsIgnoreCase( AppPropertiesService.getProperty( OcrConstants.PROPERTY_A2IA_DOCUMENT_TAX ) ) )
             {
-                return getTaxAssessmentResult( dispatchA2iaObject, variantResultOcrId );
+                return getTaxAssessmentResult( scope, nResultOcrId, listener );
             }
             else
                 if ( strDocumentType.equalsIgnoreCase( AppPropertiesService.getProperty( OcrConstants.PROPERTY_A2IA_DOCUMENT_IDENTITY ) ) )
                 {
-                    return getIdentityResult( dispatchA2iaObject, variantResultOcrId );
+                    return getIdentityResult( scope, nResultOcrId, listener );
                 }
 
         return null;
     }
 
+    /**
+     * Get the share of the required fields of a document type found in a result, between 0 and 1. When no field is required for the type, any field
+     * found gives 1.
+     *
+     * @param strDocumentType
+     *            document type
+     * @param mapResults
+     *            result without the blank fields
+     * @return the share of the required fields found
+     */
+    public static double getRequiredFieldsScore( String strDocumentType, Map<String, String> mapResults )
+    {
+        String strRequiredFields = AppPropertiesService.getProperty( OcrConstants.PROPERTY_RESULT_REQUIRED_FIELDS_PREFIX + strDocumentType.toLowerCase( ) );
+        if ( StringUtils.isBlank( strRequiredFields ) )
+        {
+            return mapResults.isEmpty( ) ? 0 : 1;
+        }
+        String [ ] tabRequiredFields = strRequiredFields.split( "," );
+        int nFound = 0;
+        for ( String strField : tabRequiredFields )
+        {
+            if ( StringUtils.isNotBlank( mapResults.get( strField.trim( ) ) ) )
+            {
+                nFound++;
+            }
+        }
+
+        return (double) nFound / tabRequiredFields.length;
+    }
+
     /**
      * Get Ocr results for Rib document.
      *
-     * @param dispatchA2iaObject
-     *            A2ia Jacob wrapper
-     * @param variantResultOcrId
+     * @param scope
+     *            A2ia Jacob wrapper, owning the variants read
+     * @param nResultOcrId
      *            id result Ocr A2ia
+     * @param listener
+     *            listener of the fields read, may be null
      * @return Map result of OCR
      */
-    private static Map<String, String> getRIBResult( Dispatch dispatchA2iaObject, Variant variantResultOcrId )
+    private static Map<String, String> getRIBResult( JacobScope scope, int nResultOcrId, OcrResultListener listener )
     {
 
         Map<String, String> mapOcrRibResult = new HashMap<>( );
@@ -126,14 +168,14 @@ public final class OcrResultUtils
                 Variant.VariantString ) );
 
         listA2iaOutputRib.forEach( a2iaOutput -> {
-            getA2iaOutputResult( a2iaOutput, dispatchA2iaObject, variantResultOcrId, mapOcrRibResult );
+            getA2iaOutputResult( a2iaOutput, scope, nResultOcrId, mapOcrRibResult, listener );
 
         } );
 
         // get Address info
         A2iaOutput a2iaOutputAddress = new A2iaOutput( AppPropertiesService.getProperty( OcrConstants.PROPERTY_RIB_RESULT_ADDRESS ),
                 OcrConstants.OUTPUT_ZONE_RIB_ADDRESS, Variant.VariantInt );
-        getA2iaOutputResultMultiLines( a2iaOutputAddress, dispatchA2iaObject, variantResultOcrId, mapOcrRibResult );
+        getA2iaOutputResultMultiLines( a2iaOutputAddress, scope, nResultOcrId, mapOcrRibResult, listener );
 
         return mapOcrRibResult;
     }
@@ -141,13 +183,15 @@ public final class OcrResultUtils
     /**
      * Get Ocr results for Tax assessment.
      *
-     * @param dispatchA2iaObject
-     *            A2ia Jacob wrapper
-     * @param variantResultOcrId
+     * @param scope
+     *            A2ia Jacob wrapper, owning the variants read
+     * @param nResultOcrId
      *            id result Ocr A2ia
+     * @param listener
+     *            listener of the fields read, may be null
      * @return Map result of OCR
      */
-    private static Map<String, String> getTaxAssessmentResult( Dispatch dispatchA2iaObject, Variant variantResultOcrId )
+    private static Map<String, String> getTaxAssessmentResult( JacobScope scope, int nResultOcrId, OcrResultListener listener )
     {
 
         Map<String, String> mapOcrTaxResult = new HashMap<>( );
@@ -155,17 +199,17 @@ public final class OcrResultUtils
         // get Address info
         A2iaOutput a2iaOutputAddress = new A2iaOutput( AppPropertiesService.getProperty( OcrConstants.PROPERTY_TAX_ASSESSMENT_RESULT_ADDRESS ),
                 OcrConstants.OUTPUT_ZONE_TAX_ASSESSMENT_ADDRESS, Variant.VariantInt );
-        getA2iaOutputResultMultiLines( a2iaOutputAddress, dispatchA2iaObject, variantResultOcrId, mapOcrTaxResult );
+        getA2iaOutputResultMultiLines( a2iaOutputAddress, scope, nResultOcrId, mapOcrTaxResult, listener );
 
         // get established date
         A2iaOutput a2iaOutputDate = new A2iaOutput( AppPropertiesService.getProperty( OcrConstants.PROPERTY_TAX_ASSESSMENT_RESULT_DATE ),
                 OcrConstants.OUTPUT_ZONE_TAX_ASSESSMENT_ESTABLISHED_DATE, Variant.VariantString );
-        getA2iaOutputResultDate( a2iaOutputDate, dispatchA2iaObject, variantResultOcrId, mapOcrTaxResult );
+        getA2iaOutputResultDate( a2iaOutputDate, scope, nResultOcrId, mapOcrTaxResult, listener );
 
         // get Tax Amount
         A2iaOutput a2iaOutputTaxAmonut = new A2iaOutput( AppPropertiesService.getProperty( OcrConstants.PROPERTY_TAX_ASSESSMENT_RESULT_TAX_AMOUNT ),
                 OcrConstants.OUTPUT_ZONE_TAX_ASSESSMENT_TAX_AMOUNT, Variant.VariantFloat );
-        getA2iaOutputResult( a2iaOutputTaxAmonut, dispatchA2iaObject, variantResultOcrId, mapOcrTaxResult );
+        getA2iaOutputResult( a2iaOutputTaxAmonut, scope, nResultOcrId, mapOcrTaxResult, listener );
 
         return mapOcrTaxResult;
     }
@@ -173,13 +217,15 @@ public final class OcrResultUtils
     /**
      * Get Ocr results for identity card document.
      *
-     * @param dispatchA2iaObject
-     *            A2ia Jacob wrapper
-     * @param variantResultOcrId
+     * @param scope
+     *            A2ia Jacob wrapper, owning the variants read
+     * @param nResultOcrId
      *            id result Ocr A2ia
+     * @param listener
+     *            listener of the fields read, may be null
      * @return Map result of OCR
      */
-    private static Map<String, String> getIdentityResult( Dispatch dispatchA2iaObject, Variant variantResultOcrId )
+    private static Map<String, String> getIdentityResult( JacobScope scope, int nResultOcrId, OcrResultListener listener )
     {
 
         Map<String, String> mapOcrIdentityResult = new HashMap<>( );
@@ -199,7 +245,7 @@ public final class OcrResultUtils
                 OcrConstants.OUTPUT_ZONE_IDENTITY_ID_NUMBER, Variant.VariantInt ) );
 
         listA2iaOutputIdentity.forEach( a2iaOutput -> {
-            getA2iaOutputResult( a2iaOutput, dispatchA2iaObject, variantResultOcrId, mapOcrIdentityResult );
+            getA2iaOutputResult( a2iaOutput, scope, nResultOcrId, mapOcrIdentityResult, listener );
 
         } );
 
@@ -213,7 +259,7 @@ public final class OcrResultUtils
                 OcrConstants.OUTPUT_ZONE_IDENTITY_ISSUE_DATE, Variant.VariantString ) );
 
         listA2iaOutputIdentity.forEach( a2iaOutputDate -> {
-            getA2iaOutputResultDate( a2iaOutputDate, dispatchA2iaObject, variantResultOcrId, mapOcrIdentityResult );
+            getA2iaOutputResultDate( a2iaOutputDate, scope, nResultOcrId, mapOcrIdentityResult, listener );
         } );
 
         return mapOcrIdentityResult;
@@ -224,20 +270,27 @@ public final class OcrResultUtils
      *
      * @param a2iaOutput
      *            a2iaOutput object
-     * @param dispatchA2iaObject
-     *            A2ia Jacob wrapper
-     * @param variantResultOcrId
+     * @param scope
+     *            A2ia Jacob wrapper, owning the variants read
+     * @param nResultOcrId
      *            id result Ocr A2ia
      * @param mapResult
      *            map result of OCR
+     * @param listener
+     *            listener of the fields read, may be null
      */
-    private static void getA2iaOutputResult( A2iaOutput a2iaOutput, Dispatch dispatchA2iaObject, Variant variantResultOcrId, Map<String, String> mapResult )
+    private static void getA2iaOutputResult( A2iaOutput a2iaOutput, JacobScope scope, int nResultOcrId, Map<String, String> mapResult,
+            OcrResultListener listener )
     {
-        Variant variantResult = Dispatch
-                .call( dispatchA2iaObject, OcrConstants.GET_PROPERTY_A2IA, variantResultOcrId.getInt( ), a2iaOutput.getOutputZoneName( ) );
+        if ( isCancelled( listener ) )
+        {
+            return;
+        }
+        Variant variantResult = scope.call( OcrConstants.GET_PROPERTY_A2IA, nResultOcrId, a2iaOutput.getOutputZoneName( ) );
         if ( variantResult != null )
         {
-            mapResult.put( a2iaOutput.getKey( ), variantResult.changeType( a2iaOutput.getOutputZoneType( ) ).toString( ) );
+            putResult( mapResult, a2iaOutput.getKey( ), variantResult.changeType( a2iaOutput.getOutputZoneType( ) ).toString( ),
+                    getConfidence( scope, nResultOcrId, a2iaOutput.getOutputZoneName( ), listener ), listener );
         }
     }
 
@@ -246,53 +299,63 @@ public final class OcrResultUtils
      *
      * @param a2iaOutputMultiLines
      *            a2iaOutput object
-     * @param dispatchA2iaObject
-     *            A2ia Jacob wrapper
-     * @param variantResultOcrId
+     * @param scope
+     *            A2ia Jacob wrapper, owning the variants read
+     * @param nResultOcrId
      *            id result Ocr A2ia
      * @param mapResult
      *            map result of OCR
+     * @param listener
+     *            listener of the fields read, may be null
      */
-    private static void getA2iaOutputResultMultiLines( A2iaOutput a2iaOutputMultiLines, Dispatch dispatchA2iaObject, Variant variantResultOcrId,
-            Map<String, String> mapResult )
+    private static void getA2iaOutputResultMultiLines( A2iaOutput a2iaOutputMultiLines, JacobScope scope, int nResultOcrId, Map<String, String> mapResult,
+            OcrResultListener listener )
     {
-        Variant variantLines = Dispatch.call( dispatchA2iaObject, OcrConstants.GET_PROPERTY_A2IA, variantResultOcrId.getInt( ),
-                a2iaOutputMultiLines.getOutputZoneName( ) );
+        if ( isCancelled( listener ) )
+        {
+            return;
+        }
+        Variant variantLines = scope.call( OcrConstants.GET_PROPERTY_A2IA, nResultOcrId, a2iaOutputMultiLines.getOutputZoneName( ) );
         if ( ( ( variantLines != null ) && !variantLines.isNull( ) ) && ( variantLines.getInt( ) > 0 ) )
         {
             StringBuilder sbAdresse = new StringBuilder( );
             for ( int i = 1; i <= variantLines.getInt( ); i++ )
             {
-                Variant variantLine = Dispatch.call( dispatchA2iaObject, OcrConstants.GET_PROPERTY_A2IA, variantResultOcrId.getInt( ),
+                Variant variantLine = scope.call( OcrConstants.GET_PROPERTY_A2IA, nResultOcrId,
                         a2iaOutputMultiLines.getOutputZoneName( ) + "[" + i + "].wreco" );
                 if ( variantLine != null )
                 {
                     sbAdresse.append( variantLine.toString( ) ).append( " " );
-                    Variant variantType = Dispatch.call( dispatchA2iaObject, OcrConstants.GET_PROPERTY_A2IA, variantResultOcrId.getInt( ),
+                    Variant variantType = scope.call( OcrConstants.GET_PROPERTY_A2IA, nResultOcrId,
                             a2iaOutputMultiLines.getOutputZoneName( ) + "[" + i + "].type" );
+                    String strLineKey = null;
                     if ( OcrConstants.OUTPUT_ZONE_ADDRESS_NAME.equalsIgnoreCase( variantType.toString( ) ) )
                     {
-                        mapResult.put( AppPropertiesService.getProperty( OcrConstants.PROPERTY_ADDRESS_NAME ), variantLine.toString( ) );
+                        strLineKey = AppPropertiesService.getProperty( OcrConstants.PROPERTY_ADDRESS_NAME );
                     }
                     else
                         if ( OcrConstants.OUTPUT_ZONE_ADDRESS_DESTINATION.equalsIgnoreCase( variantType.toString( ) ) )
                         {
-                            mapResult.put( AppPropertiesService.getProperty( OcrConstants.PROPERTY_ADDRESS_DESTINATION ), variantLine.toString( ) );
+                            strLineKey = AppPropertiesService.getProperty( OcrConstants.PROPERTY_ADDRESS_DESTINATION );
                         }
                         else
                             if ( OcrConstants.OUTPUT_ZONE_ADDRESS_PHONE_NUMBER.equalsIgnoreCase( variantType.toString( ) ) )
                             {
-                                mapResult.put( AppPropertiesService.getProperty( OcrConstants.PROPERTY_ADDRESS_PHONE ), variantLine.toString( ) );
+                                strLineKey = AppPropertiesService.getProperty( OcrConstants.PROPERTY_ADDRESS_PHONE );
                             }
                             else
                                 if ( OcrConstants.OUTPUT_ZONE_ADDRESS_CITY_ZIP.equalsIgnoreCase( variantType.toString( ) ) )
                                 {
-                                    mapResult.put( AppPropertiesService.getProperty( OcrConstants.PROPERTY_ADDRESS_CITYZIP ), variantLine.toString( ) );
+                                    strLineKey = AppPropertiesService.getProperty( OcrConstants.PROPERTY_ADDRESS_CITYZIP );
                                 }
+                    if ( strLineKey != null )
+                    {
+                        putResult( mapResult, strLineKey, variantLine.toString( ), OcrResultListener.CONFIDENCE_UNKNOWN, listener );
+                    }
                 }
 
             }
-            mapResult.put( a2iaOutputMultiLines.getKey( ), sbAdresse.toString( ) );
+            putResult( mapResult, a2iaOutputMultiLines.getKey( ), sbAdresse.toString( ), OcrResultListener.CONFIDENCE_UNKNOWN, listener );
         }
     }
 
@@ -301,27 +364,30 @@ public final class OcrResultUtils
      *
      * @param a2iaOutputDate
      *            a2iaOutput object
-     * @param dispatchA2iaObject
-     *            A2ia Jacob wrapper
-     * @param variantResultOcrId
+     * @param scope
+     *            A2ia Jacob wrapper, owning the variants read
+     * @param nResultOcrId
      *            id result Ocr A2ia
      * @param mapResult
      *            map result of OCR
+     * @param listener
+     *            listener of the fields read, may be null
      */
-    private static void getA2iaOutputResultDate( A2iaOutput a2iaOutputDate, Dispatch dispatchA2iaObject, Variant variantResultOcrId,
-            Map<String, String> mapResult )
+    private static void getA2iaOutputResultDate( A2iaOutput a2iaOutputDate, JacobScope scope, int nResultOcrId, Map<String, String> mapResult,
+            OcrResultListener listener )
     {
+        if ( isCancelled( listener ) )
+        {
+            return;
+        }
         String strDayOfDate = ".day";
         String strMonthOfDate = ".month";
         String strYearOfDate = ".year";
         String strDateSeparator = "/";
 
-        Variant variantDay = Dispatch.call( dispatchA2iaObject, OcrConstants.GET_PROPERTY_A2IA, variantResultOcrId.getInt( ),
-                a2iaOutputDate.getOutputZoneName( ) + strDayOfDate );
-        Variant variantMonth = Dispatch.call( dispatchA2iaObject, OcrConstants.GET_PROPERTY_A2IA, variantResultOcrId.getInt( ),
-                a2iaOutputDate.getOutputZoneName( ) + strMonthOfDate );
-        Variant variantYear = Dispatch.call( dispatchA2iaObject, OcrConstants.GET_PROPERTY_A2IA, variantResultOcrId.getInt( ),
-                a2iaOutputDate.getOutputZoneName( ) + strYearOfDate );
+        Variant variantDay = scope.call( OcrConstants.GET_PROPERTY_A2IA, nResultOcrId, a2iaOutputDate.getOutputZoneName( ) + strDayOfDate );
+        Variant variantMonth = scope.call( OcrConstants.GET_PROPERTY_A2IA, nResultOcrId, a2iaOutputDate.getOutputZoneName( ) + strMonthOfDate );
+        Variant variantYear = scope.call( OcrConstants.GET_PROPERTY_A2IA, nResultOcrId, a2iaOutputDate.getOutputZoneName( ) + strYearOfDate );
 
         if ( ( variantDay != null ) && ( variantMonth != null ) && ( variantYear != null ) )
         {
@@ -329,9 +395,79 @@ public final class OcrResultUtils
             sbAddressResult.append( variantDay.changeType( Variant.VariantInt ).toString( ) ).append( strDateSeparator );
             sbAddressResult.append( variantMonth.changeType( Variant.VariantInt ).toString( ) ).append( strDateSeparator );
             sbAddressResult.append( variantYear.changeType( Variant.VariantInt ).toString( ) );
-            mapResult.put( a2iaOutputDate.getKey( ), sbAddressResult.toString( ) );
+            putResult( mapResult, a2iaOutputDate.getKey( ), sbAddressResult.toString( ), OcrResultListener.CONFIDENCE_UNKNOWN, listener );
         }
 
     }
 
+    /**
+     * Put a field in the result and send it to the listener.
+     *
+     * @param mapResult
+     *            map result of OCR
+     * @param strKey
+     *            key of the field
+     * @param strValue
+     *            value of the field
+     * @param dConfidence
+     *            score of the field, between 0 and 1, or OcrResultListener.CONFIDENCE_UNKNOWN
+     * @param listener
+     *            listener of the fields read, may be null
+     */
+    private static void putResult( Map<String, String> mapResult, String strKey, String strValue, double dConfidence, OcrResultListener listener )
+    {
+        mapResult.put( strKey, strValue );
+        if ( listener != null )
+        {
+            listener.onField( strKey, strValue, dConfidence );
+        }
+    }
+
+    /**
+     * Get the score of an output zone read, for a listener : the score costs a call to the engine and is not read otherwise.
+     *
+     * @param scope
+     *            A2ia Jacob wrapper, owning the variants read
+     * @param nResultOcrId
+     *            id result Ocr A2ia
+     * @param strOutputZoneName
+     *            name of the output zone
+     * @param listener
+     *            listener of the fields read, may be null
+     * @return the score between 0 and 1, or OcrResultListener.CONFIDENCE_UNKNOWN
+     */
+    private static double getConfidence( JacobScope scope, int nResultOcrId, String strOutputZoneName, OcrResultListener listener )
+    {
+        if ( ( listener == null ) || !strOutputZoneName.endsWith( OUTPUT_ZONE_SUFFIX_RECO ) )
+        {
+            return OcrResultListener.CONFIDENCE_UNKNOWN;
+        }
+        try
+        {
+            Variant variantScore = scope.call( OcrConstants.GET_PROPERTY_A2IA, nResultOcrId,
+                    StringUtils.removeEnd( strOutputZoneName, OUTPUT_ZONE_SUFFIX_RECO ) + OUTPUT_ZONE_SUFFIX_SCORE );
+            if ( ( variantScore != null ) && !variantScore.isNull( ) )
+            {
+                return Math.min( 1, Double.parseDouble( variantScore.toString( ) ) / SCORE_MAX );
+            }
+        }
+        catch( RuntimeException e )
+        {
+            // a zone without score
+            AppLogService.debug( "No score for " + strOutputZoneName + " : " + e.getMessage( ) );
+        }
+
+        return OcrResultListener.CONFIDENCE_UNKNOWN;
+    }
+
+    /**
+     * @param listener
+     *            listener of the fields read, may be null
+     * @return true if the listener is cancelled
+     */
+    private static boolean isCancelled( OcrResultListener listener )
+    {
+        return ( listener != null ) && listener.isCancelled( );
+    }
+
 }
@@ -0,0 +1,493 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.web;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import fr.paris.lutece.plugins.ocra2ia.business.OcrJobHome;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrAdmissionController;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrBulkhead;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrDpiTuner;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrIntakeControl;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrMetricsService;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrPriority;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrScheduler;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrService;
+import fr.paris.lutece.plugins.ocra2ia.service.engine.EngineEndpoint;
+import fr.paris.lutece.plugins.ocra2ia.service.worker.OcrWorkerProcessPool;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.admin.AccessDeniedException;
+import fr.paris.lutece.portal.service.security.SecurityTokenService;
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import fr.paris.lutece.portal.util.mvc.admin.MVCAdminJspBean;
+import fr.paris.lutece.portal.util.mvc.admin.annotations.Controller;
+import fr.paris.lutece.portal.util.mvc.commons.annotations.Action;
+import fr.paris.lutece.portal.util.mvc.commons.annotations.View;
+
+/**
+ *
+ * Admin dashboard of the OCR service : live throughput, latency of the stages, queues, use of the engine, results by document type, and intake
+ * controls for the engine maintenance.
+ *
+ */
+@Controller( controllerJsp = "ManageOcrDashboard.jsp", controllerPath = "jsp/admin/plugins/ocra2ia/",
+        right = OcrDashboardJspBean.RIGHT_MANAGE_OCR_DASHBOARD )
+public class OcrDashboardJspBean extends MVCAdminJspBean
+{
+
+    /**
+     * Right of the dashboard.
+     */
+    public static final String RIGHT_MANAGE_OCR_DASHBOARD = "OCRA2IA_DASHBOARD";
+
+    /**
+     * Generated serialVersionUID
+     */
+    private static final long serialVersionUID = 3528012573104469283L;
+
+    private static final String TEMPLATE_MANAGE_DASHBOARD = "/admin/plugins/ocra2ia/manage_dashboard.html";
+    private static final String PROPERTY_PAGE_TITLE_MANAGE_DASHBOARD = "ocra2ia.manage_dashboard.pageTitle";
+    private static final String MESSAGE_INTAKE_PAUSED = "ocra2ia.manage_dashboard.message.intake.paused";
+    private static final String MESSAGE_INTAKE_DRAINING = "ocra2ia.manage_dashboard.message.intake.draining";
+    private static final String MESSAGE_INTAKE_RESUMED = "ocra2ia.manage_dashboard.message.intake.resumed";
+
+    private static final String VIEW_MANAGE_DASHBOARD = "manageDashboard";
+    private static final String ACTION_PAUSE_INTAKE = "pauseIntake";
+    private static final String ACTION_DRAIN_INTAKE = "drainIntake";
+    private static final String ACTION_RESUME_INTAKE = "resumeIntake";
+
+    private static final String MARK_INTAKE_STATE = "intake_state";
+    private static final String MARK_INTAKE_IN_PROGRESS = "intake_in_progress";
+    private static final String MARK_INTAKE_HELD = "intake_held";
+    private static final String MARK_INTAKE_DRAINED = "intake_drained";
+    private static final String MARK_RATE_COMPLETED = "rate_completed";
+    private static final String MARK_RATE_FAILED = "rate_failed";
+    private static final String MARK_TOTAL_COMPLETED = "total_completed";
+    private static final String MARK_TOTAL_FAILED = "total_failed";
+    private static final String MARK_ADMISSION = "admission";
+    private static final String MARK_ENGINE = "engine";
+    private static final String MARK_CIRCUIT_STATE = "circuit_state";
+    private static final String MARK_STAGES = "stages";
+    private static final String MARK_PRIORITY_QUEUES = "priority_queues";
+    private static final String MARK_BULKHEADS = "bulkheads";
+    private static final String MARK_JOB_QUEUE_UNFINISHED = "job_queue_unfinished";
+    private static final String MARK_ENDPOINTS = "endpoints";
+    private static final String MARK_WORKER_PROCESSES_READY = "worker_processes_ready";
+    private static final String MARK_WORKER_PROCESSES_SIZE = "worker_processes_size";
+    private static final String MARK_JACOB_HANDLES_LIVE = "jacob_handles_live";
+    private static final String MARK_JACOB_HANDLES_LEAKED = "jacob_handles_leaked";
+    private static final String MARK_BUFFER_POOL_RETAINED_MB = "buffer_pool_retained_mb";
+    private static final String MARK_BUFFER_POOL_HIT_RATE = "buffer_pool_hit_rate";
+    private static final String MARK_DOCUMENTS = "documents";
+    private static final String MARK_DPI_TYPES = "dpi_types";
+    private static final String MARK_DPI_TARGET = "dpi_target";
+    private static final String MARK_REFRESH_INTERVAL = "refresh_interval";
+
+    private static final String KEY_NAME = "name";
+    private static final String KEY_SAMPLES = "samples";
+    private static final String KEY_P50 = "p50";
+    private static final String KEY_P95 = "p95";
+    private static final String KEY_P99 = "p99";
+    private static final String KEY_MAX = "max";
+    private static final String KEY_WAITING = "waiting";
+    private static final String KEY_RUNNING = "running";
+    private static final String KEY_LIMIT = "limit";
+    private static final String KEY_AVAILABLE = "available";
+    private static final String KEY_STATE = "state";
+    private static final String KEY_OUTSTANDING = "outstanding";
+    private static final String KEY_MAX_CONCURRENCY = "max_concurrency";
+    private static final String KEY_UTILIZATION = "utilization";
+    private static final String KEY_FAILURES = "failures";
+    private static final String KEY_EJECTIONS = "ejections";
+    private static final String KEY_PROCESSED = "processed";
+    private static final String KEY_EMPTY = "empty";
+    private static final String KEY_RETRIED = "retried";
+    private static final String KEY_EMPTY_RATE = "empty_rate";
+    private static final String KEY_RETRY_RATE = "retry_rate";
+    private static final String KEY_MODE = "mode";
+    private static final String KEY_DPI = "dpi";
+    private static final String KEY_CANDIDATES = "candidates";
+    private static final String KEY_SUCCESS_RATE = "success_rate";
+    private static final String KEY_LATENCY = "latency";
+
+    /**
+     * Build the dashboard.
+     *
+     * @param request
+     *            the http request
+     * @return the page
+     */
+    @View( value = VIEW_MANAGE_DASHBOARD, defaultView = true )
+    public String getManageDashboard( HttpServletRequest request )
+    {
+        OcrService ocrService = getOcrService( );
+        OcrMetricsService metrics = OcrMetricsService.getInstance( );
+        OcrIntakeControl intakeControl = ocrService.getIntakeControl( );
+        Map<String, Object> model = getModel( );
+
+        model.put( MARK_INTAKE_STATE, intakeControl.getState( ).name( ) );
+        model.put( MARK_INTAKE_IN_PROGRESS, intakeControl.getInProgress( ) );
+        model.put( MARK_INTAKE_HELD, intakeControl.getHeld( ) );
+        model.put( MARK_INTAKE_DRAINED, intakeControl.isDrained( ) );
+        model.put( MARK_RATE_COMPLETED, metrics.getRate( OcrConstants.METER_REQUESTS_COMPLETED ) );
+        model.put( MARK_RATE_FAILED, metrics.getRate( OcrConstants.METER_REQUESTS_FAILED ) );
+        model.put( MARK_TOTAL_COMPLETED, metrics.getCounter( OcrConstants.METER_REQUESTS_COMPLETED ) );
+        model.put( MARK_TOTAL_FAILED, metrics.getCounter( OcrConstants.METER_REQUESTS_FAILED ) );
+        model.put( MARK_ADMISSION, getAdmission( ocrService.getAdmissionController( ) ) );
+        model.put( MARK_ENGINE, ocrService.getEngine( ) );
+        model.put( MARK_CIRCUIT_STATE, ocrService.getEngineExecutor( ).getCircuitBreaker( ).getState( ).name( ) );
+        model.put( MARK_STAGES, getStages( metrics ) );
+        model.put( MARK_PRIORITY_QUEUES, getPriorityQueues( ocrService.getScheduler( ) ) );
+        model.put( MARK_BULKHEADS, getBulkheads( ocrService.getBulkhead( ) ) );
+        model.put( MARK_JOB_QUEUE_UNFINISHED, getJobQueueUnfinished( ) );
+        model.put( MARK_ENDPOINTS, getEndpoints( ocrService.getEngineExecutor( ).getEndpointPool( ).getEndpointsSnapshot( ) ) );
+        OcrWorkerProcessPool workerProcessPool = ocrService.getWorkerProcessPool( );
+        if ( workerProcessPool != null )
+        {
+            model.put( MARK_WORKER_PROCESSES_READY, workerProcessPool.getReadyCount( ) );
+            model.put( MARK_WORKER_PROCESSES_SIZE, workerProcessPool.getSize( ) );
+        }
+        if ( OcrConstants.ENGINE_JACOB.equals( ocrService.getEngine( ) )
+                && AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_JACOB_LEAK_DETECTION, false ) )
+        {
+            model.put( MARK_JACOB_HANDLES_LIVE, metrics.getGauge( OcrConstants.GAUGE_JACOB_HANDLES_LIVE ) );
+            model.put( MARK_JACOB_HANDLES_LEAKED, metrics.getCounter( OcrConstants.COUNTER_JACOB_HANDLES_LEAKED ) );
+        }
+        if ( AppPropertiesService.getPropertyBoolean( OcrConstants.PROPERTY_BUFFER_POOL_ENABLED, true ) )
+        {
+            model.put( MARK_BUFFER_POOL_RETAINED_MB, metrics.getGauge( OcrConstants.GAUGE_BUFFER_POOL_RETAINED_BYTES ) >> 20 );
+            model.put( MARK_BUFFER_POOL_HIT_RATE, metrics.getGauge( OcrConstants.GAUGE_BUFFER_POOL_HIT_RATE ) );
+        }
+        model.put( MARK_DOCUMENTS, getDocuments( metrics ) );
+        model.put( MARK_DPI_TYPES, getDpiTypes( ocrService.getDpiTuner( ) ) );
+        model.put( MARK_DPI_TARGET, 100 * ocrService.getDpiTuner( ).getTargetSuccess( ) );
+        model.put( MARK_REFRESH_INTERVAL, AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_DASHBOARD_REFRESH, 5000 ) );
+        model.put( SecurityTokenService.MARK_TOKEN, SecurityTokenService.getInstance( ).getToken( request, ACTION_PAUSE_INTAKE ) );
+
+        return getPage( PROPERTY_PAGE_TITLE_MANAGE_DASHBOARD, TEMPLATE_MANAGE_DASHBOARD, model );
+    }
+
+    /**
+     * Pause the intake : the new requests wait for the intake to resume.
+     *
+     * @param request
+     *            the http request
+     * @return the dashboard
+     * @throws AccessDeniedException
+     *             if the security token is invalid
+     */
+    @Action( ACTION_PAUSE_INTAKE )
+    public String doPauseIntake( HttpServletRequest request ) throws AccessDeniedException
+    {
+        checkToken( request );
+        getOcrService( ).getIntakeControl( ).pause( );
+        addInfo( MESSAGE_INTAKE_PAUSED, getLocale( ) );
+
+        return redirectView( request, VIEW_MANAGE_DASHBOARD );
+    }
+
+    /**
+     * Drain the intake : the new requests are refused, the requests in progress finish.
+     *
+     * @param request
+     *            the http request
+     * @return the dashboard
+     * @throws AccessDeniedException
+     *             if the security token is invalid
+     */
+    @Action( ACTION_DRAIN_INTAKE )
+    public String doDrainIntake( HttpServletRequest request ) throws AccessDeniedException
+    {
+        checkToken( request );
+        getOcrService( ).getIntakeControl( ).drain( );
+        addInfo( MESSAGE_INTAKE_DRAINING, getLocale( ) );
+
+        return redirectView( request, VIEW_MANAGE_DASHBOARD );
+    }
+
+    /**
+     * Resume the intake.
+     *
+     * @param request
+     *            the http request
+     * @return the dashboard
+     * @throws AccessDeniedException
+     *             if the security token is invalid
+     */
+    @Action( ACTION_RESUME_INTAKE )
+    public String doResumeIntake( HttpServletRequest request ) throws AccessDeniedException
+    {
+        checkToken( request );
+        getOcrService( ).getIntakeControl( ).resume( );
+        addInfo( MESSAGE_INTAKE_RESUMED, getLocale( ) );
+
+        return redirectView( request, VIEW_MANAGE_DASHBOARD );
+    }
+
+    /**
+     * Control the security token of the intake controls.
+     *
+     * @param request
+     *            the http request
+     * @throws AccessDeniedException
+     *             if the token is invalid
+     */
+    private static void checkToken( HttpServletRequest request ) throws AccessDeniedException
+    {
+        // the three controls share the token of the dashboard form
+        if ( !SecurityTokenService.getInstance( ).validate( request, ACTION_PAUSE_INTAKE ) )
+        {
+            throw new AccessDeniedException( "Invalid security token" );
+        }
+    }
+
+    /**
+     * Get the OCR service.
+     *
+     * @return the service
+     */
+    private static OcrService getOcrService( )
+    {
+        return SpringContextService.getBean( OcrConstants.BEAN_OCR_SERVICE );
+    }
+
+    /**
+     * Get the latency percentiles of the timers.
+     *
+     * @param metrics
+     *            the metrics service
+     * @return a row by timer
+     */
+    private static List<Map<String, Object>> getStages( OcrMetricsService metrics )
+    {
+        List<Map<String, Object>> listStages = new ArrayList<>( );
+        for ( String strTimerName : metrics.getTimerNames( ) )
+        {
+            Map<String, Object> mapStage = new LinkedHashMap<>( );
+            mapStage.put( KEY_NAME, strTimerName );
+            mapStage.put( KEY_SAMPLES, metrics.getSampleCount( strTimerName ) );
+            mapStage.put( KEY_P50, metrics.getPercentile( strTimerName, 50 ) );
+            mapStage.put( KEY_P95, metrics.getPercentile( strTimerName, 95 ) );
+            mapStage.put( KEY_P99, metrics.getPercentile( strTimerName, 99 ) );
+            mapStage.put( KEY_MAX, metrics.getPercentile( strTimerName, 100 ) );
+            listStages.add( mapStage );
+        }
+
+        return listStages;
+    }
+
+    /**
+     * Get the queues of the priority classes.
+     *
+     * @param scheduler
+     *            the scheduler
+     * @return a row by priority class
+     */
+    private static List<Map<String, Object>> getPriorityQueues( OcrScheduler scheduler )
+    {
+        List<Map<String, Object>> listQueues = new ArrayList<>( );
+        for ( OcrPriority priority : OcrPriority.values( ) )
+        {
+            Map<String, Object> mapQueue = new LinkedHashMap<>( );
+            mapQueue.put( KEY_NAME, priority.getKey( ) );
+            mapQueue.put( KEY_WAITING, scheduler.getQueueLength( priority ) );
+            mapQueue.put( KEY_RUNNING, scheduler.getRunning( priority ) );
+            listQueues.add( mapQueue );
+        }
+
+        return listQueues;
+    }
+
+    /**
+     * Get the requests admitted and the limit of the priority classes.
+     *
+     * @param admissionController
+     *            the admission control
+     * @return a row by priority class
+     */
+    private static List<Map<String, Object>> getAdmission( OcrAdmissionController admissionController )
+    {
+        List<Map<String, Object>> listClasses = new ArrayList<>( );
+        for ( OcrPriority priority : OcrPriority.values( ) )
+        {
+            Map<String, Object> mapClass = new LinkedHashMap<>( );
+            mapClass.put( KEY_NAME, priority.getKey( ) );
+            mapClass.put( KEY_RUNNING, admissionController.getInFlight( priority ) );
+            mapClass.put( KEY_LIMIT, admissionController.getLimit( priority ) );
+            listClasses.add( mapClass );
+        }
+
+        return listClasses;
+    }
+
+    /**
+     * Get the queues and free slots of the document types.
+     *
+     * @param bulkhead
+     *            the bulkheads
+     * @return a row by document type
+     */
+    private static List<Map<String, Object>> getBulkheads( OcrBulkhead bulkhead )
+    {
+        List<Map<String, Object>> listBulkheads = new ArrayList<>( );
+        for ( String strDocumentType : OcrService.getDocumentTypes( ) )
+        {
+            Map<String, Object> mapBulkhead = new LinkedHashMap<>( );
+            mapBulkhead.put( KEY_NAME, strDocumentType );
+            mapBulkhead.put( KEY_WAITING, bulkhead.getQueueLength( strDocumentType ) );
+            mapBulkhead.put( KEY_AVAILABLE, bulkhead.getAvailable( strDocumentType ) );
+            listBulkheads.add( mapBulkhead );
+        }
+
+        return listBulkheads;
+    }
+
+    /**
+     * Get the number of unfinished jobs of the persistent queue.
+     *
+     * @return the number of jobs, -1 if the queue can not be read
+     */
+    private static int getJobQueueUnfinished( )
+    {
+        try
+        {
+            return OcrJobHome.countUnfinished( );
+        }
+        catch( RuntimeException e )
+        {
+            AppLogService.debug( "OCR job queue unavailable : " + e.getMessage( ) );
+
+            return -1;
+        }
+    }
+
+    /**
+     * Get the health and use of the engine endpoints.
+     *
+     * @param listEndpoints
+     *            a snapshot of the endpoints
+     * @return a row by endpoint
+     */
+    private static List<Map<String, Object>> getEndpoints( List<EngineEndpoint> listEndpoints )
+    {
+        List<Map<String, Object>> listRows = new ArrayList<>( );
+        for ( EngineEndpoint endpoint : listEndpoints )
+        {
+            Map<String, Object> mapEndpoint = new LinkedHashMap<>( );
+            mapEndpoint.put( KEY_NAME, endpoint.getName( ) );
+            mapEndpoint.put( KEY_STATE, endpoint.getState( ).name( ) );
+            mapEndpoint.put( KEY_OUTSTANDING, endpoint.getOutstanding( ) );
+            mapEndpoint.put( KEY_MAX_CONCURRENCY, endpoint.getMaxConcurrency( ) );
+            mapEndpoint.put( KEY_UTILIZATION, ( 100 * endpoint.getOutstanding( ) ) / Math.max( 1, endpoint.getMaxConcurrency( ) ) );
+            mapEndpoint.put( KEY_FAILURES, endpoint.getConsecutiveFailures( ) );
+            mapEndpoint.put( KEY_EJECTIONS, endpoint.getEjections( ) );
+            listRows.add( mapEndpoint );
+        }
+
+        return listRows;
+    }
+
+    /**
+     * Get the number of documents processed, empty results and retries by document type.
+     *
+     * @param metrics
+     *            the metrics service
+     * @return a row by document type
+     */
+    private static List<Map<String, Object>> getDocuments( OcrMetricsService metrics )
+    {
+        List<Map<String, Object>> listDocuments = new ArrayList<>( );
+        for ( String strDocumentType : OcrService.getDocumentTypes( ) )
+        {
+            String strCounterPrefix = OcrConstants.COUNTER_DOCUMENT_PREFIX + strDocumentType.toLowerCase( );
+            long lProcessed = metrics.getCounter( strCounterPrefix + OcrConstants.COUNTER_DOCUMENT_PROCESSED );
+            long lEmpty = metrics.getCounter( strCounterPrefix + OcrConstants.COUNTER_DOCUMENT_EMPTY );
+            long lRetried = metrics.getCounter( strCounterPrefix + OcrConstants.COUNTER_DOCUMENT_RETRIED );
+            Map<String, Object> mapDocument = new LinkedHashMap<>( );
+            mapDocument.put( KEY_NAME, strDocumentType );
+            mapDocument.put( KEY_PROCESSED, lProcessed );
+            mapDocument.put( KEY_EMPTY, lEmpty );
+            mapDocument.put( KEY_RETRIED, lRetried );
+            mapDocument.put( KEY_EMPTY_RATE, ( lProcessed == 0 ) ? 0 : ( ( 100d * lEmpty ) / lProcessed ) );
+            mapDocument.put( KEY_RETRY_RATE, ( lProcessed == 0 ) ? 0 : ( ( 100d * lRetried ) / lProcessed ) );
+            listDocuments.add( mapDocument );
+        }
+
+        return listDocuments;
+    }
+
+    /**
+     * Get the render DPI chosen for each document type and the outcomes of the candidate DPIs.
+     *
+     * @param dpiTuner
+     *            the DPI tuner
+     * @return a row by document type
+     */
+    private static List<Map<String, Object>> getDpiTypes( OcrDpiTuner dpiTuner )
+    {
+        List<Map<String, Object>> listTypes = new ArrayList<>( );
+        int [ ] tabCandidates = dpiTuner.getCandidates( );
+        for ( String strDocumentType : OcrService.getDocumentTypes( ) )
+        {
+            List<Map<String, Object>> listCandidates = new ArrayList<>( );
+            List<double [ ]> listStatistics = dpiTuner.getCandidateStatistics( strDocumentType );
+            for ( int i = 0; i < tabCandidates.length; i++ )
+            {
+                double [ ] tabStatistics = listStatistics.get( i );
+                Map<String, Object> mapCandidate = new LinkedHashMap<>( );
+                mapCandidate.put( KEY_DPI, tabCandidates [i] );
+                mapCandidate.put( KEY_SAMPLES, (int) tabStatistics [0] );
+                mapCandidate.put( KEY_SUCCESS_RATE, tabStatistics [1] );
+                mapCandidate.put( KEY_LATENCY, Math.round( tabStatistics [2] ) );
+                listCandidates.add( mapCandidate );
+            }
+            Map<String, Object> mapType = new LinkedHashMap<>( );
+            mapType.put( KEY_NAME, strDocumentType );
+            mapType.put( KEY_MODE, dpiTuner.getMode( strDocumentType ) );
+            mapType.put( KEY_DPI, dpiTuner.getDecision( strDocumentType ) );
+            mapType.put( KEY_CANDIDATES, listCandidates );
+            listTypes.add( mapType );
+        }
+
+        return listTypes;
+    }
+
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fr.paris.lutece.plugins.ocra2ia.business.OcrJob;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrOverloadedException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrPriority;
+import fr.paris.lutece.plugins.ocra2ia.service.job.OcrJobService;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+/**
+ *
+ * HTTP API of the OCR job queue, so that callers do not hold a connection during the OCR :
+ * <ul>
+ * <li>POST ?documentType=...&amp;extension=...[&amp;priority=interactive|bulk][&amp;callback=url] with the file as body : the file is streamed to the
+ * queue and the job reference, a random UUID, is returned at once (202).</li>
+ * <li>GET ?id=... : status of the job, with the result or the error once finished. The callback url, if any, receives the same document.</li>
+ * </ul>
+ * The API is closed until an api key is configured.
+ *
+ */
+public class OcrJobServlet extends HttpServlet
+{
+
+    /**
+     * Generated serialVersionUID
+     */
+    private static final long serialVersionUID = -5127395512338826147L;
+
+    private static final String PARAMETER_ID = "id";
+    private static final String PARAMETER_DOCUMENT_TYPE = "documentType";
+    private static final String PARAMETER_EXTENSION = "extension";
+    private static final String PARAMETER_PRIORITY = "priority";
+    private static final String PARAMETER_CALLBACK = "callback";
+    private static final String HEADER_API_KEY = "X-Api-Key";
+    private static final String HEADER_LOCATION = "Location";
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+    private static final String CONTENT_TYPE_JSON = "application/json";
+    private static final String ENCODING_UTF8 = "UTF-8";
+    private static final String FIELD_ID = "id";
+    private static final String FIELD_STATUS = "status";
+    private static final String FIELD_ERROR = "error";
+    private static final String SPOOL_FILE_PREFIX = "ocra2ia-job-";
+    private static final String PATTERN_REFERENCE = "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}";
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper( );
+
+    /**
+     * Create a job from the uploaded file.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doPost( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException
+    {
+        if ( !isAuthorized( request, response ) )
+        {
+            return;
+        }
+
+        long lMaxSize = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_VALIDATION_MAX_SIZE, OcrConstants.DEFAULT_VALIDATION_MAX_SIZE );
+        if ( request.getContentLengthLong( ) > lMaxSize )
+        {
+            writeError( response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Document larger than " + lMaxSize + " bytes" );
+            return;
+        }
+
+        OcrPriority priority = OcrPriority.fromKey( request.getParameter( PARAMETER_PRIORITY ), OcrPriority.INTERACTIVE );
+        Path pathSpool = Files.createTempFile( getSpoolDirectory( ), SPOOL_FILE_PREFIX, null );
+        try
+        {
+            // the body is spooled to a file so that its length is known without holding it in memory, then streamed to the database
+            long lLength = spool( request.getInputStream( ), pathSpool, lMaxSize );
+            if ( lLength > lMaxSize )
+            {
+                writeError( response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Document larger than " + lMaxSize + " bytes" );
+                return;
+            }
+
+            String strReference;
+            try ( InputStream content = Files.newInputStream( pathSpool ) )
+            {
+                strReference = enqueue( content, (int) lLength, request.getParameter( PARAMETER_EXTENSION ),
+                        request.getParameter( PARAMETER_DOCUMENT_TYPE ), priority, request.getParameter( PARAMETER_CALLBACK ) );
+            }
+
+            Map<String, Object> mapJob = new LinkedHashMap<>( );
+            mapJob.put( FIELD_ID, strReference );
+            mapJob.put( FIELD_STATUS, OcrJob.STATUS_PENDING );
+            response.setHeader( HEADER_LOCATION, request.getRequestURL( ) + "?" + PARAMETER_ID + "=" + strReference );
+            writeJson( response, HttpServletResponse.SC_ACCEPTED, MAPPER.writeValueAsString( mapJob ) );
+        }
+        catch( OcrOverloadedException e )
+        {
+            response.setHeader( HEADER_RETRY_AFTER, String.valueOf( ( e.getRetryAfter( ) + 999 ) / 1000 ) );
+            writeError( response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage( ) );
+        }
+        catch( OcrException e )
+        {
+            writeError( response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage( ) );
+        }
+        finally
+        {
+            Files.deleteIfExists( pathSpool );
+        }
+    }
+
+    /**
+     * Get the status of a job.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doGet( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException
+    {
+        if ( !isAuthorized( request, response ) )
+        {
+            return;
+        }
+
+        OcrJob job = null;
+        String strId = request.getParameter( PARAMETER_ID );
+        if ( StringUtils.isNotEmpty( strId ) && strId.matches( PATTERN_REFERENCE ) )
+        {
+            job = OcrJobService.getJob( strId );
+        }
+        if ( job == null )
+        {
+            writeError( response, HttpServletResponse.SC_NOT_FOUND, "Unknown job " + strId );
+            return;
+        }
+
+        if ( !job.isFinished( ) )
+        {
+            long lPollInterval = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_JOBQUEUE_POLL_INTERVAL, 2000L );
+            response.setHeader( HEADER_RETRY_AFTER, String.valueOf( ( lPollInterval + 999 ) / 1000 ) );
+        }
+        writeJson( response, HttpServletResponse.SC_OK, OcrJobService.toJson( job ) );
+    }
+
+    /**
+     * Check the api key of the request. The API is refused when no key is configured, and the keys are compared in constant time.
+     *
+     * @param request
+     *            the request
+     * @param response
+     *            the response, set to 403 if no key is configured or 401 if the key is wrong
+     * @return true if the request may proceed
+     * @throws IOException
+     *             if the response can not be written
+     */
+    private boolean isAuthorized( HttpServletRequest request, HttpServletResponse response ) throws IOException
+    {
+        String strApiKey = getApiKey( );
+        if ( StringUtils.isEmpty( strApiKey ) )
+        {
+            AppLogService.error( "OCR job API called while no api key is configured." );
+            writeError( response, HttpServletResponse.SC_FORBIDDEN, "Job API disabled" );
+
+            return false;
+        }
+
+        String strRequestKey = StringUtils.defaultString( request.getHeader( HEADER_API_KEY ) );
+        if ( MessageDigest.isEqual( strApiKey.getBytes( StandardCharsets.UTF_8 ), strRequestKey.getBytes( StandardCharsets.UTF_8 ) ) )
+        {
+            return true;
+        }
+
+        AppLogService.error( "OCR job API called with a wrong api key." );
+        writeError( response, HttpServletResponse.SC_UNAUTHORIZED, "Wrong api key" );
+
+        return false;
+    }
+
+    /**
+     * @return the api key of the API, null if none is configured
+     */
+    String getApiKey( )
+    {
+        return AppPropertiesService.getProperty( OcrConstants.PROPERTY_JOBQUEUE_API_KEY );
+    }
+
+    /**
+     * Add an uploaded document to the job queue.
+     *
+     * @param content
+     *            the spooled file
+     * @param nLength
+     *            length of the file
+     * @param strFileExtension
+     *            image extension
+     * @param strDocumentType
+     *            document type
+     * @param priority
+     *            priority class of the job
+     * @param strCallbackUrl
+     *            url notified when the job is finished, or null
+     * @return the job reference
+     * @throws OcrException
+     *             if the job is refused, OcrOverloadedException if too many jobs are waiting
+     */
+    String enqueue( InputStream content, int nLength, String strFileExtension, String strDocumentType, OcrPriority priority, String strCallbackUrl )
+            throws OcrException
+    {
+        return OcrJobService.enqueue( content, nLength, strFileExtension, strDocumentType, priority, strCallbackUrl );
+    }
+
+    /**
+     * Copy the body of the request to a file, stopping past the maximum size.
+     *
+     * @param in
+     *            the body
+     * @param pathSpool
+     *            the file
+     * @param lMaxSize
+     *            the maximum size
+     * @return the number of bytes written, greater than the maximum size if the body is too large
+     * @throws IOException
+     *             if the body can not be read or the file written
+     */
+    private static long spool( InputStream in, Path pathSpool, long lMaxSize ) throws IOException
+    {
+        long lLength = 0;
+        byte [ ] buffer = new byte [ BUFFER_SIZE];
+        try ( OutputStream out = Files.newOutputStream( pathSpool ) )
+        {
+            int nRead;
+            while ( lLength <= lMaxSize && ( nRead = in.read( buffer ) ) != -1 )
+            {
+                out.write( buffer, 0, nRead );
+                lLength += nRead;
+            }
+        }
+
+        return lLength;
+    }
+
+    /**
+     * @return the directory of the spooled uploads
+     */
+    private static Path getSpoolDirectory( )
+    {
+        return Paths.get( AppPropertiesService.getProperty( OcrConstants.PROPERTY_JOBQUEUE_SPOOL_DIR, System.getProperty( "java.io.tmpdir" ) ) );
+    }
+
+    /**
+     * Write an error document.
+     *
+     * @param response
+     *            the response
+     * @param nStatus
+     *            the HTTP status
+     * @param strMessage
+     *            the error message
+     * @throws IOException
+     *             if the response can not be written
+     */
+    private static void writeError( HttpServletResponse response, int nStatus, String strMessage ) throws IOException
+    {
+        Map<String, Object> mapError = new LinkedHashMap<>( );
+        mapError.put( FIELD_ERROR, strMessage );
+        writeJson( response, nStatus, MAPPER.writeValueAsString( mapError ) );
+    }
+
+    /**
+     * Write a json document.
+     *
+     * @param response
+     *            the response
+     * @param nStatus
+     *            the HTTP status
+     * @param strJson
+     *            the document
+     * @throws IOException
+     *             if the response can not be written
+     */
+    private static void writeJson( HttpServletResponse response, int nStatus, String strJson ) throws IOException
+    {
+        response.setStatus( nStatus );
+        response.setContentType( CONTENT_TYPE_JSON );
+        response.setCharacterEncoding( ENCODING_UTF8 );
+        response.getWriter( ).write( strJson );
+    }
+}
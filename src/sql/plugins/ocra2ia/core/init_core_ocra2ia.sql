@@ -0,0 +1,12 @@
+--
+-- Init  table core_admin_right
+--
+DELETE FROM core_admin_right WHERE id_right = 'OCRA2IA_DASHBOARD';
+INSERT INTO core_admin_right (id_right,name,level_right,admin_url,description,is_updatable,plugin_name,id_feature_group,icon_url,documentation_url,id_order) VALUES
+('OCRA2IA_DASHBOARD','ocra2ia.adminFeature.ManageOcrDashboard.name',0,'jsp/admin/plugins/ocra2ia/ManageOcrDashboard.jsp','ocra2ia.adminFeature.ManageOcrDashboard.description',0,'ocra2ia','SYSTEM',NULL,NULL,1);
+
+--
+-- Init  table core_user_right
+--
+DELETE FROM core_user_right WHERE id_right = 'OCRA2IA_DASHBOARD';
+INSERT INTO core_user_right (id_right,id_user) VALUES ('OCRA2IA_DASHBOARD',1);
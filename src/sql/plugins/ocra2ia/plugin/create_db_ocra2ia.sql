@@ -0,0 +1,27 @@
+
+--
+-- Structure for table ocra2ia_job
+--
+
+DROP TABLE IF EXISTS ocra2ia_job;
+CREATE TABLE ocra2ia_job (
+id_job int AUTO_INCREMENT,
+job_reference varchar(36) NOT NULL,
+document_type varchar(50) NOT NULL,
+file_extension varchar(10) NOT NULL,
+file_content long varbinary,
+priority int default 0 NOT NULL,
+status varchar(20) default 'pending' NOT NULL,
+attempts int default 0 NOT NULL,
+lease_owner varchar(255),
+lease_expiration timestamp NULL,
+result long varchar,
+error_message varchar(4000),
+callback_url varchar(1024),
+date_creation timestamp NULL,
+date_update timestamp NULL,
+PRIMARY KEY (id_job)
+);
+
+CREATE UNIQUE INDEX index_ocra2ia_job_reference ON ocra2ia_job ( job_reference );
+CREATE INDEX index_ocra2ia_job_status ON ocra2ia_job ( status, priority, id_job );
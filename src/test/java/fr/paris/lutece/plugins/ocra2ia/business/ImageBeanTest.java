@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.business;
+
+import fr.paris.lutece.plugins.ocra2ia.service.buffer.OcrBufferPool;
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the holders of an image whose content is taken from the buffer pool.
+ *
+ */
+public class ImageBeanTest extends LuteceTestCase
+{
+
+    private static final int SIZE = 65536;
+
+    private final OcrBufferPool _pool = OcrBufferPool.getInstance( );
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp( ) throws Exception
+    {
+        super.setUp( );
+        _pool.clear( );
+    }
+
+    /**
+     * The pooled content goes back to the pool when the last holder releases the image, not before.
+     */
+    public void testReferenceCounting( )
+    {
+        byte [ ] buffer = _pool.acquire( SIZE );
+        ImageBean image = new ImageBean( );
+        image.setPooledContent( buffer, 1000 );
+        image.retain( );
+
+        image.release( );
+        assertSame( buffer, image.getContent( ) );
+        assertEquals( 1000, image.getContentLength( ) );
+        assertEquals( 0, _pool.getRetainedBytes( ) );
+
+        image.release( );
+        assertNull( image.getContent( ) );
+        assertEquals( 0, image.getContentLength( ) );
+        assertEquals( SIZE, _pool.getRetainedBytes( ) );
+    }
+
+    /**
+     * A release beyond the number of holders does not give the content of the image back a second time, so that it is not handed to two other
+     * requests.
+     */
+    public void testDoubleRelease( )
+    {
+        byte [ ] buffer = _pool.acquire( SIZE );
+        ImageBean image = new ImageBean( );
+        image.setPooledContent( buffer, SIZE );
+        image.release( );
+        image.release( );
+        assertEquals( SIZE, _pool.getRetainedBytes( ) );
+
+        assertSame( buffer, _pool.acquire( SIZE ) );
+        assertNotSame( buffer, _pool.acquire( SIZE ) );
+        assertEquals( 0, _pool.getRetainedBytes( ) );
+    }
+
+    /**
+     * Replacing the pooled content gives the previous array back, and an unpooled content is never given to the pool.
+     */
+    public void testReplaceContent( )
+    {
+        byte [ ] buffer = _pool.acquire( SIZE );
+        ImageBean image = new ImageBean( );
+        image.setPooledContent( buffer, SIZE );
+        image.setContent( new byte [ SIZE] );
+        assertEquals( SIZE, _pool.getRetainedBytes( ) );
+
+        image.release( );
+        assertEquals( SIZE, _pool.getRetainedBytes( ) );
+        assertSame( buffer, _pool.acquire( SIZE ) );
+    }
+
+}
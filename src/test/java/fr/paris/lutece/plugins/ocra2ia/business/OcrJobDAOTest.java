@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.business;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.UUID;
+
+import fr.paris.lutece.portal.service.database.PluginConnectionService;
+import fr.paris.lutece.portal.service.plugin.Plugin;
+import fr.paris.lutece.portal.service.plugin.PluginDefaultImplementation;
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the claim, lease and expiry of the jobs on an embedded HSQLDB database, created from the script of the plugin.
+ *
+ */
+public class OcrJobDAOTest extends LuteceTestCase
+{
+
+    private static final String PATH_SQL_SCRIPT = "src/sql/plugins/ocra2ia/plugin/create_db_ocra2ia.sql";
+    private static final String TABLE_JOB = "ocra2ia_job";
+    private static final String NODE_1 = "node1";
+    private static final String NODE_2 = "node2";
+    private static final long LEASE = 60000L;
+
+    private final IOcrJobDAO _dao = new OcrJobDAO( );
+    private Connection _connection;
+    private Plugin _plugin;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp( ) throws Exception
+    {
+        super.setUp( );
+        // the connection stays open for the whole test, so that the in-memory database is kept
+        _connection = DriverManager.getConnection( "jdbc:hsqldb:mem:" + UUID.randomUUID( ) + ";sql.syntax_mys=true", "SA", "" );
+        try ( Statement statement = _connection.createStatement( ) )
+        {
+            for ( String strQuery : new String( Files.readAllBytes( Paths.get( PATH_SQL_SCRIPT ) ), StandardCharsets.UTF_8 ).split( ";" ) )
+            {
+                if ( strQuery.contains( TABLE_JOB ) )
+                {
+                    // types of the Lutece scripts translated for HSQLDB
+                    statement.execute( strQuery.replace( "long varbinary", "longvarbinary" ).replace( "long varchar", "longvarchar" ) );
+                }
+            }
+        }
+
+        Connection connection = _connection;
+        _plugin = new PluginDefaultImplementation( );
+        _plugin.setConnectionService( new PluginConnectionService( )
+        {
+            @Override
+            public Connection getConnection( )
+            {
+                return connection;
+            }
+
+            @Override
+            public void freeConnection( Connection conn )
+            {
+                // the connection is closed at the end of the test
+            }
+        } );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown( ) throws Exception
+    {
+        try ( Statement statement = _connection.createStatement( ) )
+        {
+            statement.execute( "SHUTDOWN" );
+        }
+        _connection.close( );
+        super.tearDown( );
+    }
+
+    /**
+     * A job is created pending, with its reference and its content.
+     *
+     * @throws IOException
+     *             if the content cannot be read
+     */
+    public void testInsert( ) throws IOException
+    {
+        OcrJob job = insert( 0 );
+
+        assertTrue( job.getId( ) > 0 );
+        OcrJob jobLoaded = _dao.loadByReference( job.getReference( ), _plugin );
+        assertEquals( job.getId( ), jobLoaded.getId( ) );
+        assertEquals( OcrJob.STATUS_PENDING, jobLoaded.getStatus( ) );
+        assertEquals( 0, jobLoaded.getAttempts( ) );
+        assertNull( jobLoaded.getLeaseOwner( ) );
+        assertNull( _dao.loadByReference( UUID.randomUUID( ).toString( ), _plugin ) );
+        assertEquals( 1, _dao.countUnfinished( _plugin ) );
+    }
+
+    /**
+     * The claimable jobs are ordered by priority then by creation, within the given limit.
+     *
+     * @throws IOException
+     *             if the content cannot be read
+     */
+    public void testSelectClaimable( ) throws IOException
+    {
+        OcrJob job1 = insert( 1 );
+        OcrJob job2 = insert( 0 );
+        OcrJob job3 = insert( 1 );
+        Timestamp now = now( 0 );
+
+        assertEquals( Arrays.asList( job2.getId( ), job1.getId( ), job3.getId( ) ), _dao.selectClaimableIds( now, 10, _plugin ) );
+        assertEquals( Arrays.asList( job2.getId( ), job1.getId( ) ), _dao.selectClaimableIds( now, 2, _plugin ) );
+
+        _dao.claim( job2.getId( ), NODE_1, now( LEASE ), now, _plugin );
+        assertEquals( Arrays.asList( job1.getId( ), job3.getId( ) ), _dao.selectClaimableIds( now, 10, _plugin ) );
+    }
+
+    /**
+     * A job claimed by a node is leased to it : another node can neither claim it nor load it until the lease expires.
+     *
+     * @throws IOException
+     *             if the content cannot be read
+     */
+    public void testClaimAndLease( ) throws IOException
+    {
+        OcrJob job = insert( 0 );
+        Timestamp now = now( 0 );
+
+        _dao.claim( job.getId( ), NODE_1, now( LEASE ), now, _plugin );
+        _dao.claim( job.getId( ), NODE_2, now( LEASE ), now, _plugin );
+
+        assertNull( _dao.loadLeased( job.getId( ), NODE_2, _plugin ) );
+        OcrJob jobLeased = _dao.loadLeased( job.getId( ), NODE_1, _plugin );
+        assertEquals( OcrJob.STATUS_RUNNING, jobLeased.getStatus( ) );
+        assertEquals( NODE_1, jobLeased.getLeaseOwner( ) );
+        assertEquals( 1, jobLeased.getAttempts( ) );
+        assertTrue( Arrays.equals( job.getFileContent( ), jobLeased.getFileContent( ) ) );
+
+        // only the owner renews the lease
+        Timestamp leaseRenewed = now( 2 * LEASE );
+        _dao.renewLease( job.getId( ), NODE_2, now( 3 * LEASE ), _plugin );
+        _dao.renewLease( job.getId( ), NODE_1, leaseRenewed, _plugin );
+        assertEquals( leaseRenewed, _dao.load( job.getId( ), _plugin ).getLeaseExpiration( ) );
+    }
+
+    /**
+     * A job whose lease expired is claimable again : the new owner gets it, and the previous owner can no longer complete it.
+     *
+     * @throws IOException
+     *             if the content cannot be read
+     */
+    public void testLeaseExpiry( ) throws IOException
+    {
+        OcrJob job = insert( 0 );
+        Timestamp now = now( 0 );
+        _dao.claim( job.getId( ), NODE_1, now( LEASE ), now, _plugin );
+
+        Timestamp later = now( 2 * LEASE );
+        assertEquals( Arrays.asList( job.getId( ) ), _dao.selectClaimableIds( later, 10, _plugin ) );
+        _dao.claim( job.getId( ), NODE_2, now( 3 * LEASE ), later, _plugin );
+
+        assertNull( _dao.loadLeased( job.getId( ), NODE_1, _plugin ) );
+        assertEquals( 2, _dao.loadLeased( job.getId( ), NODE_2, _plugin ).getAttempts( ) );
+
+        _dao.complete( job.getId( ), NODE_1, OcrJob.STATUS_DONE, "{}", null, _plugin );
+        OcrJob jobLoaded = _dao.load( job.getId( ), _plugin );
+        assertEquals( OcrJob.STATUS_RUNNING, jobLoaded.getStatus( ) );
+        assertEquals( NODE_2, jobLoaded.getLeaseOwner( ) );
+    }
+
+    /**
+     * The owner completes the job : its result is kept, its content and its lease are dropped, and it is deleted once old enough.
+     *
+     * @throws IOException
+     *             if the content cannot be read
+     */
+    public void testComplete( ) throws IOException
+    {
+        OcrJob job = insert( 0 );
+        _dao.claim( job.getId( ), NODE_1, now( LEASE ), now( 0 ), _plugin );
+
+        _dao.complete( job.getId( ), NODE_1, OcrJob.STATUS_DONE, "{\"iban\":\"FR76\"}", null, _plugin );
+
+        OcrJob jobLoaded = _dao.load( job.getId( ), _plugin );
+        assertEquals( OcrJob.STATUS_DONE, jobLoaded.getStatus( ) );
+        assertEquals( "{\"iban\":\"FR76\"}", jobLoaded.getResult( ) );
+        assertNull( jobLoaded.getLeaseOwner( ) );
+        assertNull( jobLoaded.getLeaseExpiration( ) );
+        assertTrue( _dao.selectClaimableIds( now( 2 * LEASE ), 10, _plugin ).isEmpty( ) );
+        assertEquals( 0, _dao.countUnfinished( _plugin ) );
+
+        _dao.deleteFinished( now( -LEASE ), _plugin );
+        assertNotNull( _dao.load( job.getId( ), _plugin ) );
+        _dao.deleteFinished( now( LEASE ), _plugin );
+        assertNull( _dao.load( job.getId( ), _plugin ) );
+    }
+
+    /**
+     * A job released by its owner is pending again, its attempt being given back when it does not count.
+     *
+     * @throws IOException
+     *             if the content cannot be read
+     */
+    public void testRelease( ) throws IOException
+    {
+        OcrJob job = insert( 0 );
+        _dao.claim( job.getId( ), NODE_1, now( LEASE ), now( 0 ), _plugin );
+
+        _dao.release( job.getId( ), NODE_2, "not the owner", false, _plugin );
+        assertEquals( OcrJob.STATUS_RUNNING, _dao.load( job.getId( ), _plugin ).getStatus( ) );
+
+        _dao.release( job.getId( ), NODE_1, "engine overloaded", false, _plugin );
+        OcrJob jobLoaded = _dao.load( job.getId( ), _plugin );
+        assertEquals( OcrJob.STATUS_PENDING, jobLoaded.getStatus( ) );
+        assertEquals( 0, jobLoaded.getAttempts( ) );
+        assertEquals( "engine overloaded", jobLoaded.getErrorMessage( ) );
+        assertNull( jobLoaded.getLeaseOwner( ) );
+
+        _dao.claim( job.getId( ), NODE_2, now( LEASE ), now( 0 ), _plugin );
+        _dao.release( job.getId( ), NODE_2, "engine failure", true, _plugin );
+        assertEquals( 1, _dao.load( job.getId( ), _plugin ).getAttempts( ) );
+    }
+
+    /**
+     * Create a job.
+     *
+     * @param nPriority
+     *            priority of the job
+     * @return the job
+     * @throws IOException
+     *             if the content cannot be read
+     */
+    private OcrJob insert( int nPriority ) throws IOException
+    {
+        OcrJob job = new OcrJob( );
+        job.setReference( UUID.randomUUID( ).toString( ) );
+        job.setDocumentType( "Rib" );
+        job.setFileExtension( "png" );
+        job.setPriority( nPriority );
+        job.setFileContent( new byte [ ] {
+                1, 2, 3, 4
+        } );
+        try ( ByteArrayInputStream content = new ByteArrayInputStream( job.getFileContent( ) ) )
+        {
+            _dao.insert( job, content, job.getFileContent( ).length, _plugin );
+        }
+
+        return job;
+    }
+
+    /**
+     * Get a time relative to now.
+     *
+     * @param lOffsetMs
+     *            offset in milliseconds
+     * @return the time
+     */
+    private static Timestamp now( long lOffsetMs )
+    {
+        return new Timestamp( System.currentTimeMillis( ) + lOffsetMs );
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrOverloadedException;
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the adaptive limit of the admission control, with the limits of the plugin properties : initial limit 20, minimum 2, latency target
+ * 20000 ms, backoff 90 % and bulk ratio 80 %.
+ *
+ */
+public class OcrAdmissionControllerTest extends LuteceTestCase
+{
+
+    private static final long FAST = 10L;
+    private static final long SLOW = 30000L;
+
+    /**
+     * The limit grows by one for each fast request completed while half of the limit is used, and does not move otherwise.
+     *
+     * @throws OcrOverloadedException
+     *             if a request is shed
+     */
+    public void testAdditiveIncrease( ) throws OcrOverloadedException
+    {
+        OcrAdmissionController controller = new OcrAdmissionController( 4 );
+        acquire( controller, OcrPriority.INTERACTIVE, 10 );
+
+        controller.release( OcrPriority.INTERACTIVE, FAST, false );
+        assertEquals( 21, controller.getLimit( OcrPriority.INTERACTIVE ) );
+        controller.release( OcrPriority.INTERACTIVE, FAST, false );
+        assertEquals( 21, controller.getLimit( OcrPriority.INTERACTIVE ) );
+        assertEquals( 8, controller.getInFlight( OcrPriority.INTERACTIVE ) );
+    }
+
+    /**
+     * The limit is reduced by the backoff ratio for each slow or dropped request, down to the minimum.
+     *
+     * @throws OcrOverloadedException
+     *             if a request is shed
+     */
+    public void testMultiplicativeDecrease( ) throws OcrOverloadedException
+    {
+        OcrAdmissionController controller = new OcrAdmissionController( 4 );
+        acquire( controller, OcrPriority.INTERACTIVE, 2 );
+
+        controller.release( OcrPriority.INTERACTIVE, SLOW, false );
+        assertEquals( 18, controller.getLimit( OcrPriority.INTERACTIVE ) );
+        controller.release( OcrPriority.INTERACTIVE, FAST, true );
+        assertEquals( 16, controller.getLimit( OcrPriority.INTERACTIVE ) );
+
+        for ( int i = 0; i < 50; i++ )
+        {
+            controller.acquire( OcrPriority.INTERACTIVE );
+            controller.release( OcrPriority.INTERACTIVE, SLOW, false );
+        }
+        assertEquals( 2, controller.getLimit( OcrPriority.INTERACTIVE ) );
+        assertEquals( 0, controller.getInFlight( ) );
+    }
+
+    /**
+     * The bulk requests are shed first, when the requests in progress reach the bulk ratio of the interactive limit, the interactive requests at their
+     * own limit.
+     *
+     * @throws OcrOverloadedException
+     *             if a request is shed before its limit
+     */
+    public void testShedByPriority( ) throws OcrOverloadedException
+    {
+        OcrAdmissionController controller = new OcrAdmissionController( 4 );
+        acquire( controller, OcrPriority.BULK, 16 );
+        assertShed( controller, OcrPriority.BULK );
+
+        acquire( controller, OcrPriority.INTERACTIVE, 20 );
+        assertShed( controller, OcrPriority.INTERACTIVE );
+        assertEquals( 36, controller.getInFlight( ) );
+    }
+
+    /**
+     * The slow bulk requests reduce the limit of their class only.
+     *
+     * @throws OcrOverloadedException
+     *             if a request is shed
+     */
+    public void testClassIsolation( ) throws OcrOverloadedException
+    {
+        OcrAdmissionController controller = new OcrAdmissionController( 4 );
+        acquire( controller, OcrPriority.BULK, 5 );
+        for ( int i = 0; i < 5; i++ )
+        {
+            controller.release( OcrPriority.BULK, SLOW, false );
+        }
+
+        assertEquals( 11, controller.getLimit( OcrPriority.BULK ) );
+        assertEquals( 20, controller.getLimit( OcrPriority.INTERACTIVE ) );
+    }
+
+    /**
+     * Admit requests.
+     *
+     * @param controller
+     *            the admission control
+     * @param priority
+     *            priority class of the requests
+     * @param nRequests
+     *            number of requests
+     * @throws OcrOverloadedException
+     *             if a request is shed
+     */
+    private static void acquire( OcrAdmissionController controller, OcrPriority priority, int nRequests ) throws OcrOverloadedException
+    {
+        for ( int i = 0; i < nRequests; i++ )
+        {
+            controller.acquire( priority );
+        }
+    }
+
+    /**
+     * Check that a request is shed with a retry delay.
+     *
+     * @param controller
+     *            the admission control
+     * @param priority
+     *            priority class of the request
+     */
+    private static void assertShed( OcrAdmissionController controller, OcrPriority priority )
+    {
+        try
+        {
+            controller.acquire( priority );
+            fail( "The " + priority.getKey( ) + " request should be shed" );
+        }
+        catch( OcrOverloadedException e )
+        {
+            assertTrue( e.getRetryAfter( ) >= 1000L );
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.util.Arrays;
+import java.util.List;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrDeadlineExceededException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the isolation of the document types by the bulkheads.
+ *
+ */
+public class OcrBulkheadTest extends LuteceTestCase
+{
+
+    private static final String RIB = "Rib";
+    private static final String TAX_ASSESSMENT = "TaxAssessment";
+    private static final String IDENTITY = "Identity";
+    private static final List<String> DOCUMENT_TYPES = Arrays.asList( RIB, TAX_ASSESSMENT, IDENTITY );
+
+    /**
+     * By default the engine slots are shared out between the document types, the first ones getting the slots left by the division.
+     */
+    public void testDefaultShares( )
+    {
+        OcrBulkhead bulkhead = new OcrBulkhead( 4, DOCUMENT_TYPES );
+
+        assertEquals( 2, bulkhead.getAvailable( RIB ) );
+        assertEquals( 1, bulkhead.getAvailable( TAX_ASSESSMENT ) );
+        assertEquals( 1, bulkhead.getAvailable( IDENTITY ) );
+        assertEquals( 1, bulkhead.getAvailable( "Other" ) );
+
+        bulkhead = new OcrBulkhead( 2, DOCUMENT_TYPES );
+        assertEquals( 1, bulkhead.getAvailable( RIB ) );
+        assertEquals( 1, bulkhead.getAvailable( TAX_ASSESSMENT ) );
+        assertEquals( 1, bulkhead.getAvailable( IDENTITY ) );
+    }
+
+    /**
+     * The types filling their slots do not take the slot of another type.
+     *
+     * @throws OcrException
+     *             if a slot can not be reserved
+     */
+    public void testIsolation( ) throws OcrException
+    {
+        OcrBulkhead bulkhead = new OcrBulkhead( 4, DOCUMENT_TYPES );
+        bulkhead.acquire( RIB, OcrDeadline.none( ) );
+        bulkhead.acquire( RIB, OcrDeadline.none( ) );
+        bulkhead.acquire( IDENTITY, OcrDeadline.none( ) );
+
+        try
+        {
+            bulkhead.acquire( RIB, OcrDeadline.after( 50 ) );
+            fail( "The slots of the Rib are all used" );
+        }
+        catch( OcrDeadlineExceededException e )
+        {
+            assertEquals( 0, bulkhead.getQueueLength( RIB ) );
+        }
+
+        bulkhead.acquire( TAX_ASSESSMENT, OcrDeadline.after( 50 ) );
+        assertEquals( 0, bulkhead.getAvailable( TAX_ASSESSMENT ) );
+
+        bulkhead.release( RIB );
+        bulkhead.acquire( RIB, OcrDeadline.after( 50 ) );
+    }
+
+}
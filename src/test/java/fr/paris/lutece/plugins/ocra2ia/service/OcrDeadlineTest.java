@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrDeadlineExceededException;
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the time budget of an OCR request.
+ *
+ */
+public class OcrDeadlineTest extends LuteceTestCase
+{
+
+    private static final String STAGE = "test";
+
+    /**
+     * A deadline without budget never expires and does not bound the timeouts.
+     */
+    public void testNone( ) throws OcrDeadlineExceededException
+    {
+        assertSame( OcrDeadline.none( ), OcrDeadline.after( 0 ) );
+        assertSame( OcrDeadline.none( ), OcrDeadline.after( -1 ) );
+        assertFalse( OcrDeadline.none( ).isExpired( ) );
+        assertEquals( Long.MAX_VALUE, OcrDeadline.none( ).getRemaining( ) );
+        assertEquals( 5000L, OcrDeadline.none( ).clamp( 5000L ) );
+        OcrDeadline.none( ).check( STAGE );
+    }
+
+    /**
+     * The timeout of a stage is bounded by the remaining time.
+     */
+    public void testClamp( )
+    {
+        OcrDeadline deadline = OcrDeadline.after( 60000L );
+
+        assertFalse( deadline.isExpired( ) );
+        assertEquals( 1000L, deadline.clamp( 1000L ) );
+        assertTrue( deadline.clamp( 120000L ) <= 60000L );
+        assertTrue( deadline.clamp( 120000L ) > 0 );
+    }
+
+    /**
+     * Once the budget is exhausted, the remaining time is 0 and the check of a stage fails and is counted.
+     */
+    public void testExpiry( ) throws InterruptedException
+    {
+        OcrDeadline deadline = OcrDeadline.after( 20L );
+        Thread.sleep( 50L );
+
+        assertTrue( deadline.isExpired( ) );
+        assertEquals( 0L, deadline.getRemaining( ) );
+        assertEquals( 0L, deadline.clamp( 1000L ) );
+
+        long lExceeded = OcrMetricsService.getInstance( ).getCounter( "deadline.exceeded." + STAGE );
+        try
+        {
+            deadline.check( STAGE );
+            fail( "the check of an expired deadline must fail" );
+        }
+        catch( OcrDeadlineExceededException e )
+        {
+            assertEquals( STAGE, e.getStage( ) );
+        }
+        assertEquals( lExceeded + 1, OcrMetricsService.getInstance( ).getCounter( "deadline.exceeded." + STAGE ) );
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.util.Collections;
+import java.util.Map;
+
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the choice of the render DPI of a document type, a result being successful when it holds a field (no required fields configured for the
+ * document type of the tests).
+ *
+ */
+public class OcrDpiTunerTest extends LuteceTestCase
+{
+
+    private static final String DOCUMENT_TYPE = "TunerTest";
+    private static final int [ ] CANDIDATES = {
+            150, 200, 250, 300
+    };
+    private static final int MIN_SAMPLES = 10;
+    private static final Map<String, String> SUCCESS = Collections.singletonMap( "field", "value" );
+    private static final Map<String, String> FAILURE = Collections.emptyMap( );
+
+    /**
+     * Starting from the highest DPI, the tuner steps down through the probed candidates to the cheapest one reaching the target, and stays there when
+     * the next lower one misses it.
+     */
+    public void testConvergenceToCheapest( )
+    {
+        OcrDpiTuner tuner = tuner( 300, 0, 100 );
+
+        record( tuner, 300, MIN_SAMPLES, 0 );
+        assertEquals( 300, tuner.getDecision( DOCUMENT_TYPE ) );
+        record( tuner, 250, MIN_SAMPLES, 0 );
+        assertEquals( 250, tuner.getDecision( DOCUMENT_TYPE ) );
+        record( tuner, 200, MIN_SAMPLES, 0 );
+        assertEquals( 200, tuner.getDecision( DOCUMENT_TYPE ) );
+        record( tuner, 150, MIN_SAMPLES, 5 );
+        assertEquals( 200, tuner.getDecision( DOCUMENT_TYPE ) );
+        assertEquals( 200, tuner.choose( DOCUMENT_TYPE ) );
+    }
+
+    /**
+     * A DPI missing the target is left for the next higher candidate once it reaches the target.
+     */
+    public void testStepUp( )
+    {
+        OcrDpiTuner tuner = tuner( 150, 0, 100 );
+
+        record( tuner, 150, MIN_SAMPLES, MIN_SAMPLES );
+        assertEquals( 150, tuner.getDecision( DOCUMENT_TYPE ) );
+        record( tuner, 200, MIN_SAMPLES, 0 );
+        assertEquals( 200, tuner.getDecision( DOCUMENT_TYPE ) );
+    }
+
+    /**
+     * The explored candidate is the next lower one when the chosen DPI reaches the target, the next higher one otherwise.
+     */
+    public void testProbe( )
+    {
+        OcrDpiTuner tuner = tuner( 200, 1, 100 );
+        record( tuner, 200, MIN_SAMPLES, 0 );
+        assertEquals( 150, tuner.choose( DOCUMENT_TYPE ) );
+        assertEquals( 200, tuner.getDecision( DOCUMENT_TYPE ) );
+
+        tuner = tuner( 200, 1, 100 );
+        record( tuner, 200, MIN_SAMPLES, MIN_SAMPLES );
+        assertEquals( 250, tuner.choose( DOCUMENT_TYPE ) );
+    }
+
+    /**
+     * The chosen DPI is kept while its success rate stays within the hysteresis margin under the target, even when a higher candidate reaches the
+     * target, and left once it falls below the margin.
+     */
+    public void testHysteresis( )
+    {
+        OcrDpiTuner tuner = tuner( 250, 0, 100 );
+
+        // 89 successes out of the 100 outcomes of the window : 0.89, within 0.02 of the target
+        record( tuner, 250, 100, 11 );
+        record( tuner, 300, MIN_SAMPLES, 0 );
+        assertEquals( 250, tuner.getDecision( DOCUMENT_TYPE ) );
+
+        // the oldest successes leave the window : 0.80
+        record( tuner, 250, 9, 9 );
+        assertEquals( 300, tuner.getDecision( DOCUMENT_TYPE ) );
+    }
+
+    /**
+     * A pinned DPI overrides the tuner, and its outcomes out of the candidates are ignored.
+     */
+    public void testPinned( )
+    {
+        OcrDpiTuner tuner = new OcrDpiTuner( true, 200, CANDIDATES, 0.9, MIN_SAMPLES, 100, 1, Collections.singletonMap( "pinned", 175 ) );
+
+        assertEquals( OcrDpiTuner.MODE_PINNED, tuner.getMode( "Pinned" ) );
+        assertEquals( 175, tuner.choose( "Pinned" ) );
+        assertEquals( 175, tuner.getDecision( "Pinned" ) );
+        assertEquals( 175, tuner.getMaxDpi( "Pinned" ) );
+        for ( int i = 0; i < MIN_SAMPLES; i++ )
+        {
+            tuner.record( "Pinned", 175, FAILURE, 100L );
+        }
+        assertEquals( 175, tuner.choose( "Pinned" ) );
+
+        assertEquals( OcrDpiTuner.MODE_ADAPTIVE, tuner.getMode( DOCUMENT_TYPE ) );
+        assertEquals( 300, tuner.getMaxDpi( DOCUMENT_TYPE ) );
+    }
+
+    /**
+     * Without tuning, the default DPI is used.
+     */
+    public void testFixed( )
+    {
+        OcrDpiTuner tuner = new OcrDpiTuner( false, 200, CANDIDATES, 0.9, MIN_SAMPLES, 100, 1, Collections.emptyMap( ) );
+        record( tuner, 150, MIN_SAMPLES, 0 );
+
+        assertEquals( OcrDpiTuner.MODE_FIXED, tuner.getMode( DOCUMENT_TYPE ) );
+        assertEquals( 200, tuner.choose( DOCUMENT_TYPE ) );
+        assertEquals( 200, tuner.getMaxDpi( DOCUMENT_TYPE ) );
+    }
+
+    /**
+     * Build an adaptive tuner with a target success rate of 0.9.
+     *
+     * @param nDefaultDpi
+     *            default DPI
+     * @param dExploration
+     *            share of the renders at the explored candidate
+     * @param nWindow
+     *            number of outcomes kept by candidate
+     * @return the tuner
+     */
+    private static OcrDpiTuner tuner( int nDefaultDpi, double dExploration, int nWindow )
+    {
+        return new OcrDpiTuner( true, nDefaultDpi, CANDIDATES, 0.9, MIN_SAMPLES, nWindow, dExploration, Collections.emptyMap( ) );
+    }
+
+    /**
+     * Record outcomes of a DPI, the successes first.
+     *
+     * @param tuner
+     *            the tuner
+     * @param nDpi
+     *            the DPI
+     * @param nOutcomes
+     *            number of outcomes
+     * @param nFailures
+     *            number of failed outcomes, recorded last
+     */
+    private static void record( OcrDpiTuner tuner, int nDpi, int nOutcomes, int nFailures )
+    {
+        for ( int i = 0; i < nOutcomes; i++ )
+        {
+            tuner.record( DOCUMENT_TYPE, nDpi, ( i < nOutcomes - nFailures ) ? SUCCESS : FAILURE, 100L );
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the crop, downscale and binarization of the preprocessing on synthetic images.
+ *
+ */
+public class OcrImagePreprocessorTest extends LuteceTestCase
+{
+
+    private static final int WIDTH = 1000;
+    private static final int HEIGHT = 800;
+    private static final int DARK = 100;
+    private static final int LIGHT = 130;
+
+    private OcrImagePreprocessor _preprocessor;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp( ) throws Exception
+    {
+        super.setUp( );
+        _preprocessor = new OcrImagePreprocessor( );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown( ) throws Exception
+    {
+        _preprocessor.shutdown( );
+        super.tearDown( );
+    }
+
+    /**
+     * A skewed document photographed on a dark background is cropped to its bounding box, margin included.
+     */
+    public void testCropSkewedDocument( )
+    {
+        BufferedImage image = new BufferedImage( WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB );
+        Graphics2D graphics = image.createGraphics( );
+        graphics.setColor( new Color( 30, 30, 30 ) );
+        graphics.fillRect( 0, 0, WIDTH, HEIGHT );
+        graphics.rotate( Math.toRadians( 5 ), WIDTH / 2.0, HEIGHT / 2.0 );
+        graphics.setColor( Color.WHITE );
+        graphics.fillRect( 300, 250, 400, 300 );
+        graphics.dispose( );
+
+        Rectangle rectangle = _preprocessor.findDocumentRegion( image );
+
+        // the rotated document spans about x 275..725 and y 215..585
+        assertTrue( rectangle.x > 230 && rectangle.x < 290 );
+        assertTrue( rectangle.y > 170 && rectangle.y < 230 );
+        assertTrue( rectangle.x + rectangle.width > 710 && rectangle.x + rectangle.width < 770 );
+        assertTrue( rectangle.y + rectangle.height > 570 && rectangle.y + rectangle.height < 630 );
+    }
+
+    /**
+     * A uniform image, or a document filling the whole photo, is not cropped.
+     */
+    public void testNoCrop( )
+    {
+        Rectangle rectangleFull = new Rectangle( 0, 0, WIDTH, HEIGHT );
+        assertEquals( rectangleFull, _preprocessor.findDocumentRegion( gray( DARK, DARK ) ) );
+
+        BufferedImage image = new BufferedImage( WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB );
+        Graphics2D graphics = image.createGraphics( );
+        graphics.setColor( Color.WHITE );
+        graphics.fillRect( 0, 0, WIDTH, HEIGHT );
+        graphics.setColor( Color.BLACK );
+        graphics.fillRect( 10, 10, WIDTH - 20, HEIGHT - 20 );
+        graphics.dispose( );
+        assertEquals( rectangleFull, _preprocessor.findDocumentRegion( image ) );
+    }
+
+    /**
+     * The Otsu threshold of a low contrast image separates its two gray levels, and the binarization keeps the light half white.
+     */
+    public void testLowContrastBinarization( ) throws Exception
+    {
+        BufferedImage image = gray( DARK, LIGHT );
+        int nThreshold = OcrImagePreprocessor.getOtsuThreshold( image.getRaster( ) );
+        assertTrue( nThreshold >= DARK && nThreshold < LIGHT );
+
+        BufferedImage imageBinary = _preprocessor.transform( image, new Rectangle( 0, 0, WIDTH, HEIGHT ), 1, OcrConstants.IMAGE_TYPE_BINARY );
+        assertEquals( BufferedImage.TYPE_BYTE_BINARY, imageBinary.getType( ) );
+        Raster raster = imageBinary.getRaster( );
+        assertEquals( 0, raster.getSample( 10, 10, 0 ) );
+        assertEquals( 0, raster.getSample( WIDTH / 2 - 10, HEIGHT - 10, 0 ) );
+        assertEquals( 1, raster.getSample( WIDTH / 2 + 10, 10, 0 ) );
+        assertEquals( 1, raster.getSample( WIDTH - 10, HEIGHT - 10, 0 ) );
+    }
+
+    /**
+     * The region is cropped and scaled in strips into a gray image of the target size.
+     */
+    public void testCropAndDownscale( ) throws Exception
+    {
+        BufferedImage image = gray( DARK, LIGHT );
+        BufferedImage imageGray = _preprocessor.transform( image, new Rectangle( 100, 0, 800, HEIGHT ), 0.5, OcrConstants.IMAGE_TYPE_GRAY );
+
+        assertEquals( 400, imageGray.getWidth( ) );
+        assertEquals( 400, imageGray.getHeight( ) );
+        assertEquals( BufferedImage.TYPE_BYTE_GRAY, imageGray.getType( ) );
+        assertEquals( DARK, imageGray.getRaster( ).getSample( 50, 399, 0 ), 2 );
+        assertEquals( LIGHT, imageGray.getRaster( ).getSample( 350, 0, 0 ), 2 );
+    }
+
+    /**
+     * Build a gray image whose left half and right half have a gray level each.
+     *
+     * @param nLeft
+     *            gray level of the left half
+     * @param nRight
+     *            gray level of the right half
+     * @return the image
+     */
+    private static BufferedImage gray( int nLeft, int nRight )
+    {
+        BufferedImage image = new BufferedImage( WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB );
+        Graphics2D graphics = image.createGraphics( );
+        graphics.setColor( new Color( nLeft, nLeft, nLeft ) );
+        graphics.fillRect( 0, 0, WIDTH / 2, HEIGHT );
+        graphics.setColor( new Color( nRight, nRight, nRight ) );
+        graphics.fillRect( WIDTH / 2, 0, WIDTH - ( WIDTH / 2 ), HEIGHT );
+        graphics.dispose( );
+
+        return image;
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrInputRejectedException;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the validation of the input documents, with the default limits of the plugin (20 MB, 40 million pixels).
+ *
+ */
+public class OcrInputValidatorTest extends LuteceTestCase
+{
+
+    private static final int PNG_OFFSET_WIDTH = 16;
+    private static final int PNG_OFFSET_HEIGHT = 20;
+    private static final short TIFF_TYPE_SHORT = 3;
+    private static final short TIFF_TYPE_LONG = 4;
+
+    private final OcrInputValidator _validator = new OcrInputValidator( );
+
+    /**
+     * The format is found from the magic bytes, whatever the extension given.
+     */
+    public void testSniffFormat( ) throws IOException
+    {
+        assertEquals( OcrConstants.EXTENSION_FILE_PNG, OcrInputValidator.sniffFormat( image( "png", 10, 10 ) ) );
+        assertEquals( OcrConstants.EXTENSION_FILE_JPEG, OcrInputValidator.sniffFormat( image( "jpg", 10, 10 ) ) );
+        assertEquals( OcrConstants.EXTENSION_FILE_BMP, OcrInputValidator.sniffFormat( image( "bmp", 10, 10 ) ) );
+        assertEquals( OcrConstants.EXTENSION_FILE_TIFF, OcrInputValidator.sniffFormat( tiff( ByteOrder.LITTLE_ENDIAN, TIFF_TYPE_SHORT, 10, 10 ) ) );
+        assertEquals( OcrConstants.EXTENSION_FILE_TIFF, OcrInputValidator.sniffFormat( tiff( ByteOrder.BIG_ENDIAN, TIFF_TYPE_LONG, 10, 10 ) ) );
+        // the pdf header may follow some garbage bytes
+        assertEquals( OcrConstants.EXTENSION_FILE_PDF, OcrInputValidator.sniffFormat( ascii( "garbage\n%PDF-1.4\n%%EOF" ) ) );
+        assertNull( OcrInputValidator.sniffFormat( ascii( "plain text" ) ) );
+        assertNull( OcrInputValidator.sniffFormat( new byte [ 0] ) );
+    }
+
+    /**
+     * The supported documents are accepted, and a document given with the extension of another format is processed with its real format.
+     */
+    public void testAccepted( ) throws Exception
+    {
+        assertEquals( "png", _validator.validate( image( "png", 100, 50 ), "png" ) );
+        assertEquals( "Jpg", _validator.validate( image( "jpg", 100, 50 ), "Jpg" ) );
+        assertEquals( OcrConstants.EXTENSION_FILE_PNG, _validator.validate( image( "png", 100, 50 ), "Jpg" ) );
+        assertEquals( "Tiff", _validator.validate( tiff( ByteOrder.LITTLE_ENDIAN, TIFF_TYPE_SHORT, 2000, 3000 ), "Tiff" ) );
+        assertEquals( "Pdf", _validator.validate( ascii( "%PDF-1.4\n1 0 obj\nendobj\n%%EOF\n" ), "Pdf" ) );
+    }
+
+    /**
+     * The documents larger than the maximum size are refused before they are read.
+     */
+    public void testTooLarge( )
+    {
+        byte [ ] content = new byte [ (int) OcrConstants.DEFAULT_VALIDATION_MAX_SIZE + 1];
+        System.arraycopy( ascii( "%PDF-" ), 0, content, 0, 5 );
+
+        assertRejected( OcrConstants.REJECT_CODE_TOO_LARGE, content, "Pdf" );
+    }
+
+    /**
+     * The documents whose magic bytes are not those of a supported format are refused.
+     */
+    public void testUnknownFormat( )
+    {
+        assertRejected( OcrConstants.REJECT_CODE_UNKNOWN_FORMAT, ascii( "plain text" ), "png" );
+        assertRejected( OcrConstants.REJECT_CODE_UNKNOWN_FORMAT, ascii( "GIF89a" ), "Gif" );
+    }
+
+    /**
+     * The images whose header declares more pixels than the pixel budget are refused, without decoding the image.
+     */
+    public void testPixelBudget( ) throws IOException
+    {
+        byte [ ] png = image( "png", 1, 1 );
+        ByteBuffer.wrap( png ).putInt( PNG_OFFSET_WIDTH, 10000 ).putInt( PNG_OFFSET_HEIGHT, 5000 );
+        assertRejected( OcrConstants.REJECT_CODE_PIXEL_BUDGET, png, "png" );
+
+        assertRejected( OcrConstants.REJECT_CODE_PIXEL_BUDGET, tiff( ByteOrder.LITTLE_ENDIAN, TIFF_TYPE_LONG, 10000, 5000 ), "Tiff" );
+        assertRejected( OcrConstants.REJECT_CODE_PIXEL_BUDGET, tiff( ByteOrder.BIG_ENDIAN, TIFF_TYPE_SHORT, 60000, 60000 ), "Tiff" );
+    }
+
+    /**
+     * The truncated or inconsistent documents are refused as corrupt.
+     */
+    public void testCorrupt( ) throws IOException
+    {
+        byte [ ] png = image( "png", 100, 50 );
+        assertRejected( OcrConstants.REJECT_CODE_CORRUPT, Arrays.copyOf( png, 12 ), "png" );
+        assertRejected( OcrConstants.REJECT_CODE_CORRUPT, tiff( ByteOrder.LITTLE_ENDIAN, TIFF_TYPE_SHORT, 0, 100 ), "Tiff" );
+
+        byte [ ] tiff = tiff( ByteOrder.LITTLE_ENDIAN, TIFF_TYPE_SHORT, 100, 100 );
+        ByteBuffer.wrap( tiff ).order( ByteOrder.LITTLE_ENDIAN ).putInt( 4, 100000 );
+        assertRejected( OcrConstants.REJECT_CODE_CORRUPT, tiff, "Tiff" );
+
+        // a truncated upload has no end of file marker
+        assertRejected( OcrConstants.REJECT_CODE_CORRUPT, ascii( "%PDF-1.4\n1 0 obj\n" ), "Pdf" );
+    }
+
+    /**
+     * Check that a document is refused with a reject code.
+     *
+     * @param strRejectCode
+     *            the expected reject code
+     * @param content
+     *            the document
+     * @param strExtension
+     *            the extension given with the document
+     */
+    private void assertRejected( String strRejectCode, byte [ ] content, String strExtension )
+    {
+        try
+        {
+            _validator.validate( content, strExtension );
+            fail( "the document must be rejected with code " + strRejectCode );
+        }
+        catch( OcrInputRejectedException e )
+        {
+            assertEquals( strRejectCode, e.getRejectCode( ) );
+        }
+    }
+
+    /**
+     * Encode a blank image.
+     *
+     * @param strFormat
+     *            the ImageIO format
+     * @param nWidth
+     *            width in pixels
+     * @param nHeight
+     *            height in pixels
+     * @return the encoded image
+     * @throws IOException
+     *             if the image can not be encoded
+     */
+    private static byte [ ] image( String strFormat, int nWidth, int nHeight ) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( );
+        ImageIO.write( new BufferedImage( nWidth, nHeight, BufferedImage.TYPE_INT_RGB ), strFormat, out );
+
+        return out.toByteArray( );
+    }
+
+    /**
+     * Build the header of a single image tiff : the header and one IFD holding the width and the height.
+     *
+     * @param byteOrder
+     *            byte order of the tiff
+     * @param nType
+     *            tiff type of the dimensions, short or long
+     * @param nWidth
+     *            width in pixels
+     * @param nHeight
+     *            height in pixels
+     * @return the tiff
+     */
+    private static byte [ ] tiff( ByteOrder byteOrder, short nType, int nWidth, int nHeight )
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( 8 + 2 + ( 2 * 12 ) + 4 ).order( byteOrder );
+        buffer.put( ( byteOrder == ByteOrder.LITTLE_ENDIAN ) ? (byte) 'I' : (byte) 'M' );
+        buffer.put( ( byteOrder == ByteOrder.LITTLE_ENDIAN ) ? (byte) 'I' : (byte) 'M' );
+        buffer.putShort( (short) 42 ).putInt( 8 ).putShort( (short) 2 );
+        putEntry( buffer, (short) 256, nType, nWidth );
+        putEntry( buffer, (short) 257, nType, nHeight );
+        buffer.putInt( 0 );
+
+        return buffer.array( );
+    }
+
+    /**
+     * Write an IFD entry holding a single value.
+     *
+     * @param buffer
+     *            the tiff
+     * @param nTag
+     *            tag of the entry
+     * @param nType
+     *            tiff type of the value, short or long
+     * @param nValue
+     *            the value
+     */
+    private static void putEntry( ByteBuffer buffer, short nTag, short nType, int nValue )
+    {
+        buffer.putShort( nTag ).putShort( nType ).putInt( 1 );
+        if ( nType == TIFF_TYPE_SHORT )
+        {
+            buffer.putShort( (short) nValue ).putShort( (short) 0 );
+        }
+        else
+        {
+            buffer.putInt( nValue );
+        }
+    }
+
+    /**
+     * @param strContent
+     *            a text
+     * @return its ascii bytes
+     */
+    private static byte [ ] ascii( String strContent )
+    {
+        return strContent.getBytes( StandardCharsets.US_ASCII );
+    }
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrDeadlineExceededException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrInputRejectedException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrOverloadedException;
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the memory budget shared by the pdf renders : order of the waiting renders and bounded waits.
+ *
+ */
+public class OcrPdfMemoryBudgetTest extends LuteceTestCase
+{
+
+    private static final long BUDGET = 100L;
+    private static final long WAIT_TIMEOUT = 5000L;
+
+    private ExecutorService _executor;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp( ) throws Exception
+    {
+        super.setUp( );
+        _executor = Executors.newCachedThreadPool( );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown( ) throws Exception
+    {
+        _executor.shutdownNow( );
+        super.tearDown( );
+    }
+
+    /**
+     * The waiting renders are served in their order of arrival : a small render that would fit waits behind a larger one arrived before it.
+     *
+     * @throws Exception
+     *             if a render fails
+     */
+    public void testFifoOrder( ) throws Exception
+    {
+        OcrPdfMemoryBudget budget = new OcrPdfMemoryBudget( true, 0, BUDGET, WAIT_TIMEOUT, null );
+        budget.acquire( 80, OcrDeadline.none( ) );
+
+        Future<?> futureLarge = _executor.submit( ( ) -> acquire( budget, 50 ) );
+        waitForQueue( budget, 1 );
+        Future<?> futureSmall = _executor.submit( ( ) -> acquire( budget, 10 ) );
+        waitForQueue( budget, 2 );
+        Thread.sleep( 100 );
+        assertEquals( 2, budget.getWaiting( ) );
+        assertEquals( 80, budget.getReserved( ) );
+
+        budget.release( 80 );
+        futureLarge.get( 5, TimeUnit.SECONDS );
+        futureSmall.get( 5, TimeUnit.SECONDS );
+        assertEquals( 60, budget.getReserved( ) );
+    }
+
+    /**
+     * The first render in line is served first when the memory is given back.
+     *
+     * @throws Exception
+     *             if a render fails
+     */
+    public void testServedInOrder( ) throws Exception
+    {
+        OcrPdfMemoryBudget budget = new OcrPdfMemoryBudget( true, 0, BUDGET, WAIT_TIMEOUT, null );
+        budget.acquire( 80, OcrDeadline.none( ) );
+
+        Future<?> futureFirst = _executor.submit( ( ) -> acquire( budget, 50 ) );
+        waitForQueue( budget, 1 );
+        Future<?> futureSecond = _executor.submit( ( ) -> acquire( budget, 60 ) );
+        waitForQueue( budget, 2 );
+
+        budget.release( 80 );
+        futureFirst.get( 5, TimeUnit.SECONDS );
+        waitForQueue( budget, 1 );
+        assertEquals( 50, budget.getReserved( ) );
+        assertFalse( futureSecond.isDone( ) );
+
+        budget.release( 50 );
+        futureSecond.get( 5, TimeUnit.SECONDS );
+        assertEquals( 60, budget.getReserved( ) );
+    }
+
+    /**
+     * A render waiting longer than the wait timeout is refused as overloaded, or as late when the budget of the request is spent first; a render
+     * larger than the whole budget is rejected at once.
+     *
+     * @throws OcrException
+     *             if the first render fails
+     */
+    public void testBoundedWait( ) throws OcrException
+    {
+        OcrPdfMemoryBudget budget = new OcrPdfMemoryBudget( true, 0, BUDGET, 50, null );
+        budget.acquire( 80, OcrDeadline.none( ) );
+
+        try
+        {
+            budget.acquire( 50, OcrDeadline.none( ) );
+            fail( "The render should wait too long" );
+        }
+        catch( OcrOverloadedException e )
+        {
+            assertEquals( 50, e.getRetryAfter( ) );
+        }
+
+        budget = new OcrPdfMemoryBudget( true, 0, BUDGET, WAIT_TIMEOUT, null );
+        budget.acquire( 80, OcrDeadline.none( ) );
+        try
+        {
+            budget.acquire( 50, OcrDeadline.after( 50 ) );
+            fail( "The budget of the request should be spent" );
+        }
+        catch( OcrDeadlineExceededException e )
+        {
+            assertEquals( 80, budget.getReserved( ) );
+        }
+
+        try
+        {
+            budget.acquire( BUDGET + 1, OcrDeadline.none( ) );
+            fail( "The render should exceed the whole budget" );
+        }
+        catch( OcrInputRejectedException e )
+        {
+            assertEquals( 80, budget.getReserved( ) );
+        }
+    }
+
+    /**
+     * Nothing is reserved when the memory of the renders is not bounded.
+     *
+     * @throws OcrException
+     *             if the render fails
+     */
+    public void testDisabled( ) throws OcrException
+    {
+        OcrPdfMemoryBudget budget = new OcrPdfMemoryBudget( false, 0, BUDGET, WAIT_TIMEOUT, null );
+        budget.acquire( BUDGET * 2, OcrDeadline.none( ) );
+
+        assertEquals( 0, budget.getReserved( ) );
+    }
+
+    /**
+     * Reserve memory from another thread.
+     *
+     * @param budget
+     *            the memory budget
+     * @param lBytes
+     *            memory of the render
+     * @return null
+     * @throws OcrException
+     *             if the render fails
+     */
+    private static Void acquire( OcrPdfMemoryBudget budget, long lBytes ) throws OcrException
+    {
+        budget.acquire( lBytes, OcrDeadline.none( ) );
+
+        return null;
+    }
+
+    /**
+     * Wait until renders are queued.
+     *
+     * @param budget
+     *            the memory budget
+     * @param nWaiting
+     *            number of waiting renders
+     * @throws InterruptedException
+     *             if the test is interrupted
+     */
+    private static void waitForQueue( OcrPdfMemoryBudget budget, int nWaiting ) throws InterruptedException
+    {
+        long lEnd = System.currentTimeMillis( ) + WAIT_TIMEOUT;
+        while ( ( budget.getWaiting( ) < nWaiting ) && ( System.currentTimeMillis( ) < lEnd ) )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( nWaiting, budget.getWaiting( ) );
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the fields sent by the stream to the listener of the caller.
+ *
+ */
+public class OcrResultStreamTest extends LuteceTestCase
+{
+
+    private static final String IBAN = "iban";
+    private static final String BIC = "bic";
+    private static final String NAME = "name";
+
+    /**
+     * A field is sent again only when its value changes, and the blank fields are not sent.
+     */
+    public void testDedupAndBlank( )
+    {
+        RecordingListener listener = new RecordingListener( );
+        OcrResultStream stream = new OcrResultStream( listener );
+
+        stream.onField( IBAN, "FR76", 0.9 );
+        stream.onField( IBAN, "FR76", 0.8 );
+        stream.onField( BIC, " ", 0.5 );
+        stream.onField( BIC, null, 0.5 );
+        stream.onField( IBAN, "FR77", 0.7 );
+
+        assertEquals( Arrays.asList( "iban=FR76", "iban=FR77" ), listener._listEvents );
+    }
+
+    /**
+     * The completion corrects the fields sent with another value, sends the fields not sent yet and retracts the fields the result does not hold.
+     */
+    public void testCorrection( )
+    {
+        RecordingListener listener = new RecordingListener( );
+        OcrResultStream stream = new OcrResultStream( listener );
+        stream.onField( IBAN, "LOSER", 0.9 );
+        stream.onField( NAME, "DUPONT", 0.9 );
+
+        Map<String, String> mapResults = new LinkedHashMap<>( );
+        mapResults.put( IBAN, "WINNER" );
+        mapResults.put( BIC, "BNPAFRPP" );
+        mapResults.put( NAME, "" );
+        stream.onComplete( mapResults );
+
+        assertEquals( Arrays.asList( "iban=LOSER", "name=DUPONT", "iban=WINNER", "bic=BNPAFRPP", "name=null", "complete" ), listener._listEvents );
+    }
+
+    /**
+     * Exactly one of the completion and the failure is sent, and no field after it.
+     */
+    public void testSingleTerminal( )
+    {
+        RecordingListener listener = new RecordingListener( );
+        OcrResultStream stream = new OcrResultStream( listener );
+        stream.onComplete( new LinkedHashMap<>( ) );
+        stream.onError( new OcrException( "late failure" ) );
+        stream.onComplete( new LinkedHashMap<>( ) );
+        stream.onField( IBAN, "FR76", 0.9 );
+        assertEquals( Arrays.asList( "complete" ), listener._listEvents );
+
+        listener = new RecordingListener( );
+        stream = new OcrResultStream( listener );
+        stream.onError( new OcrException( "failure" ) );
+        stream.onError( new OcrException( "second failure" ) );
+        stream.onComplete( new LinkedHashMap<>( ) );
+        assertEquals( Arrays.asList( "error=failure" ), listener._listEvents );
+    }
+
+    /**
+     * Listener recording the calls.
+     */
+    private static final class RecordingListener implements OcrResultListener
+    {
+        private final List<String> _listEvents = new ArrayList<>( );
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onField( String strKey, String strValue, double dConfidence )
+        {
+            _listEvents.add( strKey + "=" + strValue );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isCancelled( )
+        {
+            return false;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onComplete( Map<String, String> mapResults )
+        {
+            _listEvents.add( "complete" );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onError( OcrException exception )
+        {
+            _listEvents.add( "error=" + exception.getMessage( ) );
+        }
+    }
+
+}
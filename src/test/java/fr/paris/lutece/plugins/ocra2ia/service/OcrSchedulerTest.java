@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrDeadlineExceededException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the order in which the scheduler serves the priority classes.
+ *
+ */
+public class OcrSchedulerTest extends LuteceTestCase
+{
+
+    private static final long TIMEOUT = 10000L;
+
+    /**
+     * Without bulk share, the waiting interactive requests are all served before the bulk requests queued before them.
+     */
+    public void testPriorityOrder( ) throws Exception
+    {
+        OcrScheduler scheduler = new OcrScheduler( 1, 0, TIMEOUT, TIMEOUT );
+        List<OcrPriority> listServed = Collections.synchronizedList( new ArrayList<>( ) );
+
+        scheduler.acquire( OcrPriority.INTERACTIVE, OcrDeadline.none( ) );
+        List<Thread> listThreads = new ArrayList<>( );
+        listThreads.addAll( queue( scheduler, OcrPriority.BULK, 2, listServed ) );
+        listThreads.addAll( queue( scheduler, OcrPriority.INTERACTIVE, 2, listServed ) );
+        scheduler.release( OcrPriority.INTERACTIVE );
+        join( listThreads );
+
+        assertEquals( Arrays.asList( OcrPriority.INTERACTIVE, OcrPriority.INTERACTIVE, OcrPriority.BULK, OcrPriority.BULK ), listServed );
+    }
+
+    /**
+     * With a bulk share of 20 percent, a waiting bulk request is served after 4 interactive requests in a row.
+     */
+    public void testStarvationProtection( ) throws Exception
+    {
+        OcrScheduler scheduler = new OcrScheduler( 1, 20, TIMEOUT, TIMEOUT );
+        List<OcrPriority> listServed = Collections.synchronizedList( new ArrayList<>( ) );
+
+        scheduler.acquire( OcrPriority.INTERACTIVE, OcrDeadline.none( ) );
+        List<Thread> listThreads = new ArrayList<>( );
+        listThreads.addAll( queue( scheduler, OcrPriority.BULK, 1, listServed ) );
+        listThreads.addAll( queue( scheduler, OcrPriority.INTERACTIVE, 6, listServed ) );
+        scheduler.release( OcrPriority.INTERACTIVE );
+        join( listThreads );
+
+        assertEquals( Arrays.asList( OcrPriority.INTERACTIVE, OcrPriority.INTERACTIVE, OcrPriority.INTERACTIVE, OcrPriority.INTERACTIVE,
+                OcrPriority.BULK, OcrPriority.INTERACTIVE, OcrPriority.INTERACTIVE ), listServed );
+    }
+
+    /**
+     * A request waiting longer than the maximum queue wait of its class is refused and leaves the queue; when the time budget of the request is
+     * spent first, the refusal is a deadline one.
+     */
+    public void testQueueTimeout( ) throws Exception
+    {
+        OcrScheduler scheduler = new OcrScheduler( 1, 20, 100L, TIMEOUT );
+        scheduler.acquire( OcrPriority.BULK, OcrDeadline.none( ) );
+
+        long lStart = System.currentTimeMillis( );
+        try
+        {
+            scheduler.acquire( OcrPriority.INTERACTIVE, OcrDeadline.none( ) );
+            fail( "the request must not wait longer than the queue timeout" );
+        }
+        catch( OcrDeadlineExceededException e )
+        {
+            fail( "the time budget of the request is not spent" );
+        }
+        catch( OcrException e )
+        {
+            assertTrue( System.currentTimeMillis( ) - lStart >= 100L );
+        }
+        assertEquals( 0, scheduler.getQueueLength( OcrPriority.INTERACTIVE ) );
+
+        try
+        {
+            scheduler.acquire( OcrPriority.BULK, OcrDeadline.after( 100L ) );
+            fail( "the request must not wait longer than its time budget" );
+        }
+        catch( OcrDeadlineExceededException e )
+        {
+            assertEquals( 0, scheduler.getQueueLength( OcrPriority.BULK ) );
+        }
+        assertEquals( 1, scheduler.getRunning( OcrPriority.BULK ) );
+        assertEquals( 0, scheduler.getRunning( OcrPriority.INTERACTIVE ) );
+    }
+
+    /**
+     * Queue requests of a class, each recording its class once served and giving back its slot at once.
+     *
+     * @param scheduler
+     *            the scheduler
+     * @param priority
+     *            priority class of the requests
+     * @param nRequests
+     *            number of requests
+     * @param listServed
+     *            classes of the requests in the order they are served
+     * @return the threads of the requests
+     * @throws InterruptedException
+     *             if interrupted while waiting for the requests to be queued
+     */
+    private static List<Thread> queue( OcrScheduler scheduler, OcrPriority priority, int nRequests, List<OcrPriority> listServed )
+            throws InterruptedException
+    {
+        List<Thread> listThreads = new ArrayList<>( );
+        int nQueued = scheduler.getQueueLength( priority );
+        for ( int i = 0; i < nRequests; i++ )
+        {
+            Thread thread = new Thread( ( ) -> {
+                try
+                {
+                    scheduler.acquire( priority, OcrDeadline.none( ) );
+                    // the slot is held while recording, so the order of the list is the order of service
+                    listServed.add( priority );
+                    scheduler.release( priority );
+                }
+                catch( OcrException e )
+                {
+                    listServed.add( null );
+                }
+            } );
+            thread.start( );
+            listThreads.add( thread );
+        }
+        while ( scheduler.getQueueLength( priority ) < nQueued + nRequests )
+        {
+            Thread.sleep( 5L );
+        }
+
+        return listThreads;
+    }
+
+    /**
+     * Wait for the end of the requests.
+     *
+     * @param listThreads
+     *            the threads of the requests
+     * @throws InterruptedException
+     *             if interrupted
+     */
+    private static void join( List<Thread> listThreads ) throws InterruptedException
+    {
+        for ( Thread thread : listThreads )
+        {
+            thread.join( TIMEOUT );
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the merge of the results of the images of a multi-image document.
+ *
+ */
+public class OcrServiceTest extends LuteceTestCase
+{
+
+    private static final String FIRST_NAME = "First Name";
+    private static final String ADDRESS = "Address";
+    private static final String OTHER = "Other";
+    private static final String ONLY_VERSO = "Only verso";
+
+    /**
+     * The fields listed for an image by the rules of the document type (ocra2ia.merge.fields.identity.1 and .2) are taken from it, the other fields
+     * from the first image holding them.
+     */
+    public void testMergeByRules( )
+    {
+        Map<String, String> mapRecto = new HashMap<>( );
+        mapRecto.put( FIRST_NAME, "Jean" );
+        mapRecto.put( ADDRESS, "read on the recto" );
+        mapRecto.put( OTHER, "recto" );
+        Map<String, String> mapVerso = new HashMap<>( );
+        mapVerso.put( FIRST_NAME, "read on the verso" );
+        mapVerso.put( ADDRESS, "1 rue de Rivoli" );
+        mapVerso.put( OTHER, "verso" );
+        mapVerso.put( ONLY_VERSO, "verso" );
+
+        Map<String, String> mapMerged = OcrService.mergeResults( "Identity", Arrays.asList( mapRecto, mapVerso ) );
+
+        assertEquals( "Jean", mapMerged.get( FIRST_NAME ) );
+        assertEquals( "1 rue de Rivoli", mapMerged.get( ADDRESS ) );
+        assertEquals( "recto", mapMerged.get( OTHER ) );
+        assertEquals( "verso", mapMerged.get( ONLY_VERSO ) );
+        assertEquals( 4, mapMerged.size( ) );
+    }
+
+    /**
+     * A field listed for an image but missing from it is taken from the first other image holding it.
+     */
+    public void testMergeMissingRuleField( )
+    {
+        Map<String, String> mapRecto = new HashMap<>( );
+        mapRecto.put( ADDRESS, "read on the recto" );
+        Map<String, String> mapVerso = new HashMap<>( );
+        mapVerso.put( FIRST_NAME, "Jean" );
+
+        Map<String, String> mapMerged = OcrService.mergeResults( "Identity", Arrays.asList( mapRecto, mapVerso ) );
+
+        assertEquals( "Jean", mapMerged.get( FIRST_NAME ) );
+        assertEquals( "read on the recto", mapMerged.get( ADDRESS ) );
+    }
+
+    /**
+     * Without rules for the document type, each field is taken from the first image holding it.
+     */
+    public void testMergeWithoutRules( )
+    {
+        Map<String, String> mapFirst = new HashMap<>( );
+        mapFirst.put( ADDRESS, "first" );
+        Map<String, String> mapSecond = new HashMap<>( );
+        mapSecond.put( ADDRESS, "second" );
+        mapSecond.put( OTHER, "second" );
+
+        Map<String, String> mapMerged = OcrService.mergeResults( "Rib", Arrays.asList( mapFirst, mapSecond ) );
+
+        assertEquals( "first", mapMerged.get( ADDRESS ) );
+        assertEquals( "second", mapMerged.get( OTHER ) );
+    }
+
+}
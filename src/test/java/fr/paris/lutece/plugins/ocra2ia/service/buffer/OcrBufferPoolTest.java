@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.buffer;
+
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the size classes and of the reuse of the pooled arrays.
+ *
+ */
+public class OcrBufferPoolTest extends LuteceTestCase
+{
+
+    private static final int SMALLEST_CLASS = 65536;
+
+    private final OcrBufferPool _pool = OcrBufferPool.getInstance( );
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp( ) throws Exception
+    {
+        super.setUp( );
+        _pool.clear( );
+    }
+
+    /**
+     * The arrays are the smallest power of two holding the requested size, 64 KB at least.
+     */
+    public void testSizeClasses( )
+    {
+        assertSizeClass( 1, SMALLEST_CLASS );
+        assertSizeClass( SMALLEST_CLASS, SMALLEST_CLASS );
+        assertSizeClass( SMALLEST_CLASS + 1, 2 * SMALLEST_CLASS );
+        assertSizeClass( 1000000, 1048576 );
+        assertSizeClass( 1048576, 1048576 );
+    }
+
+    /**
+     * An array given back serves the next request of its size class, and is kept by the pool until then.
+     */
+    public void testReuse( )
+    {
+        byte [ ] buffer = _pool.acquire( 100000 );
+        _pool.release( buffer );
+        assertEquals( buffer.length, _pool.getRetainedBytes( ) );
+
+        assertSame( buffer, _pool.acquire( 70000 ) );
+        assertEquals( 0, _pool.getRetainedBytes( ) );
+        assertNotSame( buffer, _pool.acquire( 70000 ) );
+        _pool.release( buffer );
+
+        // another size class is not served by the array
+        assertNotSame( buffer, _pool.acquire( 10 ) );
+    }
+
+    /**
+     * An array released twice, or never lent by the pool, is not handed to a later holder.
+     */
+    public void testDoubleRelease( )
+    {
+        byte [ ] buffer = _pool.acquire( SMALLEST_CLASS );
+        _pool.release( buffer );
+        _pool.release( buffer );
+        assertEquals( SMALLEST_CLASS, _pool.getRetainedBytes( ) );
+
+        byte [ ] first = _pool.acquire( SMALLEST_CLASS );
+        byte [ ] second = _pool.acquire( SMALLEST_CLASS );
+        assertSame( buffer, first );
+        assertNotSame( first, second );
+
+        byte [ ] foreign = new byte [ SMALLEST_CLASS];
+        _pool.release( foreign );
+        assertEquals( 0, _pool.getRetainedBytes( ) );
+        assertNotSame( foreign, _pool.acquire( SMALLEST_CLASS ) );
+    }
+
+    /**
+     * Check the length of the array acquired for a size, and give it back.
+     *
+     * @param nSize
+     *            requested size
+     * @param nExpectedLength
+     *            expected length of the array
+     */
+    private void assertSizeClass( int nSize, int nExpectedLength )
+    {
+        byte [ ] buffer = _pool.acquire( nSize );
+        assertEquals( nExpectedLength, buffer.length );
+        _pool.release( buffer );
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.cache;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import fr.paris.lutece.plugins.ocra2ia.service.OcrMetricsService;
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the disk cache of the OCR results, in a temporary directory.
+ *
+ */
+public class OcrResultCacheTest extends LuteceTestCase
+{
+
+    private static final String DOCUMENT_TYPE = "Rib";
+    private static final String FIELD = "iban";
+    private static final String FILE_LOG = "results.log";
+    private static final long TTL = 3600000L;
+    private static final long MAX_BYTES = 1048576L;
+    private static final int SLOTS = 1024;
+    private static final SecretKey SECRET_KEY = new SecretKeySpec( new byte [ 16], "AES" );
+
+    private Path _directory;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp( ) throws Exception
+    {
+        super.setUp( );
+        _directory = Files.createTempDirectory( "ocra2ia-cache-test" );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown( ) throws Exception
+    {
+        try ( Stream<Path> stream = Files.walk( _directory ) )
+        {
+            stream.sorted( Comparator.reverseOrder( ) ).forEach( path -> path.toFile( ).delete( ) );
+        }
+        super.tearDown( );
+    }
+
+    /**
+     * A stored result is found by its key, replaced by the next result of the same key, and the other keys are not found.
+     */
+    public void testPutGet( ) throws IOException
+    {
+        OcrResultCache cache = new OcrResultCache( _directory, TTL, MAX_BYTES, SLOTS, SECRET_KEY );
+        byte [ ] key = key( 1 );
+
+        assertNull( cache.get( key ) );
+        cache.put( key, result( "FR76" ) );
+        assertEquals( result( "FR76" ), cache.get( key ) );
+        cache.put( key, result( "FR77" ) );
+        assertEquals( result( "FR77" ), cache.get( key ) );
+        assertEquals( 1, cache.getCount( ) );
+
+        assertNull( cache.get( key( 2 ) ) );
+        assertNull( cache.get( OcrResultCache.key( document( 1 ), "TaxAssessment" ) ) );
+        cache.close( );
+    }
+
+    /**
+     * An expired result is not returned.
+     */
+    public void testExpired( ) throws Exception
+    {
+        OcrResultCache cache = new OcrResultCache( _directory, 20L, MAX_BYTES, SLOTS, SECRET_KEY );
+        cache.put( key( 1 ), result( "FR76" ) );
+        Thread.sleep( 50L );
+
+        assertNull( cache.get( key( 1 ) ) );
+        cache.close( );
+    }
+
+    /**
+     * The results are kept across a restart, and a record truncated by a crash is cut off.
+     */
+    public void testRestart( ) throws IOException
+    {
+        OcrResultCache cache = new OcrResultCache( _directory, TTL, MAX_BYTES, SLOTS, SECRET_KEY );
+        cache.put( key( 1 ), result( "FR76" ) );
+        cache.put( key( 2 ), result( "FR77" ) );
+        cache.close( );
+        long lSize = Files.size( _directory.resolve( FILE_LOG ) );
+        Files.write( _directory.resolve( FILE_LOG ), new byte [ ] {
+                0x4F, 0x43, 0x52
+        }, StandardOpenOption.APPEND );
+
+        cache = new OcrResultCache( _directory, TTL, MAX_BYTES, SLOTS, SECRET_KEY );
+        assertEquals( lSize, Files.size( _directory.resolve( FILE_LOG ) ) );
+        assertEquals( 2, cache.getCount( ) );
+        assertEquals( result( "FR76" ), cache.get( key( 1 ) ) );
+        assertEquals( result( "FR77" ), cache.get( key( 2 ) ) );
+        cache.close( );
+    }
+
+    /**
+     * The results encrypted with another key are not returned.
+     */
+    public void testWrongKey( ) throws IOException
+    {
+        OcrResultCache cache = new OcrResultCache( _directory, TTL, MAX_BYTES, SLOTS, SECRET_KEY );
+        cache.put( key( 1 ), result( "FR76" ) );
+        cache.close( );
+
+        long lCorrupt = OcrMetricsService.getInstance( ).getCounter( "cache.corrupt" );
+        byte [ ] otherKey = new byte [ 16];
+        otherKey [0] = 1;
+        cache = new OcrResultCache( _directory, TTL, MAX_BYTES, SLOTS, new SecretKeySpec( otherKey, "AES" ) );
+        assertNull( cache.get( key( 1 ) ) );
+        assertEquals( lCorrupt + 1, OcrMetricsService.getInstance( ).getCounter( "cache.corrupt" ) );
+        cache.close( );
+    }
+
+    /**
+     * When the log is full, the oldest results are dropped and the log is rewritten within its maximum size.
+     */
+    public void testCompaction( ) throws IOException
+    {
+        long lMaxBytes = 4096L;
+        OcrResultCache cache = new OcrResultCache( _directory, TTL, lMaxBytes, SLOTS, SECRET_KEY );
+        long lCompactions = OcrMetricsService.getInstance( ).getCounter( "cache.compaction" );
+        int nResults = 100;
+        for ( int i = 0; i < nResults; i++ )
+        {
+            cache.put( key( i ), result( "FR" + i ) );
+            assertTrue( Files.size( _directory.resolve( FILE_LOG ) ) <= lMaxBytes );
+        }
+
+        assertTrue( OcrMetricsService.getInstance( ).getCounter( "cache.compaction" ) > lCompactions );
+        assertTrue( cache.getCount( ) < nResults );
+        assertNull( cache.get( key( 0 ) ) );
+        assertEquals( result( "FR" + ( nResults - 1 ) ), cache.get( key( nResults - 1 ) ) );
+        cache.close( );
+
+        cache = new OcrResultCache( _directory, TTL, lMaxBytes, SLOTS, SECRET_KEY );
+        assertEquals( result( "FR" + ( nResults - 1 ) ), cache.get( key( nResults - 1 ) ) );
+        cache.close( );
+    }
+
+    /**
+     * @param nDocument
+     *            number of the document
+     * @return the content of the document
+     */
+    private static byte [ ] document( int nDocument )
+    {
+        return ( "document " + nDocument ).getBytes( StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * @param nDocument
+     *            number of the document
+     * @return the key of the document
+     */
+    private static byte [ ] key( int nDocument )
+    {
+        return OcrResultCache.key( document( nDocument ), DOCUMENT_TYPE );
+    }
+
+    /**
+     * @param strValue
+     *            value of the field
+     * @return the result
+     */
+    private static Map<String, String> result( String strValue )
+    {
+        return Collections.singletonMap( FIELD, strValue );
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.engine;
+
+import java.util.Arrays;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the selection of the A2ia endpoints, of their ejection after consecutive failures and of their recovery probe.
+ *
+ */
+public class EngineEndpointPoolTest extends LuteceTestCase
+{
+
+    private static final String HOST_1 = "host1";
+    private static final String HOST_2 = "host2";
+    private static final String PORT = "8080";
+
+    /**
+     * The endpoint with the lowest load by weight is selected, up to its concurrency limit.
+     *
+     * @throws OcrException
+     *             if no endpoint is available
+     */
+    public void testSelectionByWeight( ) throws OcrException
+    {
+        EngineEndpoint endpoint1 = new EngineEndpoint( HOST_1, PORT, 2, 4 );
+        EngineEndpoint endpoint2 = new EngineEndpoint( HOST_2, PORT, 1, 4 );
+        EngineEndpointPool pool = new EngineEndpointPool( Arrays.asList( endpoint1, endpoint2 ) );
+
+        assertSame( endpoint1, pool.acquire( 0 ) );
+        pool.acquire( 0 );
+        pool.acquire( 0 );
+
+        assertEquals( 2, endpoint1.getOutstanding( ) );
+        assertEquals( 1, endpoint2.getOutstanding( ) );
+
+        pool.release( endpoint1, true, 10 );
+        assertEquals( 1, endpoint1.getOutstanding( ) );
+    }
+
+    /**
+     * An endpoint at its concurrency limit is not selected, and the acquisition fails after its timeout.
+     *
+     * @throws OcrException
+     *             if no endpoint is available for the first acquisition
+     */
+    public void testConcurrencyLimit( ) throws OcrException
+    {
+        EngineEndpoint endpoint = new EngineEndpoint( HOST_1, PORT, 1, 1 );
+        EngineEndpointPool pool = new EngineEndpointPool( Arrays.asList( endpoint ) );
+
+        assertSame( endpoint, pool.acquire( 0 ) );
+        assertNull( pool.tryAcquire( null ) );
+        try
+        {
+            pool.acquire( 50 );
+            fail( "No endpoint should be available" );
+        }
+        catch( OcrException e )
+        {
+            assertEquals( 1, endpoint.getOutstanding( ) );
+        }
+
+        pool.release( endpoint, true, 10 );
+        assertSame( endpoint, pool.tryAcquire( null ) );
+    }
+
+    /**
+     * The hedge attempt avoids the endpoint of the primary attempt, unless it is the only one available.
+     */
+    public void testTryAcquireAvoidsEndpoint( )
+    {
+        EngineEndpoint endpoint1 = new EngineEndpoint( HOST_1, PORT, 1, 2 );
+        EngineEndpoint endpoint2 = new EngineEndpoint( HOST_2, PORT, 1, 1 );
+        EngineEndpointPool pool = new EngineEndpointPool( Arrays.asList( endpoint1, endpoint2 ) );
+
+        assertSame( endpoint2, pool.tryAcquire( endpoint1 ) );
+        assertSame( endpoint1, pool.tryAcquire( endpoint1 ) );
+    }
+
+    /**
+     * An endpoint is ejected after consecutive failures, probed at the end of its ejection, and healthy again after a successful probe.
+     *
+     * @throws OcrException
+     *             if no endpoint is available
+     */
+    public void testEjectionAndProbe( ) throws OcrException
+    {
+        EngineEndpoint endpoint1 = new EngineEndpoint( HOST_1, PORT, 1, 1 );
+        EngineEndpoint endpoint2 = new EngineEndpoint( HOST_2, PORT, 1, 1 );
+        EngineEndpointPool pool = new EngineEndpointPool( Arrays.asList( endpoint1, endpoint2 ) );
+        int nEjectFailures = Math.max( 1, AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_SERVER_EJECT_FAILURES, 3 ) );
+
+        failUntilEjected( pool, endpoint1, nEjectFailures );
+        assertEquals( EngineEndpoint.State.EJECTED, endpoint1.getState( ) );
+        assertEquals( 1, endpoint1.getEjections( ) );
+        assertTrue( endpoint1.getEjectedUntil( ) > System.currentTimeMillis( ) );
+
+        // the ejected endpoint is never selected
+        for ( int i = 0; i < 3; i++ )
+        {
+            EngineEndpoint endpoint = pool.acquire( 0 );
+            assertSame( endpoint2, endpoint );
+            pool.release( endpoint, true, 10 );
+        }
+
+        // at the end of the ejection, the endpoint is selected first, as a single probe
+        endpoint1.setEjectedUntil( System.currentTimeMillis( ) - 1 );
+        assertSame( endpoint1, pool.acquire( 0 ) );
+        assertEquals( EngineEndpoint.State.PROBING, endpoint1.getState( ) );
+        assertSame( endpoint2, pool.tryAcquire( null ) );
+        pool.release( endpoint2, true, 10 );
+        assertSame( endpoint2, pool.tryAcquire( null ) );
+        pool.release( endpoint2, true, 10 );
+
+        pool.release( endpoint1, true, 10 );
+        assertEquals( EngineEndpoint.State.HEALTHY, endpoint1.getState( ) );
+        assertEquals( 0, endpoint1.getEjections( ) );
+        assertEquals( 0, endpoint1.getConsecutiveFailures( ) );
+    }
+
+    /**
+     * A failed probe ejects the endpoint again, for twice the duration.
+     *
+     * @throws OcrException
+     *             if no endpoint is available
+     */
+    public void testFailedProbe( ) throws OcrException
+    {
+        EngineEndpoint endpoint = new EngineEndpoint( HOST_1, PORT, 1, 1 );
+        EngineEndpointPool pool = new EngineEndpointPool( Arrays.asList( endpoint ) );
+        int nEjectFailures = Math.max( 1, AppPropertiesService.getPropertyInt( OcrConstants.PROPERTY_SERVER_EJECT_FAILURES, 3 ) );
+        long lEjectDuration = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_SERVER_EJECT_DURATION, 30000L );
+        long lEjectMaxDuration = AppPropertiesService.getPropertyLong( OcrConstants.PROPERTY_SERVER_EJECT_MAX_DURATION, 300000L );
+
+        failUntilEjected( pool, endpoint, nEjectFailures );
+        try
+        {
+            pool.acquire( 1000 );
+            fail( "The only endpoint is ejected" );
+        }
+        catch( OcrException e )
+        {
+            // no wait when all the endpoints are ejected
+        }
+
+        endpoint.setEjectedUntil( System.currentTimeMillis( ) - 1 );
+        assertSame( endpoint, pool.acquire( 0 ) );
+        long lBefore = System.currentTimeMillis( );
+        pool.release( endpoint, false, 10 );
+
+        assertEquals( EngineEndpoint.State.EJECTED, endpoint.getState( ) );
+        assertEquals( 2, endpoint.getEjections( ) );
+        assertTrue( endpoint.getEjectedUntil( ) >= lBefore + Math.min( lEjectMaxDuration, 2 * lEjectDuration ) );
+    }
+
+    /**
+     * The snapshot copies the state of the endpoints and does not follow their later changes.
+     */
+    public void testSnapshot( )
+    {
+        EngineEndpoint endpoint = new EngineEndpoint( HOST_1, PORT, 2, 3 );
+        EngineEndpointPool pool = new EngineEndpointPool( Arrays.asList( endpoint ) );
+
+        assertSame( endpoint, pool.tryAcquire( null ) );
+        pool.release( pool.tryAcquire( null ), false, 10 );
+        EngineEndpoint snapshot = pool.getEndpointsSnapshot( ).get( 0 );
+
+        assertNotSame( endpoint, snapshot );
+        assertEquals( endpoint.getName( ), snapshot.getName( ) );
+        assertEquals( 3, snapshot.getMaxConcurrency( ) );
+        assertEquals( 1, snapshot.getOutstanding( ) );
+        assertEquals( 1, snapshot.getConsecutiveFailures( ) );
+        assertEquals( EngineEndpoint.State.HEALTHY, snapshot.getState( ) );
+
+        pool.release( endpoint, true, 10 );
+        assertEquals( 0, endpoint.getOutstanding( ) );
+        assertEquals( 1, snapshot.getOutstanding( ) );
+    }
+
+    /**
+     * Make an endpoint fail until it is ejected.
+     *
+     * @param pool
+     *            the pool
+     * @param endpoint
+     *            the endpoint
+     * @param nEjectFailures
+     *            number of consecutive failures ejecting an endpoint
+     * @throws OcrException
+     *             if the endpoint is not available
+     */
+    private static void failUntilEjected( EngineEndpointPool pool, EngineEndpoint endpoint, int nEjectFailures ) throws OcrException
+    {
+        for ( int i = 0; i < nEjectFailures; i++ )
+        {
+            assertEquals( EngineEndpoint.State.HEALTHY, endpoint.getState( ) );
+            EngineEndpoint endpointAcquired = pool.tryAcquire( null );
+            while ( endpointAcquired != endpoint )
+            {
+                pool.release( endpointAcquired, true, 10 );
+                endpointAcquired = pool.tryAcquire( null );
+            }
+            pool.release( endpoint, false, 10 );
+        }
+    }
+
+}
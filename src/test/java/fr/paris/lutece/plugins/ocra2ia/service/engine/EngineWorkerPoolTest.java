@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import fr.paris.lutece.plugins.ocra2ia.business.ImageBean;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrDeadline;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the hand-off of the engine attempts to the workers of their endpoint, and of the failures of an attempt.
+ *
+ */
+public class EngineWorkerPoolTest extends LuteceTestCase
+{
+
+    private static final String DOCUMENT_TYPE = "Rib";
+    private static final String TBL_DOCUMENT_PATH = "rib.tbl";
+    private static final String THREAD_NAME_PREFIX = "ocra2ia-engine-";
+    private static final long TIMEOUT = 10;
+
+    /**
+     * The attempts are run one after the other by the worker of the endpoint, which creates its engine and opens its channel once.
+     *
+     * @throws Exception
+     *             if an attempt fails
+     */
+    public void testHandOff( ) throws Exception
+    {
+        EngineEndpoint endpoint = new EngineEndpoint( "handoff", "", 1, 1 );
+        EngineEndpointPool endpointPool = new EngineEndpointPool( Collections.singletonList( endpoint ) );
+        List<String> listEngineThreads = Collections.synchronizedList( new ArrayList<>( ) );
+        AtomicInteger nChannels = new AtomicInteger( );
+        EngineWorkerPool workerPool = new EngineWorkerPool( Collections.singletonList( endpoint ), ( ) -> {
+            listEngineThreads.add( Thread.currentThread( ).getName( ) );
+
+            return new StubA2iaEngine( )
+            {
+                @Override
+                public long openChannel( EngineEndpoint endpointChannel, long lTimeoutMs ) throws OcrException
+                {
+                    nChannels.incrementAndGet( );
+
+                    return super.openChannel( endpointChannel, lTimeoutMs );
+                }
+            };
+        } );
+
+        try
+        {
+            BlockingQueue<Future<List<Map<String, String>>>> queueCompleted = new LinkedBlockingQueue<>( );
+            Future<List<Map<String, String>>> future1 = workerPool.submit( createAttempt( endpointPool ), queueCompleted );
+            Future<List<Map<String, String>>> future2 = workerPool.submit( createAttempt( endpointPool ), queueCompleted );
+
+            for ( Future<List<Map<String, String>>> future : Arrays.asList( future1, future2 ) )
+            {
+                Map<String, String> mapResults = future.get( TIMEOUT, TimeUnit.SECONDS ).get( 0 );
+                assertEquals( DOCUMENT_TYPE, mapResults.get( "stub.documentType" ) );
+                assertEquals( TBL_DOCUMENT_PATH, mapResults.get( "stub.tbl" ) );
+                assertEquals( endpoint.getName( ), mapResults.get( "stub.endpoint" ) );
+            }
+            assertSame( future1, queueCompleted.poll( TIMEOUT, TimeUnit.SECONDS ) );
+            assertSame( future2, queueCompleted.poll( TIMEOUT, TimeUnit.SECONDS ) );
+
+            assertEquals( 1, listEngineThreads.size( ) );
+            assertTrue( listEngineThreads.get( 0 ).startsWith( THREAD_NAME_PREFIX ) );
+            assertEquals( 1, nChannels.get( ) );
+            assertEquals( 0, endpoint.getOutstanding( ) );
+        }
+        finally
+        {
+            workerPool.shutdown( );
+        }
+    }
+
+    /**
+     * A failed attempt fails its future and its endpoint, closes the channel of the worker, and the worker runs the next attempt, even after an error.
+     *
+     * @throws Exception
+     *             if the attempt following the failures fails
+     */
+    public void testFailure( ) throws Exception
+    {
+        EngineEndpoint endpoint = new EngineEndpoint( "failure", "", 1, 1 );
+        EngineEndpointPool endpointPool = new EngineEndpointPool( Collections.singletonList( endpoint ) );
+        AtomicInteger nCalls = new AtomicInteger( );
+        AtomicInteger nClosedChannels = new AtomicInteger( );
+        Supplier<IA2iaEngine> engineFactory = ( ) -> new StubA2iaEngine( )
+        {
+            @Override
+            public long getResult( long lChannelId, long lRequestId, long lTimeoutMs ) throws OcrException
+            {
+                int nCall = nCalls.incrementAndGet( );
+                if ( nCall == 1 )
+                {
+                    throw new OcrException( "engine failure" );
+                }
+                if ( nCall == 2 )
+                {
+                    throw new NoClassDefFoundError( "com/jacob/com/Dispatch" );
+                }
+
+                return super.getResult( lChannelId, lRequestId, lTimeoutMs );
+            }
+
+            @Override
+            public void closeChannel( long lChannelId )
+            {
+                nClosedChannels.incrementAndGet( );
+                super.closeChannel( lChannelId );
+            }
+        };
+        EngineWorkerPool workerPool = new EngineWorkerPool( Collections.singletonList( endpoint ), engineFactory );
+
+        try
+        {
+            Throwable failure = getFailure( workerPool.submit( createAttempt( endpointPool ), null ) );
+            assertTrue( failure instanceof OcrException );
+            assertEquals( "engine failure", failure.getMessage( ) );
+            assertEquals( 1, endpoint.getConsecutiveFailures( ) );
+            assertEquals( 1, nClosedChannels.get( ) );
+
+            assertTrue( getFailure( workerPool.submit( createAttempt( endpointPool ), null ) ) instanceof NoClassDefFoundError );
+            assertEquals( 2, endpoint.getConsecutiveFailures( ) );
+
+            Map<String, String> mapResults = workerPool.submit( createAttempt( endpointPool ), null ).get( TIMEOUT, TimeUnit.SECONDS ).get( 0 );
+            assertEquals( DOCUMENT_TYPE, mapResults.get( "stub.documentType" ) );
+            assertEquals( 0, endpoint.getConsecutiveFailures( ) );
+            assertEquals( 0, endpoint.getOutstanding( ) );
+        }
+        finally
+        {
+            workerPool.shutdown( );
+        }
+    }
+
+    /**
+     * When the workers stop, the running attempt is interrupted and the attempts waiting in the queue fail, all of them giving back their endpoint.
+     *
+     * @throws Exception
+     *             if the wait of an attempt is interrupted
+     */
+    public void testShutdown( ) throws Exception
+    {
+        EngineEndpoint endpoint = new EngineEndpoint( "shutdown", "", 1, 1 );
+        EngineEndpointPool endpointPool = new EngineEndpointPool( Collections.singletonList( endpoint ) );
+        EngineWorkerPool workerPool = new EngineWorkerPool( Collections.singletonList( endpoint ), StubA2iaEngine::new );
+
+        Future<List<Map<String, String>>> future1 = workerPool.submit( createAttempt( endpointPool ), null );
+        Future<List<Map<String, String>>> future2 = workerPool.submit( createAttempt( endpointPool ), null );
+        workerPool.shutdown( );
+
+        assertTrue( getFailure( future1 ) instanceof OcrException );
+        Throwable failure = getFailure( future2 );
+        assertTrue( failure instanceof OcrException );
+        assertEquals( "OCR engine workers stopped", failure.getMessage( ) );
+        assertEquals( 0, endpoint.getOutstanding( ) );
+    }
+
+    /**
+     * Create an attempt reading a document. Its endpoint is reserved as by the pool, but over its concurrency limit, so that attempts wait in the
+     * queue of the worker.
+     *
+     * @param endpointPool
+     *            the pool of the endpoint
+     * @return the attempt
+     */
+    private static EngineAttempt createAttempt( EngineEndpointPool endpointPool )
+    {
+        ImageBean imageBean = new ImageBean( );
+        imageBean.setContent( new byte [ 10] );
+        EngineRequest request = new EngineRequest( DOCUMENT_TYPE, TBL_DOCUMENT_PATH, imageBean, null );
+        EngineEndpoint endpoint = endpointPool.getEndpoints( ).get( 0 );
+        synchronized( endpointPool )
+        {
+            endpoint.setOutstanding( endpoint.getOutstanding( ) + 1 );
+        }
+
+        return new EngineAttempt( endpoint, endpointPool, Collections.singletonList( request ), OcrConstants.OCR_MODE_MEMORY, OcrDeadline.none( ),
+                new AtomicReference<>( ) );
+    }
+
+    /**
+     * Wait for an attempt expected to fail.
+     *
+     * @param future
+     *            future of the attempt
+     * @return the failure of the attempt
+     * @throws Exception
+     *             if the wait is interrupted or times out
+     */
+    private static Throwable getFailure( Future<List<Map<String, String>>> future ) throws Exception
+    {
+        try
+        {
+            future.get( TIMEOUT, TimeUnit.SECONDS );
+            fail( "The attempt should fail" );
+
+            return null;
+        }
+        catch( ExecutionException e )
+        {
+            return e.getCause( );
+        }
+    }
+
+}
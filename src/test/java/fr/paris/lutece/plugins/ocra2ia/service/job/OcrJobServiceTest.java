@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.job;
+
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the check of the callback urls against the allowed urls.
+ *
+ */
+public class OcrJobServiceTest extends LuteceTestCase
+{
+
+    private static final String ALLOWED = "https://callback.example.org/ocr, http://intranet.example.org:8080/";
+
+    /**
+     * The urls with the scheme, host and port of an allowed url and a path below its path are allowed.
+     */
+    public void testAllowed( )
+    {
+        assertTrue( OcrJobService.isCallbackAllowed( "https://callback.example.org/ocr", ALLOWED ) );
+        assertTrue( OcrJobService.isCallbackAllowed( "https://callback.example.org/ocr/done?id=1", ALLOWED ) );
+        assertTrue( OcrJobService.isCallbackAllowed( "HTTPS://Callback.Example.org:443/ocr/done", ALLOWED ) );
+        assertTrue( OcrJobService.isCallbackAllowed( "http://intranet.example.org:8080/any/path", ALLOWED ) );
+    }
+
+    /**
+     * The urls of another host, or looking like an allowed host, are refused.
+     */
+    public void testRefusedHost( )
+    {
+        assertFalse( OcrJobService.isCallbackAllowed( "https://evil.example.com/ocr", ALLOWED ) );
+        assertFalse( OcrJobService.isCallbackAllowed( "https://callback.example.org.evil.com/ocr", ALLOWED ) );
+        assertFalse( OcrJobService.isCallbackAllowed( "https://callback.example.org@evil.com/ocr", ALLOWED ) );
+        assertFalse( OcrJobService.isCallbackAllowed( "https://user@callback.example.org/ocr", ALLOWED ) );
+        assertFalse( OcrJobService.isCallbackAllowed( "not an url", ALLOWED ) );
+    }
+
+    /**
+     * The urls of another scheme or port are refused.
+     */
+    public void testRefusedSchemeAndPort( )
+    {
+        assertFalse( OcrJobService.isCallbackAllowed( "http://callback.example.org/ocr", ALLOWED ) );
+        assertFalse( OcrJobService.isCallbackAllowed( "ftp://callback.example.org/ocr", ALLOWED ) );
+        assertFalse( OcrJobService.isCallbackAllowed( "file:///etc/passwd", ALLOWED ) );
+        assertFalse( OcrJobService.isCallbackAllowed( "https://callback.example.org:8443/ocr", ALLOWED ) );
+        assertFalse( OcrJobService.isCallbackAllowed( "http://intranet.example.org/any/path", ALLOWED ) );
+    }
+
+    /**
+     * The paths outside the allowed path are refused, and no url is allowed when the list is empty.
+     */
+    public void testRefusedPath( )
+    {
+        assertFalse( OcrJobService.isCallbackAllowed( "https://callback.example.org/ocrx", ALLOWED ) );
+        assertFalse( OcrJobService.isCallbackAllowed( "https://callback.example.org/admin", ALLOWED ) );
+        assertFalse( OcrJobService.isCallbackAllowed( "https://callback.example.org/ocr/../admin", ALLOWED ) );
+        assertFalse( OcrJobService.isCallbackAllowed( "https://callback.example.org/ocr", "" ) );
+        assertFalse( OcrJobService.isCallbackAllowed( "https://callback.example.org/ocr", null ) );
+    }
+
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.service.worker;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import fr.paris.lutece.plugins.ocra2ia.business.ImageBean;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrResultListener;
+import fr.paris.lutece.plugins.ocra2ia.service.engine.EngineEndpoint;
+import fr.paris.lutece.plugins.ocra2ia.service.engine.IA2iaEngine;
+import fr.paris.lutece.plugins.ocra2ia.service.engine.StubA2iaEngine;
+import fr.paris.lutece.plugins.ocra2ia.util.OcrConstants;
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the round trip of the engine calls between the webapp and a worker, the worker server running the stub engine in this JVM instead of a
+ * separate process.
+ *
+ */
+public class ProcessA2iaEngineTest extends LuteceTestCase
+{
+
+    private static final String TOKEN = UUID.randomUUID( ).toString( );
+    private static final String DOCUMENT_TYPE = "Rib";
+    private static final String TBL_DOCUMENT_PATH = "rib.tbl";
+    private static final long TIMEOUT = 10000;
+
+    private OcrWorkerServer _server;
+    private OcrWorkerProcessPool _processPool;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp( ) throws Exception
+    {
+        super.setUp( );
+        _server = new OcrWorkerServer( TOKEN, StubA2iaEngine::new );
+        Thread thread = new Thread( _server::serve, "ocra2ia-worker-test" );
+        thread.setDaemon( true );
+        thread.start( );
+        _processPool = new OcrWorkerProcessPool( TOKEN, _server.getPort( ) );
+    }
+
+    /**
+     * A document is read through the worker : the fields are streamed to the listener before the result.
+     *
+     * @throws OcrException
+     *             if a call fails
+     */
+    public void testRoundTrip( ) throws OcrException
+    {
+        ProcessA2iaEngine engine = new ProcessA2iaEngine( _processPool );
+        try
+        {
+            EngineEndpoint endpoint = new EngineEndpoint( "roundtrip", "", 1, 1 );
+            long lChannelId = engine.openChannel( endpoint, TIMEOUT );
+            ImageBean imageBean = createImage( 2048 );
+            long [ ] tabRequestIds = engine.openRequests( lChannelId, new String [ ] {
+                    TBL_DOCUMENT_PATH, TBL_DOCUMENT_PATH
+            }, new ImageBean [ ] {
+                    imageBean, imageBean
+            }, OcrConstants.OCR_MODE_MEMORY, TIMEOUT );
+            assertEquals( 2, tabRequestIds.length );
+
+            for ( long lRequestId : tabRequestIds )
+            {
+                long lResultId = waitResult( engine, lChannelId, lRequestId );
+                Map<String, String> mapFields = new LinkedHashMap<>( );
+                Map<String, String> mapResults = engine.getResults( DOCUMENT_TYPE, lResultId, new FieldCollector( mapFields ) );
+
+                assertEquals( DOCUMENT_TYPE, mapResults.get( "stub.documentType" ) );
+                assertEquals( TBL_DOCUMENT_PATH, mapResults.get( "stub.tbl" ) );
+                assertEquals( "2048", mapResults.get( "stub.imageSize" ) );
+                assertEquals( endpoint.getName( ), mapResults.get( "stub.endpoint" ) );
+                assertEquals( mapResults, mapFields );
+                engine.closeRequest( lRequestId );
+            }
+            engine.closeChannel( lChannelId );
+        }
+        finally
+        {
+            engine.release( );
+        }
+    }
+
+    /**
+     * The error of the engine in the worker is thrown by the webapp call, and the connection stays usable.
+     *
+     * @throws OcrException
+     *             if the channel cannot be opened
+     */
+    public void testEngineError( ) throws OcrException
+    {
+        ProcessA2iaEngine engine = new ProcessA2iaEngine( _processPool );
+        try
+        {
+            long lChannelId = engine.openChannel( new EngineEndpoint( "error", "", 1, 1 ), TIMEOUT );
+            try
+            {
+                engine.getResult( lChannelId, -1, TIMEOUT );
+                fail( "The request is unknown" );
+            }
+            catch( OcrException e )
+            {
+                assertEquals( "Stub engine : unknown channel or request", e.getMessage( ) );
+            }
+
+            assertTrue( engine.openRequests( lChannelId, new String [ ] {
+                    TBL_DOCUMENT_PATH
+            }, new ImageBean [ ] {
+                    createImage( 10 )
+            }, OcrConstants.OCR_MODE_MEMORY, TIMEOUT ) [0] > 0 );
+        }
+        finally
+        {
+            engine.release( );
+        }
+    }
+
+    /**
+     * A request waiting for its result is closed by another thread : the close goes through a side connection, and is applied by the connection owning
+     * the request once its wait ends, the engine objects being only called from their thread.
+     *
+     * @throws Exception
+     *             if a call fails
+     */
+    public void testCloseWhileWaiting( ) throws Exception
+    {
+        ProcessA2iaEngine engine = new ProcessA2iaEngine( _processPool );
+        ExecutorService executor = Executors.newSingleThreadExecutor( );
+        try
+        {
+            long lChannelId = engine.openChannel( new EngineEndpoint( "close", "", 1, 1 ), TIMEOUT );
+            long lRequestId = engine.openRequests( lChannelId, new String [ ] {
+                    TBL_DOCUMENT_PATH
+            }, new ImageBean [ ] {
+                    createImage( 10 )
+            }, OcrConstants.OCR_MODE_MEMORY, TIMEOUT ) [0];
+
+            Future<Long> future = executor.submit( ( ) -> engine.getResult( lChannelId, lRequestId, TIMEOUT ) );
+            Thread.sleep( 100 );
+            engine.closeRequest( lRequestId );
+            future.get( TIMEOUT, TimeUnit.MILLISECONDS );
+
+            try
+            {
+                engine.getResult( lChannelId, lRequestId, TIMEOUT );
+                fail( "The request was closed" );
+            }
+            catch( OcrException e )
+            {
+                assertEquals( "Stub engine : unknown channel or request", e.getMessage( ) );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow( );
+            engine.release( );
+        }
+    }
+
+    /**
+     * A connection with a bad token is refused.
+     *
+     * @throws IOException
+     *             if the worker server cannot be opened
+     */
+    public void testBadToken( ) throws IOException
+    {
+        ProcessA2iaEngine engine = new ProcessA2iaEngine( new OcrWorkerProcessPool( "bad token", _server.getPort( ) ) );
+        try
+        {
+            engine.openChannel( new EngineEndpoint( "token", "", 1, 1 ), TIMEOUT );
+            fail( "The connection should be refused" );
+        }
+        catch( OcrException e )
+        {
+            // connection closed by the worker
+        }
+        finally
+        {
+            engine.release( );
+        }
+    }
+
+    /**
+     * Wait for the result of a request.
+     *
+     * @param engine
+     *            the engine
+     * @param lChannelId
+     *            id of the channel
+     * @param lRequestId
+     *            id of the request
+     * @return id of the result
+     * @throws OcrException
+     *             if the engine fails
+     */
+    private static long waitResult( IA2iaEngine engine, long lChannelId, long lRequestId ) throws OcrException
+    {
+        long lEnd = System.currentTimeMillis( ) + TIMEOUT;
+        long lResultId = IA2iaEngine.RESULT_PENDING;
+        while ( ( lResultId == IA2iaEngine.RESULT_PENDING ) && ( System.currentTimeMillis( ) < lEnd ) )
+        {
+            lResultId = engine.getResult( lChannelId, lRequestId, 200 );
+        }
+        assertTrue( lResultId != IA2iaEngine.RESULT_PENDING );
+
+        return lResultId;
+    }
+
+    /**
+     * Create an image.
+     *
+     * @param nLength
+     *            length of the content
+     * @return the image
+     */
+    private static ImageBean createImage( int nLength )
+    {
+        ImageBean imageBean = new ImageBean( );
+        imageBean.setExtension( "png" );
+        imageBean.setContent( new byte [ nLength] );
+
+        return imageBean;
+    }
+
+    /**
+     * Listener collecting the fields streamed.
+     */
+    private static final class FieldCollector implements OcrResultListener
+    {
+        private final Map<String, String> _mapFields;
+
+        /**
+         * Constructor.
+         *
+         * @param mapFields
+         *            map receiving the fields
+         */
+        FieldCollector( Map<String, String> mapFields )
+        {
+            _mapFields = mapFields;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onField( String strKey, String strValue, double dConfidence )
+        {
+            _mapFields.put( strKey, strValue );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isCancelled( )
+        {
+            return false;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onComplete( Map<String, String> mapResults )
+        {
+            // the result is returned by the call
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onError( OcrException exception )
+        {
+            // the error is thrown by the call
+        }
+    }
+
+}
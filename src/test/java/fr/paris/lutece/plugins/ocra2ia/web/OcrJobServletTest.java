@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2002-2019, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.ocra2ia.web;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrException;
+import fr.paris.lutece.plugins.ocra2ia.exception.OcrOverloadedException;
+import fr.paris.lutece.plugins.ocra2ia.service.OcrPriority;
+import fr.paris.lutece.test.LuteceTestCase;
+
+/**
+ *
+ * Tests of the HTTP responses of the job API, the job queue being replaced by the test.
+ *
+ */
+public class OcrJobServletTest extends LuteceTestCase
+{
+
+    private static final String API_KEY = "secret";
+    private static final String HEADER_API_KEY = "X-Api-Key";
+    private static final String REFERENCE = "0f8fad5b-d9cb-469f-a165-70867728950e";
+    private static final String URL = "http://localhost/lutece/servlet/plugins/ocra2ia/job";
+    private static final byte [ ] CONTENT = "document".getBytes( StandardCharsets.UTF_8 );
+
+    /**
+     * The API is refused while no api key is configured.
+     */
+    public void testNoApiKey( ) throws Exception
+    {
+        TestServlet servlet = new TestServlet( null );
+        MockResponse response = new MockResponse( );
+        servlet.doPost( request( API_KEY ), response.proxy( ) );
+
+        assertEquals( HttpServletResponse.SC_FORBIDDEN, response._nStatus );
+        assertEquals( 0, servlet._nEnqueued );
+    }
+
+    /**
+     * A request without the configured api key is refused.
+     */
+    public void testWrongApiKey( ) throws Exception
+    {
+        TestServlet servlet = new TestServlet( null );
+        servlet._strApiKey = API_KEY;
+        MockResponse response = new MockResponse( );
+        servlet.doPost( request( "wrong" ), response.proxy( ) );
+        assertEquals( HttpServletResponse.SC_UNAUTHORIZED, response._nStatus );
+
+        response = new MockResponse( );
+        servlet.doPost( request( null ), response.proxy( ) );
+        assertEquals( HttpServletResponse.SC_UNAUTHORIZED, response._nStatus );
+
+        response = new MockResponse( );
+        servlet.doGet( request( "wrong" ), response.proxy( ) );
+        assertEquals( HttpServletResponse.SC_UNAUTHORIZED, response._nStatus );
+        assertEquals( 0, servlet._nEnqueued );
+    }
+
+    /**
+     * An accepted document is answered at once with the job reference and its location.
+     */
+    public void testAccepted( ) throws Exception
+    {
+        TestServlet servlet = new TestServlet( null );
+        servlet._strApiKey = API_KEY;
+        MockResponse response = new MockResponse( );
+        servlet.doPost( request( API_KEY ), response.proxy( ) );
+
+        assertEquals( HttpServletResponse.SC_ACCEPTED, response._nStatus );
+        assertEquals( URL + "?id=" + REFERENCE, response._mapHeaders.get( "Location" ) );
+        assertTrue( response._writer.toString( ).contains( REFERENCE ) );
+        assertEquals( 1, servlet._nEnqueued );
+        assertEquals( new String( CONTENT, StandardCharsets.UTF_8 ), servlet._strContent );
+    }
+
+    /**
+     * A document refused because too many jobs are waiting is answered 503 with the delay before a retry.
+     */
+    public void testOverloaded( ) throws Exception
+    {
+        TestServlet servlet = new TestServlet( new OcrOverloadedException( 20000L, "overloaded" ) );
+        servlet._strApiKey = API_KEY;
+        MockResponse response = new MockResponse( );
+        servlet.doPost( request( API_KEY ), response.proxy( ) );
+
+        assertEquals( HttpServletResponse.SC_SERVICE_UNAVAILABLE, response._nStatus );
+        assertEquals( "20", response._mapHeaders.get( "Retry-After" ) );
+    }
+
+    /**
+     * A document refused for another reason is answered 400.
+     */
+    public void testRefused( ) throws Exception
+    {
+        TestServlet servlet = new TestServlet( new OcrException( "callback not allowed" ) );
+        servlet._strApiKey = API_KEY;
+        MockResponse response = new MockResponse( );
+        servlet.doPost( request( API_KEY ), response.proxy( ) );
+
+        assertEquals( HttpServletResponse.SC_BAD_REQUEST, response._nStatus );
+        assertNull( response._mapHeaders.get( "Retry-After" ) );
+    }
+
+    /**
+     * Build an upload request.
+     *
+     * @param strApiKey
+     *            the api key sent, or null
+     * @return the request
+     */
+    private static HttpServletRequest request( String strApiKey )
+    {
+        Map<String, String> mapParameters = new HashMap<>( );
+        mapParameters.put( "documentType", "Rib" );
+        mapParameters.put( "extension", "png" );
+
+        return (HttpServletRequest) Proxy.newProxyInstance( OcrJobServletTest.class.getClassLoader( ), new Class<?> [ ] {
+            HttpServletRequest.class
+        }, ( proxy, method, args ) -> {
+            switch( method.getName( ) )
+            {
+                case "getHeader":
+                    return HEADER_API_KEY.equals( args [0] ) ? strApiKey : null;
+                case "getParameter":
+                    return mapParameters.get( args [0] );
+                case "getContentLengthLong":
+                    return (long) CONTENT.length;
+                case "getRequestURL":
+                    return new StringBuffer( URL );
+                case "getInputStream":
+                    return new MockInputStream( new ByteArrayInputStream( CONTENT ) );
+                default:
+                    return null;
+            }
+        } );
+    }
+
+    /**
+     * Servlet whose api key and job queue are set by the test.
+     */
+    private static final class TestServlet extends OcrJobServlet
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final OcrException _exception;
+        private String _strApiKey;
+        private String _strContent;
+        private int _nEnqueued;
+
+        /**
+         * Constructor.
+         *
+         * @param exception
+         *            the exception thrown by the job queue, or null to accept the documents
+         */
+        TestServlet( OcrException exception )
+        {
+            _exception = exception;
+        }
+
+        @Override
+        String getApiKey( )
+        {
+            return _strApiKey;
+        }
+
+        @Override
+        String enqueue( InputStream content, int nLength, String strFileExtension, String strDocumentType, OcrPriority priority,
+                String strCallbackUrl ) throws OcrException
+        {
+            if ( _exception != null )
+            {
+                throw _exception;
+            }
+            try
+            {
+                ByteArrayOutputStream out = new ByteArrayOutputStream( );
+                int nByte;
+                while ( ( nByte = content.read( ) ) != -1 )
+                {
+                    out.write( nByte );
+                }
+                _strContent = new String( out.toByteArray( ), StandardCharsets.UTF_8 );
+            }
+            catch( IOException e )
+            {
+                throw new OcrException( e.getMessage( ) );
+            }
+            _nEnqueued++;
+
+            return REFERENCE;
+        }
+    }
+
+    /**
+     * Response recording its status, headers and body.
+     */
+    private static final class MockResponse
+    {
+        private final Map<String, String> _mapHeaders = new HashMap<>( );
+        private final StringWriter _writer = new StringWriter( );
+        private int _nStatus;
+
+        /**
+         * @return the response
+         */
+        HttpServletResponse proxy( )
+        {
+            PrintWriter writer = new PrintWriter( _writer, true );
+
+            return (HttpServletResponse) Proxy.newProxyInstance( OcrJobServletTest.class.getClassLoader( ), new Class<?> [ ] {
+                HttpServletResponse.class
+            }, ( proxy, method, args ) -> {
+                switch( method.getName( ) )
+                {
+                    case "setStatus":
+                        _nStatus = (Integer) args [0];
+                        return null;
+                    case "setHeader":
+                        _mapHeaders.put( (String) args [0], (String) args [1] );
+                        return null;
+                    case "getWriter":
+                        return writer;
+                    default:
+                        return null;
+                }
+            } );
+        }
+    }
+
+    /**
+     * Body of a request.
+     */
+    private static final class MockInputStream extends ServletInputStream
+    {
+        private final InputStream _in;
+
+        /**
+         * Constructor.
+         *
+         * @param in
+         *            the content of the body
+         */
+        MockInputStream( InputStream in )
+        {
+            _in = in;
+        }
+
+        @Override
+        public int read( ) throws IOException
+        {
+            return _in.read( );
+        }
+
+        @Override
+        public boolean isFinished( )
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isReady( )
+        {
+            return true;
+        }
+
+        @Override
+        public void setReadListener( ReadListener readListener )
+        {
+            // blocking reads only
+        }
+    }
+
+}
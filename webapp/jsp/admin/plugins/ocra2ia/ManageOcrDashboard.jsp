@@ -0,0 +1,9 @@
+<jsp:useBean id="manageOcrDashboard" scope="session" class="fr.paris.lutece.plugins.ocra2ia.web.OcrDashboardJspBean" />
+<% String strContent = manageOcrDashboard.processController ( request , response ); %>
+
+<%@ page errorPage="../../ErrorPage.jsp" %>
+<jsp:include page="../../AdminHeader.jsp" />
+
+<%= strContent %>
+
+<%@ include file="../../AdminFooter.jsp" %>